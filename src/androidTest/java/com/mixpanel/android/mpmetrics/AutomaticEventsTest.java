@@ -143,6 +143,7 @@ public class AutomaticEventsTest extends AndroidTestCase {
 
             @Override
         /* package */ PersistentIdentity getPersistentIdentity(final Context context, final Future<SharedPreferences> referrerPreferences, final String token) {
+                PreferencesWriteBuffer.flush(); // So writes from earlier instances don't land after the clear
                 final String prefsName = "com.mixpanel.android.mpmetrics.MixpanelAPI_" + token;
                 final SharedPreferences ret = context.getSharedPreferences(prefsName, Context.MODE_PRIVATE);
                 ret.edit().clear().commit();
@@ -0,0 +1,111 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class CompactStorageTest extends AndroidTestCase {
+    @Override
+    public void setUp() {
+        mTextAdapter = makeAdapter(false);
+        mCompactAdapter = makeAdapter(true);
+        mTextAdapter.deleteDB();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mTextAdapter.deleteDB();
+        super.tearDown();
+    }
+
+    public void testRecordsSentAsStored() throws Exception {
+        final JSONObject first = makeEvent("First Event", "Plain value");
+        final JSONObject second = makeEvent("Second Event", "ünïcødé ☃ \"quoted\"");
+        mCompactAdapter.addJSON(first, TOKEN, MPDbAdapter.Table.EVENTS, false);
+        mCompactAdapter.addJSON(second, TOKEN, MPDbAdapter.Table.EVENTS, false);
+        assertEquals(2, countRows(MPDbAdapter.KEY_ENCODING + " = " + CompactRecordCodec.ENCODING));
+
+        assertEquals("[" + first + "," + second + "]", readBatch(mCompactAdapter));
+    }
+
+    public void testTextRowsConverted() throws Exception {
+        final StringBuilder expected = new StringBuilder("[");
+        for (int i = 0; i < 5; i++) {
+            final JSONObject event = makeEvent("Event " + i, "Value " + i);
+            mTextAdapter.addJSON(event, TOKEN, MPDbAdapter.Table.EVENTS, false);
+            expected.append(i > 0 ? "," : "").append(event);
+        }
+        expected.append("]");
+
+        assertFalse(mTextAdapter.compactStoredRows(2));
+        assertEquals(5, countRows(MPDbAdapter.KEY_ENCODING + " = 0"));
+
+        assertTrue(mCompactAdapter.compactStoredRows(2));
+        assertEquals(3, countRows(MPDbAdapter.KEY_ENCODING + " = 0"));
+
+        // A batch can mix rows in both formats
+        assertEquals(expected.toString(), readBatch(mTextAdapter));
+
+        while (mCompactAdapter.compactStoredRows(2)) {
+            // Convert the rest
+        }
+        assertEquals(0, countRows(MPDbAdapter.KEY_ENCODING + " = 0"));
+        assertEquals(expected.toString(), readBatch(mTextAdapter));
+    }
+
+    public void testDamagedCompactRowQuarantined() throws Exception {
+        mCompactAdapter.addJSON(makeEvent("Good Event", "Before"), TOKEN, MPDbAdapter.Table.EVENTS, false);
+        mCompactAdapter.addJSON(makeEvent("Damaged Event", "Lost"), TOKEN, MPDbAdapter.Table.EVENTS, false);
+        mCompactAdapter.addJSON(makeEvent("Good Event", "After"), TOKEN, MPDbAdapter.Table.EVENTS, false);
+
+        final SQLiteDatabase db = SQLiteDatabase.openDatabase(mCompactAdapter.getDatabaseFile().getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        db.execSQL("UPDATE " + MPDbAdapter.Table.EVENTS.getName() + " SET " + MPDbAdapter.KEY_DATA + " = X'78BB0000' WHERE _id = 2");
+        db.close();
+
+        final String batch = readBatch(mCompactAdapter);
+        assertTrue(batch.contains("Before"));
+        assertTrue(batch.contains("After"));
+        assertFalse(batch.contains("Lost"));
+        assertEquals(1, mCompactAdapter.getQuarantineCount());
+    }
+
+    private MPDbAdapter makeAdapter(boolean compact) {
+        final Bundle metaData = new Bundle();
+        metaData.putBoolean("com.mixpanel.android.MPConfig.CompactStorage", compact);
+        return new MPDbAdapter(getContext(), "CompactStorageTestDB", new MPConfig(metaData, getContext()));
+    }
+
+    private long countRows(String where) {
+        final SQLiteDatabase db = SQLiteDatabase.openDatabase(mTextAdapter.getDatabaseFile().getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            return DatabaseUtils.queryNumEntries(db, MPDbAdapter.Table.EVENTS.getName(), where);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static String readBatch(MPDbAdapter adapter) throws Exception {
+        final MPDbAdapter.DataBatch batch = adapter.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, true, 50);
+        return new String(batch.getData(), 0, batch.getDataLength(), "UTF-8");
+    }
+
+    private static JSONObject makeEvent(String name, String value) throws JSONException {
+        final JSONObject properties = new JSONObject();
+        properties.put("mp_lib", "android");
+        properties.put("$lib_version", "5.0.0");
+        properties.put("$os", "Android");
+        properties.put("token", TOKEN);
+        properties.put("distinct_id", "COMPACT ID");
+        properties.put("Property", value);
+        return new JSONObject().put("event", name).put("properties", properties);
+    }
+
+    private MPDbAdapter mTextAdapter;
+    private MPDbAdapter mCompactAdapter;
+
+    private static final String TOKEN = "COMPACT TOKEN";
+}
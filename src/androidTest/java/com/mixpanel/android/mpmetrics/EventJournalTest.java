@@ -0,0 +1,87 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+public class EventJournalTest extends AndroidTestCase {
+    @Override
+    public void setUp() {
+        mDirectory = new File(getContext().getFilesDir(), "EventJournalTest");
+        deleteJournal();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        deleteJournal();
+        super.tearDown();
+    }
+
+    public void testUnacknowledgedEventsReplayed() throws Exception {
+        final EventJournal journal = new EventJournal(mDirectory);
+        assertTrue(journal.readUnacknowledged().isEmpty());
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, journal.append(makeEvent(i)));
+        }
+        journal.acknowledge(2);
+
+        // As if the process had died here
+        final EventJournal reopened = new EventJournal(mDirectory);
+        final List<AnalyticsMessages.EventDescription> left = reopened.readUnacknowledged();
+        assertEquals(2, left.size());
+        assertEquals("Event 3", left.get(0).getEventName());
+        assertEquals(3, left.get(0).getProperties().getInt("number"));
+        assertEquals(TOKEN, left.get(0).getToken());
+        assertFalse(left.get(0).isAutomatic());
+        assertTrue(left.get(1).isAutomatic());
+        assertEquals(4, left.get(1).getJournalSeq());
+
+        // Events of the running process aren't replayed, they're on their way to the worker
+        assertEquals(5, reopened.append(makeEvent(5)));
+        assertEquals(2, reopened.readUnacknowledged().size());
+
+        reopened.acknowledge(5);
+        assertTrue(new EventJournal(mDirectory).readUnacknowledged().isEmpty());
+    }
+
+    public void testTornRecordIgnored() throws Exception {
+        final EventJournal journal = new EventJournal(mDirectory);
+        journal.append(makeEvent(1));
+        journal.append(makeEvent(2));
+
+        // Damage the second record, as a crash halfway through writing it might
+        final File segment = new File(mDirectory, "1.journal");
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        final int firstLength = file.readInt();
+        file.seek(16 + firstLength + 20);
+        file.write(0x55);
+        file.close();
+
+        final List<AnalyticsMessages.EventDescription> left = new EventJournal(mDirectory).readUnacknowledged();
+        assertEquals(1, left.size());
+        assertEquals("Event 1", left.get(0).getEventName());
+    }
+
+    private void deleteJournal() {
+        final File[] files = mDirectory.listFiles();
+        if (null != files) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static AnalyticsMessages.EventDescription makeEvent(int number) throws JSONException {
+        return new AnalyticsMessages.EventDescription("Event " + number, new JSONObject().put("number", number), TOKEN, number % 2 == 0);
+    }
+
+    private File mDirectory;
+
+    private static final String TOKEN = "JOURNAL TOKEN";
+}
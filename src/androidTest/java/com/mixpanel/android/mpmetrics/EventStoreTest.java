@@ -0,0 +1,171 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class EventStoreTest extends AndroidTestCase {
+    @Override
+    public void setUp() {
+        mConfig = new MPConfig(new Bundle(), getContext());
+        mDirectory = new File(getContext().getFilesDir(), "EventStoreTest");
+        mStores = new EventStore[] {
+            new MPDbAdapter(getContext(), "EventStoreTestDB", mConfig),
+            new MemoryEventStore(),
+            new FileEventStore(mDirectory, mConfig),
+        };
+        for (final EventStore store : mStores) {
+            store.deleteDB();
+        }
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        for (final EventStore store : mStores) {
+            store.deleteDB();
+        }
+        super.tearDown();
+    }
+
+    public void testSendAndAcknowledge() throws Exception {
+        for (final EventStore store : mStores) {
+            final String name = store.getClass().getSimpleName();
+            assertEquals(name, 1, store.addJSON(makeEvent(1), TOKEN, MPDbAdapter.Table.EVENTS, false));
+            assertEquals(name, 2, store.addJSON(makeEvent(2), TOKEN, MPDbAdapter.Table.EVENTS, true));
+            assertEquals(name, 3, store.addJSON(makeEvent(3), TOKEN, MPDbAdapter.Table.EVENTS, false));
+            store.addJSON(makeEvent(4), OTHER_TOKEN, MPDbAdapter.Table.EVENTS, false);
+
+            MPDbAdapter.DataBatch batch = store.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, 50);
+            assertEquals(name, "[" + makeEvent(1) + "," + makeEvent(3) + "]", readBatch(batch));
+            assertEquals(name, 2, batch.getQueueCount());
+
+            // Automatic records stay until they may be sent
+            store.cleanupEvents(batch.getLastId(), MPDbAdapter.Table.EVENTS, TOKEN, false);
+            assertEquals(name, 1, store.getQueueCount(MPDbAdapter.Table.EVENTS, TOKEN));
+            assertNull(name, store.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, 50));
+            batch = store.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, true, 50);
+            assertEquals(name, "[" + makeEvent(2) + "]", readBatch(batch));
+
+            store.cleanupAutomaticEvents(TOKEN);
+            assertEquals(name, 0, store.getQueueCount(MPDbAdapter.Table.EVENTS, TOKEN));
+            assertEquals(name, 1, store.getQueueCount(MPDbAdapter.Table.EVENTS, OTHER_TOKEN));
+            assertEquals(name, 0, store.getQueueCount(MPDbAdapter.Table.PEOPLE, OTHER_TOKEN));
+        }
+    }
+
+    public void testBatchesAndExpiration() throws Exception {
+        for (final EventStore store : mStores) {
+            final String name = store.getClass().getSimpleName();
+            final List<MPDbAdapter.QueuedRecord> records = new ArrayList<MPDbAdapter.QueuedRecord>();
+            for (int i = 0; i < 5; i++) {
+                records.add(new MPDbAdapter.QueuedRecord(makeEvent(i), TOKEN, MPDbAdapter.Table.PEOPLE, false, 1000 + i));
+            }
+            assertEquals(name, 5, store.addJSON(records));
+
+            store.cleanupEvents(1002, MPDbAdapter.Table.PEOPLE);
+            final MPDbAdapter.DataBatch batch = store.generateDataBatch(MPDbAdapter.Table.PEOPLE, TOKEN, true, 1);
+            assertEquals(name, "[" + makeEvent(3) + "]", readBatch(batch));
+            assertEquals(name, 1, batch.getRecordCount());
+            assertEquals(name, 2, batch.getQueueCount());
+            assertFalse(name, store.performMaintenance());
+        }
+    }
+
+    public void testReadAheadAfterBatch() throws Exception {
+        for (final EventStore store : mStores) {
+            final String name = store.getClass().getSimpleName();
+            for (int i = 1; i <= 4; i++) {
+                store.addJSON(makeEvent(i), TOKEN, MPDbAdapter.Table.EVENTS, i == 3);
+            }
+
+            final MPDbAdapter.DataBatch first = store.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, 1, null);
+            assertEquals(name, "[" + makeEvent(1) + "]", readBatch(first));
+            assertEquals(name, 3, first.getQueueCount());
+            final MPDbAdapter.DataBatch next = store.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, 50, first.getLastId());
+            assertEquals(name, "[" + makeEvent(2) + "," + makeEvent(4) + "]", readBatch(next));
+            assertEquals(name, 2, next.getQueueCount());
+            assertNull(name, store.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, 50, next.getLastId()));
+
+            // Sending the first batch doesn't change what comes after it
+            store.cleanupEvents(first.getLastId(), MPDbAdapter.Table.EVENTS, TOKEN, false);
+            assertEquals(name, readBatch(next), readBatch(store.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, 50, first.getLastId())));
+        }
+    }
+
+    public void testExpirationInChunks() throws Exception {
+        for (final EventStore store : mStores) {
+            final String name = store.getClass().getSimpleName();
+            final List<MPDbAdapter.QueuedRecord> records = new ArrayList<MPDbAdapter.QueuedRecord>();
+            for (int i = 0; i < 5; i++) {
+                records.add(new MPDbAdapter.QueuedRecord(makeEvent(i), i < 3 ? TOKEN : OTHER_TOKEN, MPDbAdapter.Table.EVENTS, false, 1000 + i));
+            }
+            store.addJSON(records);
+
+            assertEquals(name, 2, store.cleanupEvents(1003, MPDbAdapter.Table.EVENTS, 2));
+            assertEquals(name, 2, store.cleanupEvents(1003, MPDbAdapter.Table.EVENTS, 2));
+            assertEquals(name, 0, store.cleanupEvents(1003, MPDbAdapter.Table.EVENTS, 2));
+            assertEquals(name, 0, store.getQueueCount(MPDbAdapter.Table.EVENTS, TOKEN));
+            assertEquals(name, 1, store.getQueueCount(MPDbAdapter.Table.EVENTS, OTHER_TOKEN));
+        }
+    }
+
+    public void testFileStoreSurvivesReopening() throws Exception {
+        final EventStore store = mStores[2];
+        store.addJSON(makeEvent(1), TOKEN, MPDbAdapter.Table.EVENTS, false);
+        store.addJSON(makeEvent(2), TOKEN, MPDbAdapter.Table.EVENTS, true);
+        store.addJSON(makeEvent(3), TOKEN, MPDbAdapter.Table.EVENTS, false);
+        final MPDbAdapter.DataBatch sent = store.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, 1);
+        store.cleanupEvents(sent.getLastId(), MPDbAdapter.Table.EVENTS, TOKEN, false);
+
+        // A record torn by a crash is dropped, the ones before it are kept
+        final File[] segments = mDirectory.listFiles()[0].listFiles()[0].listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(".log");
+            }
+        });
+        assertEquals(1, segments.length);
+        final FileOutputStream out = new FileOutputStream(segments[0], true);
+        out.write(new byte[] { 0, 0, 0, 50, 1, 2, 3 });
+        out.close();
+
+        final EventStore reopened = new FileEventStore(mDirectory, mConfig);
+        assertEquals(2, reopened.getQueueCount(MPDbAdapter.Table.EVENTS, TOKEN));
+        assertEquals("[" + makeEvent(2) + "," + makeEvent(3) + "]",
+                readBatch(reopened.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, true, 50)));
+
+        assertEquals(3, reopened.addJSON(makeEvent(4), TOKEN, MPDbAdapter.Table.EVENTS, false));
+        final MPDbAdapter.DataBatch all = reopened.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, true, 50);
+        reopened.cleanupEvents(all.getLastId(), MPDbAdapter.Table.EVENTS, TOKEN, true);
+        assertEquals(0, segments[0].getParentFile().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(".log");
+            }
+        }).length);
+        assertEquals(0, new FileEventStore(mDirectory, mConfig).getQueueCount(MPDbAdapter.Table.EVENTS, TOKEN));
+    }
+
+    private static String readBatch(MPDbAdapter.DataBatch batch) throws Exception {
+        return new String(batch.getData(), 0, batch.getDataLength(), "UTF-8");
+    }
+
+    private static JSONObject makeEvent(int i) throws JSONException {
+        return new JSONObject().put("event", "Event " + i).put("properties", new JSONObject().put("token", TOKEN));
+    }
+
+    private MPConfig mConfig;
+    private File mDirectory;
+    private EventStore[] mStores;
+
+    private static final String TOKEN = "EVENT STORE TOKEN";
+    private static final String OTHER_TOKEN = "OTHER EVENT STORE TOKEN";
+}
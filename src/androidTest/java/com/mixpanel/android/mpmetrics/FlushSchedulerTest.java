@@ -0,0 +1,63 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+public class FlushSchedulerTest extends AndroidTestCase {
+    public void testUnmeteredFlushesSooner() {
+        final FlushScheduler scheduler = new FlushScheduler(60000, 600000, 40);
+        assertEquals(15000, scheduler.getFlushDelay(0, 1, UNMETERED, -1));
+        assertEquals(60000, scheduler.getFlushDelay(0, 1, UNKNOWN, -1));
+    }
+
+    public void testDefaultLatencyKeepsFlushInterval() {
+        final FlushScheduler scheduler = new FlushScheduler(60000, -1, 40);
+        assertEquals(60000, scheduler.getFlushDelay(0, 1, METERED, -1));
+        assertEquals(60000, scheduler.getFlushDelay(0, 1, LOW_BATTERY, -1));
+        assertEquals(60000, scheduler.getFlushDelay(0, 1, UNMETERED, -1));
+    }
+
+    public void testMeteredWaitsForFullBatch() {
+        final FlushScheduler scheduler = new FlushScheduler(60000, 600000, 40);
+        // Nothing known about the rate yet
+        assertEquals(600000, scheduler.getFlushDelay(100000, 1, METERED, -1));
+
+        // One record every five seconds, so the other 38 arrive in 190 seconds
+        for (int i = 0; i <= 10; i++) {
+            scheduler.onRecordQueued(100000 + i * 5000);
+        }
+        assertEquals(190000, scheduler.getFlushDelay(200000, 2, METERED, -1));
+
+        // The radio is still up after our last upload
+        scheduler.onUploadFinished(200000);
+        assertEquals(1000, scheduler.getFlushDelay(205000, 2, METERED, -1));
+        assertEquals(190000, scheduler.getFlushDelay(215000, 2, METERED, -1));
+    }
+
+    public void testRadioTailUsedOncePerUpload() {
+        final FlushScheduler scheduler = new FlushScheduler(60000, 600000, 40);
+        scheduler.onUploadFinished(200000);
+        assertEquals(1000, scheduler.getFlushDelay(201000, 1, METERED, -1));
+        assertEquals(600000, scheduler.getFlushDelay(202000, 1, METERED, -1));
+
+        // The flush sent on the tail doesn't start a tail of its own
+        scheduler.onFlushStarted();
+        scheduler.onUploadFinished(203000);
+        assertEquals(600000, scheduler.getFlushDelay(204000, 1, METERED, -1));
+
+        // An upload that didn't ride on a tail does
+        scheduler.onFlushStarted();
+        scheduler.onUploadFinished(900000);
+        assertEquals(1000, scheduler.getFlushDelay(901000, 1, METERED, -1));
+    }
+
+    public void testBatteryAndSlowUploadsStretchDelay() {
+        final FlushScheduler scheduler = new FlushScheduler(60000, 600000, 40);
+        assertEquals(600000, scheduler.getFlushDelay(0, 1, LOW_BATTERY, -1));
+        assertEquals(60000, scheduler.getFlushDelay(0, 1, UNMETERED, 8000));
+    }
+
+    private static final FlushScheduler.Conditions UNKNOWN = new FlushScheduler.Conditions(null, null, null);
+    private static final FlushScheduler.Conditions UNMETERED = new FlushScheduler.Conditions(false, false, 0.8f);
+    private static final FlushScheduler.Conditions METERED = new FlushScheduler.Conditions(true, false, 0.8f);
+    private static final FlushScheduler.Conditions LOW_BATTERY = new FlushScheduler.Conditions(true, false, 0.1f);
+}
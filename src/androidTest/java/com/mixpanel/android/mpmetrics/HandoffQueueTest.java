@@ -0,0 +1,218 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class HandoffQueueTest extends AndroidTestCase {
+
+    public void testFirstInFirstOut() {
+        final HandoffQueue queue = new HandoffQueue(4, HandoffQueue.OverflowPolicy.BLOCK);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(offer(queue, i, true));
+        }
+        assertEquals(3, queue.size());
+
+        final HandoffQueue.Entry entry = new HandoffQueue.Entry();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.poll(entry));
+            assertEquals("Event " + i, entry.getName());
+            assertEquals(i, entry.getTimeMillis());
+        }
+        assertFalse(queue.poll(entry));
+    }
+
+    public void testCapacityRoundedUp() {
+        assertEquals(8, new HandoffQueue(5, HandoffQueue.OverflowPolicy.BLOCK).capacity());
+        assertEquals(1, new HandoffQueue(1, HandoffQueue.OverflowPolicy.BLOCK).capacity());
+    }
+
+    public void testDropOldest() {
+        final HandoffQueue queue = new HandoffQueue(4, HandoffQueue.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(offer(queue, i, true));
+        }
+        assertEquals(2, queue.getDroppedOldestCount());
+        assertEquals(0, queue.getDroppedNewestCount());
+
+        final HandoffQueue.Entry entry = new HandoffQueue.Entry();
+        for (int i = 2; i < 6; i++) {
+            assertTrue(queue.poll(entry));
+            assertEquals("Event " + i, entry.getName());
+        }
+        assertFalse(queue.poll(entry));
+    }
+
+    public void testDropNewest() {
+        final HandoffQueue queue = new HandoffQueue(4, HandoffQueue.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, offer(queue, i, true));
+        }
+        assertEquals(0, queue.getDroppedOldestCount());
+        assertEquals(2, queue.getDroppedNewestCount());
+
+        final HandoffQueue.Entry entry = new HandoffQueue.Entry();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.poll(entry));
+            assertEquals("Event " + i, entry.getName());
+        }
+        assertFalse(queue.poll(entry));
+    }
+
+    public void testBlockWaitsForRoom() throws InterruptedException {
+        final HandoffQueue queue = new HandoffQueue(2, HandoffQueue.OverflowPolicy.BLOCK);
+        assertTrue(offer(queue, 0, true));
+        assertTrue(offer(queue, 1, true));
+
+        // The worker itself must never wait for room it would have to make
+        assertFalse(offer(queue, 99, false));
+        assertEquals(1, queue.getDroppedNewestCount());
+
+        final CountDownLatch offered = new CountDownLatch(1);
+        final AtomicBoolean accepted = new AtomicBoolean(false);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accepted.set(offer(queue, 2, true));
+                offered.countDown();
+            }
+        }).start();
+        Thread.sleep(20);
+
+        final HandoffQueue.Entry entry = new HandoffQueue.Entry();
+        assertTrue(queue.poll(entry));
+        assertEquals("Event 0", entry.getName());
+        assertTrue(offered.await(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(accepted.get());
+
+        assertTrue(queue.poll(entry));
+        assertEquals("Event 1", entry.getName());
+        assertTrue(queue.poll(entry));
+        assertEquals("Event 2", entry.getName());
+        assertEquals(1, queue.getDroppedNewestCount());
+    }
+
+    public void testBlockGivesUp() {
+        final HandoffQueue queue = new HandoffQueue(1, HandoffQueue.OverflowPolicy.BLOCK);
+        assertTrue(offer(queue, 0, true));
+
+        // Nobody makes room, so the caller only waits a bounded time before dropping the entry
+        final long start = System.nanoTime();
+        assertFalse(offer(queue, 1, true));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(POLL_WAIT_SECONDS));
+        assertEquals(1, queue.getDroppedNewestCount());
+    }
+
+    public void testClosedQueueDrops() {
+        final HandoffQueue queue = new HandoffQueue(2, HandoffQueue.OverflowPolicy.BLOCK);
+        assertTrue(offer(queue, 0, true));
+        assertTrue(offer(queue, 1, true));
+        queue.close();
+
+        assertEquals(0, queue.size());
+        assertFalse(offer(queue, 2, true));
+        assertFalse(queue.poll(new HandoffQueue.Entry()));
+    }
+
+    public void testMessagesBuiltOnWorker() throws JSONException, InterruptedException {
+        final BlockingQueue<JSONObject> events = new LinkedBlockingQueue<JSONObject>();
+        final BlockingQueue<JSONObject> people = new LinkedBlockingQueue<JSONObject>();
+        final MPDbAdapter mockAdapter = new MPDbAdapter(getContext()) {
+            @Override
+            public int addJSON(JSONObject message, String token, MPDbAdapter.Table table, boolean isAutomatic) {
+                if (table == MPDbAdapter.Table.EVENTS) {
+                    events.add(message);
+                } else {
+                    people.add(message);
+                }
+                return 1;
+            }
+        };
+
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.HandoffQueueSize", 16);
+        final MPConfig handoffConfig = new MPConfig(metaData, getContext()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            @Override
+            public boolean getDisableAppOpenEvent() {
+                return true;
+            }
+        };
+
+        final AnalyticsMessages messages = new AnalyticsMessages(getContext()) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return handoffConfig;
+            }
+        };
+        assertTrue(messages.hasHandoffQueue());
+
+        final MixpanelAPI mixpanel = new TestUtils.CleanMixpanelAPI(getContext(), new TestUtils.EmptyPreferences(getContext()), "HANDOFF TOKEN") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return messages;
+            }
+        };
+        mixpanel.identify("HANDOFF ID");
+        mixpanel.getPeople().identify("HANDOFF PERSON");
+
+        // Super properties are captured when track() is called, not when the message is built
+        mixpanel.registerSuperProperties(new JSONObject().put("Super Property", "First"));
+        final JSONObject firstEventProperties = new JSONObject().put("Event Property", 1);
+        mixpanel.track("First Event", firstEventProperties);
+        firstEventProperties.put("Event Property", 2); // The call made its own copy
+        mixpanel.registerSuperProperties(new JSONObject().put("Super Property", "Second"));
+        final Map<String, Object> mapProperties = new HashMap<String, Object>();
+        mapProperties.put("Map Property", "Map Value");
+        mixpanel.trackMap("Second Event", mapProperties);
+        mixpanel.getPeople().set("People Property", "People Value");
+
+        final JSONObject first = events.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("First Event", first.getString("event"));
+        final JSONObject firstProperties = first.getJSONObject("properties");
+        assertEquals("First", firstProperties.getString("Super Property"));
+        assertEquals(1, firstProperties.getInt("Event Property"));
+        assertEquals("HANDOFF ID", firstProperties.getString("distinct_id"));
+        assertEquals("HANDOFF TOKEN", firstProperties.getString("token"));
+        assertTrue(firstProperties.has("time"));
+
+        final JSONObject second = events.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("Second Event", second.getString("event"));
+        final JSONObject secondProperties = second.getJSONObject("properties");
+        assertEquals("Second", secondProperties.getString("Super Property"));
+        assertEquals("Map Value", secondProperties.getString("Map Property"));
+
+        final JSONObject update = people.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("HANDOFF PERSON", update.getString("$distinct_id"));
+        assertEquals("HANDOFF TOKEN", update.getString("$token"));
+        final JSONObject set = update.getJSONObject("$set");
+        assertEquals("People Value", set.getString("People Property"));
+        assertTrue(set.has("$android_lib_version"));
+    }
+
+    private static boolean offer(HandoffQueue queue, int index, boolean mayBlock) {
+        return queue.offer(null, "Event " + index, null, index, null, null, false, null, null, mayBlock);
+    }
+
+    private static final int POLL_WAIT_SECONDS = 5;
+}
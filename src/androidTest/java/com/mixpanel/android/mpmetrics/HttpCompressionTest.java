@@ -0,0 +1,180 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.mixpanel.android.util.Base64Coder;
+import com.mixpanel.android.util.Base64Payload;
+import com.mixpanel.android.util.HttpService;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs HttpService against a local server to check compressed uploads end to end.
+ * The bytes saved by compression are reported to logcat under the MixpanelAPI.Benchmark tag.
+ */
+public class HttpCompressionTest extends AndroidTestCase {
+    @Override
+    public void tearDown() throws Exception {
+        if (null != mServer) {
+            mServer.shutdown();
+        }
+        super.tearDown();
+    }
+
+    public void testCompressedRoundTrip() throws Exception {
+        mServer = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public TestHttpServer.Response respond(TestHttpServer.Request request) {
+                return new TestHttpServer.Response(200, "1\n");
+            }
+        });
+
+        final String batch = makeBatch(50);
+        final byte[] response = new HttpService(true, false, null).performRequest(mServer.getUrl("/track/roundtrip"), makeParams(batch), null);
+        assertEquals("1\n", new String(response, "UTF-8"));
+
+        final TestHttpServer.Request request = mServer.requests.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("POST", request.method);
+        assertTrue(request.isGzipped());
+        assertEquals(batch, getData(request));
+
+        final int uncompressedLength = request.getBody().length;
+        final int compressedLength = request.rawBody.length;
+        assertTrue(compressedLength < uncompressedLength);
+        Log.i(LOGTAG, "Flush of 50 events: " + uncompressedLength + " bytes uncompressed, " +
+                compressedLength + " bytes gzipped, " + (uncompressedLength - compressedLength) + " bytes saved");
+    }
+
+    public void testUncompressedByDefault() throws Exception {
+        mServer = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public TestHttpServer.Response respond(TestHttpServer.Request request) {
+                return new TestHttpServer.Response(200, "1\n");
+            }
+        });
+
+        final String batch = makeBatch(5);
+        new HttpService().performRequest(mServer.getUrl("/track/default"), makeParams(batch), null);
+
+        final TestHttpServer.Request request = mServer.requests.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertFalse(request.isGzipped());
+        assertEquals(batch, getData(request));
+    }
+
+    public void testFallbackOnUnsupportedMediaType() throws Exception {
+        mServer = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public TestHttpServer.Response respond(TestHttpServer.Request request) {
+                if (request.isGzipped()) {
+                    return new TestHttpServer.Response(415, "Unsupported Media Type");
+                }
+                return new TestHttpServer.Response(200, "1\n");
+            }
+        });
+        checkFallback(mServer.getUrl("/track/415"));
+    }
+
+    public void testNoFallbackOnRejectedBatch() throws Exception {
+        // "0" is how the endpoints reject a bad batch, and says nothing about compression
+        mServer = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public TestHttpServer.Response respond(TestHttpServer.Request request) {
+                return new TestHttpServer.Response(200, "0\n");
+            }
+        });
+
+        final String url = mServer.getUrl("/track/rejected");
+        final HttpService service = new HttpService(true, false, null);
+        byte[] response = service.performRequest(url, makeParams(makeBatch(5)), null);
+        assertEquals("0\n", new String(response, "UTF-8"));
+        assertTrue(mServer.requests.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS).isGzipped());
+        assertNull(mServer.requests.poll());
+
+        response = service.performRequest(url, makeParams(makeBatch(5)), null);
+        assertEquals("0\n", new String(response, "UTF-8"));
+        assertTrue(mServer.requests.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS).isGzipped());
+    }
+
+    private void checkFallback(String url) throws Exception {
+        final String batch = makeBatch(5);
+        final HttpService service = new HttpService(true, false, null);
+        byte[] response = service.performRequest(url, makeParams(batch), null);
+        assertEquals("1\n", new String(response, "UTF-8"));
+
+        final TestHttpServer.Request rejected = mServer.requests.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(rejected.isGzipped());
+        final TestHttpServer.Request retried = mServer.requests.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertFalse(retried.isGzipped());
+        assertEquals(batch, getData(retried));
+
+        // The endpoint is remembered, so later requests go straight out uncompressed
+        response = service.performRequest(url, makeParams(batch), null);
+        assertEquals("1\n", new String(response, "UTF-8"));
+        assertFalse(mServer.requests.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS).isGzipped());
+        assertNull(mServer.requests.poll());
+    }
+
+    // Events carry the same default properties, which is what makes batches compress well
+    private static String makeBatch(int count) throws JSONException {
+        final JSONArray batch = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            final JSONObject properties = new JSONObject();
+            properties.put("mp_lib", "android");
+            properties.put("$lib_version", MPConfig.VERSION);
+            properties.put("$os", "Android");
+            properties.put("$os_version", "4.1.1");
+            properties.put("$manufacturer", "unknown");
+            properties.put("$brand", "generic");
+            properties.put("$model", "Test Device");
+            properties.put("$google_play_services", "available");
+            properties.put("$screen_dpi", 320);
+            properties.put("$screen_height", 1920);
+            properties.put("$screen_width", 1080);
+            properties.put("$app_version", "1.0");
+            properties.put("$app_release", 1);
+            properties.put("$has_nfc", false);
+            properties.put("$has_telephone", true);
+            properties.put("$carrier", "Test Carrier");
+            properties.put("$wifi", true);
+            properties.put("token", "Test Compression Token");
+            properties.put("time", 1500000000L + i);
+            properties.put("distinct_id", "Test Distinct Id");
+            properties.put("index", i);
+            batch.put(new JSONObject().put("event", "Compressed Event").put("properties", properties));
+        }
+        return batch.toString();
+    }
+
+    private static Map<String, Object> makeParams(String batch) {
+        final byte[] data = TestUtils.bytes(batch);
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put("data", new Base64Payload(data, data.length));
+        return params;
+    }
+
+    private static String getData(TestHttpServer.Request request) throws IOException {
+        final String form = new String(request.getBody(), "US-ASCII");
+        for (final String pair : form.split("&")) {
+            final String[] keyValue = pair.split("=", 2);
+            if ("data".equals(keyValue[0])) {
+                return Base64Coder.decodeString(URLDecoder.decode(keyValue[1], "UTF-8"));
+            }
+        }
+        fail("No data parameter in " + form);
+        return null;
+    }
+
+    private TestHttpServer mServer;
+
+    private static final int POLL_WAIT_SECONDS = 5;
+    private static final String LOGTAG = "MixpanelAPI.Benchmark";
+}
@@ -0,0 +1,102 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+import com.mixpanel.android.util.HttpService;
+import com.mixpanel.android.util.RequestMetricsListener;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class HttpConnectionReuseTest extends AndroidTestCase {
+    @Override
+    public void setUp() {
+        mMetrics = new LinkedBlockingQueue<Long>();
+        mListener = new RequestMetricsListener() {
+            @Override
+            public void onRequestMetrics(String endpointUrl, long latencyMillis, int handshakes, boolean succeeded) {
+                assertTrue(succeeded);
+                assertEquals(0, handshakes); // Only TLS connections are counted
+                mMetrics.add(latencyMillis);
+            }
+        };
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (null != mServer) {
+            mServer.shutdown();
+        }
+        super.tearDown();
+    }
+
+    public void testConnectionReused() throws Exception {
+        mServer = new TestHttpServer(OK_RESPONDER, Integer.MAX_VALUE);
+        final HttpService service = new HttpService(false, true, mListener);
+        for (int i = 0; i < 5; i++) {
+            final byte[] response = service.performRequest(mServer.getUrl("/track/reuse"), makeParams(i), null);
+            assertEquals("1\n", new String(response, "UTF-8"));
+        }
+
+        assertEquals(5, mServer.requests.size());
+        assertEquals(1, mServer.connectionCount.get());
+        assertEquals(5, mMetrics.size());
+        for (final Long latency : mMetrics) {
+            assertTrue(latency >= 0);
+        }
+    }
+
+    public void testStaleConnectionRetried() throws Exception {
+        // The server drops every connection after one response, without saying so
+        mServer = new TestHttpServer(OK_RESPONDER, 1);
+        final HttpService service = new HttpService(false, true, mListener);
+        for (int i = 0; i < 5; i++) {
+            final byte[] response = service.performRequest(mServer.getUrl("/track/stale"), makeParams(i), null);
+            assertEquals("1\n", new String(response, "UTF-8"));
+        }
+
+        assertEquals(5, mServer.requests.size());
+        assertEquals(5, mServer.connectionCount.get());
+    }
+
+    public void testNotResentAfterBodyWritten() throws Exception {
+        // The server reads the whole request, then hangs up without answering. It may have
+        // stored the records, so sending them again could record them twice.
+        mServer = new TestHttpServer(new TestHttpServer.Responder() {
+            @Override
+            public TestHttpServer.Response respond(TestHttpServer.Request request) {
+                return null;
+            }
+        }, Integer.MAX_VALUE);
+        final HttpService service = new HttpService(false, true, null);
+        try {
+            service.performRequest(mServer.getUrl("/track/hangup"), makeParams(0), null);
+            fail("Expected the request to fail");
+        } catch (final IOException e) {
+            // Expected
+        }
+
+        assertEquals(1, mServer.requests.size());
+        assertEquals(1, mServer.connectionCount.get());
+    }
+
+    private static Map<String, Object> makeParams(int i) {
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put("data", "[{\"event\":\"Reuse Event " + i + "\"}]");
+        return params;
+    }
+
+    private TestHttpServer mServer;
+    private RequestMetricsListener mListener;
+    private BlockingQueue<Long> mMetrics;
+
+    private static final TestHttpServer.Responder OK_RESPONDER = new TestHttpServer.Responder() {
+        @Override
+        public TestHttpServer.Response respond(TestHttpServer.Request request) {
+            return new TestHttpServer.Response(200, "1\n");
+        }
+    };
+}
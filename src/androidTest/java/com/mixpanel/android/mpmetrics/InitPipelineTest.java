@@ -0,0 +1,102 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class InitPipelineTest extends AndroidTestCase {
+    public void testHeldCallsRunAfterStagesInOrder() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> calls = new ArrayList<String>();
+        final InitPipeline pipeline = new InitPipeline();
+        pipeline.addStage("slow", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                calls.add("slow");
+            }
+        });
+        pipeline.addStage("broken", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Expected by the test");
+            }
+        });
+        pipeline.start();
+
+        assertFalse(pipeline.isReady());
+        assertTrue(pipeline.defer(new RecordCall(calls, "first")));
+        assertTrue(pipeline.defer(new RecordCall(calls, "second")));
+        release.countDown();
+        pipeline.awaitStage("broken"); // Calls are held, so this also waits for them
+
+        assertTrue(pipeline.isReady());
+        assertFalse(pipeline.defer(new RecordCall(calls, "third")));
+        assertEquals(Arrays.asList("slow", "first", "second"), calls);
+        final Map<String, Long> timings = pipeline.getStageTimings();
+        assertEquals(Arrays.asList("slow", "broken"), new ArrayList<String>(timings.keySet()));
+    }
+
+    public void testAwaitStageSkipsLaterStages() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> calls = new ArrayList<String>();
+        final InitPipeline pipeline = new InitPipeline();
+        pipeline.addStage("early", new RecordCall(calls, "early"));
+        pipeline.addStage("slow", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        pipeline.start();
+
+        pipeline.awaitStage("early");
+        assertFalse(pipeline.isReady());
+        assertEquals(Arrays.asList("early"), calls);
+
+        // Once a call is held, waiting for a stage also waits for that call
+        assertTrue(pipeline.defer(new RecordCall(calls, "held")));
+        release.countDown();
+        pipeline.awaitStage("early");
+        assertTrue(pipeline.isReady());
+        assertEquals(Arrays.asList("early", "held"), calls);
+    }
+
+    public void testRunNowNeverHolds() {
+        final List<String> calls = new ArrayList<String>();
+        final InitPipeline pipeline = new InitPipeline();
+        pipeline.addStage("stage", new RecordCall(calls, "stage"));
+        pipeline.runNow();
+
+        assertFalse(pipeline.defer(new RecordCall(calls, "call")));
+        assertEquals(Arrays.asList("stage"), calls);
+        assertTrue(pipeline.getStageTimings().containsKey("stage"));
+    }
+
+    private static class RecordCall implements Runnable {
+        public RecordCall(List<String> calls, String name) {
+            mCalls = calls;
+            mName = name;
+        }
+
+        @Override
+        public void run() {
+            mCalls.add(mName);
+        }
+
+        private final List<String> mCalls;
+        private final String mName;
+    }
+}
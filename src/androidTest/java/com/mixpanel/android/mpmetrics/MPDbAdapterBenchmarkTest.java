@@ -0,0 +1,219 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rough timings for the queue database. These don't fail on slow devices, they
+ * report their results to logcat under the MixpanelAPI.Benchmark tag.
+ */
+public class MPDbAdapterBenchmarkTest extends AndroidTestCase {
+
+    public void testInsertFlushCycle() throws JSONException {
+        // Warm up, so the first mode measured doesn't pay for class loading and file creation
+        runInsertFlushCycles(false, 1);
+
+        final long closingMillis = runInsertFlushCycles(false, CYCLES);
+        final long keepOpenMillis = runInsertFlushCycles(true, CYCLES);
+
+        Log.i(LOGTAG, "Insert/flush of " + CYCLES + " x " + EVENTS_PER_CYCLE + " events: " +
+                closingMillis + "ms closing the database after every call, " +
+                keepOpenMillis + "ms keeping it open with WAL");
+    }
+
+    public void testFlushLatencyWithLargeQueue() throws JSONException {
+        final MPConfig config = new MPConfig(new Bundle(), getContext());
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "BenchmarkDB", config);
+        adapter.deleteDB();
+
+        final StringBuilder report = new StringBuilder("Flush latency (mean of " + FLUSHES + " batches of " + FLUSH_BATCH_SIZE + "):");
+        int queued = 0;
+        for (final int rows : QUEUE_SIZES) {
+            fillQueue(adapter, rows - queued);
+            queued = rows;
+
+            // Measure the same queue as a version 5 database would see it, then after the upgrade's index build
+            final SQLiteDatabase db = SQLiteDatabase.openDatabase(adapter.getDatabaseFile().getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+            db.execSQL("DROP INDEX IF EXISTS events_token_idx");
+            db.close();
+            final long unindexedMicros = timeFlushes(adapter);
+
+            final long buildStart = System.nanoTime();
+            while (adapter.buildPendingIndex()) {
+                // Build every missing index
+            }
+            final long buildMillis = (System.nanoTime() - buildStart) / 1000000;
+            final long indexedMicros = timeFlushes(adapter);
+
+            report.append(" ").append(rows).append(" rows: ")
+                    .append(unindexedMicros).append("us without the token index, ")
+                    .append(indexedMicros).append("us with it (built in ").append(buildMillis).append("ms);");
+        }
+
+        adapter.deleteDB();
+        Log.i(LOGTAG, report.toString());
+    }
+
+    // Adds rows for two projects, a tenth of them automatic, so the token filter has something to skip
+    private void fillQueue(MPDbAdapter adapter, int rows) throws JSONException {
+        final JSONObject event = new JSONObject();
+        event.put("event", "Benchmark Event");
+        event.put("properties", new JSONObject().put("token", TOKEN).put("distinct_id", "BENCHMARK ID"));
+
+        final List<MPDbAdapter.QueuedRecord> records = new ArrayList<MPDbAdapter.QueuedRecord>(FILL_BATCH_SIZE);
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < rows; i++) {
+            final String token = i % 2 == 0 ? TOKEN : OTHER_TOKEN;
+            records.add(new MPDbAdapter.QueuedRecord(event, token, MPDbAdapter.Table.EVENTS, i % 10 == 0, now + i));
+            if (records.size() == FILL_BATCH_SIZE) {
+                assertEquals(FILL_BATCH_SIZE, adapter.addJSON(records));
+                records.clear();
+            }
+        }
+        if (!records.isEmpty()) {
+            assertEquals(records.size(), adapter.addJSON(records));
+        }
+    }
+
+    // Reads and deletes FLUSHES batches, topping the queue back up after each one
+    private long timeFlushes(MPDbAdapter adapter) throws JSONException {
+        long elapsedNanos = 0;
+        for (int i = 0; i < FLUSHES; i++) {
+            final long start = System.nanoTime();
+            final MPDbAdapter.DataBatch batch = adapter.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, FLUSH_BATCH_SIZE);
+            adapter.cleanupEvents(batch.getLastId(), MPDbAdapter.Table.EVENTS, TOKEN, false);
+            elapsedNanos += System.nanoTime() - start;
+
+            assertEquals(FLUSH_BATCH_SIZE, batch.getRecordCount());
+            fillQueue(adapter, FLUSH_BATCH_SIZE * 2);
+        }
+        return elapsedNanos / FLUSHES / 1000;
+    }
+
+    public void testCompactStorage() throws JSONException {
+        // Warm up, so the first mode measured doesn't pay for class loading and file creation
+        runStorageComparison(false, 100);
+
+        final long[] text = runStorageComparison(false, STORED_EVENTS);
+        final long[] compact = runStorageComparison(true, STORED_EVENTS);
+        Log.i(LOGTAG, "Storing and sending " + STORED_EVENTS + " events as text: " + text[0] + " bytes on disk, " +
+                text[1] + "ms to insert, " + text[2] + "ms to flush; compact: " + compact[0] + " bytes on disk, " +
+                compact[1] + "ms to insert, " + compact[2] + "ms to flush");
+    }
+
+    // Returns the database size in bytes, and the milliseconds spent inserting and flushing
+    private long[] runStorageComparison(boolean compactStorage, int events) throws JSONException {
+        final Bundle metaData = new Bundle();
+        metaData.putBoolean("com.mixpanel.android.MPConfig.CompactStorage", compactStorage);
+        final MPConfig config = new MPConfig(metaData, getContext());
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "BenchmarkDB", config);
+        adapter.deleteDB();
+
+        final long insertStart = System.nanoTime();
+        final List<MPDbAdapter.QueuedRecord> records = new ArrayList<MPDbAdapter.QueuedRecord>(FILL_BATCH_SIZE);
+        for (int i = 0; i < events; i++) {
+            records.add(new MPDbAdapter.QueuedRecord(makeRealisticEvent(i), TOKEN, MPDbAdapter.Table.EVENTS, false, System.currentTimeMillis()));
+            if (records.size() == FILL_BATCH_SIZE || i == events - 1) {
+                adapter.addJSON(records);
+                records.clear();
+            }
+        }
+        final long insertMillis = (System.nanoTime() - insertStart) / 1000000;
+        final long databaseBytes = adapter.getDatabaseFile().length();
+
+        final long flushStart = System.nanoTime();
+        int sent = 0;
+        MPDbAdapter.DataBatch batch = adapter.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, true, FLUSH_BATCH_SIZE);
+        while (null != batch) {
+            sent += batch.getRecordCount();
+            adapter.cleanupEvents(batch.getLastId(), MPDbAdapter.Table.EVENTS, TOKEN, true);
+            batch = adapter.generateDataBatch(MPDbAdapter.Table.EVENTS, TOKEN, true, FLUSH_BATCH_SIZE);
+        }
+        final long flushMillis = (System.nanoTime() - flushStart) / 1000000;
+
+        assertEquals(events, sent);
+        adapter.deleteDB();
+        return new long[]{ databaseBytes, insertMillis, flushMillis };
+    }
+
+    // An event with the default properties every tracked event carries
+    private static JSONObject makeRealisticEvent(int i) throws JSONException {
+        final JSONObject properties = new JSONObject();
+        properties.put("mp_lib", "android");
+        properties.put("$lib_version", "5.0.0");
+        properties.put("$os", "Android");
+        properties.put("$os_version", "8.0.0");
+        properties.put("$manufacturer", "samsung");
+        properties.put("$brand", "samsung");
+        properties.put("$model", "SM-G950F");
+        properties.put("$google_play_services", "available");
+        properties.put("$screen_dpi", 420);
+        properties.put("$screen_height", 2076);
+        properties.put("$screen_width", 1080);
+        properties.put("$app_version", "1.4.2");
+        properties.put("$app_version_string", "1.4.2");
+        properties.put("$app_release", 142);
+        properties.put("$app_build_number", 142);
+        properties.put("$has_nfc", true);
+        properties.put("$has_telephone", true);
+        properties.put("$carrier", "Vodafone");
+        properties.put("$wifi", true);
+        properties.put("$bluetooth_enabled", true);
+        properties.put("$bluetooth_version", "ble");
+        properties.put("token", TOKEN);
+        properties.put("time", 1500000000 + i);
+        properties.put("distinct_id", "a0f3b1c2-d4e5-4f60-8a7b-9c0d1e2f3a4b");
+        properties.put("Screen", "Checkout");
+        properties.put("Item Count", i % 7);
+        return new JSONObject().put("event", "Button Clicked").put("properties", properties);
+    }
+
+    private long runInsertFlushCycles(boolean keepDatabaseOpen, int cycles) throws JSONException {
+        final Bundle metaData = new Bundle();
+        metaData.putBoolean("com.mixpanel.android.MPConfig.KeepDatabaseOpen", keepDatabaseOpen);
+        final MPConfig config = new MPConfig(metaData, getContext());
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "BenchmarkDB", config);
+        adapter.deleteDB();
+
+        final JSONObject event = new JSONObject();
+        event.put("event", "Benchmark Event");
+        event.put("properties", new JSONObject().put("token", TOKEN).put("distinct_id", "BENCHMARK ID"));
+
+        final long start = System.nanoTime();
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            for (int i = 0; i < EVENTS_PER_CYCLE; i++) {
+                adapter.addJSON(event, TOKEN, MPDbAdapter.Table.EVENTS, false);
+            }
+
+            String[] data = adapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+            while (null != data) {
+                adapter.cleanupEvents(data[0], MPDbAdapter.Table.EVENTS, TOKEN, true);
+                data = adapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+            }
+        }
+        final long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertNull(adapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true));
+        adapter.deleteDB();
+        return elapsedMillis;
+    }
+
+    private static final int CYCLES = 20;
+    private static final int EVENTS_PER_CYCLE = 100;
+    private static final int[] QUEUE_SIZES = { 10000, 100000, 500000 };
+    private static final int FILL_BATCH_SIZE = 1000;
+    private static final int STORED_EVENTS = 10000;
+    private static final int FLUSHES = 10;
+    private static final int FLUSH_BATCH_SIZE = 50;
+    private static final String TOKEN = "BENCHMARK TOKEN";
+    private static final String OTHER_TOKEN = "OTHER BENCHMARK TOKEN";
+    private static final String LOGTAG = "MixpanelAPI.Benchmark";
+}
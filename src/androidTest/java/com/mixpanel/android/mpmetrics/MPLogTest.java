@@ -0,0 +1,80 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+import com.mixpanel.android.util.MPLog;
+
+import org.json.JSONObject;
+
+public class MPLogTest extends AndroidTestCase {
+    @Override
+    public void setUp() throws Exception {
+        mRecord = new CountingRecord();
+        mUrl = "https://api.mixpanel.com/track/";
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        MPLog.setLevel(MPConfig.DEBUG ? MPLog.VERBOSE : MPLog.WARN);
+        super.tearDown();
+    }
+
+    public void testDeferredMessagesBuiltOnlyWhenLogged() {
+        MPLog.setLevel(MPLog.WARN);
+        assertFalse(MPLog.isLoggable(MPLog.VERBOSE));
+        assertTrue(MPLog.isLoggable(MPLog.ERROR));
+        MPLog.vDeferred(LOGTAG, "    ", mRecord);
+        MPLog.dDeferred(LOGTAG, "Posted ", mRecord, " to server");
+        assertEquals(0, mRecord.toStringCount);
+
+        MPLog.setLevel(MPLog.VERBOSE);
+        assertTrue(MPLog.isLoggable(MPLog.VERBOSE));
+        MPLog.vDeferred(LOGTAG, "    ", mRecord);
+        MPLog.dDeferred(LOGTAG, "Posted ", mRecord, " to server");
+        assertEquals(2, mRecord.toStringCount);
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testDisabledLoggingAllocatesNothing() {
+        MPLog.setLevel(MPLog.WARN);
+        logRecords(10); // Warm up, so class loading isn't counted
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        logRecords(1000);
+        Debug.stopAllocCounting();
+        assertEquals(0, Debug.getThreadAllocCount());
+
+        // The same calls do allocate once they are logged, so the count above means something
+        MPLog.setLevel(MPLog.VERBOSE);
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        logRecords(10);
+        Debug.stopAllocCounting();
+        assertTrue(Debug.getThreadAllocCount() > 0);
+    }
+
+    private void logRecords(int count) {
+        for (int i = 0; i < count; i++) {
+            MPLog.vDeferred(LOGTAG, "    ", mRecord);
+            MPLog.vDeferred(LOGTAG, "Successfully posted to ", mUrl, ": \n", mRecord);
+            MPLog.dDeferred(LOGTAG, "Reused connection to ", mUrl, " had been closed.");
+        }
+    }
+
+    private static class CountingRecord extends JSONObject {
+        @Override
+        public String toString() {
+            toStringCount++;
+            return super.toString();
+        }
+
+        public int toStringCount = 0;
+    }
+
+    private CountingRecord mRecord;
+    private String mUrl;
+
+    private static final String LOGTAG = "MixpanelAPI.MPLogTest";
+}
@@ -1,9 +1,12 @@
 package com.mixpanel.android.mpmetrics;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.os.Build;
 import android.os.Bundle;
 import android.test.AndroidTestCase;
@@ -12,6 +15,7 @@ import android.test.mock.MockPackageManager;
 import android.util.Log;
 
 import com.mixpanel.android.util.Base64Coder;
+import com.mixpanel.android.util.Base64Payload;
 import com.mixpanel.android.util.HttpService;
 import com.mixpanel.android.util.RemoteService;
 import com.mixpanel.android.viewcrawler.UpdatesFromMixpanel;
@@ -20,6 +24,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -111,6 +117,333 @@ public class MixpanelBasicTest extends AndroidTestCase {
         }
     }
 
+    public void testBatchedInsert() throws JSONException {
+        MPDbAdapter adapter = new MPDbAdapter(getContext(), "BatchedInsertTestDB");
+        adapter.deleteDB();
+
+        final List<MPDbAdapter.QueuedRecord> records = new ArrayList<MPDbAdapter.QueuedRecord>();
+        for (int i = 0; i < 10; i++) {
+            final JSONObject event = new JSONObject();
+            event.put("index", i);
+            records.add(new MPDbAdapter.QueuedRecord(event, "ATOKEN", MPDbAdapter.Table.EVENTS, false, System.currentTimeMillis()));
+        }
+        records.add(new MPDbAdapter.QueuedRecord(new JSONObject(), "ATOKEN", MPDbAdapter.Table.PEOPLE, false, System.currentTimeMillis()));
+        records.add(new MPDbAdapter.QueuedRecord(new JSONObject(), "OTHER TOKEN", MPDbAdapter.Table.EVENTS, false, System.currentTimeMillis()));
+
+        assertEquals(12, adapter.addJSON(records));
+        assertEquals(10, adapter.getQueueCount(MPDbAdapter.Table.EVENTS, "ATOKEN"));
+        assertEquals(1, adapter.getQueueCount(MPDbAdapter.Table.PEOPLE, "ATOKEN"));
+        assertEquals(1, adapter.getQueueCount(MPDbAdapter.Table.EVENTS, "OTHER TOKEN"));
+        assertEquals(11, adapter.addJSON(new JSONObject(), "ATOKEN", MPDbAdapter.Table.EVENTS, false));
+
+        String[] eventsData = adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN", true);
+        JSONArray events = new JSONArray(eventsData[1]);
+        assertEquals(11, events.length());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, events.getJSONObject(i).getInt("index"));
+        }
+
+        adapter.cleanupEvents(eventsData[0], MPDbAdapter.Table.EVENTS, "ATOKEN", true);
+        assertEquals(0, adapter.getQueueCount(MPDbAdapter.Table.EVENTS, "ATOKEN"));
+        assertEquals(1, adapter.getQueueCount(MPDbAdapter.Table.EVENTS, "OTHER TOKEN"));
+
+        adapter.deleteDB();
+        assertEquals(0, adapter.getQueueCount(MPDbAdapter.Table.EVENTS, "OTHER TOKEN"));
+    }
+
+    public void testGenerateDataBatch() throws Exception {
+        MPDbAdapter adapter = new MPDbAdapter(getContext(), "DataBatchTestDB");
+        adapter.deleteDB();
+        assertNull(adapter.generateDataBatch(MPDbAdapter.Table.EVENTS, "ATOKEN", true, 50));
+
+        for (int i = 0; i < 5; i++) {
+            final JSONObject event = new JSONObject();
+            event.put("index", i);
+            event.put("text", "caf\u00e9 + / = & \u2603");
+            adapter.addJSON(event, "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        }
+
+        final MPDbAdapter.DataBatch batch = adapter.generateDataBatch(MPDbAdapter.Table.EVENTS, "ATOKEN", true, 3);
+        assertEquals(3, batch.getRecordCount());
+        assertEquals(5, batch.getQueueCount());
+
+        final String json = new String(batch.getData(), 0, batch.getDataLength(), "UTF-8");
+        final JSONArray events = new JSONArray(json);
+        assertEquals(3, events.length());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, events.getJSONObject(i).getInt("index"));
+            assertEquals("caf\u00e9 + / = & \u2603", events.getJSONObject(i).getString("text"));
+        }
+
+        final String[] dataString = adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN", true, 3);
+        assertEquals(json, dataString[1]);
+        assertEquals(batch.getLastId(), dataString[0]);
+
+        final Base64Payload payload = new Base64Payload(batch.getData(), batch.getDataLength());
+        assertEquals(json, Base64Coder.decodeString(payload.toString()));
+
+        final ByteArrayOutputStream formEncoded = new ByteArrayOutputStream();
+        payload.writeFormEncoded(formEncoded);
+        assertEquals(payload.getFormEncodedLength(), formEncoded.size());
+        assertEquals(URLEncoder.encode(payload.toString(), "UTF-8"), formEncoded.toString("US-ASCII"));
+
+        adapter.deleteDB();
+    }
+
+    public void testDatabaseRecordLimit() throws Exception {
+        MPDbAdapter adapter = makeLimitedAdapter("oldest");
+        for (int i = 0; i < 8; i++) {
+            adapter.addJSON(new JSONObject().put("index", i), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        }
+        assertEquals(5, adapter.getQueueCount(MPDbAdapter.Table.EVENTS, "ATOKEN"));
+        JSONArray events = new JSONArray(adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN", true, 50)[1]);
+        assertEquals(5, events.length());
+        assertEquals(3, events.getJSONObject(0).getInt("index"));
+        adapter.deleteDB();
+
+        adapter = makeLimitedAdapter("automatic_first");
+        adapter.addJSON(new JSONObject().put("index", 0), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        adapter.addJSON(new JSONObject().put("index", 1), "ATOKEN", MPDbAdapter.Table.EVENTS, true);
+        for (int i = 2; i < 6; i++) {
+            adapter.addJSON(new JSONObject().put("index", i), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        }
+        events = new JSONArray(adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN", true, 50)[1]);
+        assertEquals(5, events.length());
+        assertEquals(0, events.getJSONObject(0).getInt("index")); // The automatic event went first
+        assertEquals(2, events.getJSONObject(1).getInt("index"));
+        adapter.deleteDB();
+
+        adapter = makeLimitedAdapter("per_token");
+        for (int i = 0; i < 8; i++) {
+            adapter.addJSON(new JSONObject().put("index", i), "NOISY TOKEN", MPDbAdapter.Table.EVENTS, false);
+            if (i < 3) {
+                adapter.addJSON(new JSONObject().put("index", i), "QUIET TOKEN", MPDbAdapter.Table.EVENTS, false);
+            }
+        }
+        assertEquals(5, adapter.getQueueCount(MPDbAdapter.Table.EVENTS, "NOISY TOKEN"));
+        assertEquals(3, adapter.getQueueCount(MPDbAdapter.Table.EVENTS, "QUIET TOKEN"));
+        adapter.deleteDB();
+    }
+
+    public void testEvictionRereadsRowCount() throws Exception {
+        final MPDbAdapter adapter = makeLimitedAdapter("oldest");
+        for (int i = 0; i < 5; i++) {
+            adapter.addJSON(new JSONObject().put("index", i), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+        }
+
+        // Another process sends the three oldest rows, behind the back of our cached count
+        final SQLiteDatabase other = SQLiteDatabase.openDatabase(adapter.getDatabaseFile().getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        other.execSQL("DELETE FROM " + MPDbAdapter.Table.EVENTS.getName() + " WHERE _id <= 3");
+        other.close();
+
+        assertEquals(3, adapter.addJSON(new JSONObject().put("index", 5), "ATOKEN", MPDbAdapter.Table.EVENTS, false));
+        final JSONArray events = new JSONArray(adapter.generateDataString(MPDbAdapter.Table.EVENTS, "ATOKEN", true, 50)[1]);
+        assertEquals(3, events.length());
+        assertEquals(3, events.getJSONObject(0).getInt("index"));
+        adapter.deleteDB();
+    }
+
+    public void testMalformedRowsQuarantined() throws Exception {
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "QuarantineTestDB");
+        adapter.deleteDB();
+        adapter.addJSON(new JSONObject().put("index", 0), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+
+        final SQLiteDatabase db = SQLiteDatabase.openDatabase(adapter.getDatabaseFile().getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        final ContentValues damaged = new ContentValues();
+        damaged.put(MPDbAdapter.KEY_DATA, "{\"index\": 1, \"trunc");
+        damaged.put(MPDbAdapter.KEY_CREATED_AT, System.currentTimeMillis());
+        damaged.put(MPDbAdapter.KEY_TOKEN_ID, DatabaseUtils.longForQuery(db, "SELECT _id FROM " + MPDbAdapter.TOKENS_TABLE +
+                " WHERE " + MPDbAdapter.KEY_TOKEN + " = ?", new String[]{ "ATOKEN" }));
+        db.insert(MPDbAdapter.Table.EVENTS.getName(), null, damaged);
+        db.close();
+
+        adapter.addJSON(new JSONObject().put("index", 2), "ATOKEN", MPDbAdapter.Table.EVENTS, false);
+
+        // The damaged row is moved aside, and the rest of the batch is still valid JSON
+        final MPDbAdapter.DataBatch batch = adapter.generateDataBatch(MPDbAdapter.Table.EVENTS, "ATOKEN", true, 50);
+        final JSONArray events = new JSONArray(new String(batch.getData(), 0, batch.getDataLength(), "UTF-8"));
+        assertEquals(2, events.length());
+        assertEquals(0, events.getJSONObject(0).getInt("index"));
+        assertEquals(2, events.getJSONObject(1).getInt("index"));
+        assertEquals(1, adapter.getQuarantineCount());
+        assertEquals(2, adapter.generateDataBatch(MPDbAdapter.Table.EVENTS, "ATOKEN", true, 50).getQueueCount());
+        adapter.deleteDB();
+    }
+
+    public void testWaitingPeopleRecords() throws Exception {
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "WaitingPeopleTestDB");
+        adapter.deleteDB();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(adapter.addWaitingPeopleRecord(new JSONObject().put("index", i), "ATOKEN"));
+        }
+        adapter.addWaitingPeopleRecord(new JSONObject().put("index", 3), "OTHER TOKEN");
+
+        final List<JSONObject> records = adapter.takeWaitingPeopleRecords("ATOKEN", "PEOPLE ID");
+        assertEquals(3, records.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, records.get(i).getInt("index"));
+            assertEquals("PEOPLE ID", records.get(i).getString("$distinct_id"));
+        }
+        assertNull(adapter.takeWaitingPeopleRecords("ATOKEN", "PEOPLE ID"));
+
+        adapter.clearWaitingPeopleRecords("OTHER TOKEN");
+        assertNull(adapter.takeWaitingPeopleRecords("OTHER TOKEN", "PEOPLE ID"));
+        adapter.deleteDB();
+    }
+
+    public void testWaitingPeopleRecordsInEveryStore() throws Exception {
+        final File directory = new File(getContext().getFilesDir(), "WaitingPeopleTestStore");
+        final FileEventStore fileStore = new FileEventStore(directory, new MPConfig(new Bundle(), getContext()));
+        fileStore.deleteDB();
+        final EventStore[] stores = { new MemoryEventStore(), fileStore };
+        for (final EventStore store : stores) {
+            assertTrue(store.addWaitingPeopleRecord(new JSONObject().put("index", 0), "ATOKEN"));
+            assertTrue(store.addWaitingPeopleRecord(new JSONObject().put("index", 1), "ATOKEN"));
+            assertTrue(store.addWaitingPeopleRecord(new JSONObject().put("index", 2), "OTHER TOKEN"));
+
+            final List<JSONObject> records = store.takeWaitingPeopleRecords("ATOKEN", "PEOPLE ID");
+            assertEquals(2, records.size());
+            assertEquals(0, records.get(0).getInt("index"));
+            assertEquals(1, records.get(1).getInt("index"));
+            assertEquals("PEOPLE ID", records.get(1).getString("$distinct_id"));
+            assertNull(store.takeWaitingPeopleRecords("ATOKEN", "PEOPLE ID"));
+
+            // Waiting records expire like the queued ones
+            store.cleanupWaitingPeopleRecords(System.currentTimeMillis() - 60 * 1000);
+            assertEquals(1, store.takeWaitingPeopleRecords("OTHER TOKEN", "PEOPLE ID").size());
+            store.addWaitingPeopleRecord(new JSONObject().put("index", 3), "OTHER TOKEN");
+            store.cleanupWaitingPeopleRecords(System.currentTimeMillis());
+            assertNull(store.takeWaitingPeopleRecords("OTHER TOKEN", "PEOPLE ID"));
+
+            store.addWaitingPeopleRecord(new JSONObject().put("index", 4), "OTHER TOKEN");
+            store.clearWaitingPeopleRecords("OTHER TOKEN");
+            assertNull(store.takeWaitingPeopleRecords("OTHER TOKEN", "PEOPLE ID"));
+        }
+        fileStore.deleteDB();
+    }
+
+    public void testWaitingPeopleRecordsLimit() throws Exception {
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.MaximumDatabaseRecords", 2);
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "WaitingPeopleLimitTestDB", new MPConfig(metaData, getContext()));
+        adapter.deleteDB();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(adapter.addWaitingPeopleRecord(new JSONObject().put("index", i), "ATOKEN"));
+        }
+        adapter.addWaitingPeopleRecord(new JSONObject().put("index", 3), "OTHER TOKEN");
+
+        // Each token keeps its newest records
+        final List<JSONObject> records = adapter.takeWaitingPeopleRecords("ATOKEN", "PEOPLE ID");
+        assertEquals(2, records.size());
+        assertEquals(1, records.get(0).getInt("index"));
+        assertEquals(2, records.get(1).getInt("index"));
+        assertEquals(1, adapter.takeWaitingPeopleRecords("OTHER TOKEN", "PEOPLE ID").size());
+        adapter.deleteDB();
+    }
+
+    public void testUpgradeMigratesRowsInChunks() throws Exception {
+        getContext().deleteDatabase("UpgradeTestDB");
+        final SQLiteDatabase v6 = SQLiteDatabase.openOrCreateDatabase(getContext().getDatabasePath("UpgradeTestDB"), null);
+        for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+            v6.execSQL("CREATE TABLE " + table.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, data STRING NOT NULL, " +
+                    "created_at INTEGER NOT NULL, automatic_data INTEGER DEFAULT 0, token STRING NOT NULL DEFAULT '')");
+        }
+        for (int i = 0; i < 4; i++) {
+            final ContentValues row = new ContentValues();
+            row.put("data", new JSONObject().put("index", i).toString());
+            row.put("created_at", i);
+            row.put("automatic_data", i == 3 ? 1 : 0);
+            row.put("token", i % 2 == 0 ? "EVEN TOKEN" : "ODD TOKEN");
+            v6.insert(MPDbAdapter.Table.EVENTS.getName(), null, row);
+        }
+        v6.setVersion(6);
+        v6.close();
+
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "UpgradeTestDB");
+
+        // New rows go into the new table while the old rows are still waiting to be moved
+        adapter.addJSON(new JSONObject().put("index", 4), "EVEN TOKEN", MPDbAdapter.Table.EVENTS, false);
+        assertEquals(1, adapter.getQueueCount(MPDbAdapter.Table.EVENTS, "EVEN TOKEN"));
+        assertEquals("5", adapter.generateDataBatch(MPDbAdapter.Table.EVENTS, "EVEN TOKEN", true, 50).getLastId());
+
+        int steps = 0;
+        while (adapter.migrateRows(1)) {
+            steps++;
+        }
+        assertTrue(steps >= 4);
+        assertFalse(adapter.migrateRows(1));
+
+        final MPDbAdapter.DataBatch even = adapter.generateDataBatch(MPDbAdapter.Table.EVENTS, "EVEN TOKEN", true, 50);
+        final JSONArray evenEvents = new JSONArray(new String(even.getData(), 0, even.getDataLength(), "UTF-8"));
+        assertEquals(3, evenEvents.length());
+        assertEquals(0, evenEvents.getJSONObject(0).getInt("index"));
+        assertEquals(2, evenEvents.getJSONObject(1).getInt("index"));
+        assertEquals(4, evenEvents.getJSONObject(2).getInt("index"));
+        assertEquals("5", even.getLastId()); // Row ids survive the upgrade, so sent rows can still be deleted
+
+        assertEquals(1, adapter.generateDataBatch(MPDbAdapter.Table.EVENTS, "ODD TOKEN", false, 50).getRecordCount());
+        adapter.cleanupAutomaticEvents("ODD TOKEN");
+        assertEquals(1, adapter.getQueueCount(MPDbAdapter.Table.EVENTS, "ODD TOKEN"));
+
+        // Rows for the same token share its dictionary entry
+        final SQLiteDatabase v7 = SQLiteDatabase.openDatabase(adapter.getDatabaseFile().getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        assertEquals(2, DatabaseUtils.queryNumEntries(v7, MPDbAdapter.TOKENS_TABLE));
+        v7.close();
+        adapter.deleteDB();
+    }
+
+    private MPDbAdapter makeLimitedAdapter(String evictionPolicy) {
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.MaximumDatabaseRecords", 5);
+        metaData.putString("com.mixpanel.android.MPConfig.DatabaseEvictionPolicy", evictionPolicy);
+        final MPDbAdapter adapter = new MPDbAdapter(getContext(), "RecordLimitTestDB", new MPConfig(metaData, getContext()));
+        adapter.deleteDB();
+        return adapter;
+    }
+
+    public void testDefaultEventProperties() throws Exception {
+        final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
+        final MPDbAdapter mockAdapter = new MPDbAdapter(getContext()) {
+            @Override
+            public int addJSON(JSONObject message, String token, MPDbAdapter.Table table, boolean isAutomatic) {
+                if (!isAutomatic) {
+                    messages.add(message);
+                }
+                return super.addJSON(message, token, table, isAutomatic);
+            }
+        };
+
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
+            }
+        };
+
+        MixpanelAPI metrics = new TestUtils.CleanMixpanelAPI(getContext(), mMockPreferences, "Test Default Properties") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        // Overriding a default property in one event must not leak into the cached defaults
+        metrics.track("first event", new JSONObject("{\"$os\": \"Overridden\"}"));
+        metrics.track("second event", null);
+
+        final JSONObject first = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS).getJSONObject("properties");
+        final JSONObject second = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS).getJSONObject("properties");
+        assertEquals("Overridden", first.getString("$os"));
+        assertEquals("Android", second.getString("$os"));
+        for (final JSONObject properties : new JSONObject[] { first, second }) {
+            assertEquals("android", properties.getString("mp_lib"));
+            assertEquals(MPConfig.VERSION, properties.getString("$lib_version"));
+            assertTrue(properties.has("$screen_dpi"));
+            assertTrue(properties.has("$google_play_services"));
+            assertEquals("Test Default Properties", properties.getString("token"));
+        }
+    }
+
     public void testLooperDestruction() {
 
         final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
@@ -340,13 +673,28 @@ public class MixpanelBasicTest extends AndroidTestCase {
         assertTrue(messages.get(10).getMessage().has("$delete"));
     }
 
-    public void testIdentifyAfterSet() {
-        final List<AnalyticsMessages.PeopleDescription> messages = new ArrayList<AnalyticsMessages.PeopleDescription>();
+    public void testIdentifyAfterSet() throws InterruptedException {
+        final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
+        final MPDbAdapter mockAdapter = new MPDbAdapter(getContext()) {
+            @Override
+            public int addJSON(JSONObject message, String token, MPDbAdapter.Table table, boolean isAutomaticEvent) {
+                if (table == MPDbAdapter.Table.PEOPLE) {
+                    messages.add(message);
+                }
+                return 1;
+            }
+        };
 
+        // Records made before identify() wait in the worker's store, and it queues them once they're released
         final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
             @Override
             public void peopleMessage(PeopleDescription heard) {
-                messages.add(heard);
+                messages.add(heard.getMessage());
+            }
+
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return mockAdapter;
             }
         };
 
@@ -372,18 +720,23 @@ public class MixpanelBasicTest extends AndroidTestCase {
         people.append("the prop", 6);
         people.identify("Personal Identity");
 
-        assertEquals(messages.size(), 7);
+        final List<JSONObject> released = new ArrayList<JSONObject>();
+        for (int i = 0; i < 7; i++) {
+            final JSONObject message = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(message);
+            released.add(message);
+        }
         try {
-            for (AnalyticsMessages.PeopleDescription message: messages) {
-                String distinctId = message.getMessage().getString("$distinct_id");
+            for (JSONObject message: released) {
+                String distinctId = message.getString("$distinct_id");
                 assertEquals(distinctId, "Personal Identity");
             }
 
-            assertTrue(messages.get(0).getMessage().has("$add"));
-            assertTrue(messages.get(1).getMessage().has("$append"));
-            assertTrue(messages.get(2).getMessage().has("$set"));
-            assertTrue(messages.get(3).getMessage().has("$add"));
-            assertTrue(messages.get(4).getMessage().has("$add"));
+            assertTrue(released.get(0).has("$add"));
+            assertTrue(released.get(1).has("$append"));
+            assertTrue(released.get(2).has("$set"));
+            assertTrue(released.get(3).has("$add"));
+            assertTrue(released.get(4).has("$add"));
         } catch (JSONException e) {
             fail("Unexpected JSON error in stored messages.");
         }
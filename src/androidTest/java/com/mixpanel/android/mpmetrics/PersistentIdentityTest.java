@@ -10,11 +10,15 @@ import org.json.JSONObject;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 public class PersistentIdentityTest extends AndroidTestCase {
     public void setUp() {
+        PreferencesWriteBuffer.flush();
+
         SharedPreferences referrerPrefs = getContext().getSharedPreferences(TEST_REFERRER_PREFERENCES, Context.MODE_PRIVATE);
         SharedPreferences.Editor referrerEditor = referrerPrefs.edit();
         referrerEditor.clear();
@@ -50,71 +54,40 @@ public class PersistentIdentityTest extends AndroidTestCase {
         mPersistentIdentity = new PersistentIdentity(referrerLoader, testLoader, timeEventsLoader, mixpanelLoader);
     }
 
-    public void testStaticWaitingPeopleRecordsWithId() throws JSONException {
+    public void testLegacyWaitingPeopleRecordsWithId() throws JSONException {
         SharedPreferences testPreferences = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
-        JSONArray records = PersistentIdentity.waitingPeopleRecordsForSending(testPreferences);
+        JSONArray records = PersistentIdentity.takeLegacyWaitingPeopleRecords(testPreferences);
         assertEquals(records.length(), 2);
         for (int i = 0; i < records.length(); i++) {
             JSONObject obj = records.getJSONObject(i);
             assertTrue(obj.has("thing"));
             assertEquals(obj.getString("$distinct_id"), "PEOPLE DISTINCT ID");
         }
-        JSONArray unseenRecords = PersistentIdentity.waitingPeopleRecordsForSending(testPreferences);
+        JSONArray unseenRecords = PersistentIdentity.takeLegacyWaitingPeopleRecords(testPreferences);
         assertNull(unseenRecords);
     }
 
-    public void testStaticWaitingPeopleRecordsNoId() {
+    public void testLegacyWaitingPeopleRecordsNoId() throws JSONException {
         SharedPreferences testPreferences = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
         testPreferences.edit().remove("people_distinct_id").commit();
-        JSONArray records = PersistentIdentity.waitingPeopleRecordsForSending(testPreferences);
-        assertNull(records);
-    }
-
-    public void testStaticWaitingPeopleRecordsNoRecords() {
-        SharedPreferences testPreferences = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
-        testPreferences.edit().remove("waiting_array").commit();
-        JSONArray records = PersistentIdentity.waitingPeopleRecordsForSending(testPreferences);
-        assertNull(records);
-    }
-
-    public void testWaitingPeopleRecordsWithId() throws JSONException {
-        JSONArray records = mPersistentIdentity.waitingPeopleRecordsForSending();
+        JSONArray records = PersistentIdentity.takeLegacyWaitingPeopleRecords(testPreferences);
         assertEquals(records.length(), 2);
-        for (int i = 0; i < records.length(); i++) {
-            JSONObject obj = records.getJSONObject(i);
-            assertTrue(obj.has("thing"));
-            assertEquals(obj.getString("$distinct_id"), "PEOPLE DISTINCT ID");
-        }
-        JSONArray unseenRecords = mPersistentIdentity.waitingPeopleRecordsForSending();
-        assertNull(unseenRecords);
+        assertFalse(records.getJSONObject(0).has("$distinct_id"));
+        assertFalse(testPreferences.contains("waiting_array"));
     }
 
-    public void testWaitingPeopleRecordsWithNoId() throws JSONException {
-        SharedPreferences testPreferences = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
-        testPreferences.edit().remove("people_distinct_id").commit();
-        JSONArray unseenRecords = mPersistentIdentity.waitingPeopleRecordsForSending();
-        assertNull(unseenRecords);
-    }
-
-    public void testWaitingPeopleRecordsWithNoRecords() throws JSONException {
+    public void testLegacyWaitingPeopleRecordsNoRecords() {
         SharedPreferences testPreferences = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
         testPreferences.edit().remove("waiting_array").commit();
-        JSONArray unseenRecords = mPersistentIdentity.waitingPeopleRecordsForSending();
-        assertNull(unseenRecords);
+        JSONArray records = PersistentIdentity.takeLegacyWaitingPeopleRecords(testPreferences);
+        assertNull(records);
     }
 
-    public void testStoreWaitingPeopleRecord() throws JSONException {
-        mPersistentIdentity.storeWaitingPeopleRecord(new JSONObject("{\"new1\": 1}"));
-        mPersistentIdentity.storeWaitingPeopleRecord(new JSONObject("{\"new2\": 2}"));
+    public void testIdentitiesLeaveWaitingRecords() {
+        mPersistentIdentity.setPeopleDistinctId("NEW PEOPLE DISTINCT ID");
 
         SharedPreferences testPreferences = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
-        String waitingString = testPreferences.getString("waiting_array", "FAIL");
-        JSONArray waitingArray = new JSONArray(waitingString);
-        assertEquals(waitingArray.length(), 4);
-        JSONObject new1 = waitingArray.getJSONObject(2);
-        assertEquals(1, new1.getInt("new1"));
-        JSONObject new2 = waitingArray.getJSONObject(3);
-        assertEquals(2, new2.getInt("new2"));
+        assertEquals("[ {\"thing\": 1}, {\"thing\": 2} ]", testPreferences.getString("waiting_array", null));
     }
 
     public void testReferrerProperties() {
@@ -148,6 +121,7 @@ public class PersistentIdentityTest extends AndroidTestCase {
         final String eventsId = mPersistentIdentity.getEventsDistinctId();
         assertTrue(Pattern.matches("^[A-Fa-f0-9]{8}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{12}$", eventsId));
 
+        PreferencesWriteBuffer.flush();
         final String autoId = testPreferences.getString("events_distinct_id", "NOPE");
         assertEquals(autoId, eventsId);
 
@@ -155,6 +129,7 @@ public class PersistentIdentityTest extends AndroidTestCase {
         final String heardId = mPersistentIdentity.getEventsDistinctId();
         assertEquals("TEST ID TO SET", heardId);
 
+        PreferencesWriteBuffer.flush();
         final String storedId = testPreferences.getString("events_distinct_id", "NOPE");
         assertEquals("TEST ID TO SET", storedId);
     }
@@ -169,10 +144,38 @@ public class PersistentIdentityTest extends AndroidTestCase {
         final String heardId = mPersistentIdentity.getPeopleDistinctId();
         assertEquals("TEST ID TO SET", heardId);
 
+        PreferencesWriteBuffer.flush();
         final String storedId = testPreferences.getString("people_distinct_id", "NOPE");
         assertEquals("TEST ID TO SET", storedId);
     }
 
+    public void testWritesAreCoalesced() throws JSONException {
+        final SharedPreferences testPreferences = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
+        final SharedPreferences timeEventsPreferences = getContext().getSharedPreferences(TEST_TIME_EVENTS_PREFERENCES, Context.MODE_PRIVATE);
+        mPersistentIdentity.registerSuperProperties(new JSONObject("{\"a\": 1}"));
+        mPersistentIdentity.registerSuperProperties(new JSONObject("{\"b\": 2}"));
+        mPersistentIdentity.unregisterSuperProperty("a");
+        mPersistentIdentity.addTimeEvent("Timed", 1000L);
+        mPersistentIdentity.addTimeEvent("Still Timed", 2000L);
+        mPersistentIdentity.removeTimeEvent("Timed");
+        mPersistentIdentity.removeTimeEvent("Never Timed");
+
+        // Nothing is written yet, but the changes are visible through PersistentIdentity
+        assertEquals("{\"thing\": \"superprops\"}", testPreferences.getString("super_properties", null));
+        assertTrue(timeEventsPreferences.getAll().isEmpty());
+        assertEquals(2, mPersistentIdentity.getSuperPropertiesSnapshot().getInt("b"));
+        final Map<String, Long> timeEvents = mPersistentIdentity.getTimeEvents();
+        assertEquals(1, timeEvents.size());
+        assertEquals(Long.valueOf(2000L), timeEvents.get("Still Timed"));
+
+        PreferencesWriteBuffer.flush();
+        final JSONObject stored = new JSONObject(testPreferences.getString("super_properties", null));
+        assertEquals(2, stored.getInt("b"));
+        assertFalse(stored.has("a"));
+        assertEquals(1, timeEventsPreferences.getAll().size());
+        assertEquals(2000L, timeEventsPreferences.getLong("Still Timed", 0));
+    }
+
     public void testPushId() {
         final String pushId = mPersistentIdentity.getPushId();
         assertEquals("PUSH ID", pushId);
@@ -189,6 +192,32 @@ public class PersistentIdentityTest extends AndroidTestCase {
         assertEquals("STORED PUSH ID", testPreferences.getString("push_id", "FAIL"));
     }
 
+    public void testLoadsRunInParallel() throws Exception {
+        // Each listener holds its loader thread until every file has loaded
+        final CountDownLatch allLoaded = new CountDownLatch(3);
+        final SharedPreferencesLoader.OnPrefsLoadedListener listener = new SharedPreferencesLoader.OnPrefsLoadedListener() {
+            @Override
+            public void onPrefsLoaded(SharedPreferences prefs) {
+                allLoaded.countDown();
+                try {
+                    allLoaded.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        final SharedPreferencesLoader loader = new SharedPreferencesLoader();
+        final Future<SharedPreferences> referrer = loader.loadPreferences(getContext(), TEST_REFERRER_PREFERENCES, listener);
+        final Future<SharedPreferences> stored = loader.loadPreferences(getContext(), TEST_PREFERENCES, listener);
+        final Future<SharedPreferences> timeEvents = loader.loadPreferences(getContext(), TEST_TIME_EVENTS_PREFERENCES, listener);
+
+        assertEquals("REFERRER", referrer.get(10, TimeUnit.SECONDS).getString("referrer", null));
+        assertEquals("PUSH ID", stored.get(10, TimeUnit.SECONDS).getString("push_id", null));
+        assertTrue(timeEvents.get(10, TimeUnit.SECONDS).getAll().isEmpty());
+        assertEquals(0, allLoaded.getCount());
+    }
+
     private PersistentIdentity mPersistentIdentity;
     private static final String TEST_PREFERENCES = "TEST PERSISTENT PROPERTIES PREFS";
     private static final String TEST_REFERRER_PREFERENCES  = "TEST REFERRER PREFS";
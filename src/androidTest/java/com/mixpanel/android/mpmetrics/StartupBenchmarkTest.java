@@ -0,0 +1,117 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.mixpanel.android.util.StartupTrace;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rough timings for creating a MixpanelAPI instance and tracking its first event, with and without
+ * AsyncInitialization. Each run uses a new token and a new preferences loader, so nothing it reads is
+ * cached by an earlier run, which is as close to a new process as an instrumentation test gets.
+ * Timings don't fail on slow devices, they report their results to logcat under the
+ * MixpanelAPI.Benchmark tag.
+ */
+public class StartupBenchmarkTest extends AndroidTestCase {
+    @Override
+    public void setUp() {
+        // Events stop here, so only the time for the first one to reach the worker is measured
+        mMessages = new AnalyticsMessages(getContext()) {
+            @Override
+            public void eventsMessage(EventDescription heard) {
+                final CountDownLatch tracked = mTracked;
+                if (FIRST_EVENT.equals(heard.getEventName()) && null != tracked) {
+                    tracked.countDown();
+                }
+            }
+        };
+    }
+
+    public void testColdStartLatency() throws InterruptedException {
+        // Warm up, so the first mode measured doesn't pay for class loading
+        runStarts(false, 1);
+
+        final String sync = runStarts(false, RUNS);
+        final String async = runStarts(true, RUNS);
+        Log.i(LOGTAG, "Startup, median of " + RUNS + " runs: " + sync + " synchronous; " + async + " with AsyncInitialization");
+        Log.i(LOGTAG, "Startup sections of the last run: " + StartupTrace.getTimings());
+    }
+
+    private String runStarts(boolean async, int runs) throws InterruptedException {
+        final Bundle metaData = new Bundle();
+        metaData.putBoolean("com.mixpanel.android.MPConfig.AsyncInitialization", async);
+        metaData.putBoolean("com.mixpanel.android.MPConfig.DisableDecideChecker", true);
+        final MPConfig config = new MPConfig(metaData, getContext());
+
+        final long[] constructMicros = new long[runs];
+        final long[] firstTrackMicros = new long[runs];
+        final long[] viewCrawlerMillis = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            final String token = "STARTUP BENCHMARK " + async + " " + i;
+            StartupTrace.clearTimings();
+            mTracked = new CountDownLatch(1);
+
+            final long start = System.nanoTime();
+            final MixpanelAPI mixpanel = newInstance(token, config);
+            final long constructed = System.nanoTime();
+            // The ViewCrawler is built in the constructor, reported on its own so its share is visible
+            final Long viewCrawler = StartupTrace.getTimings().get(VIEW_CRAWLER_SECTION);
+            viewCrawlerMillis[i] = null == viewCrawler ? 0 : viewCrawler;
+            mixpanel.track(FIRST_EVENT);
+            assertTrue(mTracked.await(10, TimeUnit.SECONDS));
+            final long tracked = System.nanoTime();
+
+            constructMicros[i] = (constructed - start) / 1000;
+            firstTrackMicros[i] = (tracked - constructed) / 1000;
+            clearPreferences(token);
+        }
+
+        return "constructor " + median(constructMicros) + "us (ViewCrawler " + median(viewCrawlerMillis) + "ms of it), " +
+                "first track " + median(firstTrackMicros) + "us";
+    }
+
+    private MixpanelAPI newInstance(String token, MPConfig config) {
+        final SharedPreferencesLoader loader = new SharedPreferencesLoader();
+        final Future<SharedPreferences> referrerPreferences = loader.loadPreferences(getContext(), MPConfig.REFERRER_PREFS_NAME, null);
+        return new MixpanelAPI(getContext(), referrerPreferences, token, config) {
+            @Override
+            /* package */ AnalyticsMessages getAnalyticsMessages() {
+                return mMessages;
+            }
+        };
+    }
+
+    private void clearPreferences(String token) {
+        PreferencesWriteBuffer.flush();
+        final String[] names = {
+            "com.mixpanel.android.mpmetrics.MixpanelAPI_" + token,
+            "com.mixpanel.android.mpmetrics.MixpanelAPI.TimeEvents_" + token,
+        };
+        for (final String name : names) {
+            getContext().getSharedPreferences(name, Context.MODE_PRIVATE).edit().clear().commit();
+        }
+    }
+
+    private static long median(long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private AnalyticsMessages mMessages;
+    private volatile CountDownLatch mTracked;
+
+    private static final int RUNS = 10;
+    private static final String FIRST_EVENT = "Benchmark First Event";
+    private static final String VIEW_CRAWLER_SECTION = "ViewCrawler";
+    private static final String LOGTAG = "MixpanelAPI.Benchmark";
+}
@@ -0,0 +1,201 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A minimal HTTP server on the loopback interface, for running HttpService against a real socket.
+ * Every request is recorded in {@link #requests}, and every accepted connection is counted
+ * in {@link #connectionCount}.
+ */
+public class TestHttpServer {
+    public interface Responder {
+        // Returning null closes the connection without answering
+        Response respond(Request request);
+    }
+
+    public static class Request {
+        public Request(String method, String path, Map<String, String> headers, byte[] rawBody) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.rawBody = rawBody;
+        }
+
+        // Header names are lower case
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        public boolean isGzipped() {
+            return "gzip".equalsIgnoreCase(getHeader("Content-Encoding"));
+        }
+
+        // The body with any gzip content encoding removed
+        public byte[] getBody() throws IOException {
+            if (!isGzipped()) {
+                return rawBody;
+            }
+            return readFully(new GZIPInputStream(new ByteArrayInputStream(rawBody)));
+        }
+
+        public final String method;
+        public final String path;
+        public final Map<String, String> headers;
+        public final byte[] rawBody;
+    }
+
+    public static class Response {
+        public Response(int code, String body) {
+            this.code = code;
+            this.body = TestUtils.bytes(body);
+        }
+
+        public final int code;
+        public final byte[] body;
+    }
+
+    /**
+     * Serves a single request per connection, and tells clients the connection will be closed.
+     */
+    public TestHttpServer(Responder responder) throws IOException {
+        this(responder, 0);
+    }
+
+    /**
+     * @param requestsPerConnection if greater than zero, connections are kept alive and closed
+     *     without warning after serving this many requests, like a server timing out idle connections
+     */
+    public TestHttpServer(Responder responder, int requestsPerConnection) throws IOException {
+        mResponder = responder;
+        mRequestsPerConnection = requestsPerConnection;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        connectionCount.incrementAndGet();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serveConnection(socket);
+                            }
+                        }).start();
+                    } catch (final IOException e) {
+                        // Closed by shutdown()
+                    }
+                }
+            }
+        });
+        mThread.start();
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public void shutdown() throws IOException, InterruptedException {
+        mServerSocket.close();
+        mThread.join();
+    }
+
+    private void serveConnection(Socket socket) {
+        try {
+            final boolean keepAlive = mRequestsPerConnection > 0;
+            final int requestCount = keepAlive ? mRequestsPerConnection : 1;
+            for (int i = 0; i < requestCount; i++) {
+                serve(socket, keepAlive);
+            }
+        } catch (final IOException e) {
+            // The client closed the connection
+        } finally {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                ;
+            }
+        }
+    }
+
+    private void serve(Socket socket, boolean keepAlive) throws IOException {
+        final InputStream in = socket.getInputStream();
+        final String[] requestLine = readLine(in).split(" ");
+        final Map<String, String> headers = new HashMap<String, String>();
+        for (String line = readLine(in); line.length() > 0; line = readLine(in)) {
+            final int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+
+        final String contentLength = headers.get("content-length");
+        final byte[] body = new byte[null == contentLength ? 0 : Integer.parseInt(contentLength)];
+        int read = 0;
+        while (read < body.length) {
+            final int count = in.read(body, read, body.length - read);
+            if (count < 0) {
+                throw new IOException("Request body was cut short");
+            }
+            read += count;
+        }
+
+        final Request request = new Request(requestLine[0], requestLine[1], headers, body);
+        requests.add(request);
+        final Response response = mResponder.respond(request);
+        if (null == response) {
+            throw new IOException("Closing without a response");
+        }
+
+        final OutputStream out = socket.getOutputStream();
+        final String head = "HTTP/1.1 " + response.code + " Test\r\n" +
+                "Content-Length: " + response.body.length + "\r\n" +
+                (keepAlive ? "" : "Connection: close\r\n") + "\r\n";
+        out.write(TestUtils.bytes(head));
+        out.write(response.body);
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Connection closed mid-line");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    public final BlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+    public final AtomicInteger connectionCount = new AtomicInteger(0);
+
+    private final Responder mResponder;
+    private final int mRequestsPerConnection;
+    private final ServerSocket mServerSocket;
+    private final Thread mThread;
+}
@@ -28,6 +28,7 @@ public class TestUtils {
 
         @Override
         /* package */ PersistentIdentity getPersistentIdentity(final Context context, final Future<SharedPreferences> referrerPreferences, final String token) {
+            PreferencesWriteBuffer.flush(); // So writes from earlier instances don't land after the clear
             final String prefsName = "com.mixpanel.android.mpmetrics.MixpanelAPI_" + token;
             final SharedPreferences ret = context.getSharedPreferences(prefsName, Context.MODE_PRIVATE);
             ret.edit().clear().commit();
@@ -40,6 +41,8 @@ public class TestUtils {
             final SharedPreferences mpSharedPrefs = context.getSharedPreferences(mixpanelPrefsName, Context.MODE_PRIVATE);
             mpSharedPrefs.edit().clear().putBoolean(token, true).putBoolean("has_launched", true).commit();
 
+            EventStores.getInstance(context).clearWaitingPeopleRecords(token);
+
             return super.getPersistentIdentity(context, referrerPreferences, token);
         }
 
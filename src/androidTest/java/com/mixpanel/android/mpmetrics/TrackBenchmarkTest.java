@@ -0,0 +1,140 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Rough timings for track() called from many threads at once, while super properties change
+ * underneath it. Timings don't fail on slow devices, they report their results to logcat under
+ * the MixpanelAPI.Benchmark tag.
+ */
+public class TrackBenchmarkTest extends AndroidTestCase {
+    @Override
+    public void setUp() {
+        mMockPreferences = new TestUtils.EmptyPreferences(getContext());
+        mTrackedCount = new AtomicInteger(0);
+        mFailure = new AtomicReference<Throwable>(null);
+
+        // Events stop here, so only the calling thread's share of track() is measured
+        final AnalyticsMessages messages = new AnalyticsMessages(getContext()) {
+            @Override
+            public void eventsMessage(EventDescription heard) {
+                if (!heard.isAutomatic()) {
+                    try {
+                        final JSONObject properties = heard.getProperties();
+                        assertEquals("Registered Value", properties.getString("Registered Property"));
+                        assertTrue(properties.has("Changing Property"));
+                    } catch (final Throwable e) {
+                        mFailure.compareAndSet(null, e);
+                    }
+                    mTrackedCount.incrementAndGet();
+                }
+            }
+        };
+
+        mMixpanel = new TestUtils.CleanMixpanelAPI(getContext(), mMockPreferences, "BENCHMARK TOKEN") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return messages;
+            }
+        };
+    }
+
+    public void testConcurrentTrackThroughput() throws Exception {
+        final JSONObject superProperties = new JSONObject();
+        superProperties.put("Registered Property", "Registered Value");
+        superProperties.put("Changing Property", 0);
+        for (int i = 0; i < 20; i++) {
+            superProperties.put("Super Property " + i, "Super Value " + i);
+        }
+        mMixpanel.registerSuperProperties(superProperties);
+
+        // Warm up, so the first run measured doesn't pay for class loading
+        runTrackThreads(1, 100);
+
+        final StringBuilder report = new StringBuilder("track() throughput with changing super properties:");
+        int expectedCount = 100;
+        for (final int threadCount : THREAD_COUNTS) {
+            final long elapsedMillis = runTrackThreads(threadCount, EVENTS_PER_THREAD);
+            expectedCount += threadCount * EVENTS_PER_THREAD;
+            final long eventsPerSecond = (threadCount * EVENTS_PER_THREAD * 1000L) / Math.max(1, elapsedMillis);
+            report.append(" ").append(threadCount).append(" threads: ").append(eventsPerSecond).append(" events/s;");
+        }
+
+        final Throwable failure = mFailure.get();
+        if (null != failure) {
+            throw new AssertionError("Tracked event missing super properties: " + failure);
+        }
+        assertEquals(expectedCount, mTrackedCount.get());
+        Log.i(LOGTAG, report.toString());
+    }
+
+    private long runTrackThreads(int threadCount, final int eventsPerThread) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        final JSONObject properties = new JSONObject();
+                        properties.put("Event Property", "Event Value");
+                        for (int i = 0; i < eventsPerThread; i++) {
+                            mMixpanel.track("Benchmark Event", properties);
+                        }
+                    } catch (final Throwable e) {
+                        mFailure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        // Keep replacing the snapshot while the tracking threads read it
+        final Thread registrar = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int value = 0;
+                try {
+                    while (done.getCount() > 0) {
+                        mMixpanel.registerSuperProperties(new JSONObject().put("Changing Property", ++value));
+                        mMixpanel.unregisterSuperProperty("Unregistered Property");
+                        Thread.sleep(1); // Each change is written to SharedPreferences
+                    }
+                } catch (final JSONException e) {
+                    mFailure.compareAndSet(null, e);
+                } catch (final InterruptedException e) {
+                    mFailure.compareAndSet(null, e);
+                }
+            }
+        });
+
+        final long startNanos = System.nanoTime();
+        start.countDown();
+        registrar.start();
+        done.await();
+        final long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+        registrar.join();
+        return elapsedMillis;
+    }
+
+    private Future<SharedPreferences> mMockPreferences;
+    private MixpanelAPI mMixpanel;
+    private AtomicInteger mTrackedCount;
+    private AtomicReference<Throwable> mFailure;
+
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+    private static final int EVENTS_PER_THREAD = 1000;
+    private static final String LOGTAG = "MixpanelAPI.Benchmark";
+}
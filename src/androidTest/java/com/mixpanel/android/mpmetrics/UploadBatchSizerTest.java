@@ -0,0 +1,54 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+public class UploadBatchSizerTest extends AndroidTestCase {
+    public void testStartsFromConfiguredLimit() {
+        assertEquals(40, new UploadBatchSizer(40).getBatchSize());
+        assertEquals(1, new UploadBatchSizer(0).getBatchSize());
+        assertEquals(UploadBatchSizer.MAX_BATCH_SIZE, new UploadBatchSizer(1000).getBatchSize());
+    }
+
+    public void testGrowsOnlyOnFastFullBatches() {
+        final UploadBatchSizer sizer = new UploadBatchSizer(8);
+        sizer.onSuccess(false, 10);
+        assertEquals(8, sizer.getBatchSize());
+        sizer.onSuccess(true, 60000);
+        assertEquals(8, sizer.getBatchSize());
+        sizer.onSuccess(true, 10);
+        assertEquals(10, sizer.getBatchSize());
+
+        for (int i = 0; i < 100; i++) {
+            sizer.onSuccess(true, 10);
+        }
+        assertEquals(UploadBatchSizer.MAX_BATCH_SIZE, sizer.getBatchSize());
+    }
+
+    public void testShrinksOnFailures() {
+        final UploadBatchSizer sizer = new UploadBatchSizer(40);
+        sizer.onTimeout(10000);
+        assertEquals(20, sizer.getBatchSize());
+        assertTrue(sizer.shrink());
+        assertEquals(10, sizer.getBatchSize());
+
+        while (sizer.getBatchSize() > 1) {
+            assertTrue(sizer.shrink());
+        }
+        assertFalse(sizer.shrink());
+        assertEquals(1, sizer.getBatchSize());
+    }
+
+    public void testRecentRoundTrips() {
+        final UploadBatchSizer sizer = new UploadBatchSizer(40);
+        assertEquals(0, sizer.getRecentRoundTrips().length);
+
+        for (long i = 1; i <= 25; i++) {
+            sizer.onSuccess(false, i);
+        }
+        final long[] roundTrips = sizer.getRecentRoundTrips();
+        assertEquals(10, roundTrips.length);
+        for (int i = 0; i < roundTrips.length; i++) {
+            assertEquals(16 + i, roundTrips[i]);
+        }
+    }
+}
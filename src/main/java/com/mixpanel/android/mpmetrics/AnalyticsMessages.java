@@ -1,11 +1,16 @@
 package com.mixpanel.android.mpmetrics;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
 import android.os.SystemClock;
 import android.util.DisplayMetrics;
 
@@ -13,21 +18,40 @@ import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.gcm.GoogleCloudMessaging;
 import com.google.android.gms.iid.InstanceID;
-import com.mixpanel.android.util.Base64Coder;
+import com.mixpanel.android.util.Base64Payload;
 import com.mixpanel.android.util.HttpService;
 import com.mixpanel.android.util.MPLog;
 import com.mixpanel.android.util.RemoteService;
+import com.mixpanel.android.util.StartupTrace;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -45,10 +69,58 @@ import javax.net.ssl.SSLSocketFactory;
     /* package */ AnalyticsMessages(final Context context) {
         mContext = context;
         mConfig = getConfig(context);
+        if (mConfig.getHandoffQueueSize() > 0) {
+            mHandoffQueue = new HandoffQueue(mConfig.getHandoffQueueSize(), HandoffQueue.OverflowPolicy.fromConfig(mConfig.getHandoffOverflowPolicy()));
+        } else {
+            mHandoffQueue = null;
+        }
+        mHandoffDrainScheduled = new AtomicBoolean(false);
+        mPendingPeopleReleases = new AtomicInteger(0);
+        if (mConfig.getJournalEvents()) {
+            mJournal = new EventJournal(new File(context.getFilesDir(), getJournalDirectory(context)));
+        } else {
+            mJournal = null;
+        }
         mWorker = createWorker();
         getPoster().checkIsMixpanelBlocked();
     }
 
+    // The journal isn't process safe, so processes other than the main one each get their own directory.
+    // A process replays what an earlier process of the same name left behind.
+    private static String getJournalDirectory(Context context) {
+        final String processName = readProcessName();
+        if (null == processName || processName.equals(context.getPackageName())) {
+            return JOURNAL_DIRECTORY;
+        }
+        return JOURNAL_DIRECTORY + "_" + processName.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    // Returns the name of this process, or null if it can't be read
+    private static String readProcessName() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream("/proc/self/cmdline"), "UTF-8"));
+            final String line = reader.readLine();
+            if (null == line) {
+                return null;
+            }
+            final int end = line.indexOf('\0');
+            final String name = (end < 0 ? line : line.substring(0, end)).trim();
+            return name.length() == 0 ? null : name;
+        } catch (final IOException e) {
+            MPLog.w(LOGTAG, "Could not read the name of this process", e);
+            return null;
+        } finally {
+            if (null != reader) {
+                try {
+                    reader.close();
+                } catch (final IOException e) {
+                    ;
+                }
+            }
+        }
+    }
+
     protected Worker createWorker() {
         return new Worker();
     }
@@ -75,6 +147,21 @@ import javax.net.ssl.SSLSocketFactory;
     }
 
     public void eventsMessage(final EventDescription eventDescription) {
+        if (null != mJournal) {
+            // Posted while holding the journal, so the worker gets journaled events in sequence order
+            synchronized (mJournal) {
+                final long journalSeq = mJournal.append(eventDescription);
+                if (journalSeq != -1) {
+                    postEvent(new EventDescription(eventDescription.getEventName(), eventDescription.getProperties(),
+                            eventDescription.getToken(), eventDescription.isAutomatic(), journalSeq));
+                    return;
+                }
+            }
+        }
+        postEvent(eventDescription);
+    }
+
+    private void postEvent(final EventDescription eventDescription) {
         final Message m = Message.obtain();
         m.what = ENQUEUE_EVENTS;
         m.obj = eventDescription;
@@ -90,6 +177,70 @@ import javax.net.ssl.SSLSocketFactory;
         mWorker.runMessage(m);
     }
 
+    // Must be thread safe. Stores a People record that has no distinct id yet, until
+    // releaseWaitingPeopleMessage() is called for its token.
+    public void waitingPeopleMessage(final PeopleDescription peopleDescription) {
+        final Message m = Message.obtain();
+        m.what = ENQUEUE_WAITING_PEOPLE;
+        m.obj = peopleDescription;
+
+        mWorker.runMessage(m);
+    }
+
+    // Must be thread safe. Queues the People records waiting for the token, with the distinct id given.
+    public void releaseWaitingPeopleMessage(final IdentifyDescription identifyDescription) {
+        // Counted before posting, so calls made after this one see it
+        mPendingPeopleReleases.incrementAndGet();
+        final Message m = Message.obtain();
+        m.what = RELEASE_WAITING_PEOPLE;
+        m.obj = identifyDescription;
+
+        mWorker.runMessage(m);
+    }
+
+    // Must be thread safe. Discards the People records waiting for token.
+    public void clearWaitingPeopleMessage(final String token) {
+        final Message m = Message.obtain();
+        m.what = CLEAR_WAITING_PEOPLE;
+        m.obj = token;
+
+        mWorker.runMessage(m);
+    }
+
+    // True while released People records haven't been queued yet. People records handed off meanwhile
+    // could be drained ahead of them, so they should be sent with peopleMessage() instead.
+    public boolean isReleasingWaitingPeople() {
+        return mPendingPeopleReleases.get() > 0;
+    }
+
+    // True if events are copied to a journal on disk before they are handed to the worker
+    public boolean journalsEvents() {
+        return null != mJournal;
+    }
+
+    // True if calls should be handed to the worker with handOff() rather than built into messages by the caller
+    public boolean hasHandoffQueue() {
+        return null != mHandoffQueue;
+    }
+
+    // Must be thread safe. Copies the raw inputs of a call into the handoff queue; the assembler
+    // builds them into a message on the worker thread. Only valid if hasHandoffQueue() is true.
+    public void handOff(HandoffQueue.Assembler assembler, String name, Object properties, long timeMillis, String distinctId,
+                        Long eventBegin, boolean isAutomatic, JSONObject superProperties, Map<String, String> referrerProperties) {
+        final boolean mayBlock = Thread.currentThread() != mWorkerThread;
+        if (!mHandoffQueue.offer(assembler, name, properties, timeMillis, distinctId, eventBegin, isAutomatic,
+                superProperties, referrerProperties, mayBlock)) {
+            return;
+        }
+
+        // One drain message covers everything handed off until the worker starts draining
+        if (mHandoffDrainScheduled.compareAndSet(false, true)) {
+            final Message m = Message.obtain();
+            m.what = DRAIN_HANDOFF_QUEUE;
+            mWorker.runMessage(m);
+        }
+    }
+
     public void postToServer(final FlushDescription flushDescription) {
         final Message m = Message.obtain();
         m.what = FLUSH_QUEUE;
@@ -129,8 +280,8 @@ import javax.net.ssl.SSLSocketFactory;
         return mWorker.isDead();
     }
 
-    protected MPDbAdapter makeDbAdapter(Context context) {
-        return MPDbAdapter.getInstance(context);
+    protected EventStore makeDbAdapter(Context context) {
+        return EventStores.getInstance(context);
     }
 
     protected MPConfig getConfig(Context context) {
@@ -138,17 +289,22 @@ import javax.net.ssl.SSLSocketFactory;
     }
 
     protected RemoteService getPoster() {
-        return new HttpService();
+        return new HttpService(mConfig.getCompressUploads(), mConfig.getReuseConnections(), mConfig.getRequestMetricsListener());
     }
 
     ////////////////////////////////////////////////////
 
     static class EventDescription extends MixpanelDescription {
         public EventDescription(String eventName, JSONObject properties, String token, boolean isAutomatic) {
+            this(eventName, properties, token, isAutomatic, -1);
+        }
+
+        public EventDescription(String eventName, JSONObject properties, String token, boolean isAutomatic, long journalSeq) {
             super(token);
             mEventName = eventName;
             mProperties = properties;
             mIsAutomatic = isAutomatic;
+            mJournalSeq = journalSeq;
         }
 
         public String getEventName() {
@@ -163,9 +319,15 @@ import javax.net.ssl.SSLSocketFactory;
             return mIsAutomatic;
         }
 
+        // The sequence number of the event in the EventJournal, or -1 if it wasn't journaled
+        public long getJournalSeq() {
+            return mJournalSeq;
+        }
+
         private final String mEventName;
         private final JSONObject mProperties;
         private final boolean mIsAutomatic;
+        private final long mJournalSeq;
     }
 
     static class PeopleDescription extends MixpanelDescription {
@@ -182,6 +344,19 @@ import javax.net.ssl.SSLSocketFactory;
         private final JSONObject message;
     }
 
+    static class IdentifyDescription extends MixpanelDescription {
+        public IdentifyDescription(String token, String distinctId) {
+            super(token);
+            this.distinctId = distinctId;
+        }
+
+        public String getDistinctId() {
+            return distinctId;
+        }
+
+        private final String distinctId;
+    }
+
     static class FlushDescription extends MixpanelDescription {
         public FlushDescription(String token) {
             this(token, true);
@@ -214,11 +389,29 @@ import javax.net.ssl.SSLSocketFactory;
     // Sends a message if and only if we are running with Mixpanel Message log enabled.
     // Will be called from the Mixpanel thread.
     private void logAboutMessageToMixpanel(String message) {
-        MPLog.v(LOGTAG, message + " (Thread " + Thread.currentThread().getId() + ")");
+        if (MPLog.isLoggable(MPLog.VERBOSE)) {
+            MPLog.v(LOGTAG, message + " (Thread " + Thread.currentThread().getId() + ")");
+        }
+    }
+
+    // The details are only turned into strings if the message will be logged, so callers on the
+    // hot path can pass records and URLs without paying to serialize them when logging is off.
+    private void logAboutMessageToMixpanel(String message, Object detail) {
+        if (MPLog.isLoggable(MPLog.VERBOSE)) {
+            MPLog.v(LOGTAG, message + detail + " (Thread " + Thread.currentThread().getId() + ")");
+        }
+    }
+
+    private void logAboutMessageToMixpanel(String message, Object detail, String moreMessage, Object moreDetail) {
+        if (MPLog.isLoggable(MPLog.VERBOSE)) {
+            MPLog.v(LOGTAG, message + detail + moreMessage + moreDetail + " (Thread " + Thread.currentThread().getId() + ")");
+        }
     }
 
     private void logAboutMessageToMixpanel(String message, Throwable e) {
-        MPLog.v(LOGTAG, message + " (Thread " + Thread.currentThread().getId() + ")", e);
+        if (MPLog.isLoggable(MPLog.VERBOSE)) {
+            MPLog.v(LOGTAG, message + " (Thread " + Thread.currentThread().getId() + ")", e);
+        }
     }
 
     // Worker will manage the (at most single) IO thread associated with
@@ -258,11 +451,22 @@ import javax.net.ssl.SSLSocketFactory;
         class AnalyticsMessageHandler extends Handler {
             public AnalyticsMessageHandler(Looper looper) {
                 super(looper);
+                mWorkerThread = looper.getThread();
                 mDbAdapter = null;
-                mSystemInformation = new SystemInformation(mContext);
+                final long systemInformationStart = StartupTrace.begin("SystemInformation");
+                try {
+                    mSystemInformation = new SystemInformation(mContext);
+                } finally {
+                    StartupTrace.end("SystemInformation", systemInformationStart);
+                }
                 mDecideChecker = createDecideChecker();
                 mDisableFallback = mConfig.getDisableFallback();
                 mFlushInterval = mConfig.getFlushInterval();
+                mInsertBatchSize = mConfig.getInsertBatchSize();
+                mInsertBatchInterval = mConfig.getInsertBatchInterval();
+                mStagedRecords = new ArrayList<MPDbAdapter.QueuedRecord>(mInsertBatchSize);
+                mBatchSizers = new HashMap<MPDbAdapter.Table, UploadBatchSizer>();
+                mFlushScheduler = new FlushScheduler(mFlushInterval, mConfig.getMaximumEventLatency(), mConfig.getBulkUploadLimit());
             }
 
             protected DecideChecker createDecideChecker() {
@@ -273,8 +477,11 @@ import javax.net.ssl.SSLSocketFactory;
             public void handleMessage(Message msg) {
                 if (mDbAdapter == null) {
                     mDbAdapter = makeDbAdapter(mContext);
-                    mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.EVENTS);
-                    mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.PEOPLE);
+                    mExpirationCleanup = new ExpirationCleanup(System.currentTimeMillis() - mConfig.getDataExpiration());
+                    Looper.myQueue().addIdleHandler(mExpirationCleanup);
+                    // After whatever is already waiting, so an upgrade doesn't hold up the first records
+                    sendEmptyMessage(PERFORM_STORE_MAINTENANCE);
+                    replayJournal();
                 }
 
                 try {
@@ -283,32 +490,38 @@ import javax.net.ssl.SSLSocketFactory;
 
                     if (msg.what == ENQUEUE_PEOPLE) {
                         final PeopleDescription message = (PeopleDescription) msg.obj;
-
-                        logAboutMessageToMixpanel("Queuing people record for sending later");
-                        logAboutMessageToMixpanel("    " + message.toString());
                         token = message.getToken();
-                        returnCode = mDbAdapter.addJSON(message.getMessage(), token, MPDbAdapter.Table.PEOPLE, false);
+                        returnCode = enqueuePeople(message);
                     } else if (msg.what == ENQUEUE_EVENTS) {
                         final EventDescription eventDescription = (EventDescription) msg.obj;
+                        token = eventDescription.getToken();
+                        returnCode = enqueueEvent(eventDescription);
+                        if (eventDescription.getJournalSeq() != -1) {
+                            mJournalPending = eventDescription.getJournalSeq();
+                        }
+                    } else if (msg.what == ENQUEUE_WAITING_PEOPLE) {
+                        final PeopleDescription message = (PeopleDescription) msg.obj;
+                        logAboutMessageToMixpanel("Holding people record until a distinct id is set");
+                        mDbAdapter.addWaitingPeopleRecord(message.getMessage(), message.getToken());
+                    } else if (msg.what == RELEASE_WAITING_PEOPLE) {
+                        final IdentifyDescription identifyDescription = (IdentifyDescription) msg.obj;
+                        token = identifyDescription.getToken();
                         try {
-                            final JSONObject message = prepareEventObject(eventDescription);
-                            logAboutMessageToMixpanel("Queuing event for sending later");
-                            logAboutMessageToMixpanel("    " + message.toString());
-                            token = eventDescription.getToken();
-
-                            DecideMessages decide = mDecideChecker.getDecideMessages(token);
-                            if (decide != null && eventDescription.isAutomatic() && !decide.shouldTrackAutomaticEvent()) {
-                                return;
-                            }
-                            returnCode = mDbAdapter.addJSON(message, token, MPDbAdapter.Table.EVENTS, eventDescription.isAutomatic());
-                        } catch (final JSONException e) {
-                            MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                            returnCode = releaseWaitingPeople(identifyDescription);
+                        } finally {
+                            mPendingPeopleReleases.decrementAndGet();
                         }
+                    } else if (msg.what == CLEAR_WAITING_PEOPLE) {
+                        mDbAdapter.clearWaitingPeopleRecords((String) msg.obj);
+                    } else if (msg.what == DRAIN_HANDOFF_QUEUE) {
+                        drainHandoffQueue();
                     } else if (msg.what == FLUSH_QUEUE) {
                         logAboutMessageToMixpanel("Flushing queue due to scheduled or forced flush");
                         updateFlushFrequency();
                         token = (String) msg.obj;
                         boolean shouldCheckDecide = msg.arg1 == 1 ? true : false;
+                        drainHandoffQueue();
+                        writeStagedRecords();
                         sendAllData(mDbAdapter, token);
                         if (shouldCheckDecide && SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
                             try {
@@ -328,52 +541,54 @@ import javax.net.ssl.SSLSocketFactory;
                                 mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
                             }
                         }
+                    } else if (msg.what == WRITE_STAGED_RECORDS) {
+                        writeStagedRecords();
+                    } else if (msg.what == PERFORM_STORE_MAINTENANCE) {
+                        // One step per message, so records queued meanwhile are stored between steps
+                        if (mDbAdapter.performMaintenance()) {
+                            sendEmptyMessage(PERFORM_STORE_MAINTENANCE);
+                        }
                     } else if (msg.what == REGISTER_FOR_GCM) {
                         final String senderId = (String) msg.obj;
                         runGCMRegistration(senderId);
                     } else if (msg.what == KILL_WORKER) {
                         MPLog.w(LOGTAG, "Worker received a hard kill. Dumping all events and force-killing. Thread id " + Thread.currentThread().getId());
                         synchronized(mHandlerLock) {
+                            mStagedRecords.clear();
+                            if (null != mHandoffQueue) {
+                                mHandoffQueue.close();
+                            }
+                            if (null != mUploadExecutor) {
+                                mUploadExecutor.shutdownNow();
+                            }
+                            unregisterForDeviceStateChanges();
                             mDbAdapter.deleteDB();
                             mHandler = null;
                             Looper.myLooper().quit();
                         }
+                        // Outside mHandlerLock, since eventsMessage takes the journal's lock and then mHandlerLock
+                        if (null != mJournal) {
+                            mJournal.acknowledgeAll();
+                        }
                     } else {
                         MPLog.e(LOGTAG, "Unexpected message received by Mixpanel worker: " + msg);
                     }
 
-                    ///////////////////////////
-                    if ((returnCode >= mConfig.getBulkUploadLimit() || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR) && mFailedRetries <= 0 && token != null) {
-                        logAboutMessageToMixpanel("Flushing queue due to bulk upload limit (" + returnCode + ") for project " + token);
-                        updateFlushFrequency();
-                        sendAllData(mDbAdapter, token);
-                        if (SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
-                            try {
-                                mDecideChecker.runDecideCheck(token, getPoster());
-                            } catch (RemoteService.ServiceUnavailableException e) {
-                                mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
-                            }
-                        }
-                    } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE, token)) {
-                        // The !hasMessages(FLUSH_QUEUE, token) check is a courtesy for the common case
-                        // of delayed flushes already enqueued from inside of this thread.
-                        // Callers outside of this thread can still send
-                        // a flush right here, so we may end up with two flushes
-                        // in our queue, but we're OK with that.
-
-                        logAboutMessageToMixpanel("Queue depth " + returnCode + " - Adding flush in " + mFlushInterval);
-                        if (mFlushInterval >= 0) {
-                            final Message flushMessage = Message.obtain();
-                            flushMessage.what = FLUSH_QUEUE;
-                            flushMessage.obj = token;
-                            flushMessage.arg1 = 1;
-                            sendMessageDelayed(flushMessage, mFlushInterval);
-                        }
+                    // Journaled events can go once they, and everything before them, are in the store
+                    if (mJournalPending != -1 && mStagedRecords.isEmpty()) {
+                        mJournal.acknowledge(mJournalPending);
+                        mJournalPending = -1;
                     }
+
+                    ///////////////////////////
+                    checkQueueDepth(returnCode, token);
                 } catch (final RuntimeException e) {
                     MPLog.e(LOGTAG, "Worker threw an unhandled exception", e);
                     synchronized (mHandlerLock) {
                         mHandler = null;
+                        if (null != mHandoffQueue) {
+                            mHandoffQueue.close(); // Nothing will drain it, so callers must not wait for room
+                        }
                         try {
                             Looper.myLooper().quit();
                             MPLog.e(LOGTAG, "Mixpanel will not process any more analytics messages", e);
@@ -384,6 +599,255 @@ import javax.net.ssl.SSLSocketFactory;
                 }
             }// handleMessage
 
+            // Returns the queue depth after the insert, or DB_UNDEFINED_CODE if the record was staged
+            private int enqueuePeople(PeopleDescription message) {
+                logAboutMessageToMixpanel("Queuing people record for sending later");
+                logAboutMessageToMixpanel("    ", message);
+                final String token = message.getToken();
+                mFlushScheduler.onRecordQueued(SystemClock.elapsedRealtime());
+                if (mInsertBatchSize > 1) {
+                    stageRecord(new MPDbAdapter.QueuedRecord(message.getMessage(), token, MPDbAdapter.Table.PEOPLE, false, System.currentTimeMillis()));
+                    return MPDbAdapter.DB_UNDEFINED_CODE;
+                }
+                return mDbAdapter.addJSON(message.getMessage(), token, MPDbAdapter.Table.PEOPLE, false);
+            }
+
+            // Queues the People records waiting for the token, in the order they were made.
+            // Returns the queue depth after the last insert, or DB_UNDEFINED_CODE if none were inserted.
+            private int releaseWaitingPeople(IdentifyDescription identifyDescription) {
+                final String token = identifyDescription.getToken();
+                final List<JSONObject> records = mDbAdapter.takeWaitingPeopleRecords(token, identifyDescription.getDistinctId());
+                int returnCode = MPDbAdapter.DB_UNDEFINED_CODE;
+                if (null != records) {
+                    for (final JSONObject record : records) {
+                        returnCode = enqueuePeople(new PeopleDescription(record, token));
+                    }
+                }
+                return returnCode;
+            }
+
+            // Returns the queue depth after the insert, or DB_UNDEFINED_CODE if the event was staged or not stored
+            private int enqueueEvent(EventDescription eventDescription) {
+                try {
+                    final JSONObject message = prepareEventObject(eventDescription);
+                    logAboutMessageToMixpanel("Queuing event for sending later");
+                    logAboutMessageToMixpanel("    ", message);
+                    final String token = eventDescription.getToken();
+
+                    DecideMessages decide = mDecideChecker.getDecideMessages(token);
+                    if (decide != null && eventDescription.isAutomatic() && !decide.shouldTrackAutomaticEvent()) {
+                        return MPDbAdapter.DB_UNDEFINED_CODE;
+                    }
+                    mFlushScheduler.onRecordQueued(SystemClock.elapsedRealtime());
+                    if (mInsertBatchSize > 1) {
+                        stageRecord(new MPDbAdapter.QueuedRecord(message, token, MPDbAdapter.Table.EVENTS, eventDescription.isAutomatic(), System.currentTimeMillis()));
+                        return MPDbAdapter.DB_UNDEFINED_CODE;
+                    }
+                    return mDbAdapter.addJSON(message, token, MPDbAdapter.Table.EVENTS, eventDescription.isAutomatic());
+                } catch (final JSONException e) {
+                    MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                    return MPDbAdapter.DB_UNDEFINED_CODE;
+                }
+            }
+
+            /**
+             * Removes records older than DataExpiration a chunk at a time, whenever the worker has nothing
+             * else to do, so a large stale backlog never holds up the records being tracked. Whatever is
+             * left is removed before the first upload, see {@link #finish()}.
+             */
+            private class ExpirationCleanup implements MessageQueue.IdleHandler {
+                public ExpirationCleanup(long expireBefore) {
+                    mExpireBefore = expireBefore;
+                    mTableIndex = 0;
+                }
+
+                @Override
+                public boolean queueIdle() {
+                    if (isDone()) {
+                        return false;
+                    }
+                    final MPDbAdapter.Table table = MPDbAdapter.Table.values()[mTableIndex];
+                    final long start = SystemClock.elapsedRealtime();
+                    int removed;
+                    try {
+                        removed = mDbAdapter.cleanupEvents(mExpireBefore, table, EXPIRATION_CHUNK_SIZE);
+                    } catch (final RuntimeException e) {
+                        // Thrown from here, it would take down the worker thread
+                        MPLog.e(LOGTAG, "Could not expire old records from " + table.getName(), e);
+                        removed = MPDbAdapter.DB_UPDATE_ERROR;
+                    }
+                    mChunks++;
+                    mElapsedMillis += SystemClock.elapsedRealtime() - start;
+                    if (removed > 0) {
+                        mRemoved += removed;
+                    }
+
+                    // A short chunk, or a failure, means we're done with this table for now
+                    if (removed < EXPIRATION_CHUNK_SIZE) {
+                        mTableIndex++;
+                    }
+                    if (mTableIndex < MPDbAdapter.Table.values().length) {
+                        return true;
+                    }
+                    // There are never many People records waiting for a distinct id, so one step does them
+                    try {
+                        mDbAdapter.cleanupWaitingPeopleRecords(mExpireBefore);
+                    } catch (final RuntimeException e) {
+                        MPLog.e(LOGTAG, "Could not expire old waiting People records", e);
+                    }
+                    if (MPLog.isLoggable(MPLog.VERBOSE)) {
+                        logAboutMessageToMixpanel("Expired " + mRemoved + " old records in " + mChunks + " chunks, taking " + mElapsedMillis + "ms");
+                    }
+                    return false;
+                }
+
+                public boolean isDone() {
+                    return mTableIndex >= MPDbAdapter.Table.values().length;
+                }
+
+                // Removes the rest of the expired records now, so none of them can be uploaded
+                public void finish() {
+                    while (queueIdle()) {
+                        // One chunk per call
+                    }
+                    Looper.myQueue().removeIdleHandler(this);
+                }
+
+                private final long mExpireBefore;
+                private int mTableIndex;
+                private int mChunks;
+                private int mRemoved;
+                private long mElapsedMillis;
+            }
+
+            // Stores the events earlier processes journaled but didn't get to store
+            private void replayJournal() {
+                if (null == mJournal) {
+                    return;
+                }
+                final List<EventDescription> events = mJournal.readUnacknowledged();
+                if (!events.isEmpty()) {
+                    logAboutMessageToMixpanel("Replaying " + events.size() + " events from the journal");
+                }
+                for (final EventDescription event : events) {
+                    enqueueEvent(event);
+                    mJournalPending = event.getJournalSeq();
+                }
+            }
+
+            // Builds and stores everything waiting in the handoff queue
+            private void drainHandoffQueue() {
+                if (null == mHandoffQueue) {
+                    return;
+                }
+
+                // Cleared before polling, so anything handed off from here on schedules another drain
+                mHandoffDrainScheduled.set(false);
+                while (mHandoffQueue.poll(mHandoffEntry)) {
+                    MixpanelDescription description = null;
+                    try {
+                        description = mHandoffEntry.assemble();
+                    } catch (final JSONException e) {
+                        MPLog.e(LOGTAG, "Exception building a message for " + mHandoffEntry.getName(), e);
+                    } finally {
+                        mHandoffEntry.clear();
+                    }
+
+                    if (description instanceof EventDescription) {
+                        checkQueueDepth(enqueueEvent((EventDescription) description), description.getToken());
+                    } else if (description instanceof PeopleDescription) {
+                        checkQueueDepth(enqueuePeople((PeopleDescription) description), description.getToken());
+                    }
+                }
+
+                final long dropped = mHandoffQueue.getDroppedOldestCount() + mHandoffQueue.getDroppedNewestCount();
+                if (dropped > mReportedHandoffDrops) {
+                    MPLog.w(LOGTAG, "Mixpanel dropped " + (dropped - mReportedHandoffDrops) + " records because the handoff queue was full (" +
+                            mHandoffQueue.getDroppedOldestCount() + " oldest, " + mHandoffQueue.getDroppedNewestCount() + " newest so far). " +
+                            "Consider raising com.mixpanel.android.MPConfig.HandoffQueueSize.");
+                    mReportedHandoffDrops = dropped;
+                }
+            }
+
+            // Flushes right away if the queue for token is deep enough, otherwise schedules a flush.
+            private void checkQueueDepth(int returnCode, String token) {
+                if ((returnCode >= mConfig.getBulkUploadLimit() || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR) && mFailedRetries <= 0 && token != null) {
+                    logAboutMessageToMixpanel("Flushing queue due to bulk upload limit (" + returnCode + ") for project " + token);
+                    updateFlushFrequency();
+                    sendAllData(mDbAdapter, token);
+                    if (SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
+                        try {
+                            mDecideChecker.runDecideCheck(token, getPoster());
+                        } catch (RemoteService.ServiceUnavailableException e) {
+                            mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
+                        }
+                    }
+                } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE, token)) {
+                    // The !hasMessages(FLUSH_QUEUE, token) check is a courtesy for the common case
+                    // of delayed flushes already enqueued from inside of this thread.
+                    // Callers outside of this thread can still send
+                    // a flush right here, so we may end up with two flushes
+                    // in our queue, but we're OK with that.
+
+                    // A negative flush interval turns scheduled flushes off
+                    if (mFlushInterval >= 0) {
+                        final long now = SystemClock.elapsedRealtime();
+                        final Intent batteryStatus = mSystemInformation.getBatteryStatus();
+                        final FlushScheduler.Conditions conditions = new FlushScheduler.Conditions(mSystemInformation.isNetworkMetered(),
+                                SystemInformation.isCharging(batteryStatus), SystemInformation.getBatteryLevel(batteryStatus));
+                        final long delay = mFlushScheduler.getFlushDelay(now, returnCode, conditions, getMeanRoundTrip());
+                        if (MPLog.isLoggable(MPLog.VERBOSE)) {
+                            logAboutMessageToMixpanel("Queue depth " + returnCode + " - Adding flush in " + delay);
+                        }
+                        final Message flushMessage = Message.obtain();
+                        flushMessage.what = FLUSH_QUEUE;
+                        flushMessage.obj = token;
+                        flushMessage.arg1 = 1;
+                        sendMessageDelayed(flushMessage, delay);
+                    }
+                }
+            }
+
+            // Holds a record in memory until InsertBatchSize records are waiting,
+            // or the oldest has waited InsertBatchInterval milliseconds.
+            private void stageRecord(MPDbAdapter.QueuedRecord record) {
+                mStagedRecords.add(record);
+                if (mStagedRecords.size() >= mInsertBatchSize) {
+                    writeStagedRecords();
+                } else if (!hasMessages(WRITE_STAGED_RECORDS)) {
+                    sendEmptyMessageDelayed(WRITE_STAGED_RECORDS, mInsertBatchInterval);
+                }
+            }
+
+            private void writeStagedRecords() {
+                removeMessages(WRITE_STAGED_RECORDS);
+                if (mStagedRecords.isEmpty()) {
+                    return;
+                }
+
+                final int written = mDbAdapter.addJSON(mStagedRecords);
+                if (MPLog.isLoggable(MPLog.VERBOSE)) {
+                    logAboutMessageToMixpanel("Wrote " + mStagedRecords.size() + " staged records to the database (" + written + ")");
+                }
+
+                // Queue depth per token, for the tables we just wrote to
+                final Map<String, Integer> depths = new LinkedHashMap<String, Integer>();
+                for (final MPDbAdapter.QueuedRecord record : mStagedRecords) {
+                    final String token = record.getToken();
+                    int depth = written;
+                    if (written >= 0) {
+                        depth = mDbAdapter.getQueueCount(record.getTable(), token);
+                    }
+                    final Integer known = depths.get(token);
+                    depths.put(token, null == known ? depth : Math.max(known, depth));
+                }
+                mStagedRecords.clear();
+
+                for (final Map.Entry<String, Integer> depth : depths.entrySet()) {
+                    checkQueueDepth(depth.getValue(), depth.getKey());
+                }
+            }
+
             protected long getTrackEngageRetryAfter() {
                 return mTrackEngageRetryAfter;
             }
@@ -429,76 +893,222 @@ import javax.net.ssl.SSLSocketFactory;
                 });
             }
 
-            private void sendAllData(MPDbAdapter dbAdapter, String token) {
+            // Sends the queues of both tables for token. The tables upload side by side on
+            // mUploadExecutor, each with at most one request in flight, and the next batch of a table
+            // is read while its current one is being sent. Records are only read and deleted here,
+            // on the worker thread.
+            private void sendAllData(EventStore dbAdapter, String token) {
                 final RemoteService poster = getPoster();
                 if (!poster.isOnline(mContext, mConfig.getOfflineMode())) {
                     logAboutMessageToMixpanel("Not flushing data to Mixpanel because the device is not connected to the internet.");
                     return;
                 }
 
-                if (mDisableFallback) {
-                    sendData(dbAdapter, token, MPDbAdapter.Table.EVENTS, new String[]{ mConfig.getEventsEndpoint() });
-                    sendData(dbAdapter, token, MPDbAdapter.Table.PEOPLE, new String[]{ mConfig.getPeopleEndpoint() });
-                } else {
-                    sendData(dbAdapter, token, MPDbAdapter.Table.EVENTS,
-                             new String[]{ mConfig.getEventsEndpoint(), mConfig.getEventsFallbackEndpoint() });
-                    sendData(dbAdapter, token, MPDbAdapter.Table.PEOPLE,
-                             new String[]{ mConfig.getPeopleEndpoint(), mConfig.getPeopleFallbackEndpoint() });
+                if (null != mExpirationCleanup && !mExpirationCleanup.isDone()) {
+                    mExpirationCleanup.finish();
+                }
+                mFlushScheduler.onFlushStarted();
+
+                final DecideMessages decideMessages = mDecideChecker.getDecideMessages(token);
+                final boolean includeAutomaticEvents = decideMessages != null && decideMessages.isAutomaticEventsEnabled() != null;
+                final CompletionService<Upload> uploads = new ExecutorCompletionService<Upload>(getUploadExecutor());
+                mRoundFailed = false;
+                int inFlight = 0;
+                for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+                    final UploadLane lane = new UploadLane(dbAdapter, poster, token, table, includeAutomaticEvents, uploads);
+                    if (lane.start()) {
+                        inFlight++;
+                    }
+                }
+
+                while (inFlight > 0) {
+                    final Upload upload;
+                    try {
+                        upload = uploads.take().get();
+                    } catch (final InterruptedException e) {
+                        // Records of uploads still in flight aren't deleted, they'll be sent again
+                        Thread.currentThread().interrupt();
+                        return;
+                    } catch (final ExecutionException e) {
+                        throw new RuntimeException("Unexpected failure uploading to Mixpanel", e.getCause());
+                    }
+                    inFlight--;
+                    if (upload.lane.onUploaded(upload)) {
+                        inFlight++;
+                    }
                 }
             }
 
-            private void sendData(MPDbAdapter dbAdapter, String token, MPDbAdapter.Table table, String[] urls) {
-                final RemoteService poster = getPoster();
-                DecideMessages decideMessages = mDecideChecker.getDecideMessages(token);
-                boolean includeAutomaticEvents = true;
-                if (decideMessages == null || decideMessages.isAutomaticEventsEnabled() == null) {
-                    includeAutomaticEvents = false;
+            private String[] getUrls(MPDbAdapter.Table table) {
+                if (table == MPDbAdapter.Table.EVENTS) {
+                    return mDisableFallback ? new String[]{ mConfig.getEventsEndpoint() } :
+                            new String[]{ mConfig.getEventsEndpoint(), mConfig.getEventsFallbackEndpoint() };
+                }
+                return mDisableFallback ? new String[]{ mConfig.getPeopleEndpoint() } :
+                        new String[]{ mConfig.getPeopleEndpoint(), mConfig.getPeopleFallbackEndpoint() };
+            }
+
+            private ExecutorService getUploadExecutor() {
+                if (null == mUploadExecutor) {
+                    final int threads = MPDbAdapter.Table.values().length;
+                    final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, UPLOAD_THREAD_KEEP_ALIVE_MILLIS,
+                            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            final Thread thread = new Thread(runnable, "com.mixpanel.android.AnalyticsUpload");
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    mUploadExecutor = executor;
                 }
-                String[] eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents);
-                Integer queueCount = 0;
-                if (eventsData != null) {
-                    queueCount = Integer.valueOf(eventsData[2]);
+                return mUploadExecutor;
+            }
+
+            // The queue of one table for one token, while sendAllData() sends it. Only used on the worker thread.
+            private class UploadLane {
+                public UploadLane(EventStore dbAdapter, RemoteService poster, String token, MPDbAdapter.Table table,
+                                  boolean includeAutomaticEvents, CompletionService<Upload> uploads) {
+                    mStore = dbAdapter;
+                    mPoster = poster;
+                    mToken = token;
+                    mTable = table;
+                    mUrls = getUrls(table);
+                    mIncludeAutomaticEvents = includeAutomaticEvents;
+                    mUploads = uploads;
+                    mBatchSizer = getBatchSizer(table);
+                }
+
+                // Returns true if an upload was started
+                public boolean start() {
+                    return submit(read(null));
                 }
 
-                while (eventsData != null && queueCount > 0) {
-                    final String lastId = eventsData[0];
-                    final String rawMessage = eventsData[1];
+                // Acts on a finished upload of this lane. Returns true if the next one was started.
+                public boolean onUploaded(Upload upload) {
+                    mFlushScheduler.onUploadFinished(SystemClock.elapsedRealtime());
+                    notifyUploadMetrics(mTable, mBatchSizer);
+                    if (upload.retryAfterMillis >= 0) {
+                        mTrackEngageRetryAfter = upload.retryAfterMillis;
+                    }
+                    if (upload.succeeded && mFailedRetries > 0) {
+                        mFailedRetries = 0;
+                        removeMessages(FLUSH_QUEUE, mToken);
+                    }
 
-                    final String encodedData = Base64Coder.encodeString(rawMessage);
+                    if (upload.retryWithSmallerBatch) {
+                        logAboutMessageToMixpanel("Batch was too large, retrying with at most " + mBatchSizer.getBatchSize() + " records.");
+                        return submit(read(null));
+                    } else if (upload.deleteEvents) {
+                        logAboutMessageToMixpanel("Not retrying this batch of events, deleting them from DB.");
+                        mStore.cleanupEvents(upload.batch.getLastId(), mTable, mToken, mIncludeAutomaticEvents);
+                        final MPDbAdapter.DataBatch next = mNext;
+                        mNext = null;
+                        return submit(next);
+                    } else if (mRoundFailed) {
+                        // The other lane already failed this round, and scheduled the retry
+                        return false;
+                    } else {
+                        mRoundFailed = true;
+                        removeMessages(FLUSH_QUEUE, mToken);
+                        mTrackEngageRetryAfter = Math.max((long)Math.pow(2, mFailedRetries) * 60000, mTrackEngageRetryAfter);
+                        mTrackEngageRetryAfter = Math.min(mTrackEngageRetryAfter, 10 * 60 * 1000); // limit 10 min
+                        final Message flushMessage = Message.obtain();
+                        flushMessage.what = FLUSH_QUEUE;
+                        flushMessage.obj = mToken;
+                        sendMessageDelayed(flushMessage, mTrackEngageRetryAfter);
+                        mFailedRetries++;
+                        logAboutMessageToMixpanel("Retrying this batch of events in " + mTrackEngageRetryAfter + " ms");
+                        return false;
+                    }
+                }
+
+                private MPDbAdapter.DataBatch read(String afterId) {
+                    return mStore.generateDataBatch(mTable, mToken, mIncludeAutomaticEvents, mBatchSizer.getBatchSize(), afterId);
+                }
+
+                // Starts uploading batch, then reads the batch after it while the request is in flight
+                private boolean submit(MPDbAdapter.DataBatch batch) {
+                    if (null == batch || batch.getQueueCount() <= 0) {
+                        return false;
+                    }
+                    final boolean batchWasFull = batch.getQueueCount() >= mBatchSizer.getBatchSize();
+                    mUploads.submit(new Upload(this, batch, batchWasFull));
+                    mNext = read(batch.getLastId());
+                    return true;
+                }
+
+                private final EventStore mStore;
+                private final RemoteService mPoster;
+                private final String mToken;
+                private final MPDbAdapter.Table mTable;
+                private final String[] mUrls;
+                private final boolean mIncludeAutomaticEvents;
+                private final CompletionService<Upload> mUploads;
+                private final UploadBatchSizer mBatchSizer;
+                private MPDbAdapter.DataBatch mNext;
+            }
+
+            // Posts one batch, trying each of its lane's URLs in turn. Runs on an upload thread, so
+            // it only touches the lane's batch sizer, and leaves everything else to onUploaded().
+            private class Upload implements Callable<Upload> {
+                public Upload(UploadLane lane, MPDbAdapter.DataBatch batch, boolean batchWasFull) {
+                    this.lane = lane;
+                    this.batch = batch;
+                    this.batchWasFull = batchWasFull;
+                }
+
+                @Override
+                public Upload call() {
+                    final UploadBatchSizer batchSizer = lane.mBatchSizer;
+
+                    // The payload is encoded as it's written to the connection, see HttpService
+                    final Base64Payload encodedData = new Base64Payload(batch.getData(), batch.getDataLength());
                     final Map<String, Object> params = new HashMap<String, Object>();
                     params.put("data", encodedData);
                     if (MPConfig.DEBUG) {
                         params.put("verbose", "1");
                     }
 
-                    boolean deleteEvents = true;
                     byte[] response;
-                    for (String url : urls) {
+                    for (String url : lane.mUrls) {
+                        final long requestStart = SystemClock.elapsedRealtime();
                         try {
                             final SSLSocketFactory socketFactory = mConfig.getSSLSocketFactory();
-                            response = poster.performRequest(url, params, socketFactory);
+                            response = lane.mPoster.performRequest(url, params, socketFactory);
                             if (null == response) {
                                 deleteEvents = false;
                                 logAboutMessageToMixpanel("Response was null, unexpected failure posting to " + url + ".");
                             } else {
                                 deleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
-                                String parsedResponse;
-                                try {
-                                    parsedResponse = new String(response, "UTF-8");
-                                } catch (UnsupportedEncodingException e) {
-                                    throw new RuntimeException("UTF not supported on this platform?", e);
+                                succeeded = true;
+                                batchSizer.onSuccess(batchWasFull, SystemClock.elapsedRealtime() - requestStart);
+
+                                // The batch and response are only decoded if the log will be written
+                                if (MPLog.isLoggable(MPLog.VERBOSE)) {
+                                    try {
+                                        // Only decode the batch again for the log if we're debugging
+                                        if (MPConfig.DEBUG) {
+                                            final String rawMessage = new String(batch.getData(), 0, batch.getDataLength(), "UTF-8");
+                                            logAboutMessageToMixpanel("Successfully posted to ", url, ": \n", rawMessage);
+                                        } else {
+                                            logAboutMessageToMixpanel("Successfully posted " + batch.getRecordCount() + " records to " + url + ".");
+                                        }
+                                        logAboutMessageToMixpanel("Response was ", new String(response, "UTF-8"));
+                                    } catch (UnsupportedEncodingException e) {
+                                        throw new RuntimeException("UTF not supported on this platform?", e);
+                                    }
                                 }
-                                if (mFailedRetries > 0) {
-                                    mFailedRetries = 0;
-                                    removeMessages(FLUSH_QUEUE, token);
-                                }
-
-                                logAboutMessageToMixpanel("Successfully posted to " + url + ": \n" + rawMessage);
-                                logAboutMessageToMixpanel("Response was " + parsedResponse);
                             }
                             break;
                         } catch (final OutOfMemoryError e) {
                             MPLog.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
+                            if (batchSizer.shrink()) {
+                                deleteEvents = false;
+                                retryWithSmallerBatch = true;
+                            }
                             break;
                         } catch (final MalformedURLException e) {
                             MPLog.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
@@ -506,41 +1116,89 @@ import javax.net.ssl.SSLSocketFactory;
                         } catch (final RemoteService.ServiceUnavailableException e) {
                             logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
                             deleteEvents = false;
-                            mTrackEngageRetryAfter = e.getRetryAfter() * 1000;
+                            retryAfterMillis = e.getRetryAfter() * 1000;
                         } catch (final SocketTimeoutException e) {
                             logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
                             deleteEvents = false;
+                            batchSizer.onTimeout(SystemClock.elapsedRealtime() - requestStart);
+                        } catch (final RemoteService.RequestTooLargeException e) {
+                            logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
+                            deleteEvents = false;
+                            if (batchSizer.shrink()) {
+                                retryWithSmallerBatch = true;
+                                break;
+                            }
                         } catch (final IOException e) {
                             logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
                             deleteEvents = false;
                         }
                     }
+                    return this;
+                }
 
-                    if (deleteEvents) {
-                        logAboutMessageToMixpanel("Not retrying this batch of events, deleting them from DB.");
-                        dbAdapter.cleanupEvents(lastId, table, token, includeAutomaticEvents);
-                    } else {
-                        removeMessages(FLUSH_QUEUE, token);
-                        mTrackEngageRetryAfter = Math.max((long)Math.pow(2, mFailedRetries) * 60000, mTrackEngageRetryAfter);
-                        mTrackEngageRetryAfter = Math.min(mTrackEngageRetryAfter, 10 * 60 * 1000); // limit 10 min
-                        final Message flushMessage = Message.obtain();
-                        flushMessage.what = FLUSH_QUEUE;
-                        flushMessage.obj = token;
-                        sendMessageDelayed(flushMessage, mTrackEngageRetryAfter);
-                        mFailedRetries++;
-                        logAboutMessageToMixpanel("Retrying this batch of events in " + mTrackEngageRetryAfter + " ms");
-                        break;
-                    }
+                public final UploadLane lane;
+                public final MPDbAdapter.DataBatch batch;
+                private final boolean batchWasFull;
+                // Results, read by onUploaded() once call() has returned
+                public boolean deleteEvents = true;
+                public boolean succeeded;
+                public boolean retryWithSmallerBatch;
+                public long retryAfterMillis = -1;
+            }
 
-                    eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents);
-                    if (eventsData != null) {
-                        queueCount = Integer.valueOf(eventsData[2]);
-                    }
+            // Batch sizes are shared by all tokens, since they all upload over the same connection
+            private UploadBatchSizer getBatchSizer(MPDbAdapter.Table table) {
+                UploadBatchSizer batchSizer = mBatchSizers.get(table);
+                if (null == batchSizer) {
+                    batchSizer = new UploadBatchSizer(mConfig.getBulkUploadLimit());
+                    mBatchSizers.put(table, batchSizer);
+                }
+                return batchSizer;
+            }
+
+            // Of recent event uploads, or -1 if there were none
+            private long getMeanRoundTrip() {
+                final long[] roundTrips = getBatchSizer(MPDbAdapter.Table.EVENTS).getRecentRoundTrips();
+                if (roundTrips.length == 0) {
+                    return -1;
+                }
+                long total = 0;
+                for (final long roundTrip : roundTrips) {
+                    total += roundTrip;
+                }
+                return total / roundTrips.length;
+            }
+
+            private void notifyUploadMetrics(MPDbAdapter.Table table, UploadBatchSizer batchSizer) {
+                final OnUploadMetricsListener listener = mConfig.getOnUploadMetricsListener();
+                if (null != listener) {
+                    listener.onUploadMetrics(table.getName(), batchSizer.getBatchSize(), batchSizer.getRecentRoundTrips());
                 }
             }
 
+            // Returns a new object, since the caller adds the event's own properties to it.
             private JSONObject getDefaultEventProperties()
                     throws JSONException {
+                if (null == mStaticEventProperties) {
+                    mStaticEventProperties = getStaticEventProperties();
+                    registerForDeviceStateChanges();
+                }
+
+                final long now = SystemClock.elapsedRealtime();
+                if (null == mVolatileEventProperties || now - mVolatileEventPropertiesTime > VOLATILE_EVENT_PROPERTIES_TTL_MILLIS) {
+                    mVolatileEventProperties = getVolatileEventProperties();
+                    mVolatileEventPropertiesTime = now;
+                }
+
+                final JSONObject ret = new JSONObject();
+                copyProperties(mStaticEventProperties, ret);
+                copyProperties(mVolatileEventProperties, ret);
+                return ret;
+            }
+
+            // Properties that can't change while the process is running
+            private JSONObject getStaticEventProperties()
+                    throws JSONException {
                 final JSONObject ret = new JSONObject();
 
                 ret.put("mp_lib", "android");
@@ -609,6 +1267,19 @@ import javax.net.ssl.SSLSocketFactory;
                 if (null != hasTelephony)
                     ret.put("$has_telephone", hasTelephony.booleanValue());
 
+                final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
+                if (bluetoothVersion != null)
+                    ret.put("$bluetooth_version", bluetoothVersion);
+
+                return ret;
+            }
+
+            // Properties that follow the device's connectivity. These are cached until a connectivity or
+            // bluetooth broadcast arrives, or for at most VOLATILE_EVENT_PROPERTIES_TTL_MILLIS.
+            private JSONObject getVolatileEventProperties()
+                    throws JSONException {
+                final JSONObject ret = new JSONObject();
+
                 final String carrier = mSystemInformation.getCurrentNetworkOperator();
                 if (null != carrier)
                     ret.put("$carrier", carrier);
@@ -621,13 +1292,47 @@ import javax.net.ssl.SSLSocketFactory;
                 if (isBluetoothEnabled != null)
                     ret.put("$bluetooth_enabled", isBluetoothEnabled);
 
-                final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
-                if (bluetoothVersion != null)
-                    ret.put("$bluetooth_version", bluetoothVersion);
-
                 return ret;
             }
 
+            private void copyProperties(JSONObject from, JSONObject to) throws JSONException {
+                for (final Iterator<?> iter = from.keys(); iter.hasNext();) {
+                    final String key = (String) iter.next();
+                    to.put(key, from.get(key));
+                }
+            }
+
+            // The receiver runs on this handler's thread, so the cached properties need no locking
+            private void registerForDeviceStateChanges() {
+                final IntentFilter filter = new IntentFilter();
+                filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+                filter.addAction(BLUETOOTH_STATE_CHANGED_ACTION);
+                mDeviceStateReceiver = new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        mVolatileEventProperties = null;
+                    }
+                };
+                try {
+                    mContext.registerReceiver(mDeviceStateReceiver, filter, null, this);
+                } catch (final RuntimeException e) {
+                    // Some contexts, like restricted or mock contexts, won't let us listen. The TTL still applies.
+                    MPLog.d(LOGTAG, "Can't listen for connectivity changes, default event properties will refresh on a timer", e);
+                    mDeviceStateReceiver = null;
+                }
+            }
+
+            private void unregisterForDeviceStateChanges() {
+                if (null != mDeviceStateReceiver) {
+                    try {
+                        mContext.unregisterReceiver(mDeviceStateReceiver);
+                    } catch (final RuntimeException e) {
+                        MPLog.d(LOGTAG, "Could not unregister connectivity receiver", e);
+                    }
+                    mDeviceStateReceiver = null;
+                }
+            }
+
             private JSONObject prepareEventObject(EventDescription eventDescription) throws JSONException {
                 final JSONObject eventObj = new JSONObject();
                 final JSONObject eventProperties = eventDescription.getProperties();
@@ -644,13 +1349,30 @@ import javax.net.ssl.SSLSocketFactory;
                 return eventObj;
             }
 
-            private MPDbAdapter mDbAdapter;
+            private EventStore mDbAdapter;
+            private ExpirationCleanup mExpirationCleanup;
+            private final HandoffQueue.Entry mHandoffEntry = new HandoffQueue.Entry();
+            private long mReportedHandoffDrops;
+            // The newest journaled event handled but not yet acknowledged, or -1
+            private long mJournalPending = -1;
             private final DecideChecker mDecideChecker;
             private final long mFlushInterval;
+            private final int mInsertBatchSize;
+            private final int mInsertBatchInterval;
+            private final List<MPDbAdapter.QueuedRecord> mStagedRecords;
+            private final Map<MPDbAdapter.Table, UploadBatchSizer> mBatchSizers;
+            private final FlushScheduler mFlushScheduler;
+            private ExecutorService mUploadExecutor;
             private final boolean mDisableFallback;
+            private JSONObject mStaticEventProperties;
+            private JSONObject mVolatileEventProperties;
+            private long mVolatileEventPropertiesTime;
+            private BroadcastReceiver mDeviceStateReceiver;
             private long mDecideRetryAfter;
             private long mTrackEngageRetryAfter;
             private int mFailedRetries;
+            // True once an upload of the current sendAllData() call has failed, so a round counts as one failure
+            private boolean mRoundFailed;
         }// AnalyticsMessageHandler
 
         private void updateFlushFrequency() {
@@ -685,6 +1407,12 @@ import javax.net.ssl.SSLSocketFactory;
 
     // Used across thread boundaries
     private final Worker mWorker;
+    private final HandoffQueue mHandoffQueue;
+    private final AtomicBoolean mHandoffDrainScheduled;
+    // People record releases posted to the worker but not yet handled
+    private final AtomicInteger mPendingPeopleReleases;
+    private final EventJournal mJournal;
+    private volatile Thread mWorkerThread;
     protected final Context mContext;
     protected final MPConfig mConfig;
 
@@ -695,6 +1423,25 @@ import javax.net.ssl.SSLSocketFactory;
     private static final int KILL_WORKER = 5; // Hard-kill the worker thread, discarding all events on the event queue. This is for testing, or disasters.
     private static final int INSTALL_DECIDE_CHECK = 12; // Run this DecideCheck at intervals until it isDestroyed()
     private static final int REGISTER_FOR_GCM = 13; // Register for GCM using Google Play Services
+    private static final int WRITE_STAGED_RECORDS = 14; // Write records staged in memory to the DB
+    private static final int DRAIN_HANDOFF_QUEUE = 15; // Build and store records waiting in the handoff queue
+    private static final int PERFORM_STORE_MAINTENANCE = 16; // Build missing indexes, compact old records and the like, a step per message
+    private static final int ENQUEUE_WAITING_PEOPLE = 17; // Store a People record until there's a distinct id for it
+    private static final int RELEASE_WAITING_PEOPLE = 18; // Queue the People records waiting for a distinct id
+    private static final int CLEAR_WAITING_PEOPLE = 19; // Discard the People records waiting for a distinct id
+
+    // Upload threads exit after idling this long
+    private static final long UPLOAD_THREAD_KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    // Records removed per idle step of expiring old records
+    private static final int EXPIRATION_CHUNK_SIZE = 500;
+
+    // Under the app's files directory
+    private static final String JOURNAL_DIRECTORY = "mixpanel_journal";
+
+    private static final long VOLATILE_EVENT_PROPERTIES_TTL_MILLIS = 60 * 1000;
+    // BluetoothAdapter.ACTION_STATE_CHANGED, spelled out since some devices lack BluetoothAdapter
+    private static final String BLUETOOTH_STATE_CHANGED_ACTION = "android.bluetooth.adapter.action.STATE_CHANGED";
 
     private static final String LOGTAG = "MixpanelAPI.Messages";
 
@@ -0,0 +1,92 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes queued records for compact storage. Each record is deflated on its own, against a preset
+ * dictionary of the property names and values nearly every Mixpanel record repeats, so even a small
+ * record compresses well. Decoding gives back exactly the UTF-8 text that was encoded.
+ *
+ * <p>Stored rows can only be decoded with the dictionary they were encoded with, so DICTIONARY must
+ * never change. A different dictionary needs a new ENCODING value.
+ */
+/* package */ class CompactRecordCodec {
+
+    // The value of MPDbAdapter's encoding column for rows written by this codec. Text rows are 0.
+    public static final int ENCODING = 1;
+
+    public CompactRecordCodec() {
+        mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        mInflater = new Inflater();
+        mBuffer = new byte[BUFFER_SIZE];
+    }
+
+    public synchronized byte[] encode(String record) {
+        final byte[] input = record.getBytes(UTF_8);
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(input);
+        mDeflater.finish();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+        while (!mDeflater.finished()) {
+            final int length = mDeflater.deflate(mBuffer);
+            out.write(mBuffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Appends the UTF-8 text of an encoded record to out.
+     *
+     * @throws DataFormatException if the record is damaged. Some of it may have been written to out.
+     */
+    public synchronized void decode(byte[] encoded, ByteArrayOutputStream out) throws DataFormatException {
+        mInflater.reset();
+        mInflater.setInput(encoded);
+        while (!mInflater.finished()) {
+            final int length = mInflater.inflate(mBuffer);
+            if (length > 0) {
+                out.write(mBuffer, 0, length);
+            } else if (mInflater.needsDictionary()) {
+                try {
+                    mInflater.setDictionary(DICTIONARY);
+                } catch (final IllegalArgumentException e) {
+                    throw new DataFormatException("Encoded record asks for a different dictionary");
+                }
+            } else if (mInflater.needsInput()) {
+                throw new DataFormatException("Encoded record is truncated");
+            } else if (!mInflater.finished()) {
+                // No output and nothing the inflater is waiting for, looping again would never end
+                throw new DataFormatException("Encoded record can't be inflated");
+            }
+        }
+    }
+
+    private final Deflater mDeflater;
+    private final Inflater mInflater;
+    private final byte[] mBuffer;
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Deflate finds matches closest to the end of the dictionary most cheaply,
+    // so the strings that appear in the most records come last.
+    private static final byte[] DICTIONARY = (
+            "\"$android_app_version_code\":\"\"$android_app_version\":\"\"$android_model\":\"" +
+            "\"$android_brand\":\"\"$android_manufacturer\":\"\"$android_os_version\":\"\"$android_os\":\"Android\"" +
+            "\"$android_lib_version\":\"\"$set_once\":{\"$set\":{\"$token\":\"\"$time\":\"$distinct_id\":\"" +
+            "\"$ae_session_length\":\"$ae_session\"\"$ae_first_open\"\"$ae_updated\"\"$ae_crashed\"" +
+            "\"$duration\":\"$google_play_services\":\"available\"\"$bluetooth_version\":\"ble\"" +
+            "\"$bluetooth_enabled\":false\"$wifi\":false\"$has_telephone\":true\"$has_nfc\":false" +
+            "\"$carrier\":\"\"$screen_width\":\"$screen_height\":\"$screen_dpi\":" +
+            "\"$app_build_number\":\"$app_release\":\"$app_version_string\":\"\"$app_version\":\"" +
+            "\"$model\":\"\"$brand\":\"\"$manufacturer\":\"\"$os_version\":\"\"$os\":\"Android\"" +
+            "\"$lib_version\":\"\"mp_lib\":\"android\"\"distinct_id\":\"\"time\":\"token\":\"" +
+            "{\"event\":\"\",\"properties\":{\""
+    ).getBytes(UTF_8);
+}
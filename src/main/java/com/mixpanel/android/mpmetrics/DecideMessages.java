@@ -46,6 +46,11 @@ import java.util.Set;
         mDistinctId = distinctId;
     }
 
+    // For ids read after construction, so they're still never shown again
+    public synchronized void addSeenNotificationIds(Set<Integer> notificationIds) {
+        mNotificationIds.addAll(notificationIds);
+    }
+
     public synchronized String getDistinctId() {
         return mDistinctId;
     }
@@ -95,7 +100,7 @@ import java.util.Set;
             }
         }
         if (mAutomaticEventsEnabled == null && !automaticEvents) {
-            MPDbAdapter.getInstance(mContext).cleanupAutomaticEvents(mToken);
+            EventStores.getInstance(mContext).cleanupAutomaticEvents(mToken);
         }
         mAutomaticEventsEnabled = automaticEvents;
 
@@ -0,0 +1,371 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.MPLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A journal of tracked events, written by the calling thread before the event is handed to the
+ * AnalyticsWorker, so events waiting for the worker survive a crash of the process.
+ *
+ * <p>The journal is a series of segment files of SEGMENT_SIZE bytes, mapped into memory. Appending
+ * copies the event into the mapping, so it costs no system call, and the kernel keeps the written
+ * pages when the process dies. Nothing is synced to the disk, so a power loss may still lose events.
+ * Each record is [payload length, CRC32, sequence number] followed by the payload, and the length is
+ * written last, so a record cut short by a crash reads as the end of the segment.
+ *
+ * <p>The worker acknowledges events once they are in the EventStore, which moves a mark in a mapped
+ * checkpoint file and deletes segments that are behind it. When a process starts, the worker replays
+ * the events earlier processes journaled but never acknowledged. An event stored just before a crash
+ * may be replayed, so events are delivered at least once.
+ *
+ * <p>Thread safe, but not process safe: segment names come from this process's sequence numbers
+ * and the checkpoint is overwritten without merging, so two processes sharing a directory would
+ * clobber each other's records. Each process must use its own directory, see AnalyticsMessages.
+ * Callers that must see sequence numbers in the order they post events, like AnalyticsMessages,
+ * hold the journal's lock across append() and posting.
+ */
+/* package */ class EventJournal {
+    public EventJournal(File directory) {
+        mDirectory = directory;
+        mSegments = new ArrayList<Segment>();
+        mCrc = new CRC32();
+        mScratch = ByteBuffer.allocate(1024);
+    }
+
+    /**
+     * Copies event into the journal.
+     *
+     * @return the sequence number of the record, or -1 if the event couldn't be journaled,
+     * because it is too big, the journal is full or the files couldn't be written
+     */
+    public synchronized long append(AnalyticsMessages.EventDescription event) {
+        if (!open()) {
+            return -1;
+        }
+
+        final byte[] token = event.getToken().getBytes(UTF_8);
+        final byte[] name = event.getEventName().getBytes(UTF_8);
+        final byte[] properties = event.getProperties().toString().getBytes(UTF_8);
+        final int payloadLength = 1 + 4 + token.length + 4 + name.length + properties.length;
+        if (HEADER_SIZE + payloadLength > SEGMENT_SIZE) {
+            return -1;
+        }
+
+        try {
+            if (null == mAppendBuffer || mAppendBuffer.remaining() < HEADER_SIZE + payloadLength) {
+                if (mSegments.size() >= MAX_SEGMENTS) {
+                    if (!mFull) {
+                        MPLog.w(LOGTAG, "The Mixpanel event journal is full, events will not be journaled until the worker catches up");
+                        mFull = true;
+                    }
+                    return -1;
+                }
+                startSegment();
+                mFull = false;
+            }
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not start a new Mixpanel event journal segment", e);
+            return -1;
+        }
+
+        // Built on the heap first, so the checksum can be computed over an array
+        final long seq = mNextSeq;
+        final int recordLength = HEADER_SIZE + payloadLength;
+        if (mScratch.capacity() < recordLength) {
+            mScratch = ByteBuffer.allocate(Math.max(recordLength, mScratch.capacity() * 2));
+        }
+        mScratch.clear();
+        mScratch.putInt(payloadLength);
+        mScratch.putInt(0);
+        mScratch.putLong(seq);
+        mScratch.put(event.isAutomatic() ? (byte) 1 : 0);
+        mScratch.putInt(token.length);
+        mScratch.put(token);
+        mScratch.putInt(name.length);
+        mScratch.put(name);
+        mScratch.put(properties);
+        mScratch.putInt(4, checksum(mScratch.array(), 8, 8 + payloadLength));
+
+        // The length goes in last, so a record cut short reads as the end of the segment
+        final int start = mAppendBuffer.position();
+        mAppendBuffer.position(start + 4);
+        mAppendBuffer.put(mScratch.array(), 4, recordLength - 4);
+        mAppendBuffer.putInt(start, payloadLength);
+
+        mNextSeq++;
+        return seq;
+    }
+
+    /**
+     * Returns the events journaled before this process opened the journal that were never acknowledged,
+     * oldest first. Their sequence numbers are set, so they can be acknowledged like new events.
+     */
+    public synchronized List<AnalyticsMessages.EventDescription> readUnacknowledged() {
+        final List<AnalyticsMessages.EventDescription> events = new ArrayList<AnalyticsMessages.EventDescription>();
+        if (!open()) {
+            return events;
+        }
+
+        for (final Segment segment : mSegments) {
+            if (segment.firstSeq >= mReplayEnd) {
+                break;
+            }
+            try {
+                final ByteBuffer buffer = ByteBuffer.wrap(readFile(segment.file));
+                while (true) {
+                    final Record record = readRecord(buffer);
+                    if (null == record || record.seq >= mReplayEnd) {
+                        break;
+                    }
+                    if (record.seq > mAcked) {
+                        events.add(record.event);
+                    }
+                }
+            } catch (final IOException e) {
+                MPLog.e(LOGTAG, "Could not read Mixpanel event journal segment " + segment.file, e);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Marks every record up to and including seq as stored, and deletes segments holding nothing else.
+     */
+    public synchronized void acknowledge(long seq) {
+        if (!open() || seq <= mAcked) {
+            return;
+        }
+        mAcked = Math.min(seq, mNextSeq - 1);
+        mCheckpoint.putLong(0, mAcked);
+
+        while (!mSegments.isEmpty()) {
+            final Segment segment = mSegments.get(0);
+            final boolean isLast = mSegments.size() == 1;
+            final long lastSeq = isLast ? mNextSeq - 1 : mSegments.get(1).firstSeq - 1;
+            if (lastSeq > mAcked) {
+                break;
+            }
+            if (isLast && segment == mAppendSegment) {
+                if (mAppendBuffer.position() < SEGMENT_SIZE / 2) {
+                    break; // Still worth appending to
+                }
+                mAppendBuffer = null;
+                mAppendSegment = null;
+            }
+            if (!segment.file.delete() && segment.file.exists()) {
+                break; // We'll try again after the next acknowledgement
+            }
+            mSegments.remove(0);
+        }
+    }
+
+    /**
+     * Marks everything journaled so far as stored.
+     */
+    public synchronized void acknowledgeAll() {
+        if (open()) {
+            acknowledge(mNextSeq - 1);
+        }
+    }
+
+    // Maps the checkpoint and finds the segments left by earlier processes. Returns false if the journal can't be used.
+    private boolean open() {
+        if (mOpened) {
+            return null != mCheckpoint;
+        }
+        mOpened = true;
+
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Could not create " + mDirectory);
+            }
+            final ByteBuffer checkpoint = map(new File(mDirectory, CHECKPOINT_FILE), CHECKPOINT_SIZE);
+            mAcked = checkpoint.getLong(0);
+
+            final File[] files = mDirectory.listFiles();
+            final List<Segment> segments = new ArrayList<Segment>();
+            if (null != files) {
+                for (final File file : files) {
+                    final String fileName = file.getName();
+                    if (fileName.endsWith(SEGMENT_SUFFIX)) {
+                        try {
+                            segments.add(new Segment(Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length())), file));
+                        } catch (final NumberFormatException e) {
+                            MPLog.w(LOGTAG, "Ignoring unexpected file " + file + " in the Mixpanel event journal");
+                        }
+                    }
+                }
+            }
+            final Segment[] sorted = segments.toArray(new Segment[segments.size()]);
+            Arrays.sort(sorted);
+            mSegments.addAll(Arrays.asList(sorted));
+
+            long lastSeq = mAcked;
+            if (!mSegments.isEmpty()) {
+                // Only the newest segment can hold the newest record
+                final ByteBuffer buffer = ByteBuffer.wrap(readFile(mSegments.get(mSegments.size() - 1).file));
+                lastSeq = Math.max(lastSeq, mSegments.get(mSegments.size() - 1).firstSeq - 1);
+                Record record;
+                while (null != (record = readRecord(buffer))) {
+                    lastSeq = Math.max(lastSeq, record.seq);
+                }
+            }
+            mNextSeq = lastSeq + 1;
+            mReplayEnd = mNextSeq;
+            mCheckpoint = checkpoint;
+            return true;
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not open the Mixpanel event journal in " + mDirectory + ", events will not be journaled", e);
+            return false;
+        }
+    }
+
+    // Segments of earlier processes are never appended to, each process starts its own
+    private void startSegment() throws IOException {
+        final Segment segment = new Segment(mNextSeq, new File(mDirectory, mNextSeq + SEGMENT_SUFFIX));
+        mAppendBuffer = map(segment.file, SEGMENT_SIZE);
+        mAppendSegment = segment;
+        mSegments.add(segment);
+    }
+
+    // Returns the next intact record in buffer, or null at the end of the segment
+    private Record readRecord(ByteBuffer buffer) {
+        final int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        final int payloadLength = buffer.getInt(start);
+        if (payloadLength <= 0 || payloadLength > buffer.remaining() - HEADER_SIZE) {
+            return null;
+        }
+        if (checksum(buffer.array(), buffer.arrayOffset() + start + 8, 8 + payloadLength) != buffer.getInt(start + 4)) {
+            MPLog.w(LOGTAG, "Found a damaged record in the Mixpanel event journal, ignoring the rest of its segment");
+            return null;
+        }
+
+        buffer.position(start + 8);
+        final long seq = buffer.getLong();
+        final boolean isAutomatic = buffer.get() != 0;
+        final String token = readString(buffer, buffer.getInt());
+        final String name = readString(buffer, buffer.getInt());
+        final String properties = readString(buffer, start + HEADER_SIZE + payloadLength - buffer.position());
+        try {
+            return new Record(seq, new AnalyticsMessages.EventDescription(name, new JSONObject(properties), token, isAutomatic, seq));
+        } catch (final JSONException e) {
+            // Can't happen unless the CRC missed some damage, we'll stop here either way
+            MPLog.e(LOGTAG, "Could not read an event from the Mixpanel event journal", e);
+            return null;
+        }
+    }
+
+    private int checksum(byte[] bytes, int offset, int length) {
+        mCrc.reset();
+        mCrc.update(bytes, offset, length);
+        return (int) mCrc.getValue();
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        final String ret = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return ret;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            // The mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                final int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return Arrays.copyOf(bytes, read);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class Segment implements Comparable<Segment> {
+        public Segment(long firstSeq, File file) {
+            this.firstSeq = firstSeq;
+            this.file = file;
+        }
+
+        @Override
+        public int compareTo(Segment other) {
+            return firstSeq < other.firstSeq ? -1 : (firstSeq == other.firstSeq ? 0 : 1);
+        }
+
+        public final long firstSeq;
+        public final File file;
+    }
+
+    private static class Record {
+        public Record(long seq, AnalyticsMessages.EventDescription event) {
+            this.seq = seq;
+            this.event = event;
+        }
+
+        public final long seq;
+        public final AnalyticsMessages.EventDescription event;
+    }
+
+    private final File mDirectory;
+    // Oldest first. The last one is being appended to, if this process has journaled anything
+    private final List<Segment> mSegments;
+    private final CRC32 mCrc;
+    private ByteBuffer mScratch;
+    private boolean mOpened;
+    // True once the journal has filled, until a new segment can be started
+    private boolean mFull;
+    // Null until the journal opens, and if it fails to
+    private ByteBuffer mCheckpoint;
+    private MappedByteBuffer mAppendBuffer;
+    private Segment mAppendSegment;
+    private long mNextSeq;
+    // Records from mReplayEnd on were journaled by this process
+    private long mReplayEnd;
+    private long mAcked;
+
+    private static final String LOGTAG = "MixpanelAPI.EventJournal";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int CHECKPOINT_SIZE = 8;
+    private static final int SEGMENT_SIZE = 256 * 1024;
+    // Bounds the journal at 4MB, events past that are only kept in memory until the worker catches up
+    private static final int MAX_SEGMENTS = 16;
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+}
@@ -0,0 +1,106 @@
+package com.mixpanel.android.mpmetrics;
+
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Where the AnalyticsWorker keeps records until they are sent. Records are kept per table and
+ * per project token, and read back oldest first in batches. A batch is identified by the id of its
+ * last record, which is passed back to {@link #cleanupEvents(String, MPDbAdapter.Table, String, boolean)}
+ * once the batch has been sent.
+ *
+ * <p>Implementations are chosen with com.mixpanel.android.MPConfig.EventStore, see {@link EventStores}.
+ */
+/* package */ interface EventStore {
+    /**
+     * Stores a record.
+     * @return the number of records for token in the table, or MPDbAdapter.DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
+     * on failure
+     */
+    int addJSON(JSONObject j, String token, MPDbAdapter.Table table, boolean isAutomaticRecord);
+
+    /**
+     * Stores records, possibly for several tables and tokens, in the order given.
+     * @return the number of records written, or MPDbAdapter.DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR on failure
+     */
+    int addJSON(List<MPDbAdapter.QueuedRecord> records);
+
+    /**
+     * Returns up to limit of the oldest records for token as a UTF-8 encoded JSON array,
+     * or null if there are none.
+     */
+    MPDbAdapter.DataBatch generateDataBatch(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents, int limit);
+
+    /**
+     * Like {@link #generateDataBatch(MPDbAdapter.Table, String, boolean, int)}, but only reads records
+     * after the batch whose last id is afterId, so the next batch can be read while one is being sent.
+     * The queue count of the batch only counts those records. A null afterId reads from the oldest record.
+     */
+    MPDbAdapter.DataBatch generateDataBatch(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents, int limit, String afterId);
+
+    /**
+     * Removes records for token up to and including the record with id lastId, after they've been sent.
+     * If includeAutomaticEvents is false, automatic records are kept.
+     */
+    void cleanupEvents(String lastId, MPDbAdapter.Table table, String token, boolean includeAutomaticEvents);
+
+    /**
+     * Removes records created at or before time, in milliseconds since the epoch.
+     */
+    void cleanupEvents(long time, MPDbAdapter.Table table);
+
+    /**
+     * Removes at most limit of the records created at or before time, oldest first,
+     * so a large backlog can be expired a step at a time.
+     * @return the number of records removed, or MPDbAdapter.DB_UPDATE_ERROR on failure
+     */
+    int cleanupEvents(long time, MPDbAdapter.Table table, int limit);
+
+    /**
+     * Removes all automatic records for token.
+     */
+    void cleanupAutomaticEvents(String token);
+
+    /**
+     * Returns the number of records stored for token in the table, or MPDbAdapter.DB_UPDATE_ERROR if it can't be read.
+     */
+    int getQueueCount(MPDbAdapter.Table table, String token);
+
+    /**
+     * Stores a People record that has no distinct id yet, until {@link #takeWaitingPeopleRecords(String, String)}
+     * collects it. These records are kept apart from the tables, and are never sent as they are.
+     *
+     * @return false if the record couldn't be stored
+     */
+    boolean addWaitingPeopleRecord(JSONObject record, String token);
+
+    /**
+     * Removes every People record waiting for token, and returns them in the order they were
+     * stored, with their $distinct_id set to distinctId. Returns null if none were waiting.
+     */
+    List<JSONObject> takeWaitingPeopleRecords(String token, String distinctId);
+
+    /**
+     * Discards the People records waiting for token.
+     */
+    void clearWaitingPeopleRecords(String token);
+
+    /**
+     * Removes waiting People records created at or before time, in milliseconds since the epoch.
+     */
+    void cleanupWaitingPeopleRecords(long time);
+
+    /**
+     * Removes everything stored.
+     */
+    void deleteDB();
+
+    /**
+     * Does one bounded step of background upkeep, like building indexes or converting old records.
+     * The worker calls this between other messages until it returns false.
+     *
+     * @return true if there is more to do
+     */
+    boolean performMaintenance();
+}
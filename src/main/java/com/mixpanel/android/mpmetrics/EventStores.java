@@ -0,0 +1,51 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+
+import com.mixpanel.android.util.MPLog;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out the {@link EventStore} chosen by com.mixpanel.android.MPConfig.EventStore,
+ * one per application context.
+ */
+/* package */ class EventStores {
+    private EventStores() {
+        // No instances
+    }
+
+    public static EventStore getInstance(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final MPConfig config = MPConfig.getInstance(appContext);
+        final String kind = config.getEventStore();
+        if (!"memory".equals(kind) && !"file".equals(kind)) {
+            if (!"sqlite".equals(kind)) {
+                MPLog.w(LOGTAG, "Unknown EventStore \"" + kind + "\" in the Mixpanel configuration, using \"sqlite\" instead");
+            }
+            return MPDbAdapter.getInstance(appContext);
+        }
+
+        synchronized (sInstances) {
+            EventStore ret = sInstances.get(appContext);
+            if (null == ret) {
+                if ("memory".equals(kind)) {
+                    ret = new MemoryEventStore();
+                } else {
+                    ret = new FileEventStore(new File(appContext.getFilesDir(), FILE_STORE_DIRECTORY), config);
+                }
+                sInstances.put(appContext, ret);
+            }
+            return ret;
+        }
+    }
+
+    private static final Map<Context, EventStore> sInstances = new HashMap<Context, EventStore>();
+
+    // Under the app's files directory, only used by the "file" store
+    /* package */ static final String FILE_STORE_DIRECTORY = "mixpanel_event_store";
+
+    private static final String LOGTAG = "MixpanelAPI.EventStores";
+}
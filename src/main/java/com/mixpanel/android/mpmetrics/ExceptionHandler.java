@@ -49,6 +49,9 @@ public class ExceptionHandler implements Thread.UncaughtExceptionHandler {
             }
         });
 
+        // Either way the process dies next, so preference changes can't wait for a background write
+        PreferencesWriteBuffer.flushNow();
+
         if (mDefaultExceptionHandler != null) {
             mDefaultExceptionHandler.uncaughtException(t, e);
         } else {
@@ -57,6 +60,8 @@ public class ExceptionHandler implements Thread.UncaughtExceptionHandler {
     }
 
     private void killProcessAndExit() {
+        // Even when events are journaled, People updates, staged records and the flush
+        // requested above still need the worker to get to them now
         try {
             Thread.sleep(SLEEP_TIMEOUT_MS);
         } catch (InterruptedException e1) {
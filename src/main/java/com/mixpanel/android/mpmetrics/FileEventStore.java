@@ -0,0 +1,881 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.MPLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * An {@link EventStore} that appends records to log files. Each table and token has a directory of
+ * its own, holding segment files of about SEGMENT_SIZE bytes and a checkpoint file.
+ *
+ * <p>Every record gets the next sequence number of its directory, and is written as
+ * [length, sequence number, created at, flags, CRC32 of the data] followed by the UTF-8 JSON.
+ * Records are never rewritten. Sending records moves read marks forward instead, and the checkpoint
+ * file saves the marks, replaced as a whole so it is never half written. Segments whose records
+ * are all behind the marks are deleted.
+ *
+ * <p>Appends aren't synced to the disk, so a crash of the process loses nothing but a power
+ * loss might lose the last records. A torn or damaged tail is cut off when the directory is opened.
+ * Only the offsets of waiting records are kept in memory, their data is read back for each batch.
+ *
+ * <p>People records waiting for a distinct id aren't logged, since they are only ever read all at once.
+ * They go into a text file per token under WAITING_PEOPLE_DIRECTORY, a line of [created at, space, JSON]
+ * per record.
+ */
+/* package */ class FileEventStore implements EventStore {
+    public FileEventStore(File directory, MPConfig config) {
+        mDirectory = directory;
+        mConfig = config;
+        mCrc = new CRC32();
+    }
+
+    @Override
+    public synchronized int addJSON(JSONObject j, String token, MPDbAdapter.Table table, boolean isAutomaticRecord) {
+        if (!belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
+            return MPDbAdapter.DB_OUT_OF_MEMORY_ERROR;
+        }
+
+        Stream stream = null;
+        try {
+            stream = getStream(table, token, true);
+            stream.append(j.toString().getBytes(UTF_8), System.currentTimeMillis(), isAutomaticRecord, mCrc);
+            stream.flush();
+            return stream.entries.size();
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not add Mixpanel data to " + table.getName() + " log.", e);
+            forget(table, token, stream);
+            return MPDbAdapter.DB_UPDATE_ERROR;
+        }
+    }
+
+    /**
+     * Unlike the SQLite store this isn't all or nothing, records written before a failure are kept.
+     */
+    @Override
+    public synchronized int addJSON(List<MPDbAdapter.QueuedRecord> records) {
+        if (!belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
+            return MPDbAdapter.DB_OUT_OF_MEMORY_ERROR;
+        }
+
+        final Set<Stream> written = new LinkedHashSet<Stream>();
+        try {
+            for (final MPDbAdapter.QueuedRecord record : records) {
+                final Stream stream = getStream(record.getTable(), record.getToken(), true);
+                written.add(stream);
+                stream.append(record.getJSON().toString().getBytes(UTF_8), record.getCreatedAt(), record.isAutomaticRecord(), mCrc);
+            }
+            for (final Stream stream : written) {
+                stream.flush();
+            }
+            return records.size();
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not add a batch of " + records.size() + " Mixpanel records.", e);
+            for (final Stream stream : written) {
+                forget(stream.table, stream.token, stream);
+            }
+            return MPDbAdapter.DB_UPDATE_ERROR;
+        }
+    }
+
+    @Override
+    public synchronized MPDbAdapter.DataBatch generateDataBatch(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents, int limit) {
+        return generateDataBatch(table, token, includeAutomaticEvents, limit, null);
+    }
+
+    @Override
+    public synchronized MPDbAdapter.DataBatch generateDataBatch(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents, int limit, String afterId) {
+        Stream stream = null;
+        try {
+            stream = getStream(table, token, false);
+            if (null == stream) {
+                return null;
+            }
+            return stream.read(includeAutomaticEvents, Math.max(1, limit), null == afterId ? 0 : Long.parseLong(afterId));
+        } catch (final IOException e) {
+            // Like the SQLite store, we keep the records and try again later
+            MPLog.e(LOGTAG, "Could not read records for Mixpanel out of " + table.getName() + " log. Waiting to send.", e);
+            forget(table, token, stream);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void cleanupEvents(String lastId, MPDbAdapter.Table table, String token, boolean includeAutomaticEvents) {
+        Stream stream = null;
+        try {
+            stream = getStream(table, token, false);
+            if (null != stream) {
+                stream.ack(Long.parseLong(lastId), includeAutomaticEvents);
+            }
+        } catch (final IOException e) {
+            // The records will be sent again
+            MPLog.e(LOGTAG, "Could not clean sent Mixpanel records from " + table.getName() + " log.", e);
+            forget(table, token, stream);
+        }
+    }
+
+    /**
+     * Records are expired oldest first, up to the first one created after time.
+     */
+    @Override
+    public synchronized void cleanupEvents(long time, MPDbAdapter.Table table) {
+        cleanupEvents(time, table, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized int cleanupEvents(long time, MPDbAdapter.Table table, int limit) {
+        int removed = 0;
+        for (final Stream stream : new ArrayList<Stream>(getStreams(table).values())) {
+            if (removed >= limit) {
+                break;
+            }
+            try {
+                removed += stream.expire(time, limit - removed);
+            } catch (final IOException e) {
+                MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + table.getName() + " log.", e);
+                forget(table, stream.token, stream);
+                return MPDbAdapter.DB_UPDATE_ERROR;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized void cleanupAutomaticEvents(String token) {
+        for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+            Stream stream = null;
+            try {
+                stream = getStream(table, token, false);
+                if (null != stream) {
+                    stream.deleteAutomatic();
+                }
+            } catch (final IOException e) {
+                MPLog.e(LOGTAG, "Could not clean automatic Mixpanel records from " + table.getName() + " log.", e);
+                forget(table, token, stream);
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getQueueCount(MPDbAdapter.Table table, String token) {
+        try {
+            final Stream stream = getStream(table, token, false);
+            return null == stream ? 0 : stream.entries.size();
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not count Mixpanel records in " + table.getName() + " log.", e);
+            return MPDbAdapter.DB_UPDATE_ERROR;
+        }
+    }
+
+    @Override
+    public synchronized boolean addWaitingPeopleRecord(JSONObject record, String token) {
+        if (!belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
+            return false;
+        }
+
+        final File directory = new File(mDirectory, WAITING_PEOPLE_DIRECTORY);
+        RandomAccessFile file = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            file = new RandomAccessFile(new File(directory, toHex(token)), "rw");
+            final long length = file.length();
+            final StringBuilder line = new StringBuilder();
+            if (length > 0) {
+                // A torn last line must not swallow this one
+                file.seek(length - 1);
+                if (file.read() != '\n') {
+                    line.append('\n');
+                }
+            }
+            line.append(System.currentTimeMillis()).append(' ').append(record.toString()).append('\n');
+            file.seek(length);
+            file.write(line.toString().getBytes(UTF_8));
+            return true;
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not store a waiting Mixpanel People record.", e);
+            return false;
+        } finally {
+            Stream.closeQuietly(file);
+        }
+    }
+
+    @Override
+    public synchronized List<JSONObject> takeWaitingPeopleRecords(String token, String distinctId) {
+        final File file = new File(new File(mDirectory, WAITING_PEOPLE_DIRECTORY), toHex(token));
+        if (!file.exists()) {
+            return null;
+        }
+
+        final List<String> lines;
+        try {
+            lines = readLines(file);
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not read waiting Mixpanel People records.", e);
+            return null; // Leave them for the next identify()
+        }
+        if (!file.delete()) {
+            MPLog.e(LOGTAG, "Could not remove waiting Mixpanel People records from " + file + ", will send them later.");
+            return null; // Rather than send them twice
+        }
+
+        List<JSONObject> ret = null;
+        for (final String line : lines) {
+            try {
+                final JSONObject record = new JSONObject(line.substring(line.indexOf(' ') + 1));
+                record.put("$distinct_id", distinctId);
+                if (null == ret) {
+                    ret = new ArrayList<JSONObject>();
+                }
+                ret.add(record);
+            } catch (final JSONException e) {
+                MPLog.e(LOGTAG, "Unparsable object found in waiting people records", e);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized void clearWaitingPeopleRecords(String token) {
+        new File(new File(mDirectory, WAITING_PEOPLE_DIRECTORY), toHex(token)).delete();
+    }
+
+    @Override
+    public synchronized void cleanupWaitingPeopleRecords(long time) {
+        final File[] files = new File(mDirectory, WAITING_PEOPLE_DIRECTORY).listFiles();
+        if (null == files) {
+            return;
+        }
+        for (final File file : files) {
+            if (file.getName().endsWith(TEMPORARY_SUFFIX)) {
+                file.delete(); // Left by an interrupted cleanup
+                continue;
+            }
+            try {
+                final List<String> lines = readLines(file);
+                final List<String> kept = new ArrayList<String>();
+                for (final String line : lines) {
+                    if (getWaitingRecordCreatedAt(line) > time) {
+                        kept.add(line);
+                    }
+                }
+                if (kept.size() == lines.size()) {
+                    continue;
+                }
+                if (kept.isEmpty()) {
+                    file.delete();
+                    continue;
+                }
+
+                // Replaced as a whole, so a crash leaves either the old records or the new ones
+                final File replacement = new File(file.getPath() + TEMPORARY_SUFFIX);
+                final Writer out = new OutputStreamWriter(new FileOutputStream(replacement), UTF_8);
+                try {
+                    for (final String line : kept) {
+                        out.write(line);
+                        out.write('\n');
+                    }
+                } finally {
+                    out.close();
+                }
+                if (!replacement.renameTo(file)) {
+                    replacement.delete();
+                    throw new IOException("Could not replace " + file);
+                }
+            } catch (final IOException e) {
+                MPLog.e(LOGTAG, "Could not clean timed-out waiting Mixpanel People records from " + file + ".", e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void deleteDB() {
+        if (null != mStreams) {
+            for (final Map<String, Stream> tableStreams : mStreams.values()) {
+                for (final Stream stream : tableStreams.values()) {
+                    stream.closeQuietly();
+                }
+            }
+        }
+        mStreams = null;
+        deleteRecursively(mDirectory);
+    }
+
+    @Override
+    public boolean performMaintenance() {
+        return false; // Segments are deleted as soon as they are sent
+    }
+
+    private boolean belowMemThreshold() {
+        long size = 0;
+        for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+            for (final Stream stream : getStreams(table).values()) {
+                size += stream.size();
+            }
+        }
+        return Math.max(mDirectory.getUsableSpace(), mConfig.getMinimumDatabaseLimit()) >= size;
+    }
+
+    private Map<String, Stream> getStreams(MPDbAdapter.Table table) {
+        if (null == mStreams) {
+            mStreams = new HashMap<MPDbAdapter.Table, Map<String, Stream>>();
+            for (final MPDbAdapter.Table t : MPDbAdapter.Table.values()) {
+                final Map<String, Stream> tableStreams = new HashMap<String, Stream>();
+                final File[] tokenDirectories = new File(mDirectory, t.getName()).listFiles();
+                if (null != tokenDirectories) {
+                    for (final File tokenDirectory : tokenDirectories) {
+                        final String token = fromHex(tokenDirectory.getName());
+                        if (null == token) {
+                            continue; // Not ours
+                        }
+                        try {
+                            tableStreams.put(token, Stream.open(t, token, tokenDirectory, mCrc));
+                        } catch (final IOException e) {
+                            MPLog.e(LOGTAG, "Could not open Mixpanel " + t.getName() + " log in " + tokenDirectory + ", will try again later.", e);
+                        }
+                    }
+                }
+                mStreams.put(t, tableStreams);
+            }
+        }
+        return mStreams.get(table);
+    }
+
+    // Returns null if create is false and nothing was stored for token
+    private Stream getStream(MPDbAdapter.Table table, String token, boolean create) throws IOException {
+        final Map<String, Stream> tableStreams = getStreams(table);
+        Stream stream = tableStreams.get(token);
+        if (null == stream) {
+            final File tokenDirectory = new File(new File(mDirectory, table.getName()), toHex(token));
+            if (!tokenDirectory.isDirectory()) {
+                if (!create) {
+                    return null;
+                }
+                if (!tokenDirectory.mkdirs()) {
+                    throw new IOException("Could not create " + tokenDirectory);
+                }
+            }
+            stream = Stream.open(table, token, tokenDirectory, mCrc);
+            tableStreams.put(token, stream);
+        }
+        return stream;
+    }
+
+    // After a failure, reopens the directory from what is on disk the next time it is used
+    private void forget(MPDbAdapter.Table table, String token, Stream stream) {
+        if (null != stream) {
+            stream.closeQuietly();
+        }
+        if (null != mStreams) {
+            mStreams.get(table).remove(token);
+        }
+    }
+
+    /**
+     * The log of one table and token.
+     */
+    private static class Stream {
+        public static Stream open(MPDbAdapter.Table table, String token, File directory, CRC32 crc) throws IOException {
+            final Stream stream = new Stream(table, token, directory);
+            stream.load(crc);
+            return stream;
+        }
+
+        private Stream(MPDbAdapter.Table table, String token, File directory) {
+            this.table = table;
+            this.token = token;
+            this.directory = directory;
+            this.entries = new ArrayList<Entry>();
+            mSegments = new ArrayList<Segment>();
+            mBuffer = new byte[0];
+        }
+
+        public void append(byte[] data, long createdAt, boolean isAutomatic, CRC32 crc) throws IOException {
+            if (null == mAppender || mAppendSegment.length >= SEGMENT_SIZE) {
+                startAppending();
+            }
+            crc.reset();
+            crc.update(data, 0, data.length);
+            final long seq = mNextSeq;
+            mAppender.writeInt(data.length);
+            mAppender.writeLong(seq);
+            mAppender.writeLong(createdAt);
+            mAppender.writeByte(isAutomatic ? FLAG_AUTOMATIC : 0);
+            mAppender.writeInt((int) crc.getValue());
+            mAppender.write(data);
+
+            entries.add(new Entry(seq, createdAt, isAutomatic, mAppendSegment, mAppendSegment.length + HEADER_SIZE, data.length));
+            if (isAutomatic) {
+                mAutomaticCount++;
+            }
+            mAppendSegment.length += HEADER_SIZE + data.length;
+            mNextSeq++;
+        }
+
+        public void flush() throws IOException {
+            if (null != mAppender) {
+                mAppender.flush();
+            }
+        }
+
+        // Reads records with a seq after afterSeq
+        public MPDbAdapter.DataBatch read(boolean includeAutomaticEvents, int limit, long afterSeq) throws IOException {
+            final MPDbAdapter.ExposedByteArrayOutputStream data = new MPDbAdapter.ExposedByteArrayOutputStream();
+            long lastSeq = -1;
+            int recordCount = 0;
+            Segment openSegment = null;
+            RandomAccessFile file = null;
+
+            // Entries are in seq order, and the ones skipped are usually just the batch being sent
+            int start = 0;
+            int skippedAutomatic = 0;
+            while (start < entries.size() && entries.get(start).seq <= afterSeq) {
+                if (entries.get(start).isAutomatic) {
+                    skippedAutomatic++;
+                }
+                start++;
+            }
+            final int queueCount = entries.size() - start - (includeAutomaticEvents ? 0 : mAutomaticCount - skippedAutomatic);
+
+            data.write('[');
+            try {
+                for (int i = start; i < entries.size() && recordCount < limit; i++) {
+                    final Entry entry = entries.get(i);
+                    if (entry.isAutomatic && !includeAutomaticEvents) {
+                        continue;
+                    }
+                    if (entry.segment != openSegment) {
+                        closeQuietly(file);
+                        file = new RandomAccessFile(entry.segment.file, "r");
+                        openSegment = entry.segment;
+                    }
+                    if (mBuffer.length < entry.length) {
+                        mBuffer = new byte[entry.length];
+                    }
+                    file.seek(entry.offset);
+                    file.readFully(mBuffer, 0, entry.length);
+                    if (recordCount > 0) {
+                        data.write(',');
+                    }
+                    data.write(mBuffer, 0, entry.length);
+                    lastSeq = entry.seq;
+                    recordCount++;
+                }
+            } finally {
+                closeQuietly(file);
+            }
+            data.write(']');
+
+            if (recordCount == 0) {
+                return null;
+            }
+            return new MPDbAdapter.DataBatch(String.valueOf(lastSeq), data.getBuffer(), data.size(), recordCount, queueCount);
+        }
+
+        public void ack(long lastSeq, boolean includeAutomaticEvents) throws IOException {
+            if (includeAutomaticEvents) {
+                mAcked = Math.max(mAcked, lastSeq);
+            } else {
+                mManualAcked = Math.max(mManualAcked, lastSeq);
+            }
+            removeThrough(lastSeq, includeAutomaticEvents, true);
+            checkpoint();
+        }
+
+        // Returns the number of records expired, at most limit
+        public int expire(long time, int limit) throws IOException {
+            int count = 0;
+            while (count < entries.size() && count < limit && entries.get(count).createdAt <= time) {
+                count++;
+            }
+            if (count > 0) {
+                final long lastSeq = entries.get(count - 1).seq;
+                mAcked = Math.max(mAcked, lastSeq);
+                removeThrough(lastSeq, true, true);
+                checkpoint();
+            }
+            return count;
+        }
+
+        public void deleteAutomatic() throws IOException {
+            if (mAutomaticCount > 0) {
+                mAutomaticDeleted = mNextSeq - 1;
+                removeThrough(mAutomaticDeleted, true, false);
+                checkpoint();
+            }
+        }
+
+        public long size() {
+            long size = 0;
+            for (final Segment segment : mSegments) {
+                size += segment.length;
+            }
+            return size;
+        }
+
+        public void closeQuietly() {
+            closeQuietly(mAppender);
+            mAppender = null;
+            mAppendSegment = null;
+        }
+
+        // Drops the waiting records up to lastSeq of the kinds given
+        private void removeThrough(long lastSeq, boolean automatic, boolean manual) {
+            int kept = 0;
+            int i = 0;
+            for (; i < entries.size() && entries.get(i).seq <= lastSeq; i++) {
+                final Entry entry = entries.get(i);
+                if (entry.isAutomatic ? !automatic : !manual) {
+                    entries.set(kept, entry);
+                    kept++;
+                } else if (entry.isAutomatic) {
+                    mAutomaticCount--;
+                }
+            }
+            entries.subList(kept, i).clear();
+
+            // Everything before the first waiting record is gone, whatever its kind
+            final long firstWaiting = entries.isEmpty() ? mNextSeq : entries.get(0).seq;
+            mAcked = Math.max(mAcked, firstWaiting - 1);
+        }
+
+        // Saves the marks, then deletes the segments they have passed
+        private void checkpoint() throws IOException {
+            final File temporary = new File(directory, CHECKPOINT_FILE + ".tmp");
+            final FileOutputStream out = new FileOutputStream(temporary);
+            try {
+                final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                data.writeInt(CHECKPOINT_VERSION);
+                data.writeLong(mAcked);
+                data.writeLong(mManualAcked);
+                data.writeLong(mAutomaticDeleted);
+                data.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(new File(directory, CHECKPOINT_FILE))) {
+                throw new IOException("Could not replace the checkpoint in " + directory);
+            }
+
+            while (!mSegments.isEmpty()) {
+                final Segment segment = mSegments.get(0);
+                final long segmentLastSeq = mSegments.size() > 1 ? mSegments.get(1).firstSeq - 1 : mNextSeq - 1;
+                if (segmentLastSeq > mAcked) {
+                    break;
+                }
+                if (segment == mAppendSegment) {
+                    closeQuietly();
+                }
+                if (!segment.file.delete() && segment.file.exists()) {
+                    break; // We'll try again after the next checkpoint
+                }
+                mSegments.remove(0);
+            }
+        }
+
+        private void startAppending() throws IOException {
+            closeQuietly();
+            Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+            if (null == segment || segment.length >= SEGMENT_SIZE) {
+                segment = new Segment(mNextSeq, new File(directory, String.format(Locale.US, "%019d", mNextSeq) + SEGMENT_SUFFIX));
+                mSegments.add(segment);
+            }
+            mAppender = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment.file, true), APPEND_BUFFER_SIZE));
+            mAppendSegment = segment;
+        }
+
+        private void load(CRC32 crc) throws IOException {
+            readCheckpoint();
+
+            final File[] files = directory.listFiles();
+            final List<Segment> segments = new ArrayList<Segment>();
+            if (null != files) {
+                for (final File file : files) {
+                    final String name = file.getName();
+                    if (!name.endsWith(SEGMENT_SUFFIX)) {
+                        continue;
+                    }
+                    try {
+                        segments.add(new Segment(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file));
+                    } catch (final NumberFormatException e) {
+                        MPLog.w(LOGTAG, "Ignoring unexpected file " + file + " in the Mixpanel event store");
+                    }
+                }
+            }
+            final Segment[] sorted = segments.toArray(new Segment[segments.size()]);
+            Arrays.sort(sorted);
+
+            long maxSeq = Math.max(mAcked, Math.max(mManualAcked, mAutomaticDeleted));
+            for (final Segment segment : sorted) {
+                maxSeq = Math.max(maxSeq, scan(segment, crc));
+                if (segment.length == 0) {
+                    segment.file.delete();
+                } else {
+                    mSegments.add(segment);
+                }
+            }
+            mNextSeq = maxSeq + 1;
+        }
+
+        // Adds the waiting records of segment to entries, cuts off anything unreadable at its end,
+        // and returns the highest sequence number found in it
+        private long scan(Segment segment, CRC32 crc) throws IOException {
+            final long fileLength = segment.file.length();
+            long position = 0;
+            long maxSeq = 0;
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+            try {
+                while (position + HEADER_SIZE <= fileLength) {
+                    final int length = in.readInt();
+                    final long seq = in.readLong();
+                    final long createdAt = in.readLong();
+                    final byte flags = in.readByte();
+                    final int checksum = in.readInt();
+                    if (length < 0 || position + HEADER_SIZE + length > fileLength) {
+                        break;
+                    }
+                    if (mBuffer.length < length) {
+                        mBuffer = new byte[length];
+                    }
+                    in.readFully(mBuffer, 0, length);
+                    crc.reset();
+                    crc.update(mBuffer, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+
+                    final boolean isAutomatic = (flags & FLAG_AUTOMATIC) != 0;
+                    if (seq > mAcked && seq > (isAutomatic ? mAutomaticDeleted : mManualAcked)) {
+                        entries.add(new Entry(seq, createdAt, isAutomatic, segment, position + HEADER_SIZE, length));
+                        if (isAutomatic) {
+                            mAutomaticCount++;
+                        }
+                    }
+                    maxSeq = Math.max(maxSeq, seq);
+                    position += HEADER_SIZE + length;
+                }
+            } finally {
+                in.close();
+            }
+
+            if (position < fileLength) {
+                MPLog.w(LOGTAG, "Dropping " + (fileLength - position) + " unreadable bytes at the end of " + segment.file);
+                final RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+                try {
+                    file.setLength(position);
+                } finally {
+                    file.close();
+                }
+            }
+            segment.length = position;
+            return maxSeq;
+        }
+
+        private void readCheckpoint() {
+            final File file = new File(directory, CHECKPOINT_FILE);
+            if (!file.exists()) {
+                return;
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (in.readInt() == CHECKPOINT_VERSION) {
+                    mAcked = in.readLong();
+                    mManualAcked = in.readLong();
+                    mAutomaticDeleted = in.readLong();
+                }
+            } catch (final IOException e) {
+                // Sending records twice beats losing them
+                MPLog.w(LOGTAG, "Could not read the Mixpanel checkpoint in " + directory + ", records may be sent again.", e);
+                mAcked = 0;
+                mManualAcked = 0;
+                mAutomaticDeleted = 0;
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        private static void closeQuietly(Closeable closeable) {
+            if (null != closeable) {
+                try {
+                    closeable.close();
+                } catch (final IOException e) {
+                    // Nothing we can do
+                }
+            }
+        }
+
+        public final MPDbAdapter.Table table;
+        public final String token;
+        public final File directory;
+        // The waiting records, in sequence order
+        public final List<Entry> entries;
+
+        private final List<Segment> mSegments;
+        private int mAutomaticCount;
+        private long mNextSeq;
+        // Every record up to mAcked is gone, and so are manual records up to mManualAcked
+        // and automatic records up to mAutomaticDeleted
+        private long mAcked;
+        private long mManualAcked;
+        private long mAutomaticDeleted;
+        private DataOutputStream mAppender;
+        private Segment mAppendSegment;
+        private byte[] mBuffer;
+    }
+
+    private static class Segment implements Comparable<Segment> {
+        public Segment(long firstSeq, File file) {
+            this.firstSeq = firstSeq;
+            this.file = file;
+        }
+
+        @Override
+        public int compareTo(Segment other) {
+            return firstSeq < other.firstSeq ? -1 : (firstSeq == other.firstSeq ? 0 : 1);
+        }
+
+        public final long firstSeq;
+        public final File file;
+        public long length;
+    }
+
+    private static class Entry {
+        public Entry(long seq, long createdAt, boolean isAutomatic, Segment segment, long offset, int length) {
+            this.seq = seq;
+            this.createdAt = createdAt;
+            this.isAutomatic = isAutomatic;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public final long seq;
+        public final long createdAt;
+        public final boolean isAutomatic;
+        public final Segment segment;
+        // Where the record's data starts in the segment file
+        public final long offset;
+        public final int length;
+    }
+
+    // Every complete, non-empty line of file
+    private static List<String> readLines(File file) throws IOException {
+        final List<String> ret = new ArrayList<String>();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String line;
+            while (null != (line = in.readLine())) {
+                if (!line.isEmpty()) {
+                    ret.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return ret;
+    }
+
+    // Returns -1 for a line that was torn or damaged, so it is expired right away
+    private static long getWaitingRecordCreatedAt(String line) {
+        final int space = line.indexOf(' ');
+        if (space <= 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(line.substring(0, space));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String toHex(String token) {
+        final byte[] bytes = token.getBytes(UTF_8);
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    // Returns null if name isn't a token directory
+    private static String fromHex(String name) {
+        if (name.length() % 2 != 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[name.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int high = Character.digit(name.charAt(i * 2), 16);
+            final int low = Character.digit(name.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private final File mDirectory;
+    private final MPConfig mConfig;
+    // Shared by all streams, only used while holding the store's lock
+    private final CRC32 mCrc;
+    // Loaded from the directory when first needed
+    private Map<MPDbAdapter.Table, Map<String, Stream>> mStreams;
+
+    private static final String LOGTAG = "MixpanelAPI.FileEventStore";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    // Next to the table directories, whose names never clash with it
+    private static final String WAITING_PEOPLE_DIRECTORY = "waiting_people";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int CHECKPOINT_VERSION = 1;
+    private static final long SEGMENT_SIZE = 1024 * 1024;
+    private static final int APPEND_BUFFER_SIZE = 8 * 1024;
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 1 + 4;
+    private static final int FLAG_AUTOMATIC = 1;
+}
@@ -0,0 +1,158 @@
+package com.mixpanel.android.mpmetrics;
+
+/**
+ * Chooses how long the worker waits before flushing records it has just queued, from the
+ * network, the battery, how fast records arrive and how long recent uploads took.
+ *
+ * <p>Unless the app sets a maximum latency, every flush waits the flush interval. With one:
+ * <ul>
+ *     <li>On unmetered networks records are sent after a quarter of the flush interval.</li>
+ *     <li>On metered networks, unless charging, records wait for a full batch to collect, for at
+ *     least the flush interval and at most the maximum latency, so each radio wake-up sends as much
+ *     as it can. If an upload finished moments ago the radio is still powered up, so records go
+ *     soon, but only once per radio tail, so steady traffic still collects into batches.</li>
+ *     <li>On a low battery that isn't charging, records wait the maximum latency.</li>
+ *     <li>While uploads are slow, records wait at least the flush interval.</li>
+ * </ul>
+ *
+ * Not thread safe, only used from the AnalyticsMessages worker thread.
+ */
+/* package */ class FlushScheduler {
+    /**
+     * Network and battery state when a flush is scheduled. Null means unknown.
+     */
+    public static class Conditions {
+        public Conditions(Boolean isMetered, Boolean isCharging, Float batteryLevel) {
+            this.isMetered = isMetered;
+            this.isCharging = isCharging;
+            this.batteryLevel = batteryLevel;
+        }
+
+        public final Boolean isMetered;
+        public final Boolean isCharging;
+        public final Float batteryLevel;
+    }
+
+    /**
+     * @param flushInterval MPConfig.FlushInterval
+     * @param maximumLatency MPConfig.MaximumEventLatency, negative to always wait flushInterval
+     * @param bulkUploadLimit records in a full batch
+     */
+    public FlushScheduler(long flushInterval, long maximumLatency, int bulkUploadLimit) {
+        mFlushInterval = flushInterval;
+        mAdaptive = maximumLatency >= 0;
+        mMaximumLatency = mAdaptive ? maximumLatency : flushInterval;
+        mBulkUploadLimit = bulkUploadLimit;
+        mLastArrival = -1;
+        mMeanArrivalInterval = -1;
+        mLastUploadEnd = -1;
+        mPiggybackedTail = -1;
+    }
+
+    /**
+     * Call for every record queued, with SystemClock.elapsedRealtime().
+     */
+    public void onRecordQueued(long now) {
+        if (mLastArrival >= 0) {
+            // A long quiet spell says little about the next minute
+            final long interval = Math.min(now - mLastArrival, mMaximumLatency);
+            if (mMeanArrivalInterval < 0) {
+                mMeanArrivalInterval = interval;
+            } else {
+                mMeanArrivalInterval += (interval - mMeanArrivalInterval) / ARRIVAL_SMOOTHING;
+            }
+        }
+        mLastArrival = now;
+    }
+
+    /**
+     * Call when a flush starts sending.
+     */
+    public void onFlushStarted() {
+        mFlushIsPiggyback = mPiggybackPending;
+        mPiggybackPending = false;
+    }
+
+    /**
+     * Call when an upload request finishes, whether or not it succeeded, with SystemClock.elapsedRealtime().
+     */
+    public void onUploadFinished(long now) {
+        // An upload riding on the radio tail doesn't start a new tail, or steady traffic would
+        // piggyback on its own uploads forever
+        if (!mFlushIsPiggyback) {
+            mLastUploadEnd = now;
+        }
+    }
+
+    /**
+     * @param now SystemClock.elapsedRealtime()
+     * @param queueDepth the number of records waiting for the project being flushed
+     * @param conditions the current network and battery state
+     * @param meanRoundTripMillis the mean time of recent uploads, or -1 if there were none
+     * @return milliseconds to wait before flushing
+     */
+    public long getFlushDelay(long now, int queueDepth, Conditions conditions, long meanRoundTripMillis) {
+        if (!mAdaptive) {
+            return mFlushInterval;
+        }
+        final boolean charging = Boolean.TRUE.equals(conditions.isCharging);
+
+        long delay;
+        if (Boolean.FALSE.equals(conditions.isMetered)) {
+            delay = mFlushInterval / UNMETERED_DIVISOR;
+        } else if (Boolean.TRUE.equals(conditions.isMetered) && !charging) {
+            if (mLastUploadEnd >= 0 && now - mLastUploadEnd < RADIO_TAIL_MILLIS && mPiggybackedTail != mLastUploadEnd) {
+                delay = MIN_FLUSH_DELAY_MILLIS;
+                mPiggybackedTail = mLastUploadEnd;
+                mPiggybackPending = true;
+            } else {
+                delay = Math.max(mFlushInterval, getTimeToFullBatch(queueDepth));
+            }
+        } else {
+            delay = mFlushInterval;
+        }
+
+        if (!charging && null != conditions.batteryLevel && conditions.batteryLevel <= LOW_BATTERY_LEVEL) {
+            delay = mMaximumLatency;
+        }
+        if (meanRoundTripMillis > SLOW_ROUND_TRIP_MILLIS) {
+            delay = Math.max(delay, mFlushInterval);
+        }
+
+        final long floor = Math.min(MIN_FLUSH_DELAY_MILLIS, mFlushInterval);
+        return Math.max(floor, Math.min(delay, mMaximumLatency));
+    }
+
+    // At the rate records have been arriving, or the maximum latency if we don't know the rate yet
+    private long getTimeToFullBatch(int queueDepth) {
+        final int missing = mBulkUploadLimit - queueDepth;
+        if (missing <= 0) {
+            return 0;
+        }
+        if (mMeanArrivalInterval <= 0) {
+            return mMaximumLatency;
+        }
+        return missing * mMeanArrivalInterval;
+    }
+
+    private final long mFlushInterval;
+    private final boolean mAdaptive;
+    private final long mMaximumLatency;
+    private final int mBulkUploadLimit;
+    private long mLastArrival;
+    private long mMeanArrivalInterval;
+    private long mLastUploadEnd;
+    // The upload end whose radio tail a flush was already scheduled on
+    private long mPiggybackedTail;
+    private boolean mPiggybackPending;
+    private boolean mFlushIsPiggyback;
+
+    private static final int UNMETERED_DIVISOR = 4;
+    private static final long MIN_FLUSH_DELAY_MILLIS = 1000;
+    // How long a cellular radio typically stays in its high power state after traffic
+    private static final long RADIO_TAIL_MILLIS = 10 * 1000;
+    private static final float LOW_BATTERY_LEVEL = 0.15f;
+    private static final long SLOW_ROUND_TRIP_MILLIS = 5000;
+    // The weight of older arrival intervals in the running mean
+    private static final int ARRIVAL_SMOOTHING = 8;
+}
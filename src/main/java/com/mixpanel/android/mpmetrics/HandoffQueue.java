@@ -0,0 +1,280 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.MPLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue that carries the raw inputs of track() and People calls from
+ * the calling threads to the AnalyticsWorker, which assembles them into messages.
+ *
+ * <p>All entries are allocated up front, and callers copy their inputs into a free entry, so handing
+ * off a record costs the caller the same small amount of work no matter how big its properties are.
+ * The queue is safe for any number of producers. Entries are taken out by the worker thread,
+ * and by producers discarding the oldest entry under {@link OverflowPolicy#DROP_OLDEST}.
+ */
+/* package */ class HandoffQueue {
+
+    /**
+     * What offer() does when every entry is in use.
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST, // Discard the oldest waiting entry to make room
+        DROP_NEWEST, // Discard the entry being offered
+        BLOCK; // Wait a short while for the worker to make room, then discard the entry being offered
+
+        // Reads the value of the HandoffOverflowPolicy setting
+        public static OverflowPolicy fromConfig(String name) {
+            if ("block".equals(name)) {
+                return BLOCK;
+            } else if ("drop_newest".equals(name)) {
+                return DROP_NEWEST;
+            } else if (!"drop_oldest".equals(name)) {
+                MPLog.w(LOGTAG, "Unknown handoff overflow policy \"" + name + "\", Mixpanel will drop the oldest records when the handoff queue is full");
+            }
+            return DROP_OLDEST;
+        }
+    }
+
+    /**
+     * Turns the inputs captured in an entry into a message. Called on the worker thread.
+     */
+    public interface Assembler {
+        AnalyticsMessages.MixpanelDescription assemble(Entry entry) throws JSONException;
+    }
+
+    /**
+     * The inputs of a single call. Producers fill these in with {@link #set}, the worker reads them back
+     * after {@link #poll(Entry)}. Which fields mean what is up to the Assembler.
+     */
+    public static class Entry {
+        public void set(Assembler assembler, String name, Object properties, long timeMillis, String distinctId,
+                        Long eventBegin, boolean isAutomatic, JSONObject superProperties, Map<String, String> referrerProperties) {
+            mAssembler = assembler;
+            mName = name;
+            mProperties = properties;
+            mTimeMillis = timeMillis;
+            mDistinctId = distinctId;
+            mEventBegin = eventBegin;
+            mIsAutomatic = isAutomatic;
+            mSuperProperties = superProperties;
+            mReferrerProperties = referrerProperties;
+        }
+
+        public AnalyticsMessages.MixpanelDescription assemble() throws JSONException {
+            return mAssembler.assemble(this);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public Object getProperties() {
+            return mProperties;
+        }
+
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        public String getDistinctId() {
+            return mDistinctId;
+        }
+
+        public Long getEventBegin() {
+            return mEventBegin;
+        }
+
+        public boolean isAutomatic() {
+            return mIsAutomatic;
+        }
+
+        public JSONObject getSuperProperties() {
+            return mSuperProperties;
+        }
+
+        public Map<String, String> getReferrerProperties() {
+            return mReferrerProperties;
+        }
+
+        private void copyFrom(Entry other) {
+            set(other.mAssembler, other.mName, other.mProperties, other.mTimeMillis, other.mDistinctId,
+                    other.mEventBegin, other.mIsAutomatic, other.mSuperProperties, other.mReferrerProperties);
+        }
+
+        // Drops references, so a finished entry doesn't keep the caller's objects alive
+        public void clear() {
+            set(null, null, null, 0, null, null, false, null, null);
+        }
+
+        private Assembler mAssembler;
+        private String mName;
+        private Object mProperties;
+        private long mTimeMillis;
+        private String mDistinctId;
+        private Long mEventBegin;
+        private boolean mIsAutomatic;
+        private JSONObject mSuperProperties;
+        private Map<String, String> mReferrerProperties;
+    }
+
+    /**
+     * @param capacity the number of entries, rounded up to a power of two
+     */
+    public HandoffQueue(int capacity, OverflowPolicy policy) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        mMask = size - 1;
+        mPolicy = policy;
+        mEntries = new Entry[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mEntries[i] = new Entry();
+            mSequences.set(i, i);
+        }
+        mHead = new AtomicLong(0);
+        mTail = new AtomicLong(0);
+        mDroppedOldest = new AtomicLong(0);
+        mDroppedNewest = new AtomicLong(0);
+    }
+
+    /**
+     * Copies the given inputs into a free entry and publishes it to the worker.
+     *
+     * @param mayBlock false if the caller must not wait for room, because it is the thread
+     *     that would make it. Under {@link OverflowPolicy#BLOCK} such callers drop the entry instead.
+     * @return false if the entry was dropped, which it always is once the queue is closed
+     */
+    public boolean offer(Assembler assembler, String name, Object properties, long timeMillis, String distinctId,
+                         Long eventBegin, boolean isAutomatic, JSONObject superProperties,
+                         Map<String, String> referrerProperties, boolean mayBlock) {
+        long blockedSince = 0;
+        while (true) {
+            if (mClosed) {
+                mDroppedNewest.incrementAndGet();
+                return false;
+            }
+
+            final long pos = mTail.get();
+            final int index = (int) (pos & mMask);
+            final long available = mSequences.get(index) - pos;
+            if (available == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    mEntries[index].set(assembler, name, properties, timeMillis, distinctId,
+                            eventBegin, isAutomatic, superProperties, referrerProperties);
+                    mSequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (available < 0) {
+                // Full
+                if (mPolicy == OverflowPolicy.DROP_NEWEST || (mPolicy == OverflowPolicy.BLOCK && !mayBlock)) {
+                    mDroppedNewest.incrementAndGet();
+                    return false;
+                } else if (mPolicy == OverflowPolicy.DROP_OLDEST) {
+                    if (take(null)) {
+                        mDroppedOldest.incrementAndGet();
+                    } else {
+                        Thread.yield(); // The oldest entry is still being written or read
+                    }
+                } else if (0 == blockedSince) {
+                    blockedSince = System.nanoTime();
+                } else if (System.nanoTime() - blockedSince >= MAX_BLOCK_NANOS) {
+                    // The worker is stuck or gone, and the caller may be the main thread
+                    mDroppedNewest.incrementAndGet();
+                    return false;
+                } else {
+                    LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+                }
+            }
+            // Otherwise another producer took this position first, try the next one
+        }
+    }
+
+    /**
+     * Moves the oldest waiting entry into the given entry.
+     *
+     * @return false if no entry is ready
+     */
+    public boolean poll(Entry into) {
+        while (true) {
+            final long pos = mHead.get();
+            final long ready = mSequences.get((int) (pos & mMask)) - (pos + 1);
+            if (ready < 0) {
+                return false;
+            }
+            if (ready == 0 && take(into)) {
+                return true;
+            }
+            // Lost a race with a dropping producer, look again
+        }
+    }
+
+    /**
+     * Discards every waiting entry, and every entry offered from now on. Called when the worker
+     * stops for good, since nothing would ever take them out again.
+     */
+    public void close() {
+        mClosed = true;
+        while (take(null)) {
+            // Entries still being written by producers that got in before the close are left alone
+        }
+    }
+
+    public int size() {
+        return (int) Math.max(0, mTail.get() - mHead.get());
+    }
+
+    public int capacity() {
+        return mEntries.length;
+    }
+
+    public long getDroppedOldestCount() {
+        return mDroppedOldest.get();
+    }
+
+    public long getDroppedNewestCount() {
+        return mDroppedNewest.get();
+    }
+
+    // Removes the entry at the head if it has been published, copying it into "into" if that isn't null
+    private boolean take(Entry into) {
+        final long pos = mHead.get();
+        final int index = (int) (pos & mMask);
+        if (mSequences.get(index) != pos + 1 || !mHead.compareAndSet(pos, pos + 1)) {
+            return false;
+        }
+
+        final Entry entry = mEntries[index];
+        if (null != into) {
+            into.copyFrom(entry);
+        }
+        entry.clear();
+        mSequences.set(index, pos + mEntries.length);
+        return true;
+    }
+
+    private final Entry[] mEntries;
+    // mSequences[i] == p means entry i is free for the producer at position p,
+    // p + 1 means it holds the record published at position p.
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mHead;
+    private final AtomicLong mTail;
+    private final AtomicLong mDroppedOldest;
+    private final AtomicLong mDroppedNewest;
+    private final int mMask;
+    private final OverflowPolicy mPolicy;
+    private volatile boolean mClosed;
+
+    private static final long BLOCK_WAIT_NANOS = 100 * 1000; // 0.1 ms
+    private static final long MAX_BLOCK_NANOS = 100 * 1000 * 1000; // 100 ms
+    private static final String LOGTAG = "MixpanelAPI.HandoffQueue";
+}
@@ -0,0 +1,171 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.StartupTrace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the slow parts of setting up a MixpanelAPI instance as a series of named stages, and
+ * records how long each took.
+ *
+ * <p>Stages either run on the calling thread, with {@link #runNow()}, or on a thread of their own,
+ * with {@link #start()}. While a started pipeline is still running, calls passed to {@link #defer(Runnable)}
+ * are held, and run on the pipeline's thread after the last stage, in the order they were made.
+ */
+/* package */ class InitPipeline {
+    public InitPipeline() {
+        mStageNames = new ArrayList<String>();
+        mStages = new ArrayList<Runnable>();
+        mHeldCalls = new LinkedList<Runnable>();
+        mTimings = new LinkedHashMap<String, Long>();
+        mFinishedStages = new HashSet<String>();
+        mReady = true;
+    }
+
+    /**
+     * Adds a stage to run after the ones already added. Must be called before the stages run.
+     */
+    public void addStage(String name, Runnable stage) {
+        mStageNames.add(name);
+        mStages.add(stage);
+    }
+
+    /**
+     * Runs every stage on the calling thread before returning.
+     */
+    public void runNow() {
+        runStages();
+    }
+
+    /**
+     * Runs the stages on a new background thread, and holds deferred calls until they're done.
+     */
+    public void start() {
+        synchronized (mHeldCalls) {
+            mReady = false;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runStages();
+                runHeldCalls();
+            }
+        }, "com.mixpanel.android.Initialization");
+        mThread.start();
+    }
+
+    /**
+     * Holds call until initialization is done, if it isn't yet.
+     *
+     * @return true if call was held, false if the caller should go ahead and do the work itself
+     */
+    public boolean defer(Runnable call) {
+        if (mReady || Thread.currentThread() == mThread) {
+            return false;
+        }
+        synchronized (mHeldCalls) {
+            if (mReady) {
+                return false;
+            }
+            mHeldCalls.add(call);
+            return true;
+        }
+    }
+
+    /**
+     * Blocks until the named stage has run, if no calls are being held, and otherwise until the
+     * stages and every held call have run. Lets getters that only read what an early stage loaded
+     * return without waiting for the later stages. Returns right away on the pipeline's own thread,
+     * so stages and held calls can use methods that wait for initialization.
+     */
+    public void awaitStage(String name) {
+        if (mReady || Thread.currentThread() == mThread) {
+            return;
+        }
+        synchronized (mHeldCalls) {
+            // Held calls may change what the caller reads, so once there are any, wait for all of them
+            while (!mReady && !(mFinishedStages.contains(name) && mHeldCalls.isEmpty() && !mRunningHeldCalls)) {
+                try {
+                    mHeldCalls.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * Milliseconds each stage that has finished took, in the order they ran.
+     */
+    public Map<String, Long> getStageTimings() {
+        synchronized (mTimings) {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(mTimings));
+        }
+    }
+
+    private void runStages() {
+        for (int i = 0; i < mStages.size(); i++) {
+            final String name = mStageNames.get(i);
+            final long start = StartupTrace.begin("init " + name);
+            try {
+                mStages.get(i).run();
+            } catch (final RuntimeException e) {
+                // Later stages and held calls can still work without this one
+                MPLog.e(LOGTAG, "Mixpanel initialization stage " + name + " failed", e);
+            }
+            final long elapsed = StartupTrace.end("init " + name, start);
+            synchronized (mTimings) {
+                mTimings.put(name, elapsed);
+            }
+            synchronized (mHeldCalls) {
+                mFinishedStages.add(name);
+                mHeldCalls.notifyAll();
+            }
+            MPLog.v(LOGTAG, "Mixpanel initialization stage " + name + " took " + elapsed + "ms");
+        }
+    }
+
+    private void runHeldCalls() {
+        while (true) {
+            final Runnable call;
+            synchronized (mHeldCalls) {
+                mRunningHeldCalls = true;
+                if (mHeldCalls.isEmpty()) {
+                    mReady = true;
+                    mHeldCalls.notifyAll();
+                    return;
+                }
+                call = mHeldCalls.removeFirst();
+            }
+            try {
+                call.run();
+            } catch (final RuntimeException e) {
+                MPLog.e(LOGTAG, "A Mixpanel call made during initialization failed", e);
+            }
+        }
+    }
+
+    private final List<String> mStageNames;
+    private final List<Runnable> mStages;
+    private final LinkedList<Runnable> mHeldCalls;
+    private final Map<String, Long> mTimings;
+    private final Set<String> mFinishedStages; // Guarded by mHeldCalls
+    private boolean mRunningHeldCalls; // Guarded by mHeldCalls
+    private volatile boolean mReady;
+    private volatile Thread mThread;
+
+    private static final String LOGTAG = "MixpanelAPI.Init";
+}
@@ -9,6 +9,8 @@ import android.os.Bundle;
 import com.mixpanel.android.BuildConfig;
 import com.mixpanel.android.util.MPLog;
 import com.mixpanel.android.util.OfflineMode;
+import com.mixpanel.android.util.RequestMetricsListener;
+import com.mixpanel.android.util.StartupTrace;
 
 import java.security.GeneralSecurityException;
 
@@ -34,9 +36,31 @@ import javax.net.ssl.SSLSocketFactory;
  *     <dt>com.mixpanel.android.MPConfig.FlushInterval</dt>
  *     <dd>An integer number of milliseconds, the maximum time to wait before an upload if the bulk upload limit isn't reached.</dd>
  *
+ *     <dt>com.mixpanel.android.MPConfig.MaximumEventLatency</dt>
+ *     <dd>An integer number of milliseconds, the longest a record may wait to be sent. If set, flushes are scheduled by
+ *          network, battery and queue conditions: sooner than FlushInterval on unmetered networks, and on metered networks
+ *          that aren't charging up to this long, so uploads share radio wake-ups. If not set, every flush waits FlushInterval.</dd>
+ *
  *     <dt>com.mixpanel.android.MPConfig.DebugFlushInterval</dt>
  *     <dd>An integer number of milliseconds, the maximum time to wait before an upload if the bulk upload limit isn't reached in debug mode.</dd>
  *
+ *     <dt>com.mixpanel.android.MPConfig.InsertBatchSize</dt>
+ *     <dd>An integer count of records. If greater than 1, tracked events and people updates are staged in memory and written
+ *          to the database together in a single transaction once this many records are waiting. Defaults to 1, every record is written as soon as it is received.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.InsertBatchInterval</dt>
+ *     <dd>An integer number of milliseconds, the maximum time a staged record may wait before it is written to the database if InsertBatchSize isn't reached. Defaults to 1000.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.HandoffQueueSize</dt>
+ *     <dd>An integer count of records. If greater than 0, track() and People updates only copy their arguments into a queue
+ *          of this many preallocated entries, and the message is built on the Mixpanel worker thread. Defaults to 0, messages
+ *          are built on the calling thread.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.HandoffOverflowPolicy</dt>
+ *     <dd>A string, what to do when the HandoffQueueSize queue is full: "drop_oldest" discards the oldest waiting record,
+ *          "drop_newest" discards the new one and "block" waits up to 100 milliseconds for room, then discards the new one.
+ *          Defaults to "drop_oldest".</dd>
+ *
  *     <dt>com.mixpanel.android.MPConfig.DataExpiration</dt>
  *     <dd>An integer number of milliseconds, the maximum age of records to send to Mixpanel. Corresponds to Mixpanel's server-side limit on record age.</dd>
  *
@@ -45,6 +69,49 @@ import javax.net.ssl.SSLSocketFactory;
  *          queue based on the storage capacity of the device, but will always allow queing below this limit. Higher values
  *          will take up more storage even when user storage is very full.</dd>
  *
+ *     <dt>com.mixpanel.android.MPConfig.MaximumDatabaseRecords</dt>
+ *     <dd>An integer count of records. If greater than 0, each queue table holds at most this many records, and older records
+ *          are evicted as new ones are added, according to DatabaseEvictionPolicy. Defaults to 0, no limit.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.DatabaseEvictionPolicy</dt>
+ *     <dd>A string, which records make room when MaximumDatabaseRecords is reached: "oldest" evicts the oldest records,
+ *          "automatic_first" evicts automatic events before any others, and "per_token" applies the limit to each project token
+ *          separately, evicting the oldest records of the token being added. Defaults to "oldest".</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.KeepDatabaseOpen</dt>
+ *     <dd>A boolean value. If true, Mixpanel keeps a single handle to its queue database open for the lifetime of the process,
+ *          with write-ahead logging enabled, rather than opening and closing the database for every operation. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.CompactStorage</dt>
+ *     <dd>A boolean value. If true, queued records are stored deflated against a dictionary of common Mixpanel property names
+ *          instead of as JSON text, and records already queued as text are converted in the background. Records are turned back
+ *          into the same JSON when they are sent. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.EventStore</dt>
+ *     <dd>A string, where records wait to be sent: "sqlite" keeps them in a SQLite database, "file" appends them to log files
+ *          in the app's private storage, and "memory" keeps them on the heap only, so they are lost when the process ends.
+ *          MaximumDatabaseRecords, DatabaseEvictionPolicy, KeepDatabaseOpen and CompactStorage only apply to "sqlite".
+ *          Defaults to "sqlite".</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.JournalEvents</dt>
+ *     <dd>A boolean value. If true, track() copies each event to a memory-mapped journal file before handing it to the
+ *          Mixpanel worker thread, so events tracked just before the app crashes are stored when it next starts. Events
+ *          bypass the handoff queue while this is on, since they must be built to be journaled. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.AsyncInitialization</dt>
+ *     <dd>A boolean value. If true, MixpanelAPI.getInstance() returns before reading stored properties, checking the app
+ *          version and installing the decide check, which happen on a background thread instead. Calls made in the
+ *          meantime are held and run in order once that's done. Getters wait for the stored values they read, and for any
+ *          calls held before them, so avoid calling them on the main thread right after getInstance(). Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.CompressUploads</dt>
+ *     <dd>A boolean value. If true, event and people uploads are sent with gzip compressed bodies. Endpoints that answer
+ *          a compressed request with 415 Unsupported Media Type are sent uncompressed requests for the next hour. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.ReuseConnections</dt>
+ *     <dd>A boolean value. If true, connections to Mixpanel are kept alive after successful requests and reused by later
+ *          requests, instead of paying for a new TCP and TLS handshake every time. Defaults to false.</dd>
+ *
  *     <dt>com.mixpanel.android.MPConfig.DisableFallback</dt>
  *     <dd>A boolean value. If true, do not send data over HTTP, even if HTTPS is unavailable. Defaults to true - by default, Mixpanel will only attempt to communicate over HTTPS.</dd>
  *
@@ -113,7 +180,12 @@ public class MPConfig {
         synchronized (sInstanceLock) {
             if (null == sInstance) {
                 final Context appContext = context.getApplicationContext();
-                sInstance = readConfig(appContext);
+                final long start = StartupTrace.begin("MPConfig.getInstance");
+                try {
+                    sInstance = readConfig(appContext);
+                } finally {
+                    StartupTrace.end("MPConfig.getInstance", start);
+                }
             }
         }
 
@@ -172,6 +244,47 @@ public class MPConfig {
         mOfflineMode = offlineMode;
     }
 
+    /**
+     * Registers a listener that will be told about the size of the batches Mixpanel uploads and
+     * how long recent upload requests took. Mixpanel starts uploading batches of
+     * {@link #getBulkUploadLimit()} records, grows the batches while requests complete quickly,
+     * and shrinks them when requests time out or are rejected as too large.
+     *
+     * {@code
+     * <pre>
+     *     MPConfig.getInstance(context).setOnUploadMetricsListener(listener);
+     * </pre>
+     * }
+     *
+     * The listener is globally available to all Mixpanel instances, and will be called from
+     * Mixpanel's worker thread. Pass null to stop receiving metrics.
+     *
+     * @param listener the listener to call after each upload attempt, or null
+     */
+    public synchronized void setOnUploadMetricsListener(OnUploadMetricsListener listener) {
+        mUploadMetricsListener = listener;
+    }
+
+    /**
+     * Registers a {@link RequestMetricsListener} that will be told the latency of every network
+     * request Mixpanel makes, and whether it needed a new TLS handshake.
+     *
+     * {@code
+     * <pre>
+     *     MPConfig.getInstance(context).setRequestMetricsListener(listener);
+     * </pre>
+     * }
+     *
+     * The listener is globally available to all Mixpanel instances, and should be set before
+     * your first call to MixpanelAPI.getInstance. It will be called from several threads,
+     * so your implementation must be thread-safe. Pass null to stop receiving metrics.
+     *
+     * @param listener the listener to call after each request attempt, or null
+     */
+    public synchronized void setRequestMetricsListener(RequestMetricsListener listener) {
+        mRequestMetricsListener = listener;
+    }
+
     /* package */ MPConfig(Bundle metaData, Context context) {
 
         // By default, we use a clean, FACTORY default SSLSocket. In general this is the right
@@ -198,8 +311,25 @@ public class MPConfig {
 
         mBulkUploadLimit = metaData.getInt("com.mixpanel.android.MPConfig.BulkUploadLimit", 40); // 40 records default
         mFlushInterval = metaData.getInt("com.mixpanel.android.MPConfig.FlushInterval", 60 * 1000); // one minute default
+        mMaximumEventLatency = metaData.getInt("com.mixpanel.android.MPConfig.MaximumEventLatency", -1); // FlushInterval by default
+        mInsertBatchSize = Math.max(1, metaData.getInt("com.mixpanel.android.MPConfig.InsertBatchSize", 1)); // write through by default
+        mInsertBatchInterval = metaData.getInt("com.mixpanel.android.MPConfig.InsertBatchInterval", 1000); // one second default
+        mHandoffQueueSize = Math.max(0, metaData.getInt("com.mixpanel.android.MPConfig.HandoffQueueSize", 0)); // build messages on the calling thread by default
+        final String handoffOverflowPolicy = metaData.getString("com.mixpanel.android.MPConfig.HandoffOverflowPolicy");
+        mHandoffOverflowPolicy = null == handoffOverflowPolicy ? "drop_oldest" : handoffOverflowPolicy;
         mDataExpiration = metaData.getInt("com.mixpanel.android.MPConfig.DataExpiration", 1000 * 60 * 60 * 24 * 5); // 5 days default
         mMinimumDatabaseLimit = metaData.getInt("com.mixpanel.android.MPConfig.MinimumDatabaseLimit", 20 * 1024 * 1024); // 20 Mb
+        mMaximumDatabaseRecords = Math.max(0, metaData.getInt("com.mixpanel.android.MPConfig.MaximumDatabaseRecords", 0)); // no limit by default
+        final String databaseEvictionPolicy = metaData.getString("com.mixpanel.android.MPConfig.DatabaseEvictionPolicy");
+        mDatabaseEvictionPolicy = null == databaseEvictionPolicy ? "oldest" : databaseEvictionPolicy;
+        mKeepDatabaseOpen = metaData.getBoolean("com.mixpanel.android.MPConfig.KeepDatabaseOpen", false);
+        mCompactStorage = metaData.getBoolean("com.mixpanel.android.MPConfig.CompactStorage", false);
+        final String eventStore = metaData.getString("com.mixpanel.android.MPConfig.EventStore");
+        mEventStore = null == eventStore ? "sqlite" : eventStore;
+        mJournalEvents = metaData.getBoolean("com.mixpanel.android.MPConfig.JournalEvents", false);
+        mAsyncInitialization = metaData.getBoolean("com.mixpanel.android.MPConfig.AsyncInitialization", false);
+        mCompressUploads = metaData.getBoolean("com.mixpanel.android.MPConfig.CompressUploads", false);
+        mReuseConnections = metaData.getBoolean("com.mixpanel.android.MPConfig.ReuseConnections", false);
         mDisableFallback = metaData.getBoolean("com.mixpanel.android.MPConfig.DisableFallback", true);
         mResourcePackageName = metaData.getString("com.mixpanel.android.MPConfig.ResourcePackageName"); // default is null
         mDisableGestureBindingUI = metaData.getBoolean("com.mixpanel.android.MPConfig.DisableGestureBindingUI", false);
@@ -270,8 +400,22 @@ public class MPConfig {
                 "    AutoShowMixpanelUpdates " + getAutoShowMixpanelUpdates() + "\n" +
                 "    BulkUploadLimit " + getBulkUploadLimit() + "\n" +
                 "    FlushInterval " + getFlushInterval() + "\n" +
+                "    MaximumEventLatency " + getMaximumEventLatency() + "\n" +
+                "    InsertBatchSize " + getInsertBatchSize() + "\n" +
+                "    InsertBatchInterval " + getInsertBatchInterval() + "\n" +
+                "    HandoffQueueSize " + getHandoffQueueSize() + "\n" +
+                "    HandoffOverflowPolicy " + getHandoffOverflowPolicy() + "\n" +
                 "    DataExpiration " + getDataExpiration() + "\n" +
                 "    MinimumDatabaseLimit " + getMinimumDatabaseLimit() + "\n" +
+                "    MaximumDatabaseRecords " + getMaximumDatabaseRecords() + "\n" +
+                "    DatabaseEvictionPolicy " + getDatabaseEvictionPolicy() + "\n" +
+                "    KeepDatabaseOpen " + getKeepDatabaseOpen() + "\n" +
+                "    CompactStorage " + getCompactStorage() + "\n" +
+                "    EventStore " + getEventStore() + "\n" +
+                "    JournalEvents " + getJournalEvents() + "\n" +
+                "    AsyncInitialization " + getAsyncInitialization() + "\n" +
+                "    CompressUploads " + getCompressUploads() + "\n" +
+                "    ReuseConnections " + getReuseConnections() + "\n" +
                 "    DisableFallback " + getDisableFallback() + "\n" +
                 "    DisableAppOpenEvent " + getDisableAppOpenEvent() + "\n" +
                 "    DisableViewCrawler " + getDisableViewCrawler() + "\n" +
@@ -304,6 +448,22 @@ public class MPConfig {
         return mFlushInterval;
     }
 
+    // Longest milliseconds a record should wait to be sent. Negative means the same as FlushInterval.
+    public int getMaximumEventLatency() {
+        return mMaximumEventLatency;
+    }
+
+    // Number of records staged in memory before they are written to the database in one transaction.
+    // A value of 1 writes every record as soon as it is received.
+    public int getInsertBatchSize() {
+        return mInsertBatchSize;
+    }
+
+    // Max milliseconds a staged record waits before being written to the database.
+    public int getInsertBatchInterval() {
+        return mInsertBatchInterval;
+    }
+
     // Throw away records that are older than this in milliseconds. Should be below the server side age limit for events.
     public int getDataExpiration() {
         return mDataExpiration;
@@ -311,6 +471,61 @@ public class MPConfig {
 
     public int getMinimumDatabaseLimit() { return mMinimumDatabaseLimit; }
 
+    // Number of entries in the queue handing calls off to the worker thread, or 0 for no queue
+    public int getHandoffQueueSize() {
+        return mHandoffQueueSize;
+    }
+
+    // One of "block", "drop_oldest" or "drop_newest"
+    public String getHandoffOverflowPolicy() {
+        return mHandoffOverflowPolicy;
+    }
+
+    // Maximum records in each queue table, or 0 for no limit
+    public int getMaximumDatabaseRecords() {
+        return mMaximumDatabaseRecords;
+    }
+
+    // One of "oldest", "automatic_first" or "per_token"
+    public String getDatabaseEvictionPolicy() {
+        return mDatabaseEvictionPolicy;
+    }
+
+    // If true, hold one write-ahead logged database handle open for the life of the process
+    public boolean getKeepDatabaseOpen() {
+        return mKeepDatabaseOpen;
+    }
+
+    // If true, store queued records deflated rather than as JSON text
+    public boolean getCompactStorage() {
+        return mCompactStorage;
+    }
+
+    // One of "sqlite", "file" or "memory"
+    public String getEventStore() {
+        return mEventStore;
+    }
+
+    // If true, journal events to a mapped file before handing them to the worker
+    public boolean getJournalEvents() {
+        return mJournalEvents;
+    }
+
+    // If true, finish setting up MixpanelAPI instances on a background thread
+    public boolean getAsyncInitialization() {
+        return mAsyncInitialization;
+    }
+
+    // If true, gzip the bodies of event and people uploads
+    public boolean getCompressUploads() {
+        return mCompressUploads;
+    }
+
+    // If true, keep connections alive between requests
+    public boolean getReuseConnections() {
+        return mReuseConnections;
+    }
+
     public boolean getDisableFallback() {
         return mDisableFallback;
     }
@@ -423,6 +638,16 @@ public class MPConfig {
         return mOfflineMode;
     }
 
+    // This method is thread safe, the listener itself is only called from the worker thread
+    public synchronized OnUploadMetricsListener getOnUploadMetricsListener() {
+        return mUploadMetricsListener;
+    }
+
+    // This method is thread safe, and assumes that RequestMetricsListener is also thread safe
+    public synchronized RequestMetricsListener getRequestMetricsListener() {
+        return mRequestMetricsListener;
+    }
+
     // ImageStore LRU Cache size will be availableMaxMemory() / mImageCacheMaxMemoryFactor
     public int getImageCacheMaxMemoryFactor() {
         return mImageCacheMaxMemoryFactor;
@@ -447,8 +672,22 @@ public class MPConfig {
 
     private final int mBulkUploadLimit;
     private final int mFlushInterval;
+    private final int mMaximumEventLatency;
+    private final int mInsertBatchSize;
+    private final int mInsertBatchInterval;
+    private final int mHandoffQueueSize;
+    private final String mHandoffOverflowPolicy;
     private final int mDataExpiration;
     private final int mMinimumDatabaseLimit;
+    private final int mMaximumDatabaseRecords;
+    private final String mDatabaseEvictionPolicy;
+    private final boolean mKeepDatabaseOpen;
+    private final boolean mCompactStorage;
+    private final String mEventStore;
+    private final boolean mJournalEvents;
+    private final boolean mAsyncInitialization;
+    private final boolean mCompressUploads;
+    private final boolean mReuseConnections;
     private final boolean mDisableFallback;
     private final boolean mTestMode;
     private final boolean mDisableGestureBindingUI;
@@ -475,6 +714,8 @@ public class MPConfig {
     // Mutable, with synchronized accessor and mutator
     private SSLSocketFactory mSSLSocketFactory;
     private OfflineMode mOfflineMode;
+    private OnUploadMetricsListener mUploadMetricsListener;
+    private RequestMetricsListener mRequestMetricsListener;
 
     private static MPConfig sInstance;
     private static final Object sInstanceLock = new Object();
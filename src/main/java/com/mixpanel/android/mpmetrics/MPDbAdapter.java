@@ -1,30 +1,44 @@
 package com.mixpanel.android.mpmetrics;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.DataFormatException;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.SystemClock;
 
 import com.mixpanel.android.util.MPLog;
 
 /**
- * SQLite database adapter for MixpanelAPI.
+ * SQLite database adapter for MixpanelAPI, and the default {@link EventStore}.
  *
  * <p>Not thread-safe. Instances of this class should only be used
  * by a single thread.
  *
+ * <p>Row counts are cached in memory, shared by every adapter of this process that uses
+ * the same database file. The cache assumes that only one process writes to the database;
+ * rows added or deleted by another process are only noticed when the cached counts expire,
+ * at most ROW_COUNT_MAX_AGE_MILLIS after they were read.
+ *
  */
-/* package */ class MPDbAdapter {
+/* package */ class MPDbAdapter implements EventStore {
     private static final String LOGTAG = "MixpanelAPI.Database";
     private static final Map<Context, MPDbAdapter> sInstances = new HashMap<>();
 
@@ -43,44 +57,252 @@ import com.mixpanel.android.util.MPLog;
         private final String mTableName;
     }
 
+    /**
+     * Which records make room for new ones once a table holds MPConfig.MaximumDatabaseRecords records.
+     */
+    public enum EvictionPolicy {
+        OLDEST, // The oldest records in the table
+        AUTOMATIC_FIRST, // The oldest automatic records, then the oldest of the rest
+        PER_TOKEN; // The oldest records of the inserting token, each token may hold the maximum
+
+        // Reads the value of the DatabaseEvictionPolicy setting
+        public static EvictionPolicy fromConfig(String name) {
+            if ("automatic_first".equals(name)) {
+                return AUTOMATIC_FIRST;
+            } else if ("per_token".equals(name)) {
+                return PER_TOKEN;
+            } else if (!"oldest".equals(name)) {
+                MPLog.w(LOGTAG, "Unknown database eviction policy \"" + name + "\", Mixpanel will evict the oldest records first");
+            }
+            return OLDEST;
+        }
+    }
+
     public static final String KEY_DATA = "data";
     public static final String KEY_CREATED_AT = "created_at";
     public static final String KEY_AUTOMATIC_DATA = "automatic_data";
     public static final String KEY_TOKEN = "token";
+    public static final String KEY_TOKEN_ID = "token_id";
+    public static final String KEY_ENCODING = "encoding";
 
     public static final int DB_UPDATE_ERROR = -1;
     public static final int DB_OUT_OF_MEMORY_ERROR = -2;
     public static final int DB_UNDEFINED_CODE = -3;
 
     private static final String DATABASE_NAME = "mixpanel";
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     private static final String CREATE_EVENTS_TABLE =
        "CREATE TABLE " + Table.EVENTS.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
         KEY_DATA + " STRING NOT NULL, " +
         KEY_CREATED_AT + " INTEGER NOT NULL, " +
         KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
-        KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+        KEY_TOKEN_ID + " INTEGER NOT NULL DEFAULT 0, " +
+        KEY_ENCODING + " INTEGER NOT NULL DEFAULT 0)";
     private static final String CREATE_PEOPLE_TABLE =
        "CREATE TABLE " + Table.PEOPLE.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
         KEY_DATA + " STRING NOT NULL, " +
         KEY_CREATED_AT + " INTEGER NOT NULL, " +
         KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
-        KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+        KEY_TOKEN_ID + " INTEGER NOT NULL DEFAULT 0, " +
+        KEY_ENCODING + " INTEGER NOT NULL DEFAULT 0)";
+    // Each project token is stored once, queued rows refer to it by the _id of its row here
+    /* package */ static final String TOKENS_TABLE = "tokens";
+    private static final String CREATE_TOKENS_TABLE =
+       "CREATE TABLE " + TOKENS_TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+        KEY_TOKEN + " STRING NOT NULL UNIQUE)";
     private static final String EVENTS_TIME_INDEX =
         "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.EVENTS.getName() +
         " (" + KEY_CREATED_AT + ");";
     private static final String PEOPLE_TIME_INDEX =
         "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.PEOPLE.getName() +
         " (" + KEY_CREATED_AT + ");";
+    // Every read of the queue filters on token, often on automatic_data, and takes the oldest
+    // rows first. Indexes also hold the row id, so counts and id lookups never touch the table.
+    private static final String EVENTS_TOKEN_INDEX_NAME = "events_token_idx";
+    private static final String EVENTS_TOKEN_INDEX =
+        "CREATE INDEX IF NOT EXISTS " + EVENTS_TOKEN_INDEX_NAME + " ON " + Table.EVENTS.getName() +
+        " (" + KEY_TOKEN_ID + ", " + KEY_AUTOMATIC_DATA + ", " + KEY_CREATED_AT + ");";
+    private static final String PEOPLE_TOKEN_INDEX_NAME = "people_token_idx";
+    private static final String PEOPLE_TOKEN_INDEX =
+        "CREATE INDEX IF NOT EXISTS " + PEOPLE_TOKEN_INDEX_NAME + " ON " + Table.PEOPLE.getName() +
+        " (" + KEY_TOKEN_ID + ", " + KEY_AUTOMATIC_DATA + ", " + KEY_CREATED_AT + ");";
+    // Indexes that upgrades leave for buildPendingIndex(), in the order it builds them
+    private static final String[] TOKEN_INDEX_NAMES = { EVENTS_TOKEN_INDEX_NAME, PEOPLE_TOKEN_INDEX_NAME };
+    private static final String[] TOKEN_INDEXES = { EVENTS_TOKEN_INDEX, PEOPLE_TOKEN_INDEX };
+
+    // Tables of an older layout whose rows migrateRows() still has to move into the current tables,
+    // and the last _id of each that has been moved
+    private static final String MIGRATIONS_TABLE = "pending_migrations";
+    private static final String KEY_TARGET_TABLE = "target_table";
+    private static final String KEY_FROM_VERSION = "from_version";
+    private static final String KEY_LAST_ID = "last_id";
+    private static final String CREATE_MIGRATIONS_TABLE =
+       "CREATE TABLE IF NOT EXISTS " + MIGRATIONS_TABLE + " (" +
+        "source_table STRING PRIMARY KEY, " +
+        KEY_TARGET_TABLE + " STRING NOT NULL, " +
+        KEY_FROM_VERSION + " INTEGER NOT NULL, " +
+        KEY_LAST_ID + " INTEGER NOT NULL DEFAULT 0)";
+
+    // Rows that can't be read or aren't JSON objects are moved here rather than sent, so they
+    // can't spoil the batches they would be part of. Only the most recent QUARANTINE_LIMIT are kept.
+    private static final String QUARANTINE_TABLE = "quarantine";
+    private static final String KEY_SOURCE_TABLE = "source_table";
+    private static final String KEY_REASON = "reason";
+    private static final String CREATE_QUARANTINE_TABLE =
+       "CREATE TABLE IF NOT EXISTS " + QUARANTINE_TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+        KEY_SOURCE_TABLE + " STRING NOT NULL, " +
+        KEY_DATA + " STRING, " +
+        KEY_CREATED_AT + " INTEGER NOT NULL, " +
+        KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+        KEY_REASON + " STRING NOT NULL)";
+    private static final int QUARANTINE_LIMIT = 100;
+
+    // People records made before People.identify(), which can't be queued until they have a distinct id
+    private static final String WAITING_PEOPLE_TABLE = "waiting_people";
+    private static final String CREATE_WAITING_PEOPLE_TABLE =
+       "CREATE TABLE IF NOT EXISTS " + WAITING_PEOPLE_TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+        KEY_TOKEN + " STRING NOT NULL, " +
+        KEY_DATA + " STRING NOT NULL, " +
+        KEY_CREATED_AT + " INTEGER NOT NULL)";
+    private static final String WAITING_PEOPLE_TOKEN_INDEX =
+        "CREATE INDEX IF NOT EXISTS waiting_people_token_idx ON " + WAITING_PEOPLE_TABLE + " (" + KEY_TOKEN + ");";
+
+    // Bounds the work a single insert does to get the tables back under their limit
+    private static final int MAX_EVICTIONS_PER_INSERT = 100;
+
+    // How many rows performMaintenance() converts to compact storage per table in one step
+    private static final int COMPACT_ROWS_PER_STEP = 500;
+    // How many rows of an old layout performMaintenance() moves in one step
+    private static final int MIGRATE_ROWS_PER_STEP = 500;
+    // How long cached row counts are trusted before they are read from the database again
+    private static final long ROW_COUNT_MAX_AGE_MILLIS = 60 * 1000;
 
     private final MPDatabaseHelper mDb;
 
+    // Running per-table, per-token row counts, so we don't have to scan the table after every insert.
+    // A missing entry means the count is unknown and must be read from the database. Counts are
+    // shared by all adapters that use the same database file.
+    private final Map<Table, Map<String, Integer>> mRowCounts;
+    private static final Map<File, Map<Table, Map<String, Integer>>> sRowCounts = new HashMap<File, Map<Table, Map<String, Integer>>>();
+    // Running row counts for whole tables, kept like mRowCounts and guarded by the same lock
+    private final Map<Table, Integer> mTableRowCounts;
+    private static final Map<File, Map<Table, Integer>> sTableRowCounts = new HashMap<File, Map<Table, Integer>>();
+    // When the cached counts of each database file were last emptied, guarded by sRowCounts
+    private static final Map<File, Long> sRowCountsCheckedAt = new HashMap<File, Long>();
+    // Ids of known rows in the tokens table, shared like the row counts. Cleared whenever the file is deleted.
+    private final Map<String, Long> mTokenIds;
+    private static final Map<File, Map<String, Long>> sTokenIds = new HashMap<File, Map<String, Long>>();
+    private final EvictionPolicy mEvictionPolicy;
+    // Compact rows are always readable, mCompactStorage only decides how new rows are written
+    private final CompactRecordCodec mCodec;
+    private final boolean mCompactStorage;
+    // The highest _id per table that compactStoredRows() has looked at
+    private final Map<Table, Long> mCompactedThrough;
+    // Set once migrateRows() finds no tables of an older layout left
+    private volatile boolean mRowMigrationsDone;
+
+    /**
+     * A record waiting to be written to the database, used for batched inserts.
+     */
+    /* package */ static class QueuedRecord {
+        public QueuedRecord(JSONObject json, String token, Table table, boolean isAutomaticRecord, long createdAt) {
+            mJson = json;
+            mToken = token;
+            mTable = table;
+            mIsAutomaticRecord = isAutomaticRecord;
+            mCreatedAt = createdAt;
+        }
+
+        public JSONObject getJSON() {
+            return mJson;
+        }
+
+        public String getToken() {
+            return mToken;
+        }
+
+        public Table getTable() {
+            return mTable;
+        }
+
+        public boolean isAutomaticRecord() {
+            return mIsAutomaticRecord;
+        }
+
+        public long getCreatedAt() {
+            return mCreatedAt;
+        }
+
+        private final JSONObject mJson;
+        private final String mToken;
+        private final Table mTable;
+        private final boolean mIsAutomaticRecord;
+        private final long mCreatedAt;
+    }
+
+    /**
+     * A batch of stored records, ready to upload. The data is the UTF-8 encoded
+     * JSON array of the records, built from the stored rows without parsing them.
+     */
+    /* package */ static class DataBatch {
+        public DataBatch(String lastId, byte[] data, int dataLength, int recordCount, int queueCount) {
+            mLastId = lastId;
+            mData = data;
+            mDataLength = dataLength;
+            mRecordCount = recordCount;
+            mQueueCount = queueCount;
+        }
+
+        public String getLastId() {
+            return mLastId;
+        }
+
+        // Only the first getDataLength() bytes are part of the batch
+        public byte[] getData() {
+            return mData;
+        }
+
+        public int getDataLength() {
+            return mDataLength;
+        }
+
+        public int getRecordCount() {
+            return mRecordCount;
+        }
+
+        // The number of matching records in the queue, including the ones in this batch
+        public int getQueueCount() {
+            return mQueueCount;
+        }
+
+        private final String mLastId;
+        private final byte[] mData;
+        private final int mDataLength;
+        private final int mRecordCount;
+        private final int mQueueCount;
+    }
+
+    // Lets a finished batch hand over its buffer instead of copying it with toByteArray()
+    /* package */ static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        public byte[] getBuffer() {
+            return buf;
+        }
+
+        // Drops everything written after the first size bytes
+        public void truncate(int size) {
+            count = size;
+        }
+    }
+
     private static class MPDatabaseHelper extends SQLiteOpenHelper {
-        MPDatabaseHelper(Context context, String dbName) {
+        MPDatabaseHelper(Context context, String dbName, MPConfig config) {
             super(context, dbName, null, DATABASE_VERSION);
             mDatabaseFile = context.getDatabasePath(dbName);
-            mConfig = MPConfig.getInstance(context);
+            mConfig = config;
+            mKeepOpen = config.getKeepDatabaseOpen();
+            mStatements = new HashMap<String, SQLiteStatement>();
         }
 
         /**
@@ -89,31 +311,112 @@ import com.mixpanel.android.util.MPLog;
         public void deleteDatabase() {
             close();
             mDatabaseFile.delete();
+            // A leftover write-ahead log would be replayed into the next database we create
+            new File(mDatabaseFile.getPath() + "-wal").delete();
+            new File(mDatabaseFile.getPath() + "-shm").delete();
+            new File(mDatabaseFile.getPath() + "-journal").delete();
+        }
+
+        /**
+         * Called when an operation is done with the database. Closes it unless
+         * we've been configured to keep a single handle open for the life of the process.
+         */
+        public void release() {
+            if (!mKeepOpen) {
+                close();
+            }
+        }
+
+        /**
+         * Returns a compiled statement for sql, reusing an earlier compilation if the
+         * database hasn't been closed since. Callers must synchronize on the returned statement
+         * while binding and executing it.
+         */
+        public SQLiteStatement getStatement(SQLiteDatabase db, String sql) {
+            synchronized (mStatements) {
+                SQLiteStatement statement = mStatements.get(sql);
+                if (null == statement) {
+                    statement = db.compileStatement(sql);
+                    mStatements.put(sql, statement);
+                }
+                return statement;
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            synchronized (mStatements) {
+                for (final SQLiteStatement statement : mStatements.values()) {
+                    statement.close();
+                }
+                mStatements.clear();
+            }
+            super.close();
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if (!db.isReadOnly()) {
+                // Not part of the versioned schema, so databases of any version get these
+                db.execSQL(CREATE_QUARANTINE_TABLE);
+                db.execSQL(CREATE_WAITING_PEOPLE_TABLE);
+                db.execSQL(WAITING_PEOPLE_TOKEN_INDEX);
+            }
+            if (mKeepOpen && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly()) {
+                if (!db.enableWriteAheadLogging()) {
+                    MPLog.i(LOGTAG, "Write-ahead logging is not available for the Mixpanel events DB");
+                }
+            }
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
             MPLog.v(LOGTAG, "Creating a new Mixpanel events DB");
 
+            db.execSQL(CREATE_TOKENS_TABLE);
             db.execSQL(CREATE_EVENTS_TABLE);
             db.execSQL(CREATE_PEOPLE_TABLE);
             db.execSQL(EVENTS_TIME_INDEX);
             db.execSQL(PEOPLE_TIME_INDEX);
+            db.execSQL(EVENTS_TOKEN_INDEX);
+            db.execSQL(PEOPLE_TOKEN_INDEX);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             MPLog.v(LOGTAG, "Upgrading app, replacing Mixpanel events DB");
 
-            if (newVersion == 5) {
-                migrateTableFrom4To5(db);
+            // Upgrades that change rows only set the old tables aside here, migrateRows() moves their
+            // rows later, a chunk at a time. Upgrades that can alter the tables in place do so.
+            if (oldVersion >= 4 && oldVersion <= 6) {
+                startRowMigration(db, oldVersion);
+            } else if (oldVersion == 7) {
+                migrateTableFrom7To8(db);
             } else {
                 db.execSQL("DROP TABLE IF EXISTS " + Table.EVENTS.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.PEOPLE.getName());
+                db.execSQL("DROP TABLE IF EXISTS " + TOKENS_TABLE);
+                db.execSQL(CREATE_TOKENS_TABLE);
                 db.execSQL(CREATE_EVENTS_TABLE);
                 db.execSQL(CREATE_PEOPLE_TABLE);
                 db.execSQL(EVENTS_TIME_INDEX);
                 db.execSQL(PEOPLE_TIME_INDEX);
+                db.execSQL(EVENTS_TOKEN_INDEX);
+                db.execSQL(PEOPLE_TOKEN_INDEX);
+            }
+        }
+
+        // Runs SQLite's quick integrity check. False means the file itself is damaged.
+        public boolean isIntact() {
+            try {
+                final String result = DatabaseUtils.stringForQuery(getWritableDatabase(), "PRAGMA quick_check", null);
+                return "ok".equalsIgnoreCase(result);
+            } catch (final SQLiteException e) {
+                MPLog.e(LOGTAG, "Could not check the integrity of the Mixpanel events DB", e);
+                return false;
+            } finally {
+                release();
             }
         }
 
@@ -124,41 +427,44 @@ import com.mixpanel.android.util.MPLog;
             return true;
         }
 
-        private void migrateTableFrom4To5(SQLiteDatabase db) {
-            db.execSQL("ALTER TABLE " + Table.EVENTS.getName() + " ADD COLUMN " + KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0");
-            db.execSQL("ALTER TABLE " + Table.PEOPLE.getName() + " ADD COLUMN " + KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0");
-            db.execSQL("ALTER TABLE " + Table.EVENTS.getName() + " ADD COLUMN " + KEY_TOKEN + " STRING NOT NULL DEFAULT ''");
-            db.execSQL("ALTER TABLE " + Table.PEOPLE.getName() + " ADD COLUMN " + KEY_TOKEN + " STRING NOT NULL DEFAULT ''");
+        // Renames the queue tables to <name>_v<oldVersion> and creates empty ones of the current layout,
+        // which new rows go into straight away. Only the old tables' indexes are dropped, nothing here
+        // takes time in proportion to the size of the queue.
+        private void startRowMigration(SQLiteDatabase db, int oldVersion) {
+            db.execSQL("DROP INDEX IF EXISTS time_idx");
+            db.execSQL("DROP INDEX IF EXISTS " + EVENTS_TOKEN_INDEX_NAME);
+            db.execSQL("DROP INDEX IF EXISTS " + PEOPLE_TOKEN_INDEX_NAME);
+            db.execSQL(CREATE_TOKENS_TABLE); // Tokens moved out of the queue tables in version 7
+            db.execSQL(CREATE_MIGRATIONS_TABLE);
 
-            Cursor eventsCursor = db.rawQuery("SELECT * FROM " + Table.EVENTS.getName(), null);
-            while (eventsCursor.moveToNext()) {
-                int rowId = 0;
-                try {
-                    final JSONObject j = new JSONObject(eventsCursor.getString(eventsCursor.getColumnIndex(KEY_DATA)));
-                    String token = j.getJSONObject("properties").getString("token");
-                    rowId = eventsCursor.getInt(eventsCursor.getColumnIndex("_id"));
-                    db.execSQL("UPDATE " + Table.EVENTS.getName() + " SET " + KEY_TOKEN + " = '" + token + "' WHERE _id = " + rowId);
-                } catch (final JSONException e) {
-                    db.delete(Table.EVENTS.getName(), "_id = " + rowId, null);
-                }
+            for (final Table table : Table.values()) {
+                final String tableName = table.getName();
+                final String oldTableName = tableName + "_v" + oldVersion;
+                db.execSQL("ALTER TABLE " + tableName + " RENAME TO " + oldTableName);
+                db.execSQL(table == Table.EVENTS ? CREATE_EVENTS_TABLE : CREATE_PEOPLE_TABLE);
+                // Old rows keep their ids when they're moved, and sent rows are deleted by id,
+                // so new rows must be numbered after them
+                db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT ?, seq FROM sqlite_sequence WHERE name = ?",
+                        new Object[]{ tableName, oldTableName });
+                db.execSQL("INSERT INTO " + MIGRATIONS_TABLE + " (source_table, " + KEY_TARGET_TABLE + ", " + KEY_FROM_VERSION + ") VALUES (?, ?, ?)",
+                        new Object[]{ oldTableName, tableName, oldVersion });
             }
+            db.execSQL(EVENTS_TIME_INDEX);
+            db.execSQL(PEOPLE_TIME_INDEX);
+            db.execSQL(EVENTS_TOKEN_INDEX);
+            db.execSQL(PEOPLE_TOKEN_INDEX);
+        }
 
-            Cursor peopleCursor = db.rawQuery("SELECT * FROM " + Table.PEOPLE.getName(), null);
-            while (peopleCursor.moveToNext()) {
-                int rowId = 0;
-                try {
-                    final JSONObject j = new JSONObject(peopleCursor.getString(peopleCursor.getColumnIndex(KEY_DATA)));
-                    String token = j.getString("$token");
-                    rowId = peopleCursor.getInt(peopleCursor.getColumnIndex("_id"));
-                    db.execSQL("UPDATE " + Table.PEOPLE.getName() + " SET " + KEY_TOKEN + " = '" + token + "' WHERE _id = " + rowId);
-                } catch (final JSONException e) {
-                    db.delete(Table.PEOPLE.getName(), "_id = " + rowId, null);
-                }
-            }
+        // Rows keep their JSON text, compactStoredRows() converts them if CompactStorage is on
+        private void migrateTableFrom7To8(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + Table.EVENTS.getName() + " ADD COLUMN " + KEY_ENCODING + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + Table.PEOPLE.getName() + " ADD COLUMN " + KEY_ENCODING + " INTEGER NOT NULL DEFAULT 0");
         }
 
         private final File mDatabaseFile;
         private final MPConfig mConfig;
+        private final boolean mKeepOpen;
+        private final Map<String, SQLiteStatement> mStatements;
     }
 
     public MPDbAdapter(Context context) {
@@ -166,7 +472,37 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public MPDbAdapter(Context context, String dbName) {
-        mDb = new MPDatabaseHelper(context, dbName);
+        this(context, dbName, MPConfig.getInstance(context));
+    }
+
+    /* package */ MPDbAdapter(Context context, String dbName, MPConfig config) {
+        mDb = new MPDatabaseHelper(context, dbName, config);
+        synchronized (sRowCounts) {
+            Map<Table, Map<String, Integer>> rowCounts = sRowCounts.get(mDb.mDatabaseFile);
+            if (null == rowCounts) {
+                rowCounts = new HashMap<Table, Map<String, Integer>>();
+                sRowCounts.put(mDb.mDatabaseFile, rowCounts);
+            }
+            mRowCounts = rowCounts;
+
+            Map<Table, Integer> tableRowCounts = sTableRowCounts.get(mDb.mDatabaseFile);
+            if (null == tableRowCounts) {
+                tableRowCounts = new HashMap<Table, Integer>();
+                sTableRowCounts.put(mDb.mDatabaseFile, tableRowCounts);
+            }
+            mTableRowCounts = tableRowCounts;
+
+            Map<String, Long> tokenIds = sTokenIds.get(mDb.mDatabaseFile);
+            if (null == tokenIds) {
+                tokenIds = new HashMap<String, Long>();
+                sTokenIds.put(mDb.mDatabaseFile, tokenIds);
+            }
+            mTokenIds = tokenIds;
+        }
+        mEvictionPolicy = EvictionPolicy.fromConfig(config.getDatabaseEvictionPolicy());
+        mCodec = new CompactRecordCodec();
+        mCompactStorage = config.getCompactStorage();
+        mCompactedThrough = new HashMap<Table, Long>();
     }
 
     public static MPDbAdapter getInstance(Context context) {
@@ -193,6 +529,7 @@ import com.mixpanel.android.util.MPLog;
      * @return the number of rows in the table, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
      * on failure
      */
+    @Override
     public int addJSON(JSONObject j, String token, Table table, boolean isAutomaticRecord) {
         // we are aware of the race condition here, but what can we do..?
         if (!this.belowMemThreshold()) {
@@ -202,39 +539,106 @@ import com.mixpanel.android.util.MPLog;
 
         final String tableName = table.getName();
 
-        Cursor c = null;
         int count = DB_UPDATE_ERROR;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
 
-            final ContentValues cv = new ContentValues();
-            cv.put(KEY_DATA, j.toString());
-            cv.put(KEY_CREATED_AT, System.currentTimeMillis());
-            cv.put(KEY_AUTOMATIC_DATA, isAutomaticRecord);
-            cv.put(KEY_TOKEN, token);
-            db.insert(tableName, null, cv);
-
-            c = db.rawQuery("SELECT COUNT(*) FROM " + tableName + " WHERE token='" + token + "'", null);
-            c.moveToFirst();
-            count = c.getInt(0);
+            expireRowCounts();
+            count = getRowCount(db, table, token);
+            makeRoom(db, table, token);
+            if (insertRow(db, table, j.toString(), System.currentTimeMillis(), isAutomaticRecord, token) != -1) {
+                count = adjustRowCount(table, token, 1);
+            }
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not add Mixpanel data to table " + tableName + ". Re-initializing database.", e);
+            MPLog.e(LOGTAG, "Could not add Mixpanel data to table " + tableName + ".", e);
+            count = DB_UPDATE_ERROR;
+            recoverFromWriteFailure(e, table);
+        } finally {
+            mDb.release();
+        }
+        return count;
+    }
 
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            if (c != null) {
-                c.close();
-                c = null;
+    /**
+     * Adds a batch of records, possibly for several tables and tokens, to the SQLiteDatabase
+     * using a single transaction.
+     * @param records the records to insert, in the order they were received
+     * @return the number of records written, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
+     * on failure
+     */
+    @Override
+    public int addJSON(List<QueuedRecord> records) {
+        if (!this.belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
+            return DB_OUT_OF_MEMORY_ERROR;
+        }
+
+        int written = 0;
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            expireRowCounts();
+            for (final QueuedRecord record : records) {
+                // Make sure counts are known before the new rows land, so they aren't counted twice.
+                // New tokens are added outside the transaction, so a rollback can't leave stale ids behind.
+                getRowCount(db, record.getTable(), record.getToken());
+                getTokenId(db, record.getToken(), true);
             }
-            mDb.deleteDatabase();
+
+            db.beginTransaction();
+            try {
+                for (final QueuedRecord record : records) {
+                    makeRoom(db, record.getTable(), record.getToken());
+                    final long rowId = insertRow(db, record.getTable(), record.getJSON().toString(),
+                            record.getCreatedAt(), record.isAutomaticRecord(), record.getToken());
+                    if (rowId != -1) {
+                        adjustRowCount(record.getTable(), record.getToken(), 1);
+                        written++;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not add a batch of " + records.size() + " Mixpanel records.", e);
+
+            // See addJSON(JSONObject, ...) above, we treat failures here the same way.
+            written = DB_UPDATE_ERROR;
+            recoverFromWriteFailure(e, null);
         } finally {
-            if (c != null) {
-                c.close();
+            mDb.release();
+        }
+
+        if (written >= 0 && written != records.size()) {
+            // Some rows failed to insert without an exception, our running counts can't be trusted.
+            forgetRowCounts();
+        }
+        return written;
+    }
+
+    /**
+     * Returns the number of records currently queued in the given table for the given token.
+     * The count is read from the database the first time it is needed, and maintained
+     * incrementally by the adapter afterwards until it expires.
+     */
+    @Override
+    public int getQueueCount(Table table, String token) {
+        expireRowCounts();
+        synchronized (mRowCounts) {
+            final Map<String, Integer> tableCounts = mRowCounts.get(table);
+            if (null != tableCounts && tableCounts.containsKey(token)) {
+                return tableCounts.get(token);
             }
-            mDb.close();
+        }
+
+        int count = DB_UPDATE_ERROR;
+        try {
+            count = getRowCount(mDb.getReadableDatabase(), table, token);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not count Mixpanel records in " + table.getName() + ".", e);
+        } finally {
+            mDb.release();
         }
         return count;
     }
@@ -245,27 +649,39 @@ import com.mixpanel.android.util.MPLog;
      * @param table the table to remove events from, either "events" or "people"
      * @param includeAutomaticEvents whether or not automatic events should be included in the cleanup
      */
+    @Override
     public void cleanupEvents(String last_id, Table table, String token, boolean includeAutomaticEvents) {
         final String tableName = table.getName();
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer deleteQuery = new StringBuffer("_id <= " + last_id + " AND " + KEY_TOKEN + " = '" + token + "'");
+            final long tokenId = getTokenId(db, token, false);
+            if (tokenId == -1) {
+                return; // Nothing was ever stored for this token
+            }
+            StringBuffer deleteQuery = new StringBuffer("_id <= ? AND " + KEY_TOKEN_ID + " = ?");
 
             if (!includeAutomaticEvents) {
                 deleteQuery.append(" AND " + KEY_AUTOMATIC_DATA + "=0");
             }
-            db.delete(tableName, deleteQuery.toString(), null);
-        } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean sent Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            final int deleted;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                final SQLiteStatement statement = mDb.getStatement(db, "DELETE FROM " + tableName + " WHERE " + deleteQuery);
+                synchronized (statement) {
+                    statement.bindLong(1, Long.parseLong(last_id));
+                    statement.bindLong(2, tokenId);
+                    deleted = statement.executeUpdateDelete();
+                }
+            } else {
+                deleted = db.delete(tableName, deleteQuery.toString(), new String[]{ last_id, String.valueOf(tokenId) });
+            }
+            adjustRowCount(table, token, -deleted);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not clean sent Mixpanel records from " + tableName + ".", e);
+            recoverFromWriteFailure(e, table);
         } finally {
-            mDb.close();
+            mDb.release();
         }
     }
 
@@ -274,22 +690,43 @@ import com.mixpanel.android.util.MPLog;
      * @param time the unix epoch in milliseconds to remove events before
      * @param table the table to remove events from, either "events" or "people"
      */
+    @Override
     public void cleanupEvents(long time, Table table) {
         final String tableName = table.getName();
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_CREATED_AT + " <= " + time, null);
+            final int deleted = db.delete(tableName, KEY_CREATED_AT + " <= ?", new String[]{ String.valueOf(time) });
+            if (deleted > 0) {
+                // We don't know which tokens lost rows, so count them again when needed
+                forgetRowCounts(table);
+            }
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ". Re-initializing database.", e);
+            MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ".", e);
+            recoverFromWriteFailure(e, table);
+        } finally {
+            mDb.release();
+        }
+    }
 
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+    @Override
+    public int cleanupEvents(long time, Table table, int limit) {
+        final String tableName = table.getName();
+
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            final int deleted = db.delete(tableName, "_id IN (SELECT _id FROM " + tableName + " WHERE " + KEY_CREATED_AT + " <= ? ORDER BY " + KEY_CREATED_AT + " LIMIT ?)",
+                    new String[]{ String.valueOf(time), String.valueOf(limit) });
+            if (deleted > 0) {
+                forgetRowCounts(table);
+            }
+            return deleted;
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ".", e);
+            recoverFromWriteFailure(e, table);
+            return DB_UPDATE_ERROR;
         } finally {
-            mDb.close();
+            mDb.release();
         }
     }
 
@@ -297,6 +734,7 @@ import com.mixpanel.android.util.MPLog;
      * Removes automatic events.
      * @param token token of the project you want to remove automatic events from
      */
+    @Override
     public synchronized void cleanupAutomaticEvents(String token) {
         cleanupAutomaticEvents(Table.EVENTS, token);
         cleanupAutomaticEvents(Table.PEOPLE, token);
@@ -307,77 +745,491 @@ import com.mixpanel.android.util.MPLog;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_AUTOMATIC_DATA + " = 1 AND " + KEY_TOKEN + " = '" + token + "'", null);
+            final long tokenId = getTokenId(db, token, false);
+            if (tokenId != -1) {
+                final int deleted = db.delete(tableName, KEY_AUTOMATIC_DATA + " = 1 AND " + KEY_TOKEN_ID + " = ?", new String[]{ String.valueOf(tokenId) });
+                adjustRowCount(table, token, -deleted);
+            }
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean automatic Mixpanel records from " + tableName + ". Re-initializing database.", e);
-
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            MPLog.e(LOGTAG, "Could not clean automatic Mixpanel records from " + tableName + ".", e);
+            recoverFromWriteFailure(e, table);
         } finally {
-            mDb.close();
+            mDb.release();
         }
     }
 
+    @Override
     public void deleteDB() {
         mDb.deleteDatabase();
+        forgetRowCounts();
+        synchronized (mTokenIds) {
+            mTokenIds.clear();
+        }
+        mCompactedThrough.clear();
     }
 
+    /**
+     * Moves a step's worth of rows out of tables left by an upgrade, or failing that builds a missing
+     * index, or failing that converts a step's worth of rows to compact storage.
+     */
+    @Override
+    public boolean performMaintenance() {
+        return migrateRows(MIGRATE_ROWS_PER_STEP) || buildPendingIndex() || compactStoredRows(COMPACT_ROWS_PER_STEP);
+    }
+
+    /**
+     * Moves up to limit rows of a table that an upgrade set aside into the current table, converting
+     * them to the current layout on the way, and drops the old table once it is empty. Progress is
+     * kept in the database, so a migration that is interrupted carries on where it stopped.
+     *
+     * <p>Moved rows keep their _id, and sent rows are deleted by _id, so this must be called on the
+     * thread that sends the queue.
+     *
+     * @return true if there may be more rows left to move
+     */
+    public boolean migrateRows(int limit) {
+        if (mRowMigrationsDone) {
+            return false;
+        }
+
+        String sourceTable = null;
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            if (!hasTable(db, MIGRATIONS_TABLE)) {
+                mRowMigrationsDone = true;
+                return false;
+            }
+
+            String targetTable;
+            int fromVersion;
+            long lastId;
+            final Cursor marker = db.rawQuery("SELECT source_table, " + KEY_TARGET_TABLE + ", " + KEY_FROM_VERSION + ", " + KEY_LAST_ID +
+                    " FROM " + MIGRATIONS_TABLE + " LIMIT 1", null);
+            try {
+                if (!marker.moveToFirst()) {
+                    db.execSQL("DROP TABLE " + MIGRATIONS_TABLE);
+                    mRowMigrationsDone = true;
+                    return false;
+                }
+                sourceTable = marker.getString(0);
+                targetTable = marker.getString(1);
+                fromVersion = marker.getInt(2);
+                lastId = marker.getLong(3);
+            } finally {
+                marker.close();
+            }
+
+            final Table table = Table.PEOPLE.getName().equals(targetTable) ? Table.PEOPLE : Table.EVENTS;
+            final LegacyRows legacy = LegacyRows.forVersion(fromVersion);
+            if (null == legacy || !hasTable(db, sourceTable)) {
+                MPLog.w(LOGTAG, "Can't migrate Mixpanel records from " + sourceTable + " (version " + fromVersion + "), dropping them");
+                finishRowMigration(db, sourceTable);
+                return true;
+            }
+
+            final List<LegacyRow> rows = new ArrayList<LegacyRow>();
+            int read = 0;
+            final Cursor c = db.rawQuery("SELECT " + legacy.getColumns() + " FROM " + sourceTable + " WHERE _id > ? ORDER BY _id LIMIT ?",
+                    new String[]{ String.valueOf(lastId), String.valueOf(limit) });
+            try {
+                while (c.moveToNext()) {
+                    read++;
+                    lastId = c.getLong(0);
+                    final LegacyRow row = legacy.read(c, table);
+                    if (null != row) {
+                        rows.add(row);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+
+            // Outside the transaction, so a rollback can't leave unknown ids in mTokenIds
+            final long[] tokenIds = new long[rows.size()];
+            for (int i = 0; i < rows.size(); i++) {
+                tokenIds[i] = getTokenId(db, rows.get(i).token, true);
+            }
+
+            final SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + targetTable + " (_id, " + KEY_DATA + ", " +
+                    KEY_CREATED_AT + ", " + KEY_AUTOMATIC_DATA + ", " + KEY_TOKEN_ID + ") VALUES (?, ?, ?, ?, ?)");
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < rows.size(); i++) {
+                    final LegacyRow row = rows.get(i);
+                    insert.bindLong(1, row.id);
+                    insert.bindString(2, row.data);
+                    insert.bindLong(3, row.createdAt);
+                    insert.bindLong(4, row.isAutomatic ? 1 : 0);
+                    insert.bindLong(5, tokenIds[i]);
+                    insert.executeInsert();
+                }
+                if (read < limit) {
+                    finishRowMigration(db, sourceTable);
+                } else {
+                    db.execSQL("UPDATE " + MIGRATIONS_TABLE + " SET " + KEY_LAST_ID + " = ? WHERE source_table = ?",
+                            new Object[]{ lastId, sourceTable });
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+            }
+
+            forgetRowCounts(table);
+            mCompactedThrough.remove(table); // Moved rows are numbered below the rows it has seen
+            return true;
+        } catch (final SQLiteException e) {
+            // Records still waiting in the old table aren't sent, we'll try again the next time the app starts
+            MPLog.e(LOGTAG, "Could not migrate Mixpanel records from " + sourceTable + ".", e);
+            return false;
+        } catch (final IllegalStateException e) {
+            // Older platforms report rows too big for a CursorWindow this way
+            MPLog.e(LOGTAG, "Could not read Mixpanel records in " + sourceTable + " to migrate them.", e);
+            return false;
+        } finally {
+            mDb.release();
+        }
+    }
+
+    private static void finishRowMigration(SQLiteDatabase db, String sourceTable) {
+        MPLog.v(LOGTAG, "Finished migrating Mixpanel records from " + sourceTable);
+        db.execSQL("DROP TABLE IF EXISTS " + sourceTable);
+        db.execSQL("DELETE FROM " + MIGRATIONS_TABLE + " WHERE source_table = ?", new Object[]{ sourceTable });
+    }
+
+    /**
+     * Builds one of the indexes that a database upgraded from an older version doesn't have yet.
+     * Each index is built in a single step, so callers can let other work run between steps.
+     *
+     * @return true if there are more indexes left to build
+     */
+    public boolean buildPendingIndex() {
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            boolean built = false;
+            for (int i = 0; i < TOKEN_INDEX_NAMES.length; i++) {
+                if (!hasIndex(db, TOKEN_INDEX_NAMES[i])) {
+                    if (built) {
+                        return true;
+                    }
+                    MPLog.v(LOGTAG, "Building index " + TOKEN_INDEX_NAMES[i] + " on the Mixpanel events DB");
+                    db.execSQL(TOKEN_INDEXES[i]);
+                    built = true;
+                }
+            }
+            return false;
+        } catch (final SQLiteException e) {
+            // The queries still work without the index, we'll try again the next time the app starts
+            MPLog.e(LOGTAG, "Could not build indexes on the Mixpanel events DB.", e);
+            return false;
+        } finally {
+            mDb.release();
+        }
+    }
+
+    /**
+     * Returns the number of rows in the quarantine table, for testing and diagnostics.
+     */
+    public int getQuarantineCount() {
+        try {
+            return (int) DatabaseUtils.queryNumEntries(mDb.getReadableDatabase(), QUARANTINE_TABLE);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not count quarantined Mixpanel records.", e);
+            return DB_UPDATE_ERROR;
+        } finally {
+            mDb.release();
+        }
+    }
+
+    /**
+     * Each call writes a single row, however many records are already waiting. If MPConfig.MaximumDatabaseRecords
+     * is set, at most that many records wait for each token, and the oldest make room for new ones.
+     */
+    @Override
+    public boolean addWaitingPeopleRecord(JSONObject record, String token) {
+        if (!this.belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
+            return false;
+        }
+
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            final int maximum = mDb.mConfig.getMaximumDatabaseRecords();
+            if (maximum > 0) {
+                db.delete(WAITING_PEOPLE_TABLE, "_id IN (SELECT _id FROM " + WAITING_PEOPLE_TABLE + " WHERE " + KEY_TOKEN +
+                        " = ? ORDER BY _id DESC LIMIT -1 OFFSET ?)", new String[]{ token, String.valueOf(maximum - 1) });
+            }
+            final SQLiteStatement insert = mDb.getStatement(db, "INSERT INTO " + WAITING_PEOPLE_TABLE +
+                    " (" + KEY_TOKEN + ", " + KEY_DATA + ", " + KEY_CREATED_AT + ") VALUES (?, ?, ?)");
+            synchronized (insert) {
+                insert.bindString(1, token);
+                insert.bindString(2, record.toString());
+                insert.bindLong(3, System.currentTimeMillis());
+                return insert.executeInsert() != -1;
+            }
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not store a waiting Mixpanel People record.", e);
+            recoverFromWriteFailure(e, null);
+            return false;
+        } finally {
+            mDb.release();
+        }
+    }
+
+    @Override
+    public List<JSONObject> takeWaitingPeopleRecords(String token, String distinctId) {
+        List<JSONObject> ret = null;
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            db.beginTransaction();
+            Cursor c = null;
+            try {
+                c = db.rawQuery("SELECT _id, " + KEY_DATA + " FROM " + WAITING_PEOPLE_TABLE +
+                        " WHERE " + KEY_TOKEN + " = ? ORDER BY _id ASC", new String[]{ token });
+                long lastId = -1;
+                while (c.moveToNext()) {
+                    lastId = c.getLong(0);
+                    try {
+                        final JSONObject record = new JSONObject(c.getString(1));
+                        record.put("$distinct_id", distinctId);
+                        if (null == ret) {
+                            ret = new ArrayList<JSONObject>();
+                        }
+                        ret.add(record);
+                    } catch (final JSONException e) {
+                        MPLog.e(LOGTAG, "Unparsable object found in waiting people records", e);
+                    }
+                }
+                if (lastId != -1) {
+                    db.delete(WAITING_PEOPLE_TABLE, KEY_TOKEN + " = ? AND _id <= ?", new String[]{ token, String.valueOf(lastId) });
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                if (null != c) {
+                    c.close();
+                }
+                db.endTransaction();
+            }
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not read waiting Mixpanel People records.", e);
+            // Leave them for the next identify() rather than send them twice
+            ret = null;
+        } finally {
+            mDb.release();
+        }
+        return ret;
+    }
+
+    @Override
+    public void clearWaitingPeopleRecords(String token) {
+        try {
+            mDb.getWritableDatabase().delete(WAITING_PEOPLE_TABLE, KEY_TOKEN + " = ?", new String[]{ token });
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not clear waiting Mixpanel People records.", e);
+        } finally {
+            mDb.release();
+        }
+    }
+
+    @Override
+    public void cleanupWaitingPeopleRecords(long time) {
+        try {
+            mDb.getWritableDatabase().delete(WAITING_PEOPLE_TABLE, KEY_CREATED_AT + " <= ?", new String[]{ String.valueOf(time) });
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not clean timed-out waiting Mixpanel People records.", e);
+        } finally {
+            mDb.release();
+        }
+    }
+
+    // Reads every waiting People record it still can, so they can be put back once a damaged
+    // database has been replaced. Their table is always PEOPLE.
+    private List<QueuedRecord> salvageWaitingPeopleRecords() {
+        final List<QueuedRecord> ret = new ArrayList<QueuedRecord>();
+        Cursor c = null;
+        try {
+            final SQLiteDatabase db = mDb.getReadableDatabase();
+            c = db.rawQuery("SELECT " + KEY_TOKEN + ", " + KEY_DATA + ", " + KEY_CREATED_AT + " FROM " + WAITING_PEOPLE_TABLE +
+                    " ORDER BY _id ASC", null);
+            while (c.moveToNext()) {
+                try {
+                    ret.add(new QueuedRecord(new JSONObject(c.getString(1)), c.getString(0), Table.PEOPLE, false, c.getLong(2)));
+                } catch (final JSONException e) {
+                    MPLog.e(LOGTAG, "Unparsable object found in waiting people records", e);
+                }
+            }
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not read waiting Mixpanel People records out of the damaged DB, " + ret.size() + " saved.", e);
+        } catch (final IllegalStateException e) {
+            MPLog.e(LOGTAG, "Could not read waiting Mixpanel People records out of the damaged DB, " + ret.size() + " saved.", e);
+        } finally {
+            if (null != c) {
+                c.close();
+            }
+            mDb.release();
+        }
+        return ret;
+    }
+
+    private void restoreWaitingPeopleRecords(List<QueuedRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                final SQLiteStatement insert = mDb.getStatement(db, "INSERT INTO " + WAITING_PEOPLE_TABLE +
+                        " (" + KEY_TOKEN + ", " + KEY_DATA + ", " + KEY_CREATED_AT + ") VALUES (?, ?, ?)");
+                for (final QueuedRecord record : records) {
+                    synchronized (insert) {
+                        insert.bindString(1, record.getToken());
+                        insert.bindString(2, record.getJSON().toString());
+                        insert.bindLong(3, record.getCreatedAt());
+                        insert.executeInsert();
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not put " + records.size() + " waiting Mixpanel People records back into the new DB.", e);
+        } finally {
+            mDb.release();
+        }
+    }
+
+
+    /**
+     * Like {@link #generateDataString(Table, String, boolean, int)}, reading at most
+     * {@link MPConfig#getBulkUploadLimit()} rows.
+     */
+    public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents) {
+        return generateDataString(table, token, includeAutomaticEvents, mDb.mConfig.getBulkUploadLimit());
+    }
 
     /**
      * Returns the data string to send to Mixpanel and the maximum ID of the row that
      * we're sending, so we know what rows to delete when a track request was successful.
+     * At most limit rows will be included.
      *
      * @param table the table to read the JSON from, either "events" or "people"
      * @param token the token of the project you want to retrieve the records for
      * @param includeAutomaticEvents whether or not it should include pre-track records
+     * @param limit the maximum number of records to include
      * @return String array containing the maximum ID, the data string
      * representing the events (or null if none could be successfully retrieved) and the total
      * current number of events in the queue.
      */
-    public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents) {
+    public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents, int limit) {
+        final DataBatch batch = generateDataBatch(table, token, includeAutomaticEvents, limit);
+        if (null == batch) {
+            return null;
+        }
+
+        final String data = new String(batch.getData(), 0, batch.getDataLength(), UTF_8);
+        final String[] ret = {batch.getLastId(), data, String.valueOf(batch.getQueueCount())};
+        return ret;
+    }
+
+    /**
+     * Returns up to limit records as a UTF-8 encoded JSON array, along with the maximum ID of the
+     * rows included so we know what rows to delete when a track request was successful.
+     * The stored rows are already serialized JSON objects, so they're copied into the array as is.
+     *
+     * @param table the table to read the JSON from, either "events" or "people"
+     * @param token the token of the project you want to retrieve the records for
+     * @param includeAutomaticEvents whether or not it should include pre-track records
+     * @param limit the maximum number of records to include
+     * @return the batch, or null if there are no records or they couldn't be read
+     */
+    @Override
+    public DataBatch generateDataBatch(Table table, String token, boolean includeAutomaticEvents, int limit) {
+        return generateDataBatch(table, token, includeAutomaticEvents, limit, null);
+    }
+
+    /**
+     * Rows are sent and deleted in _id order, so the rows after a batch are the ones with a greater _id.
+     */
+    @Override
+    public DataBatch generateDataBatch(Table table, String token, boolean includeAutomaticEvents, int limit, String afterId) {
         Cursor c = null;
         Cursor queueCountCursor = null;
-        String data = null;
+        ExposedByteArrayOutputStream data = null;
         String last_id = null;
-        String queueCount = null;
+        int recordCount = 0;
+        int queueCount = 0;
+        final List<Long> malformedIds = new ArrayList<Long>();
+        boolean unreadable = false;
         final String tableName = table.getName();
         final SQLiteDatabase db = mDb.getReadableDatabase();
 
         try {
-            StringBuffer rawDataQuery = new StringBuffer("SELECT * FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
-            StringBuffer queueCountQuery = new StringBuffer("SELECT COUNT(*) FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
+            final long tokenId = getTokenId(db, token, false);
+            if (tokenId == -1) {
+                return null; // Nothing was ever stored for this token
+            }
+            final String[] args = { String.valueOf(tokenId), null == afterId ? "0" : afterId };
+            StringBuffer rawDataQuery = new StringBuffer("SELECT _id, " + KEY_DATA + ", " + KEY_ENCODING + " FROM " + tableName + " WHERE " + KEY_TOKEN_ID + " = ? AND _id > ? ");
+            StringBuffer queueCountQuery = new StringBuffer("SELECT COUNT(*) FROM " + tableName + " WHERE " + KEY_TOKEN_ID + " = ? AND _id > ?");
             if (!includeAutomaticEvents) {
                 rawDataQuery.append("AND " + KEY_AUTOMATIC_DATA + " = 0 ");
                 queueCountQuery.append(" AND " + KEY_AUTOMATIC_DATA + " = 0");
             }
 
-            rawDataQuery.append("ORDER BY " + KEY_CREATED_AT + " ASC LIMIT 50");
-            c = db.rawQuery(rawDataQuery.toString(), null);
+            // By _id, like the afterId filter and cleanupEvents(), even if created_at is out of order
+            rawDataQuery.append("ORDER BY _id ASC LIMIT " + Math.max(1, limit));
+            c = db.rawQuery(rawDataQuery.toString(), args);
 
-            queueCountCursor = db.rawQuery(queueCountQuery.toString(), null);
+            queueCountCursor = db.rawQuery(queueCountQuery.toString(), args);
             queueCountCursor.moveToFirst();
-            queueCount = String.valueOf(queueCountCursor.getInt(0));
-
-            final JSONArray arr = new JSONArray();
+            queueCount = queueCountCursor.getInt(0);
 
+            final int idColumn = c.getColumnIndex("_id");
+            final int dataColumn = c.getColumnIndex(KEY_DATA);
+            final int encodingColumn = c.getColumnIndex(KEY_ENCODING);
+            data = new ExposedByteArrayOutputStream();
+            data.write('[');
             while (c.moveToNext()) {
                 if (c.isLast()) {
-                    last_id = c.getString(c.getColumnIndex("_id"));
+                    last_id = c.getString(idColumn);
                 }
-                try {
-                    final JSONObject j = new JSONObject(c.getString(c.getColumnIndex(KEY_DATA)));
-                    arr.put(j);
-                } catch (final JSONException e) {
-                    // Ignore this object
+                final int rowStart = data.size();
+                if (recordCount > 0) {
+                    data.write(',');
                 }
-            }
+                final int recordStart = data.size();
 
-            if (arr.length() > 0) {
-                data = arr.toString();
+                boolean wellFormed;
+                if (c.getInt(encodingColumn) == CompactRecordCodec.ENCODING) {
+                    // Decoded straight into the batch, as the same text the record was stored from
+                    try {
+                        mCodec.decode(c.getBlob(dataColumn), data);
+                        wellFormed = isJSONObjectText(data.getBuffer(), recordStart, data.size());
+                    } catch (final DataFormatException e) {
+                        wellFormed = false;
+                    }
+                } else {
+                    final String row = c.getString(dataColumn);
+                    if (null == row || row.isEmpty()) {
+                        data.truncate(rowStart);
+                        continue; // Ignore this row
+                    }
+                    final byte[] rowBytes = row.getBytes(UTF_8);
+                    data.write(rowBytes, 0, rowBytes.length);
+                    wellFormed = isJSONObjectText(rowBytes, 0, rowBytes.length);
+                }
+
+                if (!wellFormed) {
+                    // The rows aren't parsed, so one damaged row would spoil the whole batch
+                    data.truncate(rowStart);
+                    malformedIds.add(c.getLong(idColumn));
+                    continue;
+                }
+                recordCount++;
             }
+            data.write(']');
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not pull records for Mixpanel out of database " + tableName + ". Waiting to send.", e);
 
@@ -387,8 +1239,15 @@ import com.mixpanel.android.util.MPLog;
             // A corrupted or disk-full DB will be cleaned up on the next write or clear call.
             last_id = null;
             data = null;
+            unreadable = true;
+        } catch (final IllegalStateException e) {
+            // Older platforms report rows too big for a CursorWindow this way
+            MPLog.e(LOGTAG, "Could not read records for Mixpanel out of database " + tableName + ". Waiting to send.", e);
+            last_id = null;
+            data = null;
+            unreadable = true;
         } finally {
-            mDb.close();
+            mDb.release();
             if (c != null) {
                 c.close();
             }
@@ -397,9 +1256,16 @@ import com.mixpanel.android.util.MPLog;
             }
         }
 
-        if (last_id != null && data != null) {
-            final String[] ret = {last_id, data, queueCount};
-            return ret;
+        if (!malformedIds.isEmpty()) {
+            quarantineRows(table, token, malformedIds, "malformed");
+        }
+        if (unreadable) {
+            // If particular rows are at fault, move them aside so the next attempt can succeed
+            quarantineUnreadableRows(table, token, includeAutomaticEvents, limit);
+        }
+
+        if (last_id != null && data != null && recordCount > 0) {
+            return new DataBatch(last_id, data.getBuffer(), data.size(), recordCount, queueCount);
         }
         return null;
     }
@@ -408,6 +1274,531 @@ import com.mixpanel.android.util.MPLog;
         return mDb.mDatabaseFile;
     }
 
+    /**
+     * Converts up to limit rows of each table that are still stored as JSON text to the compact
+     * encoding, so a queue written before CompactStorage was turned on shrinks a step at a time.
+     * Does nothing unless CompactStorage is on.
+     *
+     * @return true if there may be more rows left to convert
+     */
+    public boolean compactStoredRows(int limit) {
+        if (!mCompactStorage) {
+            return false;
+        }
+
+        boolean more = false;
+        for (final Table table : Table.values()) {
+            final String tableName = table.getName();
+            final Long compactedThrough = mCompactedThrough.get(table);
+            final List<Long> ids = new ArrayList<Long>();
+            final List<String> rows = new ArrayList<String>();
+            try {
+                final SQLiteDatabase db = mDb.getWritableDatabase();
+                final Cursor c = db.rawQuery("SELECT _id, " + KEY_DATA + " FROM " + tableName + " WHERE " + KEY_ENCODING + " = 0 AND _id > ? ORDER BY _id LIMIT ?",
+                        new String[]{ String.valueOf(null == compactedThrough ? 0 : compactedThrough), String.valueOf(limit) });
+                try {
+                    while (c.moveToNext()) {
+                        ids.add(c.getLong(0));
+                        rows.add(c.getString(1));
+                    }
+                } finally {
+                    c.close();
+                }
+                if (ids.isEmpty()) {
+                    continue;
+                }
+
+                final SQLiteStatement update = mDb.getStatement(db, "UPDATE " + tableName + " SET " + KEY_DATA + " = ?, " +
+                        KEY_ENCODING + " = " + CompactRecordCodec.ENCODING + " WHERE _id = ? AND " + KEY_ENCODING + " = 0");
+                db.beginTransaction();
+                try {
+                    for (int i = 0; i < ids.size(); i++) {
+                        final String row = rows.get(i);
+                        if (null == row || row.isEmpty()) {
+                            continue; // Left as it is, generateDataBatch() skips it
+                        }
+                        synchronized (update) {
+                            update.bindBlob(1, mCodec.encode(row));
+                            update.bindLong(2, ids.get(i));
+                            update.execute();
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                mCompactedThrough.put(table, ids.get(ids.size() - 1));
+                more = more || ids.size() == limit;
+            } catch (final SQLiteException e) {
+                // Text rows are still sent as they are, we'll try again the next time the app starts
+                MPLog.e(LOGTAG, "Could not convert Mixpanel records in " + tableName + " to compact storage.", e);
+                return false;
+            } catch (final IllegalStateException e) {
+                // Older platforms report rows too big for a CursorWindow this way
+                MPLog.e(LOGTAG, "Could not read Mixpanel records in " + tableName + " to convert them to compact storage.", e);
+                return false;
+            } finally {
+                mDb.release();
+            }
+        }
+        return more;
+    }
+
+    private static boolean hasIndex(SQLiteDatabase db, String name) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name = ?", new String[]{ name }) > 0;
+    }
+
+    private static boolean hasTable(SQLiteDatabase db, String name) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?", new String[]{ name }) > 0;
+    }
+
+    /**
+     * A row read from a queue table of an older database version.
+     */
+    private static class LegacyRow {
+        public LegacyRow(long id, String data, long createdAt, boolean isAutomatic, String token) {
+            this.id = id;
+            this.data = data;
+            this.createdAt = createdAt;
+            this.isAutomatic = isAutomatic;
+            this.token = token;
+        }
+
+        public final long id;
+        public final String data;
+        public final long createdAt;
+        public final boolean isAutomatic;
+        public final String token;
+    }
+
+    /**
+     * Reads the rows of a queue table as one database version laid them out. An upgrade from a new
+     * version that changes rows needs a case in forVersion() and in MPDatabaseHelper.onUpgrade().
+     */
+    private static abstract class LegacyRows {
+        // The columns to select, starting with _id
+        public abstract String getColumns();
+
+        // Returns null for a row that can't be migrated, it is dropped
+        public abstract LegacyRow read(Cursor c, Table table);
+
+        public static LegacyRows forVersion(int version) {
+            switch (version) {
+                case 4:
+                    return new Version4Rows();
+                case 5:
+                case 6: // Only added indexes
+                    return new Version5Rows();
+                default:
+                    return null;
+            }
+        }
+    }
+
+    // Version 4 rows have no token or automatic_data columns, the token is read from the record
+    private static class Version4Rows extends LegacyRows {
+        @Override
+        public String getColumns() {
+            return "_id, " + KEY_DATA + ", " + KEY_CREATED_AT;
+        }
+
+        @Override
+        public LegacyRow read(Cursor c, Table table) {
+            final String data = c.getString(1);
+            if (null == data) {
+                return null;
+            }
+            try {
+                final JSONObject j = new JSONObject(data);
+                final String token = table == Table.EVENTS ? j.getJSONObject("properties").getString("token") : j.getString("$token");
+                return new LegacyRow(c.getLong(0), data, c.getLong(2), false, token);
+            } catch (final JSONException e) {
+                return null;
+            }
+        }
+    }
+
+    // Version 5 and 6 rows hold the token as text
+    private static class Version5Rows extends LegacyRows {
+        @Override
+        public String getColumns() {
+            return "_id, " + KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_AUTOMATIC_DATA + ", " + KEY_TOKEN;
+        }
+
+        @Override
+        public LegacyRow read(Cursor c, Table table) {
+            final String data = c.getString(1);
+            if (null == data) {
+                return null;
+            }
+            return new LegacyRow(c.getLong(0), data, c.getLong(2), c.getInt(3) != 0, c.getString(4));
+        }
+    }
+
+    // Cheap sanity check for the UTF-8 text of stored rows in bytes[start, end),
+    // which are always written by JSONObject.toString()
+    private static boolean isJSONObjectText(byte[] bytes, int start, int end) {
+        return end > start && bytes[start] == '{' && bytes[end - 1] == '}';
+    }
+
+    // Evicts records, if needed, so one more record for token fits under MPConfig.MaximumDatabaseRecords.
+    // Must be called with db open for writing.
+    private void makeRoom(SQLiteDatabase db, Table table, String token) {
+        final int maximum = mDb.mConfig.getMaximumDatabaseRecords();
+        if (maximum <= 0) {
+            return;
+        }
+
+        final boolean perToken = mEvictionPolicy == EvictionPolicy.PER_TOKEN;
+        int count = perToken ? getRowCount(db, table, token) : getTableRowCount(db, table);
+        if (count - maximum + 1 > 0) {
+            // Never evict on a cached count alone, another process may have sent rows since it was read
+            forgetRowCounts(table, perToken ? token : null);
+            count = perToken ? getRowCount(db, table, token) : getTableRowCount(db, table);
+        }
+        final int excess = count - maximum + 1;
+        if (excess <= 0) {
+            return;
+        }
+
+        final String tableName = table.getName();
+        final StringBuilder query = new StringBuilder("SELECT _id, (SELECT " + KEY_TOKEN + " FROM " + TOKENS_TABLE +
+                " WHERE " + TOKENS_TABLE + "._id = " + tableName + "." + KEY_TOKEN_ID + ") FROM " + tableName);
+        String[] args = null;
+        if (perToken) {
+            query.append(" WHERE " + KEY_TOKEN_ID + " = ?");
+            args = new String[]{ String.valueOf(getTokenId(db, token, false)) };
+        }
+        query.append(" ORDER BY ");
+        if (mEvictionPolicy == EvictionPolicy.AUTOMATIC_FIRST) {
+            query.append(KEY_AUTOMATIC_DATA + " DESC, ");
+        }
+        query.append(KEY_CREATED_AT + " ASC, _id ASC LIMIT " + Math.min(excess, MAX_EVICTIONS_PER_INSERT));
+
+        final List<Long> ids = new ArrayList<Long>();
+        final List<String> tokens = new ArrayList<String>();
+        final Cursor c = db.rawQuery(query.toString(), args);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+                tokens.add(c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+
+        final SQLiteStatement delete = mDb.getStatement(db, "DELETE FROM " + table.getName() + " WHERE _id = ?");
+        for (int i = 0; i < ids.size(); i++) {
+            synchronized (delete) {
+                delete.bindLong(1, ids.get(i));
+                delete.execute();
+            }
+            adjustRowCount(table, tokens.get(i), -1);
+        }
+        if (MPLog.isLoggable(MPLog.WARN)) {
+            MPLog.w(LOGTAG, "Mixpanel " + table.getName() + " queue is full (" + count + " records, limit " + maximum +
+                    "), evicted " + ids.size() + " records");
+        }
+    }
+
+    // Moves the given rows of table into the quarantine table
+    private void quarantineRows(Table table, String token, List<Long> ids, String reason) {
+        final String tableName = table.getName();
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                final SQLiteStatement copy = mDb.getStatement(db, "INSERT INTO " + QUARANTINE_TABLE + " (" +
+                        KEY_SOURCE_TABLE + ", " + KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_TOKEN + ", " + KEY_REASON + ") " +
+                        "SELECT ?, " + KEY_DATA + ", " + KEY_CREATED_AT + ", ?, ? FROM " + tableName + " WHERE _id = ?");
+                final SQLiteStatement delete = mDb.getStatement(db, "DELETE FROM " + tableName + " WHERE _id = ?");
+                for (final Long id : ids) {
+                    // The copy happens inside SQLite, so it works even for rows too big to read
+                    synchronized (copy) {
+                        copy.bindString(1, tableName);
+                        copy.bindString(2, token);
+                        copy.bindString(3, reason);
+                        copy.bindLong(4, id);
+                        copy.executeInsert();
+                    }
+                    synchronized (delete) {
+                        delete.bindLong(1, id);
+                        delete.execute();
+                    }
+                }
+                db.execSQL("DELETE FROM " + QUARANTINE_TABLE + " WHERE _id <= (SELECT MAX(_id) FROM " + QUARANTINE_TABLE + ") - " + QUARANTINE_LIMIT);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            adjustRowCount(table, token, -ids.size());
+            MPLog.w(LOGTAG, "Quarantined " + ids.size() + " " + reason + " Mixpanel records from " + tableName);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not quarantine Mixpanel records from " + tableName + ".", e);
+            recoverFromWriteFailure(e, table);
+        } finally {
+            mDb.release();
+        }
+    }
+
+    // Called after a batch couldn't be read. Reads the rows of the batch one at a time,
+    // and quarantines the ones that still can't be read.
+    private void quarantineUnreadableRows(Table table, String token, boolean includeAutomaticEvents, int limit) {
+        final String tableName = table.getName();
+        final List<Long> unreadableIds = new ArrayList<Long>();
+        try {
+            final SQLiteDatabase db = mDb.getReadableDatabase();
+            final StringBuilder idQuery = new StringBuilder("SELECT _id FROM " + tableName + " WHERE " + KEY_TOKEN_ID + " = ?");
+            if (!includeAutomaticEvents) {
+                idQuery.append(" AND " + KEY_AUTOMATIC_DATA + " = 0");
+            }
+            idQuery.append(" ORDER BY _id ASC LIMIT " + Math.max(1, limit));
+
+            final List<Long> ids = new ArrayList<Long>();
+            final Cursor idCursor = db.rawQuery(idQuery.toString(), new String[]{ String.valueOf(getTokenId(db, token, false)) });
+            try {
+                while (idCursor.moveToNext()) {
+                    ids.add(idCursor.getLong(0));
+                }
+            } finally {
+                idCursor.close();
+            }
+
+            for (final Long id : ids) {
+                Cursor rowCursor = null;
+                try {
+                    rowCursor = db.rawQuery("SELECT " + KEY_DATA + ", " + KEY_ENCODING + " FROM " + tableName + " WHERE _id = ?", new String[]{ String.valueOf(id) });
+                    if (rowCursor.moveToFirst()) {
+                        if (rowCursor.getInt(1) == CompactRecordCodec.ENCODING) {
+                            rowCursor.getBlob(0);
+                        } else {
+                            rowCursor.getString(0);
+                        }
+                    }
+                } catch (final SQLiteException e) {
+                    unreadableIds.add(id);
+                } catch (final IllegalStateException e) {
+                    unreadableIds.add(id);
+                } finally {
+                    if (null != rowCursor) {
+                        rowCursor.close();
+                    }
+                }
+            }
+        } catch (final SQLiteException e) {
+            // Not a problem with particular rows, leave things be and try again later
+            MPLog.e(LOGTAG, "Could not look for unreadable Mixpanel records in " + tableName + ".", e);
+        } finally {
+            mDb.release();
+        }
+
+        if (!unreadableIds.isEmpty()) {
+            quarantineRows(table, token, unreadableIds, "unreadable");
+        }
+    }
+
+    // Decides what to do after a failed write. Queued records are kept unless the database
+    // file fails its integrity check, since most failures don't mean the data is lost.
+    // table is the table being written, or null if it isn't known.
+    private void recoverFromWriteFailure(SQLiteException e, Table table) {
+        // Running counts may not match what actually happened
+        forgetRowCounts();
+
+        if (!mDb.isIntact()) {
+            MPLog.e(LOGTAG, "Mixpanel events DB is damaged. Re-initializing database.");
+            // Keep whatever waiting People records can still be read, rather than lose them with the file
+            final List<QueuedRecord> waiting = salvageWaitingPeopleRecords();
+            deleteDB();
+            restoreWaitingPeopleRecords(waiting);
+        } else if (e instanceof SQLiteFullException) {
+            // Space freed inside the file can be reused by later inserts, even if the disk stays full
+            evictForSpace(null == table ? Table.EVENTS : table);
+        }
+    }
+
+    private void evictForSpace(Table table) {
+        final String tableName = table.getName();
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            final StringBuilder query = new StringBuilder("DELETE FROM " + tableName + " WHERE _id IN (SELECT _id FROM " + tableName + " ORDER BY ");
+            if (mEvictionPolicy == EvictionPolicy.AUTOMATIC_FIRST) {
+                query.append(KEY_AUTOMATIC_DATA + " DESC, ");
+            }
+            query.append(KEY_CREATED_AT + " ASC, _id ASC LIMIT " + MAX_EVICTIONS_PER_INSERT + ")");
+            db.execSQL(query.toString());
+            MPLog.w(LOGTAG, "Mixpanel events DB is out of space, evicted up to " + MAX_EVICTIONS_PER_INSERT + " records from " + tableName);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not evict Mixpanel records from " + tableName + " to make space.", e);
+        } finally {
+            mDb.release();
+        }
+    }
+
+    // Returns the known row count for table, over all tokens, reading it from db if it isn't known yet.
+    private int getTableRowCount(SQLiteDatabase db, Table table) {
+        synchronized (mRowCounts) {
+            Integer count = mTableRowCounts.get(table);
+            if (null == count) {
+                final SQLiteStatement statement = mDb.getStatement(db, "SELECT COUNT(*) FROM " + table.getName());
+                synchronized (statement) {
+                    count = (int) statement.simpleQueryForLong();
+                }
+                mTableRowCounts.put(table, count);
+            }
+            return count;
+        }
+    }
+
+    // Returns the known row count for table and token, reading it from db if it isn't known yet.
+    private int getRowCount(SQLiteDatabase db, Table table, String token) {
+        synchronized (mRowCounts) {
+            Map<String, Integer> tableCounts = mRowCounts.get(table);
+            if (null == tableCounts) {
+                tableCounts = new HashMap<String, Integer>();
+                mRowCounts.put(table, tableCounts);
+            }
+
+            Integer count = tableCounts.get(token);
+            if (null == count) {
+                final long tokenId = getTokenId(db, token, false);
+                if (tokenId == -1) {
+                    count = 0;
+                } else {
+                    final SQLiteStatement statement = mDb.getStatement(db, "SELECT COUNT(*) FROM " + table.getName() + " WHERE " + KEY_TOKEN_ID + " = ?");
+                    synchronized (statement) {
+                        statement.bindLong(1, tokenId);
+                        count = (int) statement.simpleQueryForLong();
+                    }
+                }
+                tableCounts.put(token, count);
+            }
+            return count;
+        }
+    }
+
+    // Returns the new row id, or -1 if the row couldn't be inserted
+    private long insertRow(SQLiteDatabase db, Table table, String data, long createdAt, boolean isAutomaticRecord, String token) {
+        final long tokenId = getTokenId(db, token, true);
+        if (tokenId == -1) {
+            return -1;
+        }
+
+        final SQLiteStatement statement = mDb.getStatement(db, "INSERT INTO " + table.getName() + " (" +
+                KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_AUTOMATIC_DATA + ", " + KEY_TOKEN_ID + ", " + KEY_ENCODING + ") VALUES (?, ?, ?, ?, ?)");
+        synchronized (statement) {
+            if (mCompactStorage) {
+                statement.bindBlob(1, mCodec.encode(data));
+                statement.bindLong(5, CompactRecordCodec.ENCODING);
+            } else {
+                statement.bindString(1, data);
+                statement.bindLong(5, 0);
+            }
+            statement.bindLong(2, createdAt);
+            statement.bindLong(3, isAutomaticRecord ? 1 : 0);
+            statement.bindLong(4, tokenId);
+            return statement.executeInsert();
+        }
+    }
+
+    // Returns the _id of token in the tokens table, adding it if create is true.
+    // Returns -1 if the token isn't there and wasn't added.
+    private long getTokenId(SQLiteDatabase db, String token, boolean create) {
+        synchronized (mTokenIds) {
+            final Long knownId = mTokenIds.get(token);
+            if (null != knownId) {
+                return knownId;
+            }
+
+            long tokenId;
+            final SQLiteStatement select = mDb.getStatement(db, "SELECT _id FROM " + TOKENS_TABLE + " WHERE " + KEY_TOKEN + " = ?");
+            synchronized (select) {
+                select.bindString(1, token);
+                try {
+                    tokenId = select.simpleQueryForLong();
+                } catch (final SQLiteDoneException e) {
+                    tokenId = -1;
+                }
+            }
+
+            if (tokenId == -1 && create) {
+                final SQLiteStatement insert = mDb.getStatement(db, "INSERT INTO " + TOKENS_TABLE + " (" + KEY_TOKEN + ") VALUES (?)");
+                synchronized (insert) {
+                    insert.bindString(1, token);
+                    tokenId = insert.executeInsert();
+                }
+            }
+
+            if (tokenId != -1) {
+                mTokenIds.put(token, tokenId);
+            }
+            return tokenId;
+        }
+    }
+
+    // Adds delta to a known row count. Unknown counts stay unknown, they'll be read on next use.
+    private int adjustRowCount(Table table, String token, int delta) {
+        synchronized (mRowCounts) {
+            final Integer tableCount = mTableRowCounts.get(table);
+            if (null != tableCount) {
+                mTableRowCounts.put(table, Math.max(0, tableCount + delta));
+            }
+
+            final Map<String, Integer> tableCounts = mRowCounts.get(table);
+            if (null == tableCounts || !tableCounts.containsKey(token)) {
+                return DB_UNDEFINED_CODE;
+            }
+            final int count = Math.max(0, tableCounts.get(token) + delta);
+            tableCounts.put(token, count);
+            return count;
+        }
+    }
+
+    private void forgetRowCounts(Table table) {
+        synchronized (mRowCounts) {
+            mRowCounts.remove(table);
+            mTableRowCounts.remove(table);
+        }
+    }
+
+    // Forgets the count of one token in table, or the whole-table count if token is null
+    private void forgetRowCounts(Table table, String token) {
+        synchronized (mRowCounts) {
+            if (null == token) {
+                mTableRowCounts.remove(table);
+            } else {
+                final Map<String, Integer> tableCounts = mRowCounts.get(table);
+                if (null != tableCounts) {
+                    tableCounts.remove(token);
+                }
+            }
+        }
+    }
+
+    private void forgetRowCounts() {
+        synchronized (mRowCounts) {
+            mRowCounts.clear();
+            mTableRowCounts.clear();
+        }
+    }
+
+    // Another process may have written to the database since the counts were read, and our
+    // running counts can't see that. Forgets them once they are older than ROW_COUNT_MAX_AGE_MILLIS,
+    // so they are read again. Not called between reading a count and inserting, see addJSON.
+    private void expireRowCounts() {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (mRowCounts) {
+            synchronized (sRowCounts) {
+                final Long checkedAt = sRowCountsCheckedAt.get(mDb.mDatabaseFile);
+                if (null != checkedAt && now - checkedAt < ROW_COUNT_MAX_AGE_MILLIS) {
+                    return;
+                }
+                sRowCountsCheckedAt.put(mDb.mDatabaseFile, now);
+            }
+            mRowCounts.clear();
+            mTableRowCounts.clear();
+        }
+    }
+
     /* For testing use only, do not call from in production code */
     protected boolean belowMemThreshold() {
         return mDb.belowMemThreshold();
@@ -0,0 +1,232 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.MPLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link EventStore} that keeps records on the heap. Nothing survives the process, so this is
+ * meant for tests and benchmarks, or apps that would rather lose records than write them to disk.
+ *
+ * <p>Records are held as the UTF-8 bytes of their JSON, and are given ids in the order they are added.
+ */
+/* package */ class MemoryEventStore implements EventStore {
+    public MemoryEventStore() {
+        mRecords = new HashMap<MPDbAdapter.Table, List<StoredRecord>>();
+        for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+            mRecords.put(table, new ArrayList<StoredRecord>());
+        }
+        mWaitingPeopleRecords = new ArrayList<StoredRecord>();
+        mNextId = 1;
+    }
+
+    @Override
+    public synchronized int addJSON(JSONObject j, String token, MPDbAdapter.Table table, boolean isAutomaticRecord) {
+        add(table, token, j, isAutomaticRecord, System.currentTimeMillis());
+        return getQueueCount(table, token);
+    }
+
+    @Override
+    public synchronized int addJSON(List<MPDbAdapter.QueuedRecord> records) {
+        for (final MPDbAdapter.QueuedRecord record : records) {
+            add(record.getTable(), record.getToken(), record.getJSON(), record.isAutomaticRecord(), record.getCreatedAt());
+        }
+        return records.size();
+    }
+
+    @Override
+    public synchronized MPDbAdapter.DataBatch generateDataBatch(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents, int limit) {
+        return generateDataBatch(table, token, includeAutomaticEvents, limit, null);
+    }
+
+    @Override
+    public synchronized MPDbAdapter.DataBatch generateDataBatch(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents, int limit, String afterId) {
+        final long after = null == afterId ? 0 : Long.parseLong(afterId);
+        final MPDbAdapter.ExposedByteArrayOutputStream data = new MPDbAdapter.ExposedByteArrayOutputStream();
+        final int maxRecords = Math.max(1, limit);
+        long lastId = -1;
+        int recordCount = 0;
+        int queueCount = 0;
+
+        data.write('[');
+        for (final StoredRecord record : mRecords.get(table)) {
+            if (record.id <= after || !record.token.equals(token) || (record.isAutomatic && !includeAutomaticEvents)) {
+                continue;
+            }
+            queueCount++;
+            if (recordCount < maxRecords) {
+                if (recordCount > 0) {
+                    data.write(',');
+                }
+                data.write(record.data, 0, record.data.length);
+                lastId = record.id;
+                recordCount++;
+            }
+        }
+        data.write(']');
+
+        if (recordCount == 0) {
+            return null;
+        }
+        return new MPDbAdapter.DataBatch(String.valueOf(lastId), data.getBuffer(), data.size(), recordCount, queueCount);
+    }
+
+    @Override
+    public synchronized void cleanupEvents(String lastId, MPDbAdapter.Table table, String token, boolean includeAutomaticEvents) {
+        final long last = Long.parseLong(lastId);
+        final Iterator<StoredRecord> records = mRecords.get(table).iterator();
+        while (records.hasNext()) {
+            final StoredRecord record = records.next();
+            if (record.id > last) {
+                break; // Ids only grow
+            }
+            if (record.token.equals(token) && (includeAutomaticEvents || !record.isAutomatic)) {
+                records.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void cleanupEvents(long time, MPDbAdapter.Table table) {
+        cleanupEvents(time, table, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized int cleanupEvents(long time, MPDbAdapter.Table table, int limit) {
+        int removed = 0;
+        final Iterator<StoredRecord> records = mRecords.get(table).iterator();
+        while (records.hasNext() && removed < limit) {
+            if (records.next().createdAt <= time) {
+                records.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized void cleanupAutomaticEvents(String token) {
+        for (final List<StoredRecord> tableRecords : mRecords.values()) {
+            final Iterator<StoredRecord> records = tableRecords.iterator();
+            while (records.hasNext()) {
+                final StoredRecord record = records.next();
+                if (record.isAutomatic && record.token.equals(token)) {
+                    records.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getQueueCount(MPDbAdapter.Table table, String token) {
+        int count = 0;
+        for (final StoredRecord record : mRecords.get(table)) {
+            if (record.token.equals(token)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized boolean addWaitingPeopleRecord(JSONObject record, String token) {
+        mWaitingPeopleRecords.add(new StoredRecord(mNextId, token, record.toString().getBytes(UTF_8), false, System.currentTimeMillis()));
+        mNextId++;
+        return true;
+    }
+
+    @Override
+    public synchronized List<JSONObject> takeWaitingPeopleRecords(String token, String distinctId) {
+        List<JSONObject> ret = null;
+        final Iterator<StoredRecord> records = mWaitingPeopleRecords.iterator();
+        while (records.hasNext()) {
+            final StoredRecord record = records.next();
+            if (!record.token.equals(token)) {
+                continue;
+            }
+            records.remove();
+            try {
+                final JSONObject message = new JSONObject(new String(record.data, UTF_8));
+                message.put("$distinct_id", distinctId);
+                if (null == ret) {
+                    ret = new ArrayList<JSONObject>();
+                }
+                ret.add(message);
+            } catch (final JSONException e) {
+                MPLog.e(LOGTAG, "Unparsable object found in waiting people records", e);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized void clearWaitingPeopleRecords(String token) {
+        final Iterator<StoredRecord> records = mWaitingPeopleRecords.iterator();
+        while (records.hasNext()) {
+            if (records.next().token.equals(token)) {
+                records.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void cleanupWaitingPeopleRecords(long time) {
+        final Iterator<StoredRecord> records = mWaitingPeopleRecords.iterator();
+        while (records.hasNext()) {
+            if (records.next().createdAt <= time) {
+                records.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void deleteDB() {
+        for (final List<StoredRecord> tableRecords : mRecords.values()) {
+            tableRecords.clear();
+        }
+        mWaitingPeopleRecords.clear();
+    }
+
+    @Override
+    public boolean performMaintenance() {
+        return false; // Nothing to maintain
+    }
+
+    private void add(MPDbAdapter.Table table, String token, JSONObject j, boolean isAutomaticRecord, long createdAt) {
+        mRecords.get(table).add(new StoredRecord(mNextId, token, j.toString().getBytes(UTF_8), isAutomaticRecord, createdAt));
+        mNextId++;
+    }
+
+    private static class StoredRecord {
+        public StoredRecord(long id, String token, byte[] data, boolean isAutomatic, long createdAt) {
+            this.id = id;
+            this.token = token;
+            this.data = data;
+            this.isAutomatic = isAutomatic;
+            this.createdAt = createdAt;
+        }
+
+        public final long id;
+        public final String token;
+        public final byte[] data;
+        public final boolean isAutomatic;
+        public final long createdAt;
+    }
+
+    // Records of each table, in the order they were added
+    private final Map<MPDbAdapter.Table, List<StoredRecord>> mRecords;
+    // People records waiting for a distinct id, in the order they were added
+    private final List<StoredRecord> mWaitingPeopleRecords;
+    private long mNextId;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String LOGTAG = "MixpanelAPI.MemoryEventStore";
+}
@@ -19,6 +19,7 @@ import com.mixpanel.android.R;
 import com.mixpanel.android.takeoverinapp.TakeoverInAppActivity;
 import com.mixpanel.android.util.ActivityImageUtils;
 import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.StartupTrace;
 import com.mixpanel.android.viewcrawler.TrackingDebug;
 import com.mixpanel.android.viewcrawler.UpdatesFromMixpanel;
 import com.mixpanel.android.viewcrawler.ViewCrawler;
@@ -35,6 +36,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
@@ -249,79 +251,128 @@ public class MixpanelAPI {
         deviceInfo.put("$android_manufacturer", Build.MANUFACTURER == null ? "UNKNOWN" : Build.MANUFACTURER);
         deviceInfo.put("$android_brand", Build.BRAND == null ? "UNKNOWN" : Build.BRAND);
         deviceInfo.put("$android_model", Build.MODEL == null ? "UNKNOWN" : Build.MODEL);
-        try {
-            final PackageManager manager = mContext.getPackageManager();
-            final PackageInfo info = manager.getPackageInfo(mContext.getPackageName(), 0);
-            deviceInfo.put("$android_app_version", info.versionName);
-            deviceInfo.put("$android_app_version_code", Integer.toString(info.versionCode));
-        } catch (final PackageManager.NameNotFoundException e) {
-            MPLog.e(LOGTAG, "Exception getting app version name", e);
-        }
-        mDeviceInfo = Collections.unmodifiableMap(deviceInfo);
+        // Replaced once the app version is known
+        mDeviceInfo = Collections.unmodifiableMap(new HashMap<String, String>(deviceInfo));
 
         mUpdatesFromMixpanel = constructUpdatesFromMixpanel(context, token);
         mTrackingDebug = constructTrackingDebug();
         mPersistentIdentity = getPersistentIdentity(context, referrerPreferences, token);
-        mEventTimings = mPersistentIdentity.getTimeEvents();
+        // With AsyncInitialization, nothing here may wait for the stored preferences to load
+        mEventTimings = mConfig.getAsyncInitialization() ? new HashMap<String, Long>() : mPersistentIdentity.getTimeEvents();
         mUpdatesListener = constructUpdatesListener();
         mDecideMessages = constructDecideUpdates(token, mUpdatesListener, mUpdatesFromMixpanel);
-
-        // TODO reading persistent identify immediately forces the lazy load of the preferences, and defeats the
-        // purpose of PersistentIdentity's laziness.
-        String decideId = mPersistentIdentity.getPeopleDistinctId();
-        if (null == decideId) {
-            decideId = mPersistentIdentity.getEventsDistinctId();
-        }
-        mDecideMessages.setDistinctId(decideId);
-
         mMessages = getAnalyticsMessages();
 
-        if (mPersistentIdentity.isFirstLaunch(MPDbAdapter.getInstance(mContext).getDatabaseFile().exists())) {
-            track(AutomaticEvents.FIRST_OPEN, null, true);
+        registerMixpanelActivityLifecycleCallbacks();
 
-            mPersistentIdentity.setHasLaunched();
+        addInitializationStages(deviceInfo);
+        if (mConfig.getAsyncInitialization()) {
+            mInitPipeline.start();
+        } else {
+            mInitPipeline.runNow();
         }
 
-        if (!mConfig.getDisableDecideChecker()) {
-            mMessages.installDecideCheck(mDecideMessages);
-        }
+        ExceptionHandler.init();
+    }
 
-        registerMixpanelActivityLifecycleCallbacks();
+    // Everything that reads stored preferences, the package manager or the database file
+    private void addInitializationStages(final Map<String, String> deviceInfo) {
+        mInitPipeline.addStage(APP_VERSION_STAGE, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final PackageManager manager = mContext.getPackageManager();
+                    final PackageInfo info = manager.getPackageInfo(mContext.getPackageName(), 0);
+                    deviceInfo.put("$android_app_version", info.versionName);
+                    deviceInfo.put("$android_app_version_code", Integer.toString(info.versionCode));
+                } catch (final PackageManager.NameNotFoundException e) {
+                    MPLog.e(LOGTAG, "Exception getting app version name", e);
+                }
+                mDeviceInfo = Collections.unmodifiableMap(new HashMap<String, String>(deviceInfo));
+            }
+        });
 
-        if (sendAppOpen()) {
-            track("$app_open", null);
-        }
+        mInitPipeline.addStage(STORED_IDENTITY_STAGE, new Runnable() {
+            @Override
+            public void run() {
+                if (mConfig.getAsyncInitialization()) {
+                    final Map<String, Long> timeEvents = mPersistentIdentity.getTimeEvents();
+                    synchronized (mEventTimings) {
+                        mEventTimings.putAll(timeEvents);
+                    }
+                    mDecideMessages.addSeenNotificationIds(mPersistentIdentity.getSeenCampaignIds());
+                }
 
-        if (!mPersistentIdentity.isFirstIntegration(mToken)) {
-            try {
-                final JSONObject messageProps = new JSONObject();
+                String decideId = mPersistentIdentity.getPeopleDistinctId();
+                if (null == decideId) {
+                    decideId = mPersistentIdentity.getEventsDistinctId();
+                }
+                mDecideMessages.setDistinctId(decideId);
+            }
+        });
 
-                messageProps.put("mp_lib", "Android");
-                messageProps.put("lib", "Android");
-                messageProps.put("distinct_id", token);
+        mInitPipeline.addStage("first_launch", new Runnable() {
+            @Override
+            public void run() {
+                if (mPersistentIdentity.isFirstLaunch(MPDbAdapter.getInstance(mContext).getDatabaseFile().exists())) {
+                    track(AutomaticEvents.FIRST_OPEN, null, true);
 
-                final AnalyticsMessages.EventDescription eventDescription =
-                        new AnalyticsMessages.EventDescription("Integration", messageProps, "85053bf24bba75239b16a601d9387e17", false);
-                mMessages.eventsMessage(eventDescription);
-                mMessages.postToServer(new AnalyticsMessages.FlushDescription("85053bf24bba75239b16a601d9387e17", false));
+                    mPersistentIdentity.setHasLaunched();
+                }
+            }
+        });
 
-                mPersistentIdentity.setIsIntegrated(mToken);
-            } catch (JSONException e) {
+        mInitPipeline.addStage("decide_check", new Runnable() {
+            @Override
+            public void run() {
+                if (!mConfig.getDisableDecideChecker()) {
+                    mMessages.installDecideCheck(mDecideMessages);
+                }
             }
-        }
+        });
 
-        if (mPersistentIdentity.isNewVersion(deviceInfo.get("$android_app_version_code"))) {
-            try {
-                final JSONObject messageProps = new JSONObject();
-                messageProps.put(AutomaticEvents.VERSION_UPDATED, deviceInfo.get("$android_app_version"));
-                track(AutomaticEvents.APP_UPDATED, messageProps, true);
-            } catch (JSONException e) {}
+        mInitPipeline.addStage("launch_events", new Runnable() {
+            @Override
+            public void run() {
+                if (sendAppOpen()) {
+                    track("$app_open", null);
+                }
 
-        }
+                if (!mPersistentIdentity.isFirstIntegration(mToken)) {
+                    try {
+                        final JSONObject messageProps = new JSONObject();
 
-        mUpdatesFromMixpanel.startUpdates();
+                        messageProps.put("mp_lib", "Android");
+                        messageProps.put("lib", "Android");
+                        messageProps.put("distinct_id", mToken);
 
-        ExceptionHandler.init();
+                        final AnalyticsMessages.EventDescription eventDescription =
+                                new AnalyticsMessages.EventDescription("Integration", messageProps, "85053bf24bba75239b16a601d9387e17", false);
+                        mMessages.eventsMessage(eventDescription);
+                        mMessages.postToServer(new AnalyticsMessages.FlushDescription("85053bf24bba75239b16a601d9387e17", false));
+
+                        mPersistentIdentity.setIsIntegrated(mToken);
+                    } catch (JSONException e) {
+                    }
+                }
+
+                if (mPersistentIdentity.isNewVersion(deviceInfo.get("$android_app_version_code"))) {
+                    try {
+                        final JSONObject messageProps = new JSONObject();
+                        messageProps.put(AutomaticEvents.VERSION_UPDATED, deviceInfo.get("$android_app_version"));
+                        track(AutomaticEvents.APP_UPDATED, messageProps, true);
+                    } catch (JSONException e) {}
+
+                }
+            }
+        });
+
+        mInitPipeline.addStage("updates", new Runnable() {
+            @Override
+            public void run() {
+                mUpdatesFromMixpanel.startUpdates();
+            }
+        });
     }
 
     /**
@@ -354,6 +405,15 @@ public class MixpanelAPI {
         if (null == token || null == context) {
             return null;
         }
+        final long start = StartupTrace.begin("MixpanelAPI.getInstance");
+        try {
+            return getInstanceLocked(context, token);
+        } finally {
+            StartupTrace.end("MixpanelAPI.getInstance", start);
+        }
+    }
+
+    private static MixpanelAPI getInstanceLocked(Context context, String token) {
         synchronized (sInstanceMap) {
             final Context appContext = context.getApplicationContext();
 
@@ -369,7 +429,12 @@ public class MixpanelAPI {
 
             MixpanelAPI instance = instances.get(appContext);
             if (null == instance && ConfigurationChecker.checkBasicConfiguration(appContext)) {
-                instance = new MixpanelAPI(appContext, sReferrerPrefs, token);
+                final long start = StartupTrace.begin("MixpanelAPI constructor");
+                try {
+                    instance = new MixpanelAPI(appContext, sReferrerPrefs, token);
+                } finally {
+                    StartupTrace.end("MixpanelAPI constructor", start);
+                }
                 registerAppLinksListeners(context, instance);
                 instances.put(appContext, instance);
             }
@@ -380,6 +445,34 @@ public class MixpanelAPI {
         }
     }
 
+    /**
+     * Starts reading the stored preferences getInstance(context, token) will need, on background
+     * threads, so an instance created later doesn't have to wait for them.
+     *
+     * <p>Call this as early as you can, for example from Application.onCreate() or from the onCreate()
+     * method of a ContentProvider, which runs before it. It is safe to call more than once.</p>
+     *
+     * @param context the context of your application
+     * @param token your project token, or null to only read the files shared by all projects
+     */
+    public static void preloadPreferences(Context context, String token) {
+        if (null == context) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        synchronized (sInstanceMap) {
+            if (null == sReferrerPrefs) {
+                sReferrerPrefs = sPrefsLoader.loadPreferences(appContext, MPConfig.REFERRER_PREFS_NAME, null);
+            }
+        }
+
+        sPrefsLoader.loadPreferences(appContext, MIXPANEL_PREFS_NAME, null);
+        if (null != token) {
+            sPrefsLoader.loadPreferences(appContext, PREFS_NAME_PREFIX + token, null);
+            sPrefsLoader.loadPreferences(appContext, TIME_EVENTS_PREFS_NAME_PREFIX + token, null);
+        }
+    }
+
     /**
      * This call is a no-op, and will be removed in future versions.
      *
@@ -423,11 +516,18 @@ public class MixpanelAPI {
      * @param alias the new distinct_id that should represent original.
      * @param original the old distinct_id that alias will be mapped to.
      */
-    public void alias(String alias, String original) {
-        if (original == null) {
-            original = getDistinctId();
+    public void alias(final String alias, final String original) {
+        if (mInitPipeline.defer(new Runnable() {
+            @Override
+            public void run() {
+                alias(alias, original);
+            }
+        })) {
+            return;
         }
-        if (alias.equals(original)) {
+
+        final String originalId = null == original ? getDistinctId() : original;
+        if (alias.equals(originalId)) {
             MPLog.w(LOGTAG, "Attempted to alias identical distinct_ids " + alias + ". Alias message will not be sent.");
             return;
         }
@@ -435,7 +535,7 @@ public class MixpanelAPI {
         try {
             final JSONObject j = new JSONObject();
             j.put("alias", alias);
-            j.put("original", original);
+            j.put("original", originalId);
             track("$create_alias", j);
         } catch (final JSONException e) {
             MPLog.e(LOGTAG, "Failed to alias", e);
@@ -468,7 +568,16 @@ public class MixpanelAPI {
      *
      * @see People#identify(String)
      */
-    public void identify(String distinctId) {
+    public void identify(final String distinctId) {
+        if (mInitPipeline.defer(new Runnable() {
+            @Override
+            public void run() {
+                identify(distinctId);
+            }
+        })) {
+            return;
+        }
+
         synchronized (mPersistentIdentity) {
             mPersistentIdentity.setEventsDistinctId(distinctId);
             String decideId = mPersistentIdentity.getPeopleDistinctId();
@@ -488,6 +597,18 @@ public class MixpanelAPI {
      */
     public void timeEvent(final String eventName) {
         final long writeTime = System.currentTimeMillis();
+        if (mInitPipeline.defer(new Runnable() {
+            @Override
+            public void run() {
+                recordTimeEvent(eventName, writeTime);
+            }
+        })) {
+            return;
+        }
+        recordTimeEvent(eventName, writeTime);
+    }
+
+    private void recordTimeEvent(String eventName, long writeTime) {
         synchronized (mEventTimings) {
             mEventTimings.put(eventName, writeTime);
             mPersistentIdentity.addTimeEvent(eventName, writeTime);
@@ -501,6 +622,7 @@ public class MixpanelAPI {
      */
     public double eventElapsedTime(final String eventName) {
         final long currentTime = System.currentTimeMillis();
+        mInitPipeline.awaitStage(STORED_IDENTITY_STAGE);
         Long startTime;
         synchronized (mEventTimings) {
             startTime = mEventTimings.get(eventName);
@@ -525,6 +647,9 @@ public class MixpanelAPI {
     public void trackMap(String eventName, Map<String, Object> properties) {
         if (null == properties) {
             track(eventName, null);
+        } else if (mMessages.hasHandoffQueue()) {
+            // The map is converted on the worker thread
+            recordEvent(eventName, properties, false);
         } else {
             try {
                 track(eventName, new JSONObject(properties));
@@ -575,6 +700,14 @@ public class MixpanelAPI {
      * your main application activity.
      */
     public void flush() {
+        if (mInitPipeline.defer(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        })) {
+            return;
+        }
         mMessages.postToServer(new AnalyticsMessages.FlushDescription(mToken));
     }
 
@@ -585,6 +718,7 @@ public class MixpanelAPI {
      * and persist beyond the lifetime of your application.
      */
       public JSONObject getSuperProperties() {
+          mInitPipeline.awaitStage(STORED_IDENTITY_STAGE);
           JSONObject ret = new JSONObject();
           mPersistentIdentity.addSuperPropertiesToObject(ret);
           return ret;
@@ -605,6 +739,7 @@ public class MixpanelAPI {
      * @see People#getDistinctId()
      */
     public String getDistinctId() {
+        mInitPipeline.awaitStage(STORED_IDENTITY_STAGE);
         return mPersistentIdentity.getEventsDistinctId();
      }
 
@@ -657,6 +792,15 @@ public class MixpanelAPI {
      * @see #clearSuperProperties()
      */
     public void registerSuperProperties(JSONObject superProperties) {
+        final JSONObject held = mInitPipeline.isReady() ? superProperties : (JSONObject) copyProperties(superProperties);
+        if (mInitPipeline.defer(new Runnable() {
+            @Override
+            public void run() {
+                registerSuperProperties(held);
+            }
+        })) {
+            return;
+        }
         mPersistentIdentity.registerSuperProperties(superProperties);
     }
 
@@ -670,7 +814,15 @@ public class MixpanelAPI {
      * @param superPropertyName name of the property to unregister
      * @see #registerSuperProperties(JSONObject)
      */
-    public void unregisterSuperProperty(String superPropertyName) {
+    public void unregisterSuperProperty(final String superPropertyName) {
+        if (mInitPipeline.defer(new Runnable() {
+            @Override
+            public void run() {
+                unregisterSuperProperty(superPropertyName);
+            }
+        })) {
+            return;
+        }
         mPersistentIdentity.unregisterSuperProperty(superPropertyName);
     }
 
@@ -707,6 +859,15 @@ public class MixpanelAPI {
      * @see #registerSuperProperties(JSONObject)
      */
     public void registerSuperPropertiesOnce(JSONObject superProperties) {
+        final JSONObject held = mInitPipeline.isReady() ? superProperties : (JSONObject) copyProperties(superProperties);
+        if (mInitPipeline.defer(new Runnable() {
+            @Override
+            public void run() {
+                registerSuperPropertiesOnce(held);
+            }
+        })) {
+            return;
+        }
         mPersistentIdentity.registerSuperPropertiesOnce(superProperties);
     }
 
@@ -721,6 +882,14 @@ public class MixpanelAPI {
      * @see #registerSuperProperties(JSONObject)
      */
     public void clearSuperProperties() {
+        if (mInitPipeline.defer(new Runnable() {
+            @Override
+            public void run() {
+                clearSuperProperties();
+            }
+        })) {
+            return;
+        }
         mPersistentIdentity.clearSuperProperties();
     }
 
@@ -733,7 +902,15 @@ public class MixpanelAPI {
      *
      * @param update A function from one set of super properties to another. The update should not return null.
      */
-    public void updateSuperProperties(SuperPropertyUpdate update) {
+    public void updateSuperProperties(final SuperPropertyUpdate update) {
+        if (mInitPipeline.defer(new Runnable() {
+            @Override
+            public void run() {
+                updateSuperProperties(update);
+            }
+        })) {
+            return;
+        }
         mPersistentIdentity.updateSuperProperties(update);
     }
 
@@ -753,10 +930,19 @@ public class MixpanelAPI {
      * Will not clear referrer information.
      */
     public void reset() {
+        if (mInitPipeline.defer(new Runnable() {
+            @Override
+            public void run() {
+                reset();
+            }
+        })) {
+            return;
+        }
         // Will clear distinct_ids, superProperties, notifications, experiments,
         // and waiting People Analytics properties. Will have no effect
         // on messages already queued to send with AnalyticsMessages.
         mPersistentIdentity.clearPreferences();
+        mMessages.clearWaitingPeopleMessage(mToken);
         identify(getDistinctId());
         flush();
     }
@@ -768,9 +954,19 @@ public class MixpanelAPI {
      * of the host application, and are guaranteed not to change while the app is running.
      */
     public Map<String, String> getDeviceInfo() {
+        mInitPipeline.awaitStage(APP_VERSION_STAGE);
         return mDeviceInfo;
     }
 
+    /**
+     * Returns how many milliseconds each step of setting up this instance took, in the order
+     * they ran. With com.mixpanel.android.MPConfig.AsyncInitialization these steps run in the
+     * background, and only the steps that have finished are included.
+     */
+    public Map<String, Long> getInitializationTimings() {
+        return mInitPipeline.getStageTimings();
+    }
+
     /**
      * Core interface for using Mixpanel People Analytics features.
      * You can get an instance by calling {@link MixpanelAPI#getPeople()}
@@ -1358,27 +1554,29 @@ public class MixpanelAPI {
         final SharedPreferencesLoader.OnPrefsLoadedListener listener = new SharedPreferencesLoader.OnPrefsLoadedListener() {
             @Override
             public void onPrefsLoaded(SharedPreferences preferences) {
-                final JSONArray records = PersistentIdentity.waitingPeopleRecordsForSending(preferences);
+                final JSONArray records = PersistentIdentity.takeLegacyWaitingPeopleRecords(preferences);
                 if (null != records) {
                     sendAllPeopleRecords(records);
                 }
             }
         };
 
-        final String prefsName = "com.mixpanel.android.mpmetrics.MixpanelAPI_" + token;
+        final String prefsName = PREFS_NAME_PREFIX + token;
         final Future<SharedPreferences> storedPreferences = sPrefsLoader.loadPreferences(context, prefsName, listener);
 
-        final String timeEventsPrefsName = "com.mixpanel.android.mpmetrics.MixpanelAPI.TimeEvents_" + token;
+        final String timeEventsPrefsName = TIME_EVENTS_PREFS_NAME_PREFIX + token;
         final Future<SharedPreferences> timeEventsPrefs = sPrefsLoader.loadPreferences(context, timeEventsPrefsName, null);
 
-        final String mixpanelPrefsName = "com.mixpanel.android.mpmetrics.Mixpanel";
-        final Future<SharedPreferences> mixpanelPrefs = sPrefsLoader.loadPreferences(context, mixpanelPrefsName, null);
+        final Future<SharedPreferences> mixpanelPrefs = sPrefsLoader.loadPreferences(context, MIXPANEL_PREFS_NAME, null);
 
         return new PersistentIdentity(referrerPreferences, storedPreferences, timeEventsPrefs, mixpanelPrefs);
     }
 
     /* package */ DecideMessages constructDecideUpdates(final String token, final DecideMessages.OnNewResultsListener listener, UpdatesFromMixpanel updatesFromMixpanel) {
-        return new DecideMessages(mContext, token, listener, updatesFromMixpanel, mPersistentIdentity.getSeenCampaignIds());
+        // With AsyncInitialization, campaigns seen before are added once the stored preferences load
+        final HashSet<Integer> seenCampaignIds = mConfig.getAsyncInitialization() ?
+                new HashSet<Integer>() : mPersistentIdentity.getSeenCampaignIds();
+        return new DecideMessages(mContext, token, listener, updatesFromMixpanel, seenCampaignIds);
     }
 
     /* package */ UpdatesListener constructUpdatesListener() {
@@ -1398,7 +1596,12 @@ public class MixpanelAPI {
             MPLog.i(LOGTAG, "DisableViewCrawler is set to true. Web Configuration, A/B Testing, and Dynamic Tweaks are disabled.");
             return new NoOpUpdatesFromMixpanel(sSharedTweaks);
         } else {
-            return new ViewCrawler(mContext, mToken, this, sSharedTweaks);
+            final long start = StartupTrace.begin("ViewCrawler");
+            try {
+                return new ViewCrawler(mContext, mToken, this, sSharedTweaks);
+            } finally {
+                StartupTrace.end("ViewCrawler", start);
+            }
         }
     }
 
@@ -1418,7 +1621,15 @@ public class MixpanelAPI {
 
     private class PeopleImpl implements People {
         @Override
-        public void identify(String distinctId) {
+        public void identify(final String distinctId) {
+            if (mInitPipeline.defer(new Runnable() {
+                @Override
+                public void run() {
+                    PeopleImpl.this.identify(distinctId);
+                }
+            })) {
+                return;
+            }
             synchronized (mPersistentIdentity) {
                 mPersistentIdentity.setPeopleDistinctId(distinctId);
                 mDecideMessages.setDistinctId(distinctId);
@@ -1443,14 +1654,7 @@ public class MixpanelAPI {
         @Override
         public void set(JSONObject properties) {
             try {
-                final JSONObject sendProperties = new JSONObject(mDeviceInfo);
-                for (final Iterator<?> iter = properties.keys(); iter.hasNext();) {
-                    final String key = (String) iter.next();
-                    sendProperties.put(key, properties.get(key));
-                }
-
-                final JSONObject message = stdPeopleMessage("$set", sendProperties);
-                recordPeopleMessage(message);
+                recordPeopleUpdate("$set", properties);
             } catch (final JSONException e) {
                 MPLog.e(LOGTAG, "Exception setting people properties", e);
             }
@@ -1481,8 +1685,7 @@ public class MixpanelAPI {
         @Override
         public void setOnce(JSONObject properties) {
             try {
-                final JSONObject message = stdPeopleMessage("$set_once", properties);
-                recordPeopleMessage(message);
+                recordPeopleUpdate("$set_once", properties);
             } catch (final JSONException e) {
                 MPLog.e(LOGTAG, "Exception setting people properties");
             }
@@ -1501,8 +1704,7 @@ public class MixpanelAPI {
         public void increment(Map<String, ? extends Number> properties) {
             final JSONObject json = new JSONObject(properties);
             try {
-                final JSONObject message = stdPeopleMessage("$add", json);
-                recordPeopleMessage(message);
+                recordPeopleUpdate("$add", json);
             } catch (final JSONException e) {
                 MPLog.e(LOGTAG, "Exception incrementing properties", e);
             }
@@ -1514,8 +1716,7 @@ public class MixpanelAPI {
             final JSONObject mergeMessage = new JSONObject();
             try {
                 mergeMessage.put(property, updates);
-                final JSONObject message = stdPeopleMessage("$merge", mergeMessage);
-                recordPeopleMessage(message);
+                recordPeopleUpdate("$merge", mergeMessage);
             } catch (final JSONException e) {
                 MPLog.e(LOGTAG, "Exception merging a property", e);
             }
@@ -1533,8 +1734,7 @@ public class MixpanelAPI {
             try {
                 final JSONObject properties = new JSONObject();
                 properties.put(name, value);
-                final JSONObject message = stdPeopleMessage("$append", properties);
-                recordPeopleMessage(message);
+                recordPeopleUpdate("$append", properties);
             } catch (final JSONException e) {
                 MPLog.e(LOGTAG, "Exception appending a property", e);
             }
@@ -1545,8 +1745,7 @@ public class MixpanelAPI {
             try {
                 final JSONObject properties = new JSONObject();
                 properties.put(name, value);
-                final JSONObject message = stdPeopleMessage("$union", properties);
-                recordPeopleMessage(message);
+                recordPeopleUpdate("$union", properties);
             } catch (final JSONException e) {
                 MPLog.e(LOGTAG, "Exception unioning a property");
             }
@@ -1557,8 +1756,7 @@ public class MixpanelAPI {
             try {
                 final JSONObject properties = new JSONObject();
                 properties.put(name, value);
-                final JSONObject message = stdPeopleMessage("$remove", properties);
-                recordPeopleMessage(message);
+                recordPeopleUpdate("$remove", properties);
             } catch (final JSONException e) {
                 MPLog.e(LOGTAG, "Exception appending a property", e);
             }
@@ -1569,8 +1767,7 @@ public class MixpanelAPI {
             try {
                 final JSONArray names = new JSONArray();
                 names.put(name);
-                final JSONObject message = stdPeopleMessage("$unset", names);
-                recordPeopleMessage(message);
+                recordPeopleUpdate("$unset", names);
             } catch (final JSONException e) {
                 MPLog.e(LOGTAG, "Exception unsetting a property", e);
             }
@@ -1667,8 +1864,7 @@ public class MixpanelAPI {
         @Override
         public void deleteUser() {
             try {
-                final JSONObject message = stdPeopleMessage("$delete", JSONObject.NULL);
-                recordPeopleMessage(message);
+                recordPeopleUpdate("$delete", JSONObject.NULL);
             } catch (final JSONException e) {
                 MPLog.e(LOGTAG, "Exception deleting a user");
             }
@@ -1676,6 +1872,7 @@ public class MixpanelAPI {
 
         @Override
         public String getPushRegistrationId() {
+            mInitPipeline.awaitStage(STORED_IDENTITY_STAGE);
             return mPersistentIdentity.getPushId();
         }
 
@@ -1740,6 +1937,7 @@ public class MixpanelAPI {
 
         @Override
         public String getDistinctId() {
+            mInitPipeline.awaitStage(STORED_IDENTITY_STAGE);
             return mPersistentIdentity.getPeopleDistinctId();
         }
 
@@ -1785,20 +1983,37 @@ public class MixpanelAPI {
             mUpdatesFromMixpanel.removeOnMixpanelTweaksUpdatedListener(listener);
         }
 
-        private JSONObject stdPeopleMessage(String actionType, Object properties)
+        // Records are only handed off once they have a distinct id, and not while records waiting
+        // for identify() are being released, so they're stored after the released ones.
+        private void recordPeopleUpdate(final String actionType, Object properties)
                 throws JSONException {
-            final JSONObject dataObj = new JSONObject();
-            final String distinctId = getDistinctId(); // TODO ensure getDistinctId is thread safe
-
-            dataObj.put(actionType, properties);
-            dataObj.put("$token", mToken);
-            dataObj.put("$time", System.currentTimeMillis());
-
-            if (null != distinctId) {
-                dataObj.put("$distinct_id", distinctId);
+            final long timeMillis = System.currentTimeMillis();
+            if (!mInitPipeline.isReady()) {
+                final Object held = copyProperties(properties);
+                if (mInitPipeline.defer(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            recordPeopleUpdate(actionType, held, timeMillis);
+                        } catch (final JSONException e) {
+                            MPLog.e(LOGTAG, "Exception recording a held people update", e);
+                        }
+                    }
+                })) {
+                    return;
+                }
             }
+            recordPeopleUpdate(actionType, properties, timeMillis);
+        }
 
-            return dataObj;
+        private void recordPeopleUpdate(String actionType, Object properties, long timeMillis)
+                throws JSONException {
+            final String distinctId = getDistinctId(); // TODO ensure getDistinctId is thread safe
+            if (null != distinctId && mMessages.hasHandoffQueue() && !mMessages.isReleasingWaitingPeople()) {
+                mMessages.handOff(mPeopleAssembler, actionType, copyProperties(properties), timeMillis, distinctId, null, false, null, null);
+            } else {
+                recordPeopleMessage(buildPeopleMessage(actionType, properties, distinctId, timeMillis));
+            }
         }
 
         @TargetApi(21)
@@ -2015,84 +2230,188 @@ public class MixpanelAPI {
     }
 
     protected void track(String eventName, JSONObject properties, boolean isAutomaticEvent) {
+        recordEvent(eventName, properties, isAutomaticEvent);
+    }
+
+    // properties may be a JSONObject, a Map from trackMap, or null
+    private void recordEvent(final String eventName, Object properties, final boolean isAutomaticEvent) {
+        // Held events keep the time they were tracked, not the time they're sent to the worker
+        final long timeMillis = System.currentTimeMillis();
+        if (!mInitPipeline.isReady()) {
+            final Object held = copyProperties(properties);
+            if (mInitPipeline.defer(new Runnable() {
+                @Override
+                public void run() {
+                    recordEvent(eventName, held, isAutomaticEvent, timeMillis);
+                }
+            })) {
+                return;
+            }
+        }
+        recordEvent(eventName, properties, isAutomaticEvent, timeMillis);
+    }
+
+    private void recordEvent(String eventName, Object properties, boolean isAutomaticEvent, long timeMillis) {
         if (isAutomaticEvent && !mDecideMessages.shouldTrackAutomaticEvent()) {
             return;
         }
 
         final Long eventBegin;
         synchronized (mEventTimings) {
-            eventBegin = mEventTimings.get(eventName);
-            mEventTimings.remove(eventName);
-            mPersistentIdentity.removeTimeEvent(eventName);
+            eventBegin = mEventTimings.remove(eventName);
+            if (null != eventBegin) {
+                // Most events were never timed, and have nothing stored to remove
+                mPersistentIdentity.removeTimeEvent(eventName);
+            }
         }
 
-        try {
-            final JSONObject messageProps = new JSONObject();
+        final JSONObject superProperties = mPersistentIdentity.getSuperPropertiesSnapshot();
+        final Map<String, String> referrerProperties = mPersistentIdentity.getReferrerProperties();
+        // Journaled events have to be built here, before they're handed off
+        if (mMessages.hasHandoffQueue() && !mMessages.journalsEvents()) {
+            mMessages.handOff(mEventAssembler, eventName, copyProperties(properties), timeMillis, getDistinctId(), eventBegin,
+                    isAutomaticEvent, superProperties, referrerProperties);
+        } else {
+            try {
+                final JSONObject messageProps = buildEventProperties(properties, timeMillis, getDistinctId(),
+                        eventBegin, superProperties, referrerProperties);
+                final AnalyticsMessages.EventDescription eventDescription =
+                        new AnalyticsMessages.EventDescription(eventName, messageProps, mToken, isAutomaticEvent);
+                mMessages.eventsMessage(eventDescription);
+            } catch (final JSONException e) {
+                MPLog.e(LOGTAG, "Exception tracking event " + eventName, e);
+                return;
+            }
+        }
+
+        if (null != mTrackingDebug) {
+            mTrackingDebug.reportTrack(eventName);
+        }
+    }
 
-            final Map<String, String> referrerProperties = mPersistentIdentity.getReferrerProperties();
-            for (final Map.Entry<String, String> entry : referrerProperties.entrySet()) {
-                final String key = entry.getKey();
-                final String value = entry.getValue();
-                messageProps.put(key, value);
+    // Held calls, and calls handed off to the worker, are read after the caller returns, so they get
+    // their own copy of mutable properties
+    private static Object copyProperties(Object properties) {
+        if (properties instanceof JSONObject) {
+            final JSONObject original = (JSONObject) properties;
+            final JSONObject copy = new JSONObject();
+            try {
+                for (final Iterator<?> iter = original.keys(); iter.hasNext();) {
+                    final String key = (String) iter.next();
+                    copy.put(key, original.get(key));
+                }
+            } catch (final JSONException e) {
+                // Keys come from the original, so this can't happen
+                return properties;
             }
+            return copy;
+        } else if (properties instanceof Map) {
+            return new HashMap<Object, Object>((Map<?, ?>) properties);
+        }
+        return properties;
+    }
 
-            mPersistentIdentity.addSuperPropertiesToObject(messageProps);
+    // Called on the caller's thread, or on the worker thread for calls passed through the handoff queue
+    private JSONObject buildEventProperties(Object properties, long timeMillis, String distinctId, Long eventBegin,
+                                            JSONObject superProperties, Map<String, String> referrerProperties) throws JSONException {
+        final JSONObject messageProps = new JSONObject();
 
-            // Don't allow super properties or referral properties to override these fields,
-            // but DO allow the caller to override them in their given properties.
-            final double timeSecondsDouble = (System.currentTimeMillis()) / 1000.0;
-            final long timeSeconds = (long) timeSecondsDouble;
-            messageProps.put("time", timeSeconds);
-            messageProps.put("distinct_id", getDistinctId());
+        for (final Map.Entry<String, String> entry : referrerProperties.entrySet()) {
+            final String key = entry.getKey();
+            final String value = entry.getValue();
+            messageProps.put(key, value);
+        }
 
-            if (null != eventBegin) {
-                final double eventBeginDouble = ((double) eventBegin) / 1000.0;
-                final double secondsElapsed = timeSecondsDouble - eventBeginDouble;
-                messageProps.put("$duration", secondsElapsed);
+        final Iterator<?> superIter = superProperties.keys();
+        while (superIter.hasNext()) {
+            final String key = (String) superIter.next();
+            messageProps.put(key, superProperties.get(key));
+        }
+
+        // Don't allow super properties or referral properties to override these fields,
+        // but DO allow the caller to override them in their given properties.
+        final double timeSecondsDouble = timeMillis / 1000.0;
+        final long timeSeconds = (long) timeSecondsDouble;
+        messageProps.put("time", timeSeconds);
+        messageProps.put("distinct_id", distinctId);
+
+        if (null != eventBegin) {
+            final double eventBeginDouble = ((double) eventBegin) / 1000.0;
+            final double secondsElapsed = timeSecondsDouble - eventBeginDouble;
+            messageProps.put("$duration", secondsElapsed);
+        }
+
+        JSONObject jsonProperties = null;
+        if (properties instanceof Map) {
+            try {
+                jsonProperties = new JSONObject((Map<?, ?>) properties);
+            } catch (NullPointerException e) {
+                throw new JSONException("Can't have null keys in the properties of trackMap!");
             }
+        } else if (null != properties) {
+            jsonProperties = (JSONObject) properties;
+        }
 
-            if (null != properties) {
-                final Iterator<?> propIter = properties.keys();
-                while (propIter.hasNext()) {
-                    final String key = (String) propIter.next();
-                    messageProps.put(key, properties.get(key));
-                }
+        if (null != jsonProperties) {
+            final Iterator<?> propIter = jsonProperties.keys();
+            while (propIter.hasNext()) {
+                final String key = (String) propIter.next();
+                messageProps.put(key, jsonProperties.get(key));
             }
+        }
 
-            final AnalyticsMessages.EventDescription eventDescription =
-                    new AnalyticsMessages.EventDescription(eventName, messageProps, mToken, isAutomaticEvent);
-            mMessages.eventsMessage(eventDescription);
+        return messageProps;
+    }
 
-            if (null != mTrackingDebug) {
-                mTrackingDebug.reportTrack(eventName);
+    // Called on the caller's thread, or on the worker thread for calls passed through the handoff queue
+    private JSONObject buildPeopleMessage(String actionType, Object properties, String distinctId, long timeMillis)
+            throws JSONException {
+        Object sendProperties = properties;
+        if ("$set".equals(actionType)) {
+            final JSONObject setProperties = (JSONObject) properties;
+            final JSONObject withDeviceInfo = new JSONObject(mDeviceInfo);
+            for (final Iterator<?> iter = setProperties.keys(); iter.hasNext();) {
+                final String key = (String) iter.next();
+                withDeviceInfo.put(key, setProperties.get(key));
             }
-        } catch (final JSONException e) {
-            MPLog.e(LOGTAG, "Exception tracking event " + eventName, e);
+            sendProperties = withDeviceInfo;
         }
+
+        final JSONObject dataObj = new JSONObject();
+        dataObj.put(actionType, sendProperties);
+        dataObj.put("$token", mToken);
+        dataObj.put("$time", timeMillis);
+
+        if (null != distinctId) {
+            dataObj.put("$distinct_id", distinctId);
+        }
+
+        return dataObj;
     }
 
     private void recordPeopleMessage(JSONObject message) {
         if (message.has("$distinct_id")) {
            mMessages.peopleMessage(new AnalyticsMessages.PeopleDescription(message, mToken));
         } else {
-           mPersistentIdentity.storeWaitingPeopleRecord(message);
+           mMessages.waitingPeopleMessage(new AnalyticsMessages.PeopleDescription(message, mToken));
         }
     }
 
     private void pushWaitingPeopleRecord() {
-        final JSONArray records = mPersistentIdentity.waitingPeopleRecordsForSending();
-        if (null != records) {
-            sendAllPeopleRecords(records);
+        final String distinctId = mPersistentIdentity.getPeopleDistinctId();
+        if (null == distinctId) {
+            return;
         }
+        mMessages.releaseWaitingPeopleMessage(new AnalyticsMessages.IdentifyDescription(mToken, distinctId));
     }
 
     // MUST BE THREAD SAFE. Called from crazy places. mPersistentIdentity may not exist
-    // when this is called (from its crazy thread)
+    // when this is called (from its crazy thread). Records without a distinct id go back to waiting.
     private void sendAllPeopleRecords(JSONArray records) {
         for (int i = 0; i < records.length(); i++) {
             try {
                 final JSONObject message = records.getJSONObject(i);
-                mMessages.peopleMessage(new AnalyticsMessages.PeopleDescription(message, mToken));
+                recordPeopleMessage(message);
             } catch (final JSONException e) {
                 MPLog.e(LOGTAG, "Malformed people record stored pending identity, will not send it.", e);
             }
@@ -2168,8 +2487,26 @@ public class MixpanelAPI {
     private final UpdatesListener mUpdatesListener;
     private final TrackingDebug mTrackingDebug;
     private final DecideMessages mDecideMessages;
-    private final Map<String, String> mDeviceInfo;
+    private volatile Map<String, String> mDeviceInfo;
     private final Map<String, Long> mEventTimings;
+    private final InitPipeline mInitPipeline = new InitPipeline();
+
+    // Build messages for calls passed through the handoff queue, on the worker thread
+    private final HandoffQueue.Assembler mEventAssembler = new HandoffQueue.Assembler() {
+        @Override
+        public AnalyticsMessages.MixpanelDescription assemble(HandoffQueue.Entry entry) throws JSONException {
+            final JSONObject messageProps = buildEventProperties(entry.getProperties(), entry.getTimeMillis(), entry.getDistinctId(),
+                    entry.getEventBegin(), entry.getSuperProperties(), entry.getReferrerProperties());
+            return new AnalyticsMessages.EventDescription(entry.getName(), messageProps, mToken, entry.isAutomatic());
+        }
+    };
+    private final HandoffQueue.Assembler mPeopleAssembler = new HandoffQueue.Assembler() {
+        @Override
+        public AnalyticsMessages.MixpanelDescription assemble(HandoffQueue.Entry entry) throws JSONException {
+            final JSONObject message = buildPeopleMessage(entry.getName(), entry.getProperties(), entry.getDistinctId(), entry.getTimeMillis());
+            return new AnalyticsMessages.PeopleDescription(message, mToken);
+        }
+    };
     private MixpanelActivityLifecycleCallbacks mMixpanelActivityLifecycleCallbacks;
 
     // Maps each token to a singleton MixpanelAPI instance
@@ -2178,7 +2515,15 @@ public class MixpanelAPI {
     private static final Tweaks sSharedTweaks = new Tweaks();
     private static Future<SharedPreferences> sReferrerPrefs;
 
+    private static final String PREFS_NAME_PREFIX = "com.mixpanel.android.mpmetrics.MixpanelAPI_";
+    private static final String TIME_EVENTS_PREFS_NAME_PREFIX = "com.mixpanel.android.mpmetrics.MixpanelAPI.TimeEvents_";
+    private static final String MIXPANEL_PREFS_NAME = "com.mixpanel.android.mpmetrics.Mixpanel";
+
     private static final String LOGTAG = "MixpanelAPI.API";
     private static final String APP_LINKS_LOGTAG = "MixpanelAPI.AL";
     private static final String ENGAGE_DATE_FORMAT_STRING = "yyyy-MM-dd'T'HH:mm:ss";
+
+    // Initialization stages that getters wait for
+    private static final String APP_VERSION_STAGE = "app_version";
+    private static final String STORED_IDENTITY_STAGE = "stored_identity";
 }
@@ -73,6 +73,8 @@ import java.text.DecimalFormat;
     @Override
     public void onActivityPaused(final Activity activity) {
         mPaused = true;
+        // The process may be killed any time after this, so don't keep preference changes waiting
+        PreferencesWriteBuffer.flush();
 
         if (check != null) {
             mHandler.removeCallbacks(check);
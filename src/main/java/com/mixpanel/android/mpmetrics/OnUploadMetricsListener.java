@@ -0,0 +1,16 @@
+package com.mixpanel.android.mpmetrics;
+
+/**
+ * For use with {@link MPConfig#setOnUploadMetricsListener(OnUploadMetricsListener)}
+ */
+public interface OnUploadMetricsListener {
+    /**
+     * Called from the Mixpanel worker thread after each attempt to upload a batch of
+     * events or people records. Implementations should return quickly.
+     *
+     * @param endpoint the kind of records uploaded, either "events" or "people"
+     * @param batchSize the maximum number of records that will be sent in the next batch
+     * @param recentRoundTripMillis the durations of the most recent upload requests, oldest first
+     */
+    public void onUploadMetrics(String endpoint, int batchSize, long[] recentRoundTripMillis);
+}
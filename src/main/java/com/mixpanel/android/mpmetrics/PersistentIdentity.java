@@ -1,6 +1,7 @@
 package com.mixpanel.android.mpmetrics;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -24,12 +25,14 @@ import com.mixpanel.android.util.MPLog;
 @SuppressLint("CommitPrefEdits")
 /* package */ class PersistentIdentity {
 
+    // Waiting People records are kept in the EventStore now. This removes any that older versions of the
+    // library stored here, with their $distinct_id set if the user has been identified since.
     // Should ONLY be called from an OnPrefsLoadedListener (since it should NEVER be called concurrently)
-    public static JSONArray waitingPeopleRecordsForSending(SharedPreferences storedPreferences) {
+    public static JSONArray takeLegacyWaitingPeopleRecords(SharedPreferences storedPreferences) {
         JSONArray ret = null;
-        final String peopleDistinctId = storedPreferences.getString("people_distinct_id", null);
+        final String peopleDistinctId = PreferencesWriteBuffer.getString(storedPreferences, "people_distinct_id", null);
         final String waitingPeopleRecords = storedPreferences.getString("waiting_array", null);
-        if ((null != waitingPeopleRecords) && (null != peopleDistinctId)) {
+        if (null != waitingPeopleRecords) {
             JSONArray waitingObjects = null;
             try {
                 waitingObjects = new JSONArray(waitingPeopleRecords);
@@ -42,7 +45,9 @@ import com.mixpanel.android.util.MPLog;
             for (int i = 0; i < waitingObjects.length(); i++) {
                 try {
                     final JSONObject ob = waitingObjects.getJSONObject(i);
-                    ob.put("$distinct_id", peopleDistinctId);
+                    if (null != peopleDistinctId) {
+                        ob.put("$distinct_id", peopleDistinctId);
+                    }
                     ret.put(ob);
                 } catch (final JSONException e) {
                     MPLog.e(LOGTAG, "Unparsable object found in waiting people records", e);
@@ -88,8 +93,9 @@ import com.mixpanel.android.util.MPLog;
         };
     }
 
-    public synchronized void addSuperPropertiesToObject(JSONObject ob) {
-        final JSONObject superProperties = this.getSuperPropertiesCache();
+    // Not synchronized, so tracking from many threads doesn't contend on this object.
+    public void addSuperPropertiesToObject(JSONObject ob) {
+        final JSONObject superProperties = getSuperPropertiesSnapshot();
         final Iterator<?> superIter = superProperties.keys();
         while (superIter.hasNext()) {
             final String key = (String) superIter.next();
@@ -102,19 +108,22 @@ import com.mixpanel.android.util.MPLog;
         }
     }
 
-    public synchronized void updateSuperProperties(SuperPropertyUpdate updates) {
-        final JSONObject oldPropCache = getSuperPropertiesCache();
-        final JSONObject copy = new JSONObject();
+    // Returns the current super properties without locking. The returned object is never
+    // modified once published, and callers must not modify it either.
+    public JSONObject getSuperPropertiesSnapshot() {
+        final JSONObject snapshot = mSuperPropertiesCache;
+        if (null != snapshot) {
+            return snapshot;
+        }
 
-        try {
-            final Iterator<String> keys = oldPropCache.keys();
-            while (keys.hasNext()) {
-                final String k = keys.next();
-                final Object v = oldPropCache.get(k);
-                copy.put(k, v);
-            }
-        } catch (JSONException e) {
-            MPLog.e(LOGTAG, "Can't copy from one JSONObject to another", e);
+        synchronized (this) {
+            return getSuperPropertiesCache();
+        }
+    }
+
+    public synchronized void updateSuperProperties(SuperPropertyUpdate updates) {
+        final JSONObject copy = copySuperPropertiesCache();
+        if (null == copy) {
             return;
         }
 
@@ -128,14 +137,20 @@ import com.mixpanel.android.util.MPLog;
         storeSuperProperties();
     }
 
+    // Returns an unmodifiable snapshot, without locking unless the referrer preferences have changed
     public Map<String, String> getReferrerProperties() {
+        final Map<String, String> snapshot = mReferrerPropertiesCache;
+        if (!sReferrerPrefsDirty && null != snapshot) {
+            return snapshot;
+        }
+
         synchronized (sReferrerPrefsLock) {
             if (sReferrerPrefsDirty || null == mReferrerPropertiesCache) {
                 readReferrerProperties();
                 sReferrerPrefsDirty = false;
             }
+            return mReferrerPropertiesCache;
         }
-        return mReferrerPropertiesCache;
     }
 
     public synchronized String getEventsDistinctId() {
@@ -168,38 +183,14 @@ import com.mixpanel.android.util.MPLog;
         writeIdentities();
     }
 
-    public synchronized void storeWaitingPeopleRecord(JSONObject record) {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
-        }
-        if (null == mWaitingPeopleRecords) {
-            mWaitingPeopleRecords = new JSONArray();
-        }
-        mWaitingPeopleRecords.put(record);
-        writeIdentities();
-    }
-
-    public synchronized JSONArray waitingPeopleRecordsForSending() {
-        JSONArray ret = null;
-        try {
-            final SharedPreferences prefs = mLoadStoredPreferences.get();
-            ret = waitingPeopleRecordsForSending(prefs);
-            readIdentities();
-        } catch (final ExecutionException e) {
-            MPLog.e(LOGTAG, "Couldn't read waiting people records from shared preferences.", e.getCause());
-        } catch (final InterruptedException e) {
-            MPLog.e(LOGTAG, "Couldn't read waiting people records from shared preferences.", e);
-        }
-        return ret;
-    }
-
     public synchronized void clearPreferences() {
-        // Will clear distinct_ids, superProperties,
-        // and waiting People Analytics properties. Will have no effect
+        // Will clear distinct_ids and superProperties. Waiting People Analytics
+        // records are kept by the EventStore. Will have no effect
         // on messages already queued to send with AnalyticsMessages.
 
         try {
             final SharedPreferences prefs = mLoadStoredPreferences.get();
+            PreferencesWriteBuffer.discard(prefs);
             final SharedPreferences.Editor prefsEdit = prefs.edit();
             prefsEdit.clear();
             writeEdits(prefsEdit);
@@ -213,7 +204,10 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public synchronized void registerSuperProperties(JSONObject superProperties) {
-        final JSONObject propCache = getSuperPropertiesCache();
+        final JSONObject propCache = copySuperPropertiesCache();
+        if (null == propCache) {
+            return;
+        }
 
         for (final Iterator<?> iter = superProperties.keys(); iter.hasNext(); ) {
             final String key = (String) iter.next();
@@ -224,6 +218,7 @@ import com.mixpanel.android.util.MPLog;
             }
         }
 
+        mSuperPropertiesCache = propCache;
         storeSuperProperties();
     }
 
@@ -267,9 +262,13 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public synchronized void unregisterSuperProperty(String superPropertyName) {
-        final JSONObject propCache = getSuperPropertiesCache();
+        final JSONObject propCache = copySuperPropertiesCache();
+        if (null == propCache) {
+            return;
+        }
         propCache.remove(superPropertyName);
 
+        mSuperPropertiesCache = propCache;
         storeSuperProperties();
     }
 
@@ -279,7 +278,7 @@ import com.mixpanel.android.util.MPLog;
         try {
             final SharedPreferences prefs = mTimeEventsPreferences.get();
 
-            Map<String, ?> allEntries = prefs.getAll();
+            Map<String, ?> allEntries = PreferencesWriteBuffer.getAll(prefs);
             for (Map.Entry<String, ?> entry : allEntries.entrySet()) {
                 timeEvents.put(entry.getKey(), Long.valueOf(entry.getValue().toString()));
             }
@@ -296,9 +295,7 @@ import com.mixpanel.android.util.MPLog;
     public void removeTimeEvent(String timeEventName) {
         try {
             final SharedPreferences prefs = mTimeEventsPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.remove(timeEventName);
-            writeEdits(editor);
+            PreferencesWriteBuffer.remove(prefs, timeEventName);
         } catch (InterruptedException e) {
             e.printStackTrace();
         } catch (ExecutionException e) {
@@ -310,9 +307,7 @@ import com.mixpanel.android.util.MPLog;
     public void addTimeEvent(String timeEventName, Long timeEventTimestamp) {
         try {
             final SharedPreferences prefs = mTimeEventsPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.putLong(timeEventName, timeEventTimestamp);
-            writeEdits(editor);
+            PreferencesWriteBuffer.putLong(prefs, timeEventName, timeEventTimestamp);
         } catch (InterruptedException e) {
             e.printStackTrace();
         } catch (ExecutionException e) {
@@ -321,7 +316,10 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public synchronized void registerSuperPropertiesOnce(JSONObject superProperties) {
-        final JSONObject propCache = getSuperPropertiesCache();
+        final JSONObject propCache = copySuperPropertiesCache();
+        if (null == propCache) {
+            return;
+        }
 
         for (final Iterator<?> iter = superProperties.keys(); iter.hasNext(); ) {
             final String key = (String) iter.next();
@@ -334,6 +332,7 @@ import com.mixpanel.android.util.MPLog;
             }
         }// for
 
+        mSuperPropertiesCache = propCache;
         storeSuperProperties();
     }
 
@@ -465,7 +464,8 @@ import com.mixpanel.android.util.MPLog;
 
     //////////////////////////////////////////////////
 
-    // Must be called from a synchronized setting
+    // Must be called from a synchronized setting. The returned object is shared with
+    // readers that don't lock, so it must never be modified.
     private JSONObject getSuperPropertiesCache() {
         if (null == mSuperPropertiesCache) {
             readSuperProperties();
@@ -473,11 +473,31 @@ import com.mixpanel.android.util.MPLog;
         return mSuperPropertiesCache;
     }
 
+    // Must be called from a synchronized setting. Changes to super properties are made to
+    // this copy, which then replaces mSuperPropertiesCache. Returns null if the copy fails.
+    private JSONObject copySuperPropertiesCache() {
+        final JSONObject oldPropCache = getSuperPropertiesCache();
+        final JSONObject copy = new JSONObject();
+
+        try {
+            final Iterator<String> keys = oldPropCache.keys();
+            while (keys.hasNext()) {
+                final String k = keys.next();
+                final Object v = oldPropCache.get(k);
+                copy.put(k, v);
+            }
+        } catch (JSONException e) {
+            MPLog.e(LOGTAG, "Can't copy from one JSONObject to another", e);
+            return null;
+        }
+        return copy;
+    }
+
     // All access should be synchronized on this
     private void readSuperProperties() {
         try {
             final SharedPreferences prefs = mLoadStoredPreferences.get();
-            final String props = prefs.getString("super_properties", "{}");
+            final String props = PreferencesWriteBuffer.getString(prefs, "super_properties", "{}");
             MPLog.v(LOGTAG, "Loading Super Properties " + props);
             mSuperPropertiesCache = new JSONObject(props);
         } catch (final ExecutionException e) {
@@ -496,7 +516,7 @@ import com.mixpanel.android.util.MPLog;
 
     // All access should be synchronized on this
     private void readReferrerProperties() {
-        mReferrerPropertiesCache = new HashMap<String, String>();
+        final Map<String, String> referrerProperties = new HashMap<String, String>();
 
         try {
             final SharedPreferences referrerPrefs = mLoadReferrerPreferences.get();
@@ -507,13 +527,16 @@ import com.mixpanel.android.util.MPLog;
             for (final Map.Entry<String, ?> entry : prefsMap.entrySet()) {
                 final String prefsName = entry.getKey();
                 final Object prefsVal = entry.getValue();
-                mReferrerPropertiesCache.put(prefsName, prefsVal.toString());
+                referrerProperties.put(prefsName, prefsVal.toString());
             }
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Cannot load referrer properties from shared preferences.", e.getCause());
         } catch (final InterruptedException e) {
             MPLog.e(LOGTAG, "Cannot load referrer properties from shared preferences.", e);
         }
+
+        // Published whole, since getReferrerProperties reads it without locking
+        mReferrerPropertiesCache = Collections.unmodifiableMap(referrerProperties);
     }
 
     // All access should be synchronized on this
@@ -523,14 +546,10 @@ import com.mixpanel.android.util.MPLog;
             return;
         }
 
-        final String props = mSuperPropertiesCache.toString();
-        MPLog.v(LOGTAG, "Storing Super Properties " + props);
-
+        // The cache is never modified once published, so it can be turned into a string when it's written
         try {
             final SharedPreferences prefs = mLoadStoredPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.putString("super_properties", props);
-            writeEdits(editor);
+            PreferencesWriteBuffer.putJSONObject(prefs, "super_properties", mSuperPropertiesCache);
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Cannot store superProperties in shared preferences.", e.getCause());
         } catch (final InterruptedException e) {
@@ -553,18 +572,8 @@ import com.mixpanel.android.util.MPLog;
             return;
         }
 
-        mEventsDistinctId = prefs.getString("events_distinct_id", null);
-        mPeopleDistinctId = prefs.getString("people_distinct_id", null);
-        mWaitingPeopleRecords = null;
-
-        final String storedWaitingRecord = prefs.getString("waiting_array", null);
-        if (storedWaitingRecord != null) {
-            try {
-                mWaitingPeopleRecords = new JSONArray(storedWaitingRecord);
-            } catch (final JSONException e) {
-                MPLog.e(LOGTAG, "Could not interpret waiting people JSON record " + storedWaitingRecord);
-            }
-        }
+        mEventsDistinctId = PreferencesWriteBuffer.getString(prefs, "events_distinct_id", null);
+        mPeopleDistinctId = PreferencesWriteBuffer.getString(prefs, "people_distinct_id", null);
 
         if (null == mEventsDistinctId) {
             mEventsDistinctId = UUID.randomUUID().toString();
@@ -578,16 +587,8 @@ import com.mixpanel.android.util.MPLog;
     private void writeIdentities() {
         try {
             final SharedPreferences prefs = mLoadStoredPreferences.get();
-            final SharedPreferences.Editor prefsEditor = prefs.edit();
-
-            prefsEditor.putString("events_distinct_id", mEventsDistinctId);
-            prefsEditor.putString("people_distinct_id", mPeopleDistinctId);
-            if (mWaitingPeopleRecords == null) {
-                prefsEditor.remove("waiting_array");
-            } else {
-                prefsEditor.putString("waiting_array", mWaitingPeopleRecords.toString());
-            }
-            writeEdits(prefsEditor);
+            PreferencesWriteBuffer.putString(prefs, "events_distinct_id", mEventsDistinctId);
+            PreferencesWriteBuffer.putString(prefs, "people_distinct_id", mPeopleDistinctId);
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Can't write distinct ids to shared preferences.", e.getCause());
         } catch (final InterruptedException e) {
@@ -604,16 +605,16 @@ import com.mixpanel.android.util.MPLog;
     private final Future<SharedPreferences> mTimeEventsPreferences;
     private final Future<SharedPreferences> mMixpanelPreferences;
     private final SharedPreferences.OnSharedPreferenceChangeListener mReferrerChangeListener;
-    private JSONObject mSuperPropertiesCache;
-    private Map<String, String> mReferrerPropertiesCache;
+    // Both caches are immutable snapshots, replaced rather than modified, so they can be read without locking
+    private volatile JSONObject mSuperPropertiesCache;
+    private volatile Map<String, String> mReferrerPropertiesCache;
     private boolean mIdentitiesLoaded;
     private String mEventsDistinctId;
     private String mPeopleDistinctId;
-    private JSONArray mWaitingPeopleRecords;
     private static Integer sPreviousVersionCode;
     private static Boolean sIsFirstAppLaunch;
 
-    private static boolean sReferrerPrefsDirty = true;
+    private static volatile boolean sReferrerPrefsDirty = true;
     private static final Object sReferrerPrefsLock = new Object();
     private static final String DELIMITER = ",";
     private static final String LOGTAG = "MixpanelAPI.PIdentity";
@@ -0,0 +1,200 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences;
+
+import com.mixpanel.android.util.MPLog;
+
+/**
+ * Holds PersistentIdentity's frequent SharedPreferences writes in memory, and writes them together
+ * at most {@link #FLUSH_DELAY_MILLIS} after the first of them, or when an Activity pauses.
+ * Only the latest value of each key is written, and writes that wouldn't change the stored value
+ * are dropped.
+ *
+ * <p>Values that haven't been written yet are only visible through the read methods here, so
+ * every read of a key written through this class must go through them as well.
+ */
+@SuppressLint("CommitPrefEdits")
+/* package */ class PreferencesWriteBuffer {
+
+    public static void putString(SharedPreferences prefs, String key, String value) {
+        put(prefs, key, value);
+    }
+
+    public static void putLong(SharedPreferences prefs, String key, long value) {
+        put(prefs, key, value);
+    }
+
+    // JSONObjects are only turned into strings when written, so objects passed here must never be modified.
+    public static void putJSONObject(SharedPreferences prefs, String key, JSONObject value) {
+        put(prefs, key, value);
+    }
+
+    public static void remove(SharedPreferences prefs, String key) {
+        put(prefs, key, null);
+    }
+
+    public static String getString(SharedPreferences prefs, String key, String defValue) {
+        synchronized (sPending) {
+            final Map<String, Object> edits = sPending.get(prefs);
+            if (null != edits && edits.containsKey(key)) {
+                final Object value = edits.get(key);
+                return null == value ? defValue : value.toString();
+            }
+        }
+        return prefs.getString(key, defValue);
+    }
+
+    public static Map<String, Object> getAll(SharedPreferences prefs) {
+        synchronized (sPending) {
+            final Map<String, Object> ret = new HashMap<String, Object>(prefs.getAll());
+            final Map<String, Object> edits = sPending.get(prefs);
+            if (null != edits) {
+                for (final Map.Entry<String, Object> edit : edits.entrySet()) {
+                    if (null == edit.getValue()) {
+                        ret.remove(edit.getKey());
+                    } else if (edit.getValue() instanceof Long) {
+                        ret.put(edit.getKey(), edit.getValue());
+                    } else {
+                        ret.put(edit.getKey(), edit.getValue().toString());
+                    }
+                }
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Drops the writes waiting for prefs, for callers about to clear it.
+     */
+    public static void discard(SharedPreferences prefs) {
+        synchronized (sPending) {
+            sPending.remove(prefs);
+        }
+    }
+
+    /**
+     * Writes everything waiting right away. The writes are applied, so this doesn't wait for the disk.
+     */
+    public static void flush() {
+        write(false);
+    }
+
+    /**
+     * Writes everything waiting and waits for it to reach the disk, for when the process is about to
+     * be killed and applied writes might never finish.
+     */
+    public static void flushNow() {
+        write(true);
+    }
+
+    private static void write(boolean synchronous) {
+        synchronized (sPending) {
+            for (final Map.Entry<SharedPreferences, Map<String, Object>> pending : sPending.entrySet()) {
+                final SharedPreferences.Editor editor = pending.getKey().edit();
+                for (final Map.Entry<String, Object> edit : pending.getValue().entrySet()) {
+                    final Object value = edit.getValue();
+                    if (null == value) {
+                        editor.remove(edit.getKey());
+                    } else if (value instanceof Long) {
+                        editor.putLong(edit.getKey(), (Long) value);
+                    } else {
+                        editor.putString(edit.getKey(), value.toString());
+                    }
+                }
+                if (synchronous) {
+                    editor.commit();
+                } else {
+                    editor.apply();
+                }
+            }
+            sPending.clear();
+            sFlushScheduled = false;
+        }
+    }
+
+    // A null value removes the key
+    private static void put(SharedPreferences prefs, String key, Object value) {
+        synchronized (sPending) {
+            Map<String, Object> edits = sPending.get(prefs);
+            if (isStored(prefs, key, value)) {
+                // Also undoes a change still waiting, like a timed event started and tracked in the same interval
+                if (null != edits) {
+                    edits.remove(key);
+                }
+                return;
+            }
+
+            if (null == edits) {
+                edits = new LinkedHashMap<String, Object>();
+                sPending.put(prefs, edits);
+            }
+            edits.put(key, value);
+
+            if (!sFlushScheduled) {
+                getExecutor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                sFlushScheduled = true;
+            }
+        }
+    }
+
+    // True if writing value to key wouldn't change what's already in prefs
+    private static boolean isStored(SharedPreferences prefs, String key, Object value) {
+        if (null == value) {
+            return !prefs.contains(key);
+        }
+        if (!prefs.contains(key)) {
+            return false;
+        }
+
+        try {
+            if (value instanceof Long) {
+                return ((Long) value).longValue() == prefs.getLong(key, 0);
+            } else if (value instanceof String) {
+                return value.equals(prefs.getString(key, null));
+            }
+        } catch (final ClassCastException e) {
+            MPLog.w(LOGTAG, "Preference " + key + " was stored with a different type, and will be replaced");
+        }
+        return false; // Comparing JSONObjects would cost as much as writing them
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if (null == sExecutor) {
+            sExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "com.mixpanel.android.PreferencesWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sExecutor.setKeepAliveTime(WRITER_THREAD_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    private static final Map<SharedPreferences, Map<String, Object>> sPending = new HashMap<SharedPreferences, Map<String, Object>>();
+    private static boolean sFlushScheduled = false;
+    private static ScheduledThreadPoolExecutor sExecutor;
+
+    // The longest a change waits in memory, and can be lost if the process is killed
+    /* package */ static final long FLUSH_DELAY_MILLIS = 1000;
+    private static final long WRITER_THREAD_KEEP_ALIVE_MILLIS = 30 * 1000;
+    private static final String LOGTAG = "MixpanelAPI.PrefsWriter";
+}
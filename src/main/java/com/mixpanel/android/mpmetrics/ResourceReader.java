@@ -4,6 +4,7 @@ import android.content.Context;
 import android.util.SparseArray;
 
 import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.StartupTrace;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
@@ -108,6 +109,15 @@ public abstract class ResourceReader implements ResourceIds {
     protected abstract String getLocalClassName(Context context);
 
     protected void initialize() {
+        final long start = StartupTrace.begin("ResourceReader " + getClass().getSimpleName());
+        try {
+            readIds();
+        } finally {
+            StartupTrace.end("ResourceReader " + getClass().getSimpleName(), start);
+        }
+    }
+
+    private void readIds() {
         mIdNameToId.clear();
         mIdToIdName.clear();
 
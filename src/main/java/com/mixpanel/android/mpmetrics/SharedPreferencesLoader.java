@@ -1,14 +1,27 @@
 package com.mixpanel.android.mpmetrics;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.StartupTrace;
+
+/**
+ * Reads SharedPreferences files off the calling thread. Loaders share a small pool of threads, so
+ * the files a MixpanelAPI instance needs are read at the same time rather than one after another.
+ * Loading a file that was loaded before is cheap, since the Context keeps it in memory, so files
+ * can be loaded early to warm them up, see {@link MixpanelAPI#preloadPreferences(Context, String)}.
+ */
 /* package */ class SharedPreferencesLoader {
 
     /* package */ interface OnPrefsLoadedListener {
@@ -16,16 +29,58 @@ import android.content.SharedPreferences;
     }
 
     public SharedPreferencesLoader() {
-        mExecutor = Executors.newSingleThreadExecutor();
+        mExecutor = getExecutor();
     }
 
     public Future<SharedPreferences> loadPreferences(Context context, String name, OnPrefsLoadedListener listener) {
         final LoadSharedPreferences loadSharedPrefs = new LoadSharedPreferences(context, name, listener);
-        final FutureTask<SharedPreferences> task = new FutureTask<SharedPreferences>(loadSharedPrefs);
+        final FutureTask<SharedPreferences> task = new PreferencesFuture(loadSharedPrefs, name);
         mExecutor.execute(task);
         return task;
     }
 
+    private static synchronized Executor getExecutor() {
+        if (null == sExecutor) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, LOADER_THREAD_KEEP_ALIVE_MILLIS,
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "com.mixpanel.android.PreferencesLoader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            sExecutor = executor;
+        }
+        return sExecutor;
+    }
+
+    // Reports how long callers wait for files that haven't finished loading
+    private static class PreferencesFuture extends FutureTask<SharedPreferences> {
+        public PreferencesFuture(Callable<SharedPreferences> load, String prefsName) {
+            super(load);
+            mPrefsName = prefsName;
+        }
+
+        @Override
+        public SharedPreferences get() throws InterruptedException, ExecutionException {
+            if (isDone()) {
+                return super.get();
+            }
+
+            final long start = StartupTrace.begin("SharedPreferences wait " + mPrefsName);
+            try {
+                return super.get();
+            } finally {
+                final long waited = StartupTrace.end("SharedPreferences wait " + mPrefsName, start);
+                MPLog.v(LOGTAG, Thread.currentThread().getName() + " waited " + waited + "ms for preferences " + mPrefsName);
+            }
+        }
+
+        private final String mPrefsName;
+    }
+
     private static class LoadSharedPreferences implements Callable<SharedPreferences> {
         public LoadSharedPreferences(Context context, String prefsName, OnPrefsLoadedListener listener) {
             mContext = context;
@@ -35,7 +90,16 @@ import android.content.SharedPreferences;
 
         @Override
         public SharedPreferences call() {
-            final SharedPreferences ret = mContext.getSharedPreferences(mPrefsName, Context.MODE_PRIVATE);
+            final long start = StartupTrace.begin("SharedPreferences " + mPrefsName);
+            final SharedPreferences ret;
+            try {
+                ret = mContext.getSharedPreferences(mPrefsName, Context.MODE_PRIVATE);
+                // getSharedPreferences returns before the file is read, and the first read
+                // waits for it. Wait here, so callers of the future don't.
+                ret.contains(mPrefsName);
+            } finally {
+                StartupTrace.end("SharedPreferences " + mPrefsName, start);
+            }
             if (null != mListener) {
                 mListener.onPrefsLoaded(ret);
             }
@@ -48,4 +112,11 @@ import android.content.SharedPreferences;
     }
 
     private final Executor mExecutor;
+
+    private static Executor sExecutor;
+
+    // Enough for the four files a MixpanelAPI instance reads to load at once
+    private static final int LOADER_THREADS = 4;
+    private static final long LOADER_THREAD_KEEP_ALIVE_MILLIS = 30 * 1000;
+    private static final String LOGTAG = "MixpanelAPI.PrefsLoader";
 }
@@ -7,11 +7,14 @@ import android.Manifest;
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.BatteryManager;
 import android.telephony.TelephonyManager;
 import android.util.DisplayMetrics;
 import android.view.Display;
@@ -137,6 +140,58 @@ import com.mixpanel.android.util.MPLog;
         return ret;
     }
 
+    // Whether the active network may cost the user money, like cellular data. Null if we can't tell.
+    public Boolean isNetworkMetered() {
+        Boolean ret = null;
+
+        if (PackageManager.PERMISSION_GRANTED == mContext.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)) {
+            ConnectivityManager connManager = (ConnectivityManager) this.mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (android.os.Build.VERSION.SDK_INT >= 16) {
+                ret = connManager.isActiveNetworkMetered();
+            } else {
+                NetworkInfo networkInfo = connManager.getActiveNetworkInfo();
+                if (null != networkInfo) {
+                    ret = networkInfo.getType() != ConnectivityManager.TYPE_WIFI;
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    // Null if we can't tell. status is a result of getBatteryStatus(), read once for both battery values.
+    public static Boolean isCharging(Intent status) {
+        if (null == status) {
+            return null;
+        }
+        return status.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    // Between 0 and 1, or null if we can't tell
+    public static Float getBatteryLevel(Intent status) {
+        if (null == status) {
+            return null;
+        }
+        final int level = status.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        final int scale = status.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level < 0 || scale <= 0) {
+            return null;
+        }
+        return level / (float) scale;
+    }
+
+    // The battery broadcast is sticky, so this reads the last one without registering a receiver.
+    // Null if it can't be read.
+    public Intent getBatteryStatus() {
+        try {
+            return mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        } catch (final RuntimeException e) {
+            // Restricted and mock contexts may refuse
+            MPLog.d(LOGTAG, "Can't read the battery status", e);
+            return null;
+        }
+    }
+
     @SuppressLint("MissingPermission")
     public Boolean isBluetoothEnabled() {
         Boolean isBluetoothEnabled = null;
@@ -0,0 +1,80 @@
+package com.mixpanel.android.mpmetrics;
+
+/**
+ * Chooses how many queued records go into each upload request. The batch grows while
+ * full batches are accepted quickly, and is halved when a request times out or is
+ * rejected as too large.
+ *
+ * Thread safe. The worker thread reads the batch size while the table's upload thread adjusts it.
+ */
+/* package */ class UploadBatchSizer {
+    public UploadBatchSizer(int initialSize) {
+        mBatchSize = clamp(initialSize);
+        mRoundTrips = new long[ROUND_TRIP_HISTORY];
+        mRoundTripCount = 0;
+    }
+
+    public synchronized int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * Call when a batch was accepted.
+     *
+     * @param batchWasFull true if more records were waiting than fit in the batch
+     * @param roundTripMillis how long the request took
+     */
+    public synchronized void onSuccess(boolean batchWasFull, long roundTripMillis) {
+        recordRoundTrip(roundTripMillis);
+        if (batchWasFull && roundTripMillis <= FAST_ROUND_TRIP_MILLIS) {
+            mBatchSize = clamp(mBatchSize + Math.max(1, mBatchSize / 4));
+        }
+    }
+
+    public synchronized void onTimeout(long roundTripMillis) {
+        recordRoundTrip(roundTripMillis);
+        shrink();
+    }
+
+    /**
+     * Halves the batch size.
+     *
+     * @return false if the batch size was already as small as it can be
+     */
+    public synchronized boolean shrink() {
+        final int oldSize = mBatchSize;
+        mBatchSize = clamp(mBatchSize / 2);
+        return mBatchSize < oldSize;
+    }
+
+    // Oldest first
+    public synchronized long[] getRecentRoundTrips() {
+        final int count = Math.min(mRoundTripCount, ROUND_TRIP_HISTORY);
+        final long[] ret = new long[count];
+        for (int i = 0; i < count; i++) {
+            ret[i] = mRoundTrips[(mRoundTripCount - count + i) % ROUND_TRIP_HISTORY];
+        }
+        return ret;
+    }
+
+    private void recordRoundTrip(long roundTripMillis) {
+        mRoundTrips[mRoundTripCount % ROUND_TRIP_HISTORY] = roundTripMillis;
+        mRoundTripCount++;
+        if (mRoundTripCount == 2 * ROUND_TRIP_HISTORY) {
+            mRoundTripCount = ROUND_TRIP_HISTORY; // keep the index from overflowing
+        }
+    }
+
+    private static int clamp(int size) {
+        return Math.max(1, Math.min(MAX_BATCH_SIZE, size));
+    }
+
+    private int mBatchSize;
+    private int mRoundTripCount;
+    private final long[] mRoundTrips;
+
+    // The track and engage endpoints accept at most 50 records per request
+    /* package */ static final int MAX_BATCH_SIZE = 50;
+    private static final long FAST_ROUND_TRIP_MILLIS = 2000;
+    private static final int ROUND_TRIP_HISTORY = 10;
+}
@@ -0,0 +1,116 @@
+package com.mixpanel.android.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A request parameter value made of raw bytes that are sent Base64 encoded.
+ *
+ * {@link HttpService} encodes the bytes as it writes them to the connection, so neither
+ * the Base64 nor the form encoded copy of the payload is ever held in memory. Other
+ * {@link RemoteService} implementations can use {@link #toString()}, which returns the
+ * Base64 encoded value.
+ */
+public class Base64Payload {
+    /**
+     * @param data the bytes to send. The array is not copied, and must not be changed afterwards.
+     * @param length the number of bytes at the start of data to send
+     */
+    public Base64Payload(byte[] data, int length) {
+        mData = data;
+        mLength = length;
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeFormEncoded(OutputStream)} will write.
+     */
+    public long getFormEncodedLength() {
+        long ret = 0;
+        int ip = 0;
+        while (ip < mLength) {
+            final int i0 = mData[ip++] & 0xff;
+            final int i1 = ip < mLength ? mData[ip++] & 0xff : 0;
+            final int i2 = ip < mLength ? mData[ip++] & 0xff : 0;
+            ret += encodedLength(i0 >>> 2);
+            ret += encodedLength(((i0 & 3) << 4) | (i1 >>> 4));
+            ret += encodedLength(((i1 & 0xf) << 2) | (i2 >>> 6));
+            ret += encodedLength(i2 & 0x3f);
+        }
+
+        // Padding was counted as 'A' above, but is sent as an escaped '='
+        final int padding = (3 - mLength % 3) % 3;
+        ret += padding * (ESCAPE_LENGTH - 1);
+        return ret;
+    }
+
+    /**
+     * Writes the Base64 encoding of the payload to out, escaped for use as the value of an
+     * application/x-www-form-urlencoded parameter.
+     */
+    public void writeFormEncoded(OutputStream out) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final int oDataLen = (mLength * 4 + 2) / 3; // output length without padding
+        int op = 0;
+        int ip = 0;
+        int pos = 0;
+        while (ip < mLength) {
+            final int i0 = mData[ip++] & 0xff;
+            final int i1 = ip < mLength ? mData[ip++] & 0xff : 0;
+            final int i2 = ip < mLength ? mData[ip++] & 0xff : 0;
+            pos = put(buffer, pos, ALPHABET[i0 >>> 2]);
+            pos = put(buffer, pos, ALPHABET[((i0 & 3) << 4) | (i1 >>> 4)]);
+            op += 2;
+            pos = put(buffer, pos, op < oDataLen ? ALPHABET[((i1 & 0xf) << 2) | (i2 >>> 6)] : '=');
+            op++;
+            pos = put(buffer, pos, op < oDataLen ? ALPHABET[i2 & 0x3f] : '=');
+            op++;
+
+            if (pos > BUFFER_SIZE - 4 * ESCAPE_LENGTH) {
+                out.write(buffer, 0, pos);
+                pos = 0;
+            }
+        }
+        out.write(buffer, 0, pos);
+    }
+
+    /**
+     * Returns the Base64 encoded payload, without form escaping.
+     */
+    @Override
+    public String toString() {
+        return new String(Base64Coder.encode(mData, mLength));
+    }
+
+    private static int encodedLength(int sextet) {
+        return sextet >= 62 ? ESCAPE_LENGTH : 1;
+    }
+
+    private static int put(byte[] buffer, int pos, char c) {
+        switch (c) {
+            case '+':
+                return escape(buffer, pos, '2', 'B');
+            case '/':
+                return escape(buffer, pos, '2', 'F');
+            case '=':
+                return escape(buffer, pos, '3', 'D');
+            default:
+                buffer[pos] = (byte) c;
+                return pos + 1;
+        }
+    }
+
+    private static int escape(byte[] buffer, int pos, char highNibble, char lowNibble) {
+        buffer[pos] = '%';
+        buffer[pos + 1] = (byte) highNibble;
+        buffer[pos + 2] = (byte) lowNibble;
+        return pos + ESCAPE_LENGTH;
+    }
+
+    private final byte[] mData;
+    private final int mLength;
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int ESCAPE_LENGTH = 3;
+    private static final int BUFFER_SIZE = 4096;
+}
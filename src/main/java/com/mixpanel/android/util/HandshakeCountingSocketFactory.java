@@ -0,0 +1,99 @@
+package com.mixpanel.android.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Counts the TLS sockets created on each thread, so HttpService can tell whether a request
+ * opened a new connection. HttpURLConnection creates its sockets on the requesting thread.
+ *
+ * Connection pools only reuse connections made with the same factory, so use {@link #wrap}
+ * rather than creating instances for every request.
+ */
+/* package */ class HandshakeCountingSocketFactory extends SSLSocketFactory {
+
+    /**
+     * Returns a counting factory that delegates to the given factory, or to the default
+     * factory if delegate is null.
+     */
+    public static synchronized SSLSocketFactory wrap(SSLSocketFactory delegate) {
+        if (null == delegate) {
+            delegate = HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+        if (null == sLastWrapped || sLastWrapped.mDelegate != delegate) {
+            sLastWrapped = new HandshakeCountingSocketFactory(delegate);
+        }
+        return sLastWrapped;
+    }
+
+    public static void resetCount() {
+        sCount.get()[0] = 0;
+    }
+
+    public static int getCount() {
+        return sCount.get()[0];
+    }
+
+    private HandshakeCountingSocketFactory(SSLSocketFactory delegate) {
+        mDelegate = delegate;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return mDelegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return counted(mDelegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        return counted(mDelegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return counted(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return counted(mDelegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return counted(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return counted(mDelegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private static Socket counted(Socket socket) {
+        sCount.get()[0]++;
+        return socket;
+    }
+
+    private final SSLSocketFactory mDelegate;
+
+    private static HandshakeCountingSocketFactory sLastWrapped;
+    private static final ThreadLocal<int[]> sCount = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+}
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.SystemClock;
 
 import com.mixpanel.android.mpmetrics.MPConfig;
 
@@ -13,22 +14,61 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
 import java.net.URL;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
- * An HTTP utility class for internal use in the Mixpanel library. Not thread-safe.
+ * An HTTP utility class for internal use in the Mixpanel library.
+ *
+ * <p>Thread-safe. One instance is shared by every upload thread, so requests may run concurrently.
+ * Instances hold only final settings, and the state shared between requests is static: the blocked
+ * flag is volatile, the list of endpoints that reject compression is synchronized, and the socket
+ * factory wrapper is created under a lock and counts connections per thread.
  */
 public class HttpService implements RemoteService {
 
-    private static boolean sIsMixpanelBlocked;
+    public HttpService() {
+        this(false, false, null);
+    }
+
+    /**
+     * @param compressRequests if true, request bodies are sent gzip compressed to any endpoint
+     *     that hasn't rejected compressed requests in the last hour
+     * @param reuseConnections if true, connections are left open after successful requests so
+     *     later requests to the same host can reuse them
+     * @param metricsListener called after every request attempt, may be null
+     */
+    public HttpService(boolean compressRequests, boolean reuseConnections, RequestMetricsListener metricsListener) {
+        mCompressRequests = compressRequests;
+        mReuseConnections = reuseConnections;
+        mMetricsListener = metricsListener;
+    }
+
+    private final boolean mCompressRequests;
+    private final boolean mReuseConnections;
+    private final RequestMetricsListener mMetricsListener;
+
+    // Written by the checkIsMixpanelBlocked() thread, read by the request threads
+    private static volatile boolean sIsMixpanelBlocked;
+    // Endpoints that answered a compressed request with 415, and when they did
+    private static final Map<String, Long> sUncompressedEndpoints = new HashMap<String, Long>();
+    private static final long COMPRESSION_RETRY_MILLIS = 60 * 60 * 1000;
     private static final int MIN_UNAVAILABLE_HTTP_RESPONSE_CODE = HttpURLConnection.HTTP_INTERNAL_ERROR;
     private static final int MAX_UNAVAILABLE_HTTP_RESPONSE_CODE = 599;
+    private static final int REQUEST_TOO_LARGE_HTTP_RESPONSE_CODE = HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+    private static final int UNSUPPORTED_ENCODING_HTTP_RESPONSE_CODE = HttpURLConnection.HTTP_UNSUPPORTED_TYPE;
 
     @Override
     public void checkIsMixpanelBlocked() {
@@ -67,7 +107,7 @@ public class HttpService implements RemoteService {
                 MPLog.v(LOGTAG, "A default network has not been set so we cannot be certain whether we are offline");
             } else {
                 isOnline = netInfo.isConnectedOrConnecting();
-                MPLog.v(LOGTAG, "ConnectivityManager says we " + (isOnline ? "are" : "are not") + " online");
+                MPLog.vDeferred(LOGTAG, "ConnectivityManager says we ", isOnline ? "are" : "are not", " online");
             }
         } catch (final SecurityException e) {
             isOnline = true;
@@ -91,7 +131,7 @@ public class HttpService implements RemoteService {
 
     @Override
     public byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory) throws ServiceUnavailableException, IOException {
-        MPLog.v(LOGTAG, "Attempting request to " + endpointUrl);
+        MPLog.vDeferred(LOGTAG, "Attempting request to ", endpointUrl);
 
         byte[] response = null;
 
@@ -106,34 +146,54 @@ public class HttpService implements RemoteService {
             OutputStream out = null;
             BufferedOutputStream bout = null;
             HttpURLConnection connection = null;
+            boolean bodySent = false;
+            final boolean compress = mCompressRequests && null != params && !isCompressionRejected(endpointUrl);
+            final long attemptStart = SystemClock.elapsedRealtime();
+            if (null != mMetricsListener) {
+                HandshakeCountingSocketFactory.resetCount();
+            }
 
             try {
                 final URL url = new URL(endpointUrl);
                 connection = (HttpURLConnection) url.openConnection();
-                if (null != socketFactory && connection instanceof HttpsURLConnection) {
-                    ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+                if (connection instanceof HttpsURLConnection) {
+                    if (null != mMetricsListener) {
+                        ((HttpsURLConnection) connection).setSSLSocketFactory(HandshakeCountingSocketFactory.wrap(socketFactory));
+                    } else if (null != socketFactory) {
+                        ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+                    }
                 }
 
                 connection.setConnectTimeout(2000);
                 connection.setReadTimeout(10000);
-                if (null != params) {
-                    Uri.Builder builder = new Uri.Builder();
-                    for (Map.Entry<String, Object> param : params.entrySet()) {
-                        builder.appendQueryParameter(param.getKey(), param.getValue().toString());
+                if (compress) {
+                    final byte[] body = gzipForm(params);
+                    if (MPLog.isLoggable(MPLog.VERBOSE)) {
+                        MPLog.v(LOGTAG, "Sending " + body.length + " byte gzip compressed request body");
                     }
-                    String query = builder.build().getEncodedQuery();
-
-                    connection.setFixedLengthStreamingMode(query.getBytes().length);
+                    connection.setFixedLengthStreamingMode(body.length);
+                    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                    connection.setRequestProperty("Content-Encoding", "gzip");
+                    connection.setDoOutput(true);
+                    connection.setRequestMethod("POST");
+                    out = connection.getOutputStream();
+                    out.write(body);
+                    out.close();
+                    out = null;
+                    bodySent = true;
+                } else if (null != params) {
+                    connection.setFixedLengthStreamingMode((int) getFormLength(params));
                     connection.setDoOutput(true);
                     connection.setRequestMethod("POST");
                     out = connection.getOutputStream();
                     bout = new BufferedOutputStream(out);
-                    bout.write(query.getBytes("UTF-8"));
+                    writeForm(params, bout);
                     bout.flush();
                     bout.close();
                     bout = null;
                     out.close();
                     out = null;
+                    bodySent = true;
                 }
                 in = connection.getInputStream();
                 response = slurp(in);
@@ -144,7 +204,15 @@ public class HttpService implements RemoteService {
                 MPLog.d(LOGTAG, "Failure to connect, likely caused by a known issue with Android lib. Retrying.");
                 retries = retries + 1;
             } catch (final IOException e) {
-                if (connection.getResponseCode() >= MIN_UNAVAILABLE_HTTP_RESPONSE_CODE && connection.getResponseCode() <= MAX_UNAVAILABLE_HTTP_RESPONSE_CODE) {
+                if (mReuseConnections && isStaleConnectionFailure(e, bodySent)) {
+                    // Checked first, since asking a dead connection for its response code would throw again
+                    MPLog.dDeferred(LOGTAG, "Reused connection to ", endpointUrl, " had been closed. Retrying on a new connection.");
+                    retries = retries + 1;
+                } else if (compress && connection.getResponseCode() == UNSUPPORTED_ENCODING_HTTP_RESPONSE_CODE) {
+                    rejectCompression(endpointUrl); // and retry uncompressed
+                } else if (connection.getResponseCode() == REQUEST_TOO_LARGE_HTTP_RESPONSE_CODE) {
+                    throw new RequestTooLargeException("Request Entity Too Large");
+                } else if (connection.getResponseCode() >= MIN_UNAVAILABLE_HTTP_RESPONSE_CODE && connection.getResponseCode() <= MAX_UNAVAILABLE_HTTP_RESPONSE_CODE) {
                     throw new ServiceUnavailableException("Service Unavailable", connection.getHeaderField("Retry-After"));
                 } else {
                     throw e;
@@ -157,8 +225,12 @@ public class HttpService implements RemoteService {
                     try { out.close(); } catch (final IOException e) { ; }
                 if (null != in)
                     try { in.close(); } catch (final IOException e) { ; }
-                if (null != connection)
+                // A connection that failed may be broken, so it must not go back into the pool
+                if (null != connection && (!mReuseConnections || !succeeded))
                     connection.disconnect();
+                if (null != mMetricsListener)
+                    mMetricsListener.onRequestMetrics(endpointUrl, SystemClock.elapsedRealtime() - attemptStart,
+                            HandshakeCountingSocketFactory.getCount(), succeeded);
             }
         }
         if (retries >= 3) {
@@ -167,6 +239,94 @@ public class HttpService implements RemoteService {
         return response;
     }
 
+    // Failures that mean a pooled connection was closed by the server before we used it, beyond the
+    // EOFException handled in performRequest. Failures to open a new connection don't count, since
+    // a retry would most likely fail the same way. A socket error after the whole body went out
+    // doesn't count either, since the server may have processed the request, and sending it again
+    // would record the same events twice.
+    private static boolean isStaleConnectionFailure(IOException e, boolean bodySent) {
+        if (e instanceof SocketException) {
+            return !bodySent && !(e instanceof ConnectException || e instanceof NoRouteToHostException ||
+                    e instanceof PortUnreachableException || e instanceof BindException);
+        }
+        final String message = e.getMessage();
+        return !bodySent && null != message && message.contains("unexpected end of stream");
+    }
+
+    private static byte[] gzipForm(Map<String, Object> params) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final OutputStream out = new BufferedOutputStream(new GZIPOutputStream(compressed));
+        try {
+            writeForm(params, out);
+        } finally {
+            out.close();
+        }
+        return compressed.toByteArray();
+    }
+
+    // Endpoints are tried compressed again after a while, in case the rejection came from
+    // something temporary, like a proxy on one network
+    private static boolean isCompressionRejected(String endpointUrl) {
+        synchronized (sUncompressedEndpoints) {
+            final Long rejectedAt = sUncompressedEndpoints.get(endpointUrl);
+            if (null == rejectedAt) {
+                return false;
+            }
+            if (SystemClock.elapsedRealtime() - rejectedAt >= COMPRESSION_RETRY_MILLIS) {
+                sUncompressedEndpoints.remove(endpointUrl);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static void rejectCompression(String endpointUrl) {
+        MPLog.w(LOGTAG, endpointUrl + " rejected a compressed request, will send uncompressed requests for the next hour.");
+        synchronized (sUncompressedEndpoints) {
+            sUncompressedEndpoints.put(endpointUrl, SystemClock.elapsedRealtime());
+        }
+    }
+
+    // Must agree exactly with writeForm, or the request will be cut short or rejected
+    private static long getFormLength(Map<String, Object> params) {
+        long ret = 0;
+        boolean first = true;
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            if (!first) {
+                ret++; // '&'
+            }
+            first = false;
+            ret += Uri.encode(param.getKey()).length() + 1; // '='
+            final Object value = param.getValue();
+            if (value instanceof Base64Payload) {
+                ret += ((Base64Payload) value).getFormEncodedLength();
+            } else {
+                ret += Uri.encode(value.toString()).length();
+            }
+        }
+        return ret;
+    }
+
+    // Base64Payload values are encoded as they're written, rather than copied into a query string.
+    // Everything Uri.encode returns is ASCII.
+    private static void writeForm(Map<String, Object> params, OutputStream out) throws IOException {
+        boolean first = true;
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            if (!first) {
+                out.write('&');
+            }
+            first = false;
+            out.write(Uri.encode(param.getKey()).getBytes("US-ASCII"));
+            out.write('=');
+            final Object value = param.getValue();
+            if (value instanceof Base64Payload) {
+                ((Base64Payload) value).writeFormEncoded(out);
+            } else {
+                out.write(Uri.encode(value.toString()).getBytes("US-ASCII"));
+            }
+        }
+    }
+
     private static byte[] slurp(final InputStream inputStream)
             throws IOException {
         final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
@@ -34,7 +34,9 @@ public class ImageStore {
     }
 
     public ImageStore(Context context, String moduleName) {
-        this(context, DEFAULT_DIRECTORY_PREFIX + moduleName, new HttpService());
+        this(context, DEFAULT_DIRECTORY_PREFIX + moduleName, new HttpService(false,
+                MPConfig.getInstance(context).getReuseConnections(),
+                MPConfig.getInstance(context).getRequestMetricsListener()));
     }
 
     public ImageStore(Context context, String directoryName, RemoteService poster) {
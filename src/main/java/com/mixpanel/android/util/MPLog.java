@@ -19,6 +19,14 @@ public class MPLog {
         sMinLevel = minLevel;
     }
 
+    /**
+     * Returns true if messages at the given level will be logged. Callers can check this before
+     * building an expensive message, the same way they would use android.util.Log.isLoggable.
+     */
+    public static boolean isLoggable(int level) {
+        return shouldLog(level);
+    }
+
     public static void v(String tag, String message) {
         if (shouldLog(VERBOSE)) {
             Log.v(tag, message);
@@ -31,6 +39,29 @@ public class MPLog {
         }
     }
 
+    /**
+     * Logs the given parts, joined together, at VERBOSE level. The parts are only turned into strings
+     * if VERBOSE messages will be logged, so when they won't be, logging a record or a URL this way
+     * costs a level check and nothing else.
+     */
+    public static void vDeferred(String tag, Object part0, Object part1) {
+        if (shouldLog(VERBOSE)) {
+            Log.v(tag, join(part0, part1, null, null));
+        }
+    }
+
+    public static void vDeferred(String tag, Object part0, Object part1, Object part2) {
+        if (shouldLog(VERBOSE)) {
+            Log.v(tag, join(part0, part1, part2, null));
+        }
+    }
+
+    public static void vDeferred(String tag, Object part0, Object part1, Object part2, Object part3) {
+        if (shouldLog(VERBOSE)) {
+            Log.v(tag, join(part0, part1, part2, part3));
+        }
+    }
+
     public static void d(String tag, String message) {
         if (shouldLog(DEBUG)) {
             Log.d(tag, message);
@@ -43,6 +74,19 @@ public class MPLog {
         }
     }
 
+    // Like vDeferred, at DEBUG level
+    public static void dDeferred(String tag, Object part0, Object part1) {
+        if (shouldLog(DEBUG)) {
+            Log.d(tag, join(part0, part1, null, null));
+        }
+    }
+
+    public static void dDeferred(String tag, Object part0, Object part1, Object part2) {
+        if (shouldLog(DEBUG)) {
+            Log.d(tag, join(part0, part1, part2, null));
+        }
+    }
+
     public static void i(String tag, String message) {
         if (shouldLog(INFO)) {
             Log.i(tag, message);
@@ -94,4 +138,17 @@ public class MPLog {
     private static boolean shouldLog(int level) {
         return sMinLevel <= level;
     }
+
+    // Null parts past the first two are left out, so the shorter overloads can share this
+    private static String join(Object part0, Object part1, Object part2, Object part3) {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(part0).append(part1);
+        if (null != part2) {
+            builder.append(part2);
+        }
+        if (null != part3) {
+            builder.append(part3);
+        }
+        return builder.toString();
+    }
 }
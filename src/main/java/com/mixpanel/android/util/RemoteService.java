@@ -35,4 +35,16 @@ public interface RemoteService {
 
         private final int mRetryAfter;
     }
+
+    /**
+     * Thrown when the server rejects a request because its body is too large.
+     * Sending the same records in smaller batches may succeed.
+     */
+    class RequestTooLargeException extends IOException {
+        public RequestTooLargeException(String message) {
+            super(message);
+        }
+
+        private static final long serialVersionUID = 3916546075938629633L;
+    }
 }
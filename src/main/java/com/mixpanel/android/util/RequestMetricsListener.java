@@ -0,0 +1,21 @@
+package com.mixpanel.android.util;
+
+/**
+ * Implement this to measure the network requests Mixpanel makes, for example to check
+ * whether connections are being reused.
+ */
+public interface RequestMetricsListener {
+
+    /**
+     * Called after every attempt to make a request, whether or not it succeeded. Called on
+     * the thread that made the request, so implementations should return quickly and be thread-safe.
+     *
+     * @param endpointUrl the URL requested
+     * @param latencyMillis time from opening the connection until the response was read or the attempt failed
+     * @param handshakes the number of new TLS connections opened for the attempt. Zero for an
+     *     https request means an open connection was reused. Plain http connections aren't counted.
+     * @param succeeded true if a response was read successfully
+     */
+    void onRequestMetrics(String endpointUrl, long latencyMillis, int handshakes, boolean succeeded);
+
+}
@@ -0,0 +1,76 @@
+package com.mixpanel.android.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Marks the parts of library startup so they show up in systrace and Android Studio's CPU
+ * profiler, and keeps how long each one last took.
+ *
+ * <p>Every call to {@link #begin(String)} must be followed by a call to {@link #end(String, long)}
+ * on the same thread, with sections closed in the reverse of the order they were opened,
+ * usually from a finally block.
+ */
+public class StartupTrace {
+
+    /**
+     * Opens a section.
+     *
+     * @return the start time to pass to {@link #end(String, long)}
+     */
+    public static long begin(String section) {
+        if (Build.VERSION.SDK_INT >= 18) {
+            beginSection(section);
+        }
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Closes the section most recently opened on this thread, and records how long it took.
+     *
+     * @return milliseconds since start
+     */
+    public static long end(String section, long start) {
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        if (Build.VERSION.SDK_INT >= 18) {
+            Trace.endSection();
+        }
+        synchronized (sTimings) {
+            // Keep the order sections first finished in, but the most recent time
+            sTimings.put(section, elapsed);
+        }
+        return elapsed;
+    }
+
+    /**
+     * Milliseconds each section took the last time it ran in this process.
+     */
+    public static Map<String, Long> getTimings() {
+        synchronized (sTimings) {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(sTimings));
+        }
+    }
+
+    public static void clearTimings() {
+        synchronized (sTimings) {
+            sTimings.clear();
+        }
+    }
+
+    @TargetApi(18)
+    private static void beginSection(String section) {
+        final String name = SECTION_PREFIX + section;
+        Trace.beginSection(name.length() > MAX_SECTION_LENGTH ? name.substring(0, MAX_SECTION_LENGTH) : name);
+    }
+
+    private static final Map<String, Long> sTimings = new LinkedHashMap<String, Long>();
+
+    private static final String SECTION_PREFIX = "Mixpanel ";
+    private static final int MAX_SECTION_LENGTH = 127; // Longer names make beginSection throw
+}
@@ -28,6 +28,7 @@ import com.mixpanel.android.mpmetrics.Tweaks;
 import com.mixpanel.android.util.ImageStore;
 import com.mixpanel.android.util.JSONUtils;
 import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.StartupTrace;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -66,7 +67,6 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
         mContext = context;
         mEditState = new EditState();
         mTweaks = tweaks;
-        mDeviceInfo = mixpanel.getDeviceInfo();
         mScaledDensity = Resources.getSystem().getDisplayMetrics().scaledDensity;
         mTweaksUpdatedListeners = Collections.newSetFromMap(new ConcurrentHashMap<OnMixpanelTweaksUpdatedListener, Boolean>());
 
@@ -306,8 +306,13 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
                 final int what = msg.what;
                 switch (what) {
                     case MESSAGE_INITIALIZE_CHANGES:
-                        loadKnownChanges();
-                        initializeChanges();
+                        final long start = StartupTrace.begin("ViewCrawler initialize changes");
+                        try {
+                            loadKnownChanges();
+                            initializeChanges();
+                        } finally {
+                            StartupTrace.end("ViewCrawler initialize changes", start);
+                        }
                         break;
                     case MESSAGE_CONNECT_TO_EDITOR:
                         connectToEditor();
@@ -527,7 +532,7 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
                     j.name("device_type").value("Android");
                     j.name("device_name").value(Build.BRAND + "/" + Build.MODEL);
                     j.name("scaled_density").value(mScaledDensity);
-                    for (final Map.Entry<String, String> entry : mDeviceInfo.entrySet()) {
+                    for (final Map.Entry<String, String> entry : mMixpanel.getDeviceInfo().entrySet()) {
                         j.name(entry.getKey()).value(entry.getValue());
                     }
 
@@ -1117,7 +1122,6 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
     private final DynamicEventTracker mDynamicEventTracker;
     private final EditState mEditState;
     private final Tweaks mTweaks;
-    private final Map<String, String> mDeviceInfo;
     private final ViewCrawlerHandler mMessageThreadHandler;
     private final float mScaledDensity;
 